@@ -32,15 +32,31 @@ public final class Audit
 	public CharSequence nafmanHandlerID() {return "audit-logger="+audlog.getName();}
 
 	public static Audit create(String name, String xpath, Dispatcher dsptch, XmlConfig cfg) throws java.io.IOException
+	{
+		return create(name, xpath, dsptch, cfg, null);
+	}
+
+	// The instance distinguishes multiple concurrent users of the same config, each of which gets its own audit file
+	public static Audit create(String name, String xpath, Dispatcher dsptch, XmlConfig cfg, String instance) throws java.io.IOException
 	{
 		if (xpath != null) cfg = cfg.getSection(xpath);
 		if (!cfg.exists()) return null;
 		Parameters params = new Parameters(cfg);
 		String pthnam = params.getPathname();
 		if (pthnam == null || pthnam.length() == 0) return null;
+		if (instance != null) params = new Parameters.Builder(params).withPathname(instancePath(pthnam, instance)).build();
 		return new Audit(name, dsptch, params);
 	}
 
+	// Inserts the instance into the filename part of the path, ahead of its extension (if any)
+	public static String instancePath(String pthnam, String instance)
+	{
+		int pos_dir = Math.max(pthnam.lastIndexOf('/'), pthnam.lastIndexOf('\\'));
+		int pos = pthnam.lastIndexOf('.');
+		if (pos <= pos_dir + 1) pos = pthnam.length();
+		return pthnam.substring(0, pos)+"-"+instance+pthnam.substring(pos);
+	}
+
 	private Audit(String name, Dispatcher d, Parameters params) throws java.io.IOException
 	{
 		dsptch = d;
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus;
+
+/**
+ * A set of IPv4 CIDR prefixes of arbitrary length, held in a compressed binary radix (Patricia) trie which supports
+ * longest-prefix lookups.
+ * <br>
+ * The nodes are held in flat primitive arrays rather than as objects, so the trie can hold millions of prefixes without
+ * a correspondingly large number of heap objects. Each node records the full prefix it represents, and a lookup descends
+ * by testing the single bit which follows that prefix, so chains of single-child nodes are never created.
+ * <br>
+ * A trie is populated in one thread and then published to the threads which search it, and it is not modified after
+ * that, so it needs no synchronisation. IPlist builds a new one on each reload, rather than updating it in place.
+ */
+final class CidrTrie
+{
+	private static final int NIL = -1;
+	private static final byte FLAG_TERMINAL = 1; //the node's prefix is a member of the set, rather than just a branch point
+
+	private int[] keys; //the node's prefix, with the bits beyond its length zeroed
+	private byte[] lens; //the node's prefix length
+	private byte[] flags;
+	private int[] child0; //the subtrie whose next bit after this node's prefix is 0
+	private int[] child1; //ditto for 1
+	private int nodecnt;
+	private int root = NIL;
+	private int size; //number of distinct prefixes
+
+	public int size() {return size;}
+
+	public CidrTrie()
+	{
+		this(64);
+	}
+
+	public CidrTrie(int capacity)
+	{
+		capacity = Math.max(capacity, 4);
+		keys = new int[capacity];
+		lens = new byte[capacity];
+		flags = new byte[capacity];
+		child0 = new int[capacity];
+		child1 = new int[capacity];
+	}
+
+	public void add(int ip, int prefix)
+	{
+		if (prefix < 0 || prefix > 32) throw new IllegalArgumentException("Invalid CIDR prefix=/"+prefix);
+		ip &= mask(prefix);
+		if (root == NIL) {
+			root = allocNode(ip, prefix, FLAG_TERMINAL);
+			size++;
+			return;
+		}
+		int parent = NIL;
+		int node = root;
+
+		while (true) {
+			int nodelen = lens[node];
+			int common = Math.min(Math.min(Integer.numberOfLeadingZeros(ip ^ keys[node]), prefix), nodelen);
+
+			if (common < nodelen) {
+				// the new prefix diverges from (or is a prefix of) this node's, so it has to be spliced in above it
+				int splice;
+				if (common == prefix) {
+					splice = allocNode(ip, prefix, FLAG_TERMINAL);
+					setChild(splice, bit(keys[node], prefix), node);
+				} else {
+					splice = allocNode(ip & mask(common), common, (byte)0);
+					int leaf = allocNode(ip, prefix, FLAG_TERMINAL);
+					setChild(splice, bit(keys[node], common), node);
+					setChild(splice, bit(ip, common), leaf);
+				}
+				if (parent == NIL) {
+					root = splice;
+				} else {
+					setChild(parent, bit(ip, lens[parent]), splice);
+				}
+				size++;
+				return;
+			}
+
+			// this node's prefix is a prefix of the new one
+			if (prefix == nodelen) {
+				if ((flags[node] & FLAG_TERMINAL) == 0) {
+					flags[node] |= FLAG_TERMINAL;
+					size++;
+				}
+				return;
+			}
+			int b = bit(ip, nodelen);
+			int next = (b == 0 ? child0[node] : child1[node]);
+			if (next == NIL) {
+				setChild(node, b, allocNode(ip, prefix, FLAG_TERMINAL));
+				size++;
+				return;
+			}
+			parent = node;
+			node = next;
+		}
+	}
+
+	// Returns the length of the longest prefix which matches the IP, or -1 if none do
+	public int longestMatch(int ip)
+	{
+		int best = -1;
+		int node = root;
+		while (node != NIL) {
+			int nodelen = lens[node];
+			if (((ip ^ keys[node]) & mask(nodelen)) != 0) break;
+			if ((flags[node] & FLAG_TERMINAL) != 0) best = nodelen;
+			if (nodelen == 32) break;
+			node = (bit(ip, nodelen) == 0 ? child0[node] : child1[node]);
+		}
+		return best;
+	}
+
+	public boolean contains(int ip)
+	{
+		return (longestMatch(ip) != -1);
+	}
+
+	// Calls the visitor for each prefix in the set, in ascending order of IP
+	public void forEach(java.util.function.BiConsumer<Integer, Integer> visitor)
+	{
+		if (root != NIL) visit(root, visitor);
+	}
+
+	private void visit(int node, java.util.function.BiConsumer<Integer, Integer> visitor)
+	{
+		// the depth is bounded by the 32 bits of an IP, so recursion is safe
+		if ((flags[node] & FLAG_TERMINAL) != 0) visitor.accept(keys[node], (int)lens[node]);
+		if (child0[node] != NIL) visit(child0[node], visitor);
+		if (child1[node] != NIL) visit(child1[node], visitor);
+	}
+
+	private int allocNode(int key, int prefix, byte flg)
+	{
+		if (nodecnt == keys.length) {
+			int cap = nodecnt * 2;
+			keys = java.util.Arrays.copyOf(keys, cap);
+			lens = java.util.Arrays.copyOf(lens, cap);
+			flags = java.util.Arrays.copyOf(flags, cap);
+			child0 = java.util.Arrays.copyOf(child0, cap);
+			child1 = java.util.Arrays.copyOf(child1, cap);
+		}
+		int node = nodecnt++;
+		keys[node] = key;
+		lens[node] = (byte)prefix;
+		flags[node] = flg;
+		child0[node] = NIL;
+		child1[node] = NIL;
+		return node;
+	}
+
+	private void setChild(int node, int b, int child)
+	{
+		if (b == 0) {
+			child0[node] = child;
+		} else {
+			child1[node] = child;
+		}
+	}
+
+	// Returns the bit which follows the first 'pos' bits of the IP, ie. the bit at that offset from the most significant end
+	private static int bit(int ip, int pos)
+	{
+		return (ip >>> (31 - pos)) & 1;
+	}
+
+	private static int mask(int prefix)
+	{
+		return (prefix == 0 ? 0 : -1 << (32 - prefix));
+	}
+}
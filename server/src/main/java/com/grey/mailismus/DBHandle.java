@@ -49,6 +49,7 @@ public class DBHandle
 		public final java.sql.Driver drvinst;
 		public final String connurl;
 		public final boolean hasStoredProcs;
+		public final boolean hasArrayParams; //supports array-valued parameters, as in "WHERE COL = ANY(?)"
 		public final String sqlconcat;
 		final String idtag;
 
@@ -80,6 +81,7 @@ public class DBHandle
 				}
 			}
 			boolean storedprocs = true;
+			boolean arrayparams = false;
 			String opconcat = "+";  //HSQL supports both versions, and MSSQL only supports this
 
 			if (drvclass == DRVCLASS_HSQL) {
@@ -109,6 +111,7 @@ public class DBHandle
 			} else if (drvclass == DRVCLASS_PGSQL) {
 				idtag = DBTYPE_PGSQL;
 				opconcat = "||";  // "+" fails
+				arrayparams = true;
 			} else if (drvclass == DRVCLASS_MSSQL) {
 				idtag = DBTYPE_MSSQL;
 			} else if (drvclass == DRVCLASS_MYSQL) {
@@ -119,6 +122,7 @@ public class DBHandle
 			}
 			sqlconcat = opconcat;
 			hasStoredProcs = storedprocs;
+			hasArrayParams = arrayparams;
 
 			if (template_url != null) {
 				// configured URL was only the pathname part, so embed it in the final URL
@@ -262,6 +266,12 @@ public class DBHandle
 		}
 	}
 
+	// the main connection, as opened by connect()
+	public java.sql.Connection getConnection()
+	{
+		return maincnx;
+	}
+
 	public java.sql.PreparedStatement prepareStatement(String sql) throws java.sql.SQLException
 	{
 		return maincnx.prepareStatement(sql);
@@ -21,14 +21,15 @@ import com.grey.logging.Logger.LEVEL;
 
 public class IPlist
 	implements Runnable,
-		Producer.Consumer<HashedSetInt>,
+		Producer.Consumer<IPlist.LoadParams>,
 		TimerNAF.Handler,
 		FileOps.LineReader
 {
-	private static class LoadParams
+	static class LoadParams
 	{
 		LoadParams() {} //make explicit with non-private access, to eliminate synthetic accessor
 		public HashedSetInt memlist;
+		public CidrTrie trie;
 		long systime;
 		public java.sql.Connection cnx;
 		public java.sql.PreparedStatement pstmt_add;
@@ -60,8 +61,7 @@ public class IPlist
 	private final String sqlcmd_exists;
 	private final String sqlcmd_size;
 
-	private final HashedSetInt dbmemlist = new HashedSetInt(1, 1);  //null-feed marker
-	private final Producer<HashedSetInt> updatesFeed;
+	private final Producer<LoadParams> updatesFeed;
 	private final DBHandle db;
 	private final java.sql.PreparedStatement pstmt_exists;
 	private final java.sql.PreparedStatement pstmt_size;
@@ -71,12 +71,15 @@ public class IPlist
 	private final java.net.URL srcpath;
 	private final int memlimit;
 	private final int netmask;
+	private final int netprefix;
+	private final boolean cidr; //true means entries can have their own prefix, and are held in a CidrTrie
 	private final boolean allow_hostnames;
 	private final long reload_interval;
 	private final int loadfactor;
 
 	private TimerNAF tmr;
 	private HashedSetInt memlist;
+	private CidrTrie trie; //non-null means we're in CIDR mode, and memlist is not used
 	private int db_size;
 	private volatile Thread currentLoadThread;
 	private volatile boolean is_closed;
@@ -108,8 +111,9 @@ public class IPlist
 		allow_hostnames = cfg.getBool("hostnames", true);
 		reload_interval = cfg.getTime("interval", "6h");
 
-		int netprefix = cfg.getInt("netprefix", false, 28);
+		netprefix = cfg.getInt("netprefix", false, 28);
 		netmask = IP.prefixToMask(netprefix);
+		cidr = cfg.getBool("cidr", false);
 
 		String tblnam = "MMTA_"+listname.toUpperCase();
 		String[] subold = new String[]{TOKEN_TBLNAM};
@@ -135,7 +139,7 @@ public class IPlist
 		}
 
 		try {
-			if (memlimit != 0) {
+			if (memlimit != 0 && !cidr) {
 				// Install setup scripts, then prepare the SQL commands we will use in the main JDBC connection.
 				// I was hoping to reconnect the main connection in read-only mode after installing the scripts, but (for both HSQLDB and H2
 				// at any rate) that read-only is a database-wide setting, and a read-only connection cannot co-exist with simultaneous
@@ -178,13 +182,18 @@ public class IPlist
 		if (tmr != null) tmr.cancel();
 		tmr = null;
 		memlist = null;
+		trie = null;
 	}
 
-	private HashedSetInt load(long systime) throws java.io.IOException, java.sql.SQLException
+	private LoadParams load(long systime) throws java.io.IOException, java.sql.SQLException
 	{
 		boolean success = false;
 		LoadParams params = new LoadParams();
-		params.memlist = new HashedSetInt(0, loadfactor);
+		if (cidr) {
+			params.trie = new CidrTrie();
+		} else {
+			params.memlist = new HashedSetInt(0, loadfactor);
+		}
 		params.systime = systime;
 		try {
 			FileOps.readTextLines(srcpath.openStream(), this, 8192, null, 0, params);
@@ -204,7 +213,7 @@ public class IPlist
 				db.close(params.cnx);
 			}
 		}
-		return params.memlist;
+		return params;
 	}
 
 	@Override
@@ -214,6 +223,23 @@ public class IPlist
 		if (line.length() == 0 || line.charAt(0) == CMNT) return false;
 		LoadParams params = (LoadParams)cbdata;
 		int ip;
+		int prefix = netprefix;
+
+		if (cidr) {
+			int pos = line.indexOf('/');
+			if (pos != -1) {
+				try {
+					prefix = Integer.parseInt(line.substring(pos+1).trim());
+				} catch (NumberFormatException ex) {
+					prefix = -1;
+				}
+				if (prefix < 0 || prefix > 32) {
+					log.trace("IPlist="+listname+": Invalid CIDR prefix on line="+lno+": "+line);
+					return false;
+				}
+				line = line.substring(0, pos).trim();
+			}
+		}
 
 		if (allow_hostnames) {
 			try {
@@ -226,6 +252,10 @@ public class IPlist
 			ip = IP.convertDottedIP(line);
 			if (!IP.validDottedIP(line, ip)) return false;
 		}
+		if (params.trie != null) {
+			params.trie.add(ip, prefix);
+			return false;
+		}
 		ip &= netmask;
 
 		if (memlimit != 0 && params.cnx == null && params.memlist.size() == memlimit) {
@@ -251,8 +281,7 @@ public class IPlist
 		log.trace("Loading IPlist="+listname);
 		if (updatesFeed == null) {
 			try {
-				HashedSetInt list = load(System.currentTimeMillis());
-				acquire(list);
+				acquire(load(System.currentTimeMillis()));
 			} catch (java.sql.SQLException ex) {
 				throw new java.io.IOException("Failed to reload IP list="+listname, ex);
 			}
@@ -267,8 +296,8 @@ public class IPlist
 	public void run()
 	{
 		try {
-			HashedSetInt new_memlist = load(System.currentTimeMillis());
-			updatesFeed.produce(new_memlist == null ? dbmemlist : new_memlist);
+			// the new list is fully built in this thread, and then swapped in by the Dispatcher
+			updatesFeed.produce(load(System.currentTimeMillis()));
 		} catch (Exception ex) {
 			log.info("IPlist="+listname+": Reload failed - "+com.grey.base.ExceptionUtils.summary(ex));
 		}
@@ -276,22 +305,23 @@ public class IPlist
 	}
 
 	@Override
-	public void producerIndication(Producer<HashedSetInt> p)
+	public void producerIndication(Producer<LoadParams> p)
 	{
-		HashedSetInt feed = null;
-		HashedSetInt latest;
+		LoadParams feed = null;
+		LoadParams latest;
 		while ((latest = updatesFeed.consume()) != null) {
 			feed = latest;
 		}
-		acquire(feed == dbmemlist ? null : feed);
+		if (feed != null) acquire(feed);
 	}
 
-	private void acquire(HashedSetInt new_memlist)
+	private void acquire(LoadParams loaded)
 	{
-		memlist = new_memlist;
+		memlist = loaded.memlist;
+		trie = loaded.trie;
 		db_size = -1;
 		log.info("Loaded IPlist="+listname+"/"+IP.maskToPrefix(netmask)+", size="+size()+"/"+memlimit+" from "+srcpath
-				+" - mode="+(memlist==null ? "database" : "memory"));
+				+" - mode="+(trie != null ? "CIDR" : (memlist==null ? "database" : "memory")));
 
 		if (updatesFeed != null && reload_interval != 0) {
 			// schedule next reload
@@ -314,6 +344,7 @@ public class IPlist
 
 	public boolean exists(int ip)
 	{
+		if (trie != null) return trie.contains(ip);
 		ip &= netmask;
 		if (memlist != null) return memlist.contains(ip);
 		if (pstmt_exists == null) return false;
@@ -334,6 +365,7 @@ public class IPlist
 
 	public int size()
 	{
+		if (trie != null) return trie.size();
 		if (memlist != null) return memlist.size();
 		if (db_size != -1) return db_size;
 		if (pstmt_size == null) return -1;
@@ -397,7 +429,9 @@ public class IPlist
 		String txt = getClass().getName()+"="+listname+"/size="+size()+"/memlimit="+memlimit+"/";
 		txt += "allowhosts="+allow_hostnames+"/reload="+TimeOps.expandMilliTime(reload_interval,sb,true)+"/";
 		txt += "netmask="+IP.maskToPrefix(netmask)+"/";
-		if (memlist == null) {
+		if (trie != null) {
+			txt += "cidr="+trie.size();
+		} else if (memlist == null) {
 			txt += "database="+db;
 		} else {
 			IteratorInt it = memlist.iterator();
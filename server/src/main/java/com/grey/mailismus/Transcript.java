@@ -35,12 +35,23 @@ public final class Transcript
 	public String getActivePath() {return fh_active == null ? null : fh_active.getAbsolutePath();}
 
 	public static Transcript create(com.grey.naf.reactor.Dispatcher dsptch, com.grey.base.config.XmlConfig cfg, String xpath)
+	{
+		return create(dsptch, cfg, xpath, null);
+	}
+
+	// See Audit.create() re the instance parameter
+	public static Transcript create(com.grey.naf.reactor.Dispatcher dsptch, com.grey.base.config.XmlConfig cfg, String xpath, String instance)
 	{
 		if (xpath != null) cfg = cfg.getSection(xpath+com.grey.base.config.XmlConfig.XPATH_ENABLED);
 		if (!cfg.exists()) return null;
 		com.grey.logging.Parameters params = new com.grey.logging.Parameters(cfg);
 		String pthnam = params.getPathname();
 		if (pthnam == null || pthnam.length() == 0) return null;
+		if (instance != null) {
+			params = new com.grey.logging.Parameters.Builder(params)
+					.withPathname(Audit.instancePath(pthnam, instance))
+					.build();
+		}
 		return new Transcript(dsptch, params);
 	}
 
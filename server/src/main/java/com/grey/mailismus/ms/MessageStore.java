@@ -12,5 +12,16 @@ package com.grey.mailismus.ms;
 public interface MessageStore
 {
 	public com.grey.mailismus.directory.Directory directory();
+
 	public void deliver(CharSequence username, java.io.File msg) throws java.io.IOException;
+
+	/**
+	 * The Delivery task calls this variant in worker threads (see its localthreads setting), concurrently with one another
+	 * and with the Dispatcher thread, so implementations must be thread-safe in this method.
+	 * <br>
+	 * It must not call into the Dispatcher, whose clock and logger are not safe to use in other threads. The caller
+	 * therefore supplies the delivery time, and any non-fatal problem is returned as a warning message (else null) for the
+	 * caller to log once it is back in its own thread.
+	 */
+	public String deliver(CharSequence username, java.io.File msg, long systime) throws java.io.IOException;
 }
\ No newline at end of file
@@ -58,8 +58,9 @@ public final class MaildirStore
 	private final String suffix_newmsgfile;
 	final int hdrbufsiz;
 	final int msgbufsiz;
-	private byte[] msgfilebuf; //not needed in all modes, so allocate if needed rather than making it final
-	private int deliv_cnt;
+	// deliver() can be called by the Delivery task's worker threads as well as the IMAP server, so it doesn't use the shared buffers
+	private final ThreadLocal<byte[]> msgfilebuf = new ThreadLocal<>(); //not needed in all modes, so allocate if needed
+	private final java.util.concurrent.atomic.AtomicInteger deliv_cnt = new java.util.concurrent.atomic.AtomicInteger();
 
 	//pre-allocated purely for efficiency
 	final StringBuilder sharedtmpsb = new StringBuilder();
@@ -150,19 +151,34 @@ public final class MaildirStore
 		deliver(username, null, fh_msg, null, false, false);
 	}
 
+	@Override
+	public String deliver(CharSequence username, java.io.File fh_msg, long systime) throws java.io.IOException
+	{
+		return deliverMessage(username, null, fh_msg, null, false, false, systime);
+	}
+
+	void deliver(CharSequence username, CharSequence mbxname, java.io.File fh_msg, CharSequence msflags,
+			boolean is_unstuffed, boolean preserve_attribs) throws java.io.IOException
+	{
+		String warning = deliverMessage(username, mbxname, fh_msg, msflags, is_unstuffed, preserve_attribs, dsptch.getSystemTime());
+		if (warning != null) dsptch.getLogger().warn(warning);
+	}
+
 	/*
 	 * I have considered whether the two file-creation loops in here (the fh_tmp.createNewFile() and fh_tmp.renameTo(fh_new) loops)
 	 * should throw if they're still failing after some maximum number of attempts, as that's likely to indicate a filesystem or
 	 * permissions issue that we're not going to overcome.
 	 * However, in such an event, getting stuck in an infinite loop is probably less damaging than the alternative, which could
 	 * consist of rapidly failing 1000s of delivery attempts that would have succeeded once the underlying system problem was fixed.
+	 * This may be called in worker threads, so it doesn't touch the Dispatcher. The caller supplies the timestamp, and any
+	 * warning is returned (null if none) for the caller to log.
 	 */
-	void deliver(CharSequence username, CharSequence mbxname, java.io.File fh_msg, CharSequence msflags,
-			boolean is_unstuffed, boolean preserve_attribs) throws java.io.IOException
+	private String deliverMessage(CharSequence username, CharSequence mbxname, java.io.File fh_msg, CharSequence msflags,
+			boolean is_unstuffed, boolean preserve_attribs, long systime) throws java.io.IOException
 	{
 		boolean undo_dotstuffing = (is_unstuffed ? false : dotstuffing);
 		String suffix = suffix_newmsgfile; //flagless filename ending
-		StringBuilder sb = localtmpsb;
+		StringBuilder sb = new StringBuilder();
 
 		makeRootPath(username, sb);
 		if (mbxname != null) sb.append('/').append(mbxname);
@@ -191,7 +207,7 @@ public final class MaildirStore
 			}
 		}
 		if (is_unstuffed) suffix = UNSTUFFED_MARKER+suffix;
-		if (!preserve_attribs) TimeOps.zeroPad(dsptch.getSystemTime(), sb);
+		if (!preserve_attribs) TimeOps.zeroPad(systime, sb);
 		sb.append('.');
 
 		// We're not worried about sort order beyond this point. If filenames are still tied, they represent simultaneous
@@ -202,7 +218,7 @@ public final class MaildirStore
 		java.io.File fh_tmp;
 		do {
 			sb.setLength(off_uniq);
-			sb.append(++deliv_cnt).append(suffix);
+			sb.append(deliv_cnt.incrementAndGet()).append(suffix);
 			if (msflags != null && msflags.length() != 0) sb.append(FLAGS_MARKER).append(msflags);
 			fh_tmp = new java.io.File(dh_tmp, sb.toString());
 			try {
@@ -246,11 +262,11 @@ public final class MaildirStore
 				}
 			}
 			sb.setLength(off_uniq);
-			sb.append(++deliv_cnt).append(suffix);
+			sb.append(deliv_cnt.incrementAndGet()).append(suffix);
 			if (msflags != null && msflags.length() != 0) sb.append(FLAGS_MARKER).append(msflags);
 			fh_new = new java.io.File(dh_new, sb.toString());
 		}
-		setFilePermissions(username, fh_new, init ? dh_new : null);
+		return applyFilePermissions(username, fh_new, init ? dh_new : null);
 	}
 
 	// A dot-stuffed message, could never have "\r\n." followed by anything other than another dot, so it
@@ -260,14 +276,24 @@ public final class MaildirStore
 	// properly dot-stuffed messages.
 	// Of course an accidental "\r\n.." in a non-escaped message will still get modified, but it's that bit
 	// less likely to occur, and there's no non-invasive way of handling mis-shapen input.
+	// The source may be a compressed spool file, in which case we have to read it via the decompressing stream rather
+	// than doing a direct file-to-file transfer.
 	void transferMessage(java.io.File fh_src, java.io.File fh_dst, boolean undo_dotstuffing) throws java.io.IOException
 	{
-		java.io.FileInputStream istrm = new java.io.FileInputStream(fh_src);
+		java.io.InputStream istrm = com.grey.mailismus.mta.queue.SpoolCompression.openCompressed(fh_src.toPath());
+		boolean inflating = (istrm != null);
+		if (!inflating) istrm = new java.io.FileInputStream(fh_src);
 		java.io.FileOutputStream ostrm = null;
 		try {
 			ostrm = new java.io.FileOutputStream(fh_dst);
-			if (!undo_dotstuffing) {
-				istrm.getChannel().transferTo(0, fh_src.length(), ostrm.getChannel());
+			if (!undo_dotstuffing && !inflating) {
+				((java.io.FileInputStream)istrm).getChannel().transferTo(0, fh_src.length(), ostrm.getChannel());
+			} else if (!undo_dotstuffing) {
+				byte[] xferbuf = getMessageBuffer();
+				int nbytes;
+				while ((nbytes = istrm.read(xferbuf)) != -1) {
+					ostrm.write(xferbuf, 0, nbytes);
+				}
 			} else {
 				byte[] xferbuf = getMessageBuffer();
 				int offseq = 2; //ESCSEQ offset - set ourselves up to treat the 1st line like any other
@@ -324,7 +350,14 @@ public final class MaildirStore
 	// do ownership/permission settings for native users
 	void setFilePermissions(CharSequence username, java.io.File fh, java.io.File dh) throws java.io.IOException
 	{
-		if (virtual_users) return;
+		String warning = applyFilePermissions(username, fh, dh);
+		if (warning != null) dsptch.getLogger().warn(warning);
+	}
+
+	// Returns a warning (else null) rather than logging it, as this may be called in worker threads
+	private String applyFilePermissions(CharSequence username, java.io.File fh, java.io.File dh) throws java.io.IOException
+	{
+		if (virtual_users) return null;
 		if (dh != null && chmod_tree != null) {
 			//waitFor() for chown returns 0 on Unix, 1 on Cygwin (was bad user), throws in Windows
 			String cmd = chmod_tree.replace(TOKEN_USERNAME, username);
@@ -334,14 +367,19 @@ public final class MaildirStore
 		if (chmod_msgfile) {
 			boolean wsts = fh.setWritable(true, true);
 			boolean rsts = fh.setReadable(true, true);
-			if (!rsts || !wsts) dsptch.getLogger().warn("Maildir failed to chmod new msg - readable="+rsts+", writeable="+wsts);
+			if (!rsts || !wsts) return "Maildir failed to chmod new msg - readable="+rsts+", writeable="+wsts;
 		}
+		return null;
 	}
 
 	byte[] getMessageBuffer()
 	{
-		if (msgfilebuf == null) msgfilebuf = new byte[msgbufsiz];
-		return msgfilebuf;
+		byte[] buf = msgfilebuf.get();
+		if (buf == null) {
+			buf = new byte[msgbufsiz];
+			msgfilebuf.set(buf);
+		}
+		return buf;
 	}
 
 	java.io.File getDropDir(CharSequence username)
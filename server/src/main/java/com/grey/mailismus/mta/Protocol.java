@@ -13,6 +13,7 @@ import com.grey.base.sasl.SaslEntity;
  * MSA: RFC-2476 (Dec 1998) => RFC-6409 (Nov 2011)
  * STARTTLS: RFC-2487 (Jan 1999) => RFC-3207 (Feb 2002)
  * Transmission Types: RFC-3848 (Jul 2004)
+ * CHUNKING: RFC-3030 (Dec 2000)
  */
 public final class Protocol
 {
@@ -27,6 +28,8 @@ public final class Protocol
 	public static final ByteChars CMDREQ_MAILFROM = new ByteChars("MAIL FROM:");
 	public static final ByteChars CMDREQ_MAILTO = new ByteChars("RCPT TO:");
 	public static final ByteChars CMDREQ_DATA = new ByteChars("DATA");
+	public static final ByteChars CMDREQ_BDAT = new ByteChars("BDAT");
+	public static final ByteChars CMDARG_BDAT_LAST = new ByteChars("LAST");
 	public static final ByteChars CMDREQ_QUIT = new ByteChars("QUIT");
 	public static final ByteChars CMDREQ_RESET = new ByteChars("RSET");
 	public static final ByteChars CMDREQ_NOOP = new ByteChars("NOOP");
@@ -40,6 +43,7 @@ public final class Protocol
 	public static final char[] EXT_8BITMIME = "8BITMIME".toCharArray();
 	public static final char[] EXT_SIZE = "SIZE".toCharArray();
 	public static final char[] EXT_STLS = "STARTTLS".toCharArray();
+	public static final char[] EXT_CHUNKING = "CHUNKING".toCharArray();
 	public static final char[] EXT_AUTH = "AUTH".toCharArray();
 	public static final char[] EXT_AUTH_COMPAT = "AUTH=".toCharArray();  //a broken form of EXT_AUTH used by some older SMTP software
 
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.deliver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.grey.base.utils.ByteChars;
+import com.grey.base.utils.TimeOps;
+import com.grey.logging.Logger;
+
+/**
+ * Tracks the destination domains which are persistently failing, across successive batches, so that the Forwarder can
+ * stop making connection attempts to them for a while.
+ * <br>
+ * A domain's breaker is normally closed, and it opens after a run of consecutive connections to that domain have failed
+ * with a domain-wide temporary error (eg. connection refused or 421). While it's open, the Forwarder defers all the
+ * domain's recipients without attempting to deliver them. Once the open period has elapsed, the breaker goes half-open
+ * and lets a single connection through as a probe. If that succeeds the breaker closes again, and if it fails the breaker
+ * reopens for twice as long as before (up to a max).
+ * <br>
+ * Permanent errors have no effect on the breaker, as they're not an indication that the domain is down.
+ * <br>
+ * The domains are held in a bounded map, with the least-recently used being forgotten when it fills up.
+ * This is a single-threaded class which runs in the context of the Forwarder's Dispatcher.
+ */
+class CircuitBreaker
+{
+	private static final int MAXDOMAINS = 10_000;
+
+	private enum STATE {CLOSED, OPEN, HALF_OPEN}
+
+	private static final class Breaker {
+		STATE state = STATE.CLOSED;
+		int failures; //consecutive failures
+		long opened; //time at which breaker last opened
+		long opentime; //how long it stays open for, before a probe is allowed
+		short status; //the error that opened the breaker
+	}
+
+	private final int threshold;
+	private final long min_opentime;
+	private final long max_opentime;
+	private final Logger logger;
+	private final Map<ByteChars, Breaker> breakers;
+
+	private int opencnt; //number of breakers currently open or half-open
+	private int defercnt; //total number of recipients deferred by open breakers
+
+	public int openCount() {return opencnt;}
+	public int deferCount() {return defercnt;}
+
+	public CircuitBreaker(int threshold, long min_opentime, long max_opentime, Logger logger)
+	{
+		this.threshold = threshold;
+		this.min_opentime = min_opentime;
+		this.max_opentime = Math.max(min_opentime, max_opentime);
+		this.logger = logger;
+		breakers = new LinkedHashMap<ByteChars, Breaker>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteChars, Breaker> eldest) {
+				if (size() <= MAXDOMAINS) return false;
+				if (eldest.getValue().state != STATE.CLOSED) opencnt--;
+				return true;
+			}
+		};
+	}
+
+	// Returns the status code with which the domain's recipients should be deferred, or zero if they can be attempted.
+	// An open breaker only allows a connection once its open period has expired, and a half-open one is awaiting its probe.
+	public short getDeferral(ByteChars domain, long systime)
+	{
+		Breaker b = breakers.get(domain);
+		if (b == null || b.state == STATE.CLOSED) return 0;
+		if (b.state == STATE.OPEN && systime - b.opened >= b.opentime) return 0;
+		return b.status;
+	}
+
+	// Called when the deferral status returned by getDeferral() has been applied to the given number of recipients
+	public void deferred(int cnt)
+	{
+		defercnt += cnt;
+	}
+
+	// Called when a connection is launched to the domain, after getDeferral() has allowed it
+	public void launched(ByteChars domain)
+	{
+		Breaker b = breakers.get(domain);
+		if (b == null || b.state != STATE.OPEN) return;
+		b.state = STATE.HALF_OPEN;
+		if (logger != null) logger.info("SMTP-Delivery: Circuit breaker is probing domain="+domain);
+	}
+
+	// Called when a connection to the domain has completed.
+	// domain_error is the status which applied to the domain as a whole, if any, and msgcnt is the number of messages sent.
+	public void connectionCompleted(ByteChars domain, short domain_error, int msgcnt, long systime)
+	{
+		boolean failed = (domain_error >= 400 && domain_error < 500);
+		boolean succeeded = (domain_error == 0 && msgcnt != 0);
+		Breaker b = breakers.get(domain);
+		if (b == null) {
+			if (!failed) return;
+			b = new Breaker();
+			breakers.put(new ByteChars().populate(domain), b); //copy the domain, as the original belongs to the queue cache
+		}
+
+		if (b.state == STATE.HALF_OPEN) {
+			if (succeeded) {
+				if (logger != null) logger.info("SMTP-Delivery: Circuit breaker has closed for domain="+domain);
+				b.state = STATE.CLOSED;
+				b.failures = 0;
+				opencnt--;
+			} else if (failed) {
+				open(b, domain, domain_error, Math.min(max_opentime, b.opentime * 2), systime);
+			} else {
+				// the probe was inconclusive, so let the next connection probe again
+				b.state = STATE.OPEN;
+			}
+			return;
+		}
+		if (succeeded) {
+			b.failures = 0;
+		} else if (failed && b.state == STATE.CLOSED && ++b.failures >= threshold) {
+			opencnt++;
+			open(b, domain, domain_error, min_opentime, systime);
+		}
+	}
+
+	private void open(Breaker b, ByteChars domain, short status, long opentime, long systime)
+	{
+		b.state = STATE.OPEN;
+		b.status = status;
+		b.opened = systime;
+		b.opentime = opentime;
+		if (logger != null) {
+			logger.info("SMTP-Delivery: Circuit breaker has opened for domain="+domain+" after failures="+b.failures
+					+" with status="+status+" - deferring for "+TimeOps.expandMilliTime(opentime));
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "CircuitBreaker threshold="+threshold+", opentime="+TimeOps.expandMilliTime(min_opentime)
+			+"/"+TimeOps.expandMilliTime(max_opentime);
+	}
+}
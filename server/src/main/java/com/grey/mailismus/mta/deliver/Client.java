@@ -5,13 +5,12 @@
 package com.grey.mailismus.mta.deliver;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.List;
 
 import com.grey.base.utils.IP;
 import com.grey.base.utils.TSAP;
@@ -28,11 +27,11 @@ import com.grey.naf.reactor.TimerNAF;
 import com.grey.naf.reactor.config.SSLConfig;
 import com.grey.naf.dns.resolver.ResolverDNS;
 import com.grey.naf.dns.resolver.engine.ResolverAnswer;
-import com.grey.naf.dns.resolver.engine.ResourceData;
 
 import com.grey.mailismus.Task;
 import com.grey.mailismus.mta.Protocol;
 import com.grey.mailismus.mta.queue.MessageRecip;
+import com.grey.mailismus.mta.queue.SpoolCompression;
 import com.grey.mailismus.errors.MailismusException;
 
 /**
@@ -48,7 +47,7 @@ class Client
 	private static final String LOG_PREFIX = "SMTP-Client";
 
 	private enum PROTO_STATE {S_DISCON, S_CONN, S_READY, S_AUTH, S_STLS, S_HELO, S_EHLO, S_MAILFROM, S_MAILTO, S_DATA, S_MAILBODY,
-		S_QUIT, S_RESET, S_END}
+		S_QUIT, S_RESET, S_END, S_IDLE}
 	private enum PROTO_EVENT {E_CONNECTED, E_DISCONNECTED, E_REPLY, E_LOCALERROR, E_DISCONNECT, E_SSL}
 	private enum PROTO_ACTION {A_CONNECT, A_DISCONNECT, A_HELO, A_EHLO, A_MAILFROM, A_MAILTO, A_DATA, A_MAILBODY,
 		A_QUIT, A_RESET, A_ENDMESSAGE, A_STARTSESSION, A_ENDSESSION, A_LOGIN, A_STLS}
@@ -78,7 +77,9 @@ class Client
 	private final Delivery.MessageParams msgparams = new Delivery.MessageParams();
 	private final SharedFields shared;
 	private final TSAP remote_tsap_buf;
-	private final List<ResourceData> dnsInfo = new ArrayList<>();
+	private int[] mxips = new int[8]; //the IPs of the destination's mail servers, in order of preference - grows on demand
+	private int mxcnt; //number of mxips entries which we can try
+	private int mxtotal; //number of IPs the destination resolved to, including any skipped because they are known to be down
 	private ConnectionConfig conncfg; //config to apply to current connection
 	private Relay active_relay;
 	private TSAP remote_tsap;
@@ -87,7 +88,8 @@ class Client
 	private TimerNAF tmr_exit;
 	private TimerNAF tmr_sesstmt;
 	private long alt_tmtprotocol; //if non-zero, this overrides ConnectionConfig.tmtprotocol - used to set longer timeout for DATA phase
-	private int mxptr; //indicates which dnsInfo.rrlist node we're currently connecting/connected to - only valid if dnsInfo non-empty
+	private int mxptr; //indicates which mxips node we're currently connecting/connected to - only valid if mxcnt non-zero
+	private long connect_time; //time at which the current connection attempt was launched
 	private int recip_id; //indicates which recipient we're currently awaiting a response for
 	private int recips_sent; //how many recips we've already sent to server - will run ahead of recip_id in pipelining mode
 	private int okrecips; //number of recipients accepted by server
@@ -96,9 +98,11 @@ class Client
 	private short disconnect_status;
 	private int pipe_cap; //max pipeline for current connection - 1 means pipelining not enabled
 	private int pipe_count; //number of requests in current pipelined send
+	private boolean chunking; //the server has advertised CHUNKING, and we're configured to use it
 	private SaslEntity.MECH auth_method;
 	private byte auth_step;
 	private int cnxid; //increments with each incarnation - useful for distinguishing Transcript logs
+	private boolean resumed; //we have been reused from the connection pool, and the server has yet to confirm it's still there
 	private String pfx_log;
 
 	@Override public Delivery.MessageParams getMessageParams() {return msgparams;}
@@ -137,6 +141,10 @@ class Client
 
 	@Override
 	public void start(Delivery.Controller ctl) throws IOException {
+		if (pstate == PROTO_STATE.S_IDLE) {
+			resumeConnection();
+			return;
+		}
 		initConnection();
 		issueAction(PROTO_ACTION.A_CONNECT, PROTO_STATE.S_CONN);
 	}
@@ -145,10 +153,62 @@ class Client
 	public boolean stop() {
 		setFlag(S2_ABORT);
 		if (pstate == PROTO_STATE.S_DISCON) return (tmr_exit == null); // we're already completely stopped
+		if (pstate == PROTO_STATE.S_IDLE) {
+			// an idle pooled connection is being closed, so say goodbye, but there's no need to wait for the reply
+			if (conncfg.isSendQuit()) {
+				try {
+					transmit(shared.getSmtpRequestQuit());
+				} catch (Exception ex) {
+					getLogger().trace(pfx_log+" failed to send QUIT on idle connection - "+ex);
+				}
+			}
+			issueDisconnect(0, "Closing idle connection");
+			return false;
+		}
 		issueDisconnect(0, "Forcibly halted");
 		return false;
 	}
 
+	@Override
+	public boolean isIdle() {
+		return (pstate == PROTO_STATE.S_IDLE);
+	}
+
+	@Override
+	public boolean keepAlive() {
+		if (pstate != PROTO_STATE.S_IDLE || dataWait != 0) return false;
+		try {
+			transmit(shared.getSmtpRequestNoop());
+			startSessionTimer();
+		} catch (Throwable ex) {
+			raiseSafeEvent(PROTO_EVENT.E_LOCALERROR, null, "Keepalive failed - "+ExceptionUtils.summary(ex));
+			return false;
+		}
+		return true;
+	}
+
+	// We have been taken from the connection pool to send a new set of messages. The server may have dropped the connection
+	// while it was idle, so we verify it with an RSET before proceeding - or if a keepalive NOOP is still awaiting its reply,
+	// that serves the same purpose.
+	private void resumeConnection() throws IOException {
+		resumed = true;
+		initMessage();
+		if (shared.getTranscript() != null) {
+			shared.getTmpSB().setLength(0);
+			shared.getTmpSB().append("Reusing idle connection for msgid=").append(formatSPID(msgparams.getSPID()));
+			shared.getTranscript().event(pfx_log, shared.getTmpSB(), getSystemTime());
+		}
+		transitionState(PROTO_STATE.S_RESET);
+		if (dataWait == 0) {
+			transmit(shared.getSmtpRequestReset());
+			startSessionTimer();
+		}
+	}
+
+	private void startSessionTimer() {
+		if (tmr_sesstmt == null) tmr_sesstmt = getDispatcher().setTimer(conncfg.getIdleTimeout().toMillis(), TMRTYPE_SESSIONTMT, this);
+	}
+
 	@Override
 	public void ioReceived(ByteArrayRef rcvdata) throws IOException {
 		if (pstate == PROTO_STATE.S_DISCON) return; //this method can be called in a loop, so skip it after a disconnect
@@ -207,7 +267,23 @@ class Client
 
 	private void dnsLookup(boolean as_host) throws IOException {
 		mxptr = 0;
-		dnsInfo.clear();
+		mxcnt = 0;
+		mxtotal = 0;
+		DestinationCache cache = shared.getDestinationCache();
+		if (cache != null && !as_host) {
+			DestinationCache.Destination dest = cache.get(msgparams.getDestination(), getSystemTime());
+			if (dest != null) {
+				if (dest.ips == null) {
+					dnsFailed(dest.status);
+					return;
+				}
+				for (int idx = 0; idx != dest.ips.length; idx++) {
+					addIP(dest.ips[idx]);
+				}
+				connectResolved();
+				return;
+			}
+		}
 		setFlag(S2_DNSWAIT);
 		ResolverAnswer answer;
 		if (as_host) {
@@ -230,8 +306,6 @@ class Client
 
 	private void handleDnsResult(ResolverAnswer answer) throws UnknownHostException {
 		clearFlag(S2_DNSWAIT);
-		int statuscode = 0;
-		CharSequence diagnostic = null;
 
 		if (conncfg.isFallbackMX2A()) {
 			if (answer.result == ResolverAnswer.STATUS.NODOMAIN
@@ -246,19 +320,36 @@ class Client
 			}
 		}
 
+		DestinationCache cache = shared.getDestinationCache();
 		switch (answer.result)
 		{
 		case OK:
 			if (answer.qtype == ResolverDNS.QTYPE_MX) {
 				for (int idx = 0; idx != answer.size(); idx++) {
-					dnsInfo.add(answer.getMX(idx));
+					addIP(answer.getMX(idx).getIP());
 				}
 			} else {
-				dnsInfo.add(answer.getA());
+				addIP(answer.getA().getIP());
 			}
-			connect(dnsInfo.get(0).getIP());
+			if (cache != null) cache.putAddresses(msgparams.getDestination(), mxips, mxcnt, getSystemTime());
+			connectResolved();
 			return;
 		case NODOMAIN:
+		case BADNAME:
+			if (cache != null) cache.putNegative(msgparams.getDestination(), answer.result, getSystemTime());
+			break;
+		default:
+			break;
+		}
+		dnsFailed(answer.result);
+	}
+
+	private void dnsFailed(ResolverAnswer.STATUS result) throws UnknownHostException {
+		int statuscode;
+		CharSequence diagnostic = null;
+		switch (result)
+		{
+		case NODOMAIN:
 		case BADNAME:
 			statuscode = Protocol.REPLYCODE_PERMERR_ADDR;
 			break;
@@ -269,12 +360,32 @@ class Client
 
 		if (getLogger().isActive(LEVEL.TRC) || shared.getTranscript() != null) {
 			shared.getDisconnectMsgBuf().setLength(0);
-			shared.getDisconnectMsgBuf().append("DNS=").append(answer.result);
+			shared.getDisconnectMsgBuf().append("DNS=").append(result);
 			diagnostic = shared.getDisconnectMsgBuf();
 		}
 		connectionFailed(statuscode, diagnostic, null);
 	}
 
+	private void addIP(int ip) {
+		if (mxcnt == mxips.length) mxips = java.util.Arrays.copyOf(mxips, mxcnt * 2);
+		mxips[mxcnt++] = ip;
+		mxtotal = mxcnt;
+	}
+
+	// We have the destination's full list of IPs, so skip any which are known to be down and connect to the first of the rest
+	private void connectResolved() throws UnknownHostException {
+		DestinationCache cache = shared.getDestinationCache();
+		if (cache != null) mxcnt = cache.filterLive(mxips, mxcnt, getSystemTime());
+		if (mxcnt == 0) {
+			StringBuilder sb = shared.getTmpSB();
+			sb.setLength(0);
+			sb.append("all MX-IPs=").append(mxtotal).append(" are down");
+			connectionFailed(Protocol.REPLYCODE_TMPERR_CONN, sb, null);
+			return;
+		}
+		connect(mxips[0]);
+	}
+
 	@Override
 	public void eventError(Throwable ex) {
 		eventErrorIndication(ex, null);
@@ -308,6 +419,11 @@ class Client
 		dnsLookup(false);
 	}
 
+	// True if we have connected (or tried to) directly to one of the destination domain's own mail servers, as opposed to a relay
+	private boolean isDestinationHost() {
+		return (mxcnt != 0 && active_relay == null && shared.getDestinationCache() != null);
+	}
+
 	// This is only called as the result of a DNS lookup on the destination domain, and is the only route via
 	// which DNS lookups lead to the connect() method below.
 	private void connect(int remote_ip) throws UnknownHostException {
@@ -320,8 +436,8 @@ class Client
 	private void connect() throws UnknownHostException {
 		conncfg = getConnectionConfig(remote_tsap.ip); //update from initial default or previous IP
 		if (!shared.incrementServerConnections(remote_tsap.ip, conncfg)) {
-			if (++mxptr < dnsInfo.size()) {
-				connect(dnsInfo.get(mxptr).getIP());
+			if (++mxptr < mxcnt) {
+				connect(mxips[mxptr]);
 				return;
 			}
 			setFlag((byte)(S2_ABORT | S2_CNXLIMIT)); //set ABORT too, for sake of setRecipientStatus()
@@ -341,6 +457,7 @@ class Client
 		}
 
 		try {
+			connect_time = getSystemTime();
 			connect(tsap.sockaddr);
 		} catch (Throwable ex) {
 			connectionFailed(0, "connect-error", ex);
@@ -354,6 +471,7 @@ class Client
 			connectionFailed(0, diag==null?"connect-fail":diag, exconn);
 			return;
 		}
+		if (isDestinationHost()) shared.getDestinationCache().connectSucceeded(remote_tsap.ip, getSystemTime() - connect_time);
 		LEVEL lvl = LEVEL.TRC2;
 		if (getLogger().isActive(lvl) || (shared.getTranscript() != null)) {
 			TSAP local_tsap = TSAP.get(getLocalIP(), getLocalPort(), shared.getTmpTSAP(), true);
@@ -405,17 +523,20 @@ class Client
 				}
 			}
 
+			if (isDestinationHost()) shared.getDestinationCache().connectFailed(remote_tsap.ip, getSystemTime());
+
 			// try next-preference MX relay
-			if (++mxptr < dnsInfo.size()) {
+			if (++mxptr < mxcnt) {
 				shared.decrementServerConnections(remote_tsap.ip, conncfg);
-				connect(dnsInfo.get(mxptr).getIP());
+				connect(mxips[mxptr]);
 				return;
 			}
 
 			// no more IPs left to try - this session has now definitively failed to connect
 			statuscode = Protocol.REPLYCODE_TMPERR_CONN;
 			sb.setLength(0);
-			sb.append("tried MX-IPs=").append(dnsInfo.size());
+			sb.append("tried MX-IPs=").append(mxcnt);
+			if (mxtotal != mxcnt) sb.append('/').append(mxtotal);
 			diagnostic = sb;
 		}
 
@@ -460,7 +581,7 @@ class Client
 		if (getLogger().isActive(lvl)) {
 			shared.getTmpSB().setLength(0);
 			shared.getTmpSB().append(pfx_log).append(" ending with state=").append(pstate).append("/0x").append(Integer.toHexString(state2));
-			shared.getTmpSB().append(", remote=").append(remote_tsap).append("/dns=").append(dnsInfo.size());
+			shared.getTmpSB().append(", remote=").append(remote_tsap).append("/dns=").append(mxcnt);
 			shared.getTmpSB().append(", msgcnt=").append(msgparams.messageCount());
 			if (discmsg != null) shared.getTmpSB().append(" - reason=").append(discmsg);
 			if (failmsg != null) shared.getTmpSB().append(" - diagnostic=").append(shared.getTmpBC().populateBytes(failmsg));
@@ -471,6 +592,11 @@ class Client
 			tmr_sesstmt = null;
 		}
 		if (pstate == PROTO_STATE.S_DISCON) return; // shutdown events criss-crossing each other - that's ok
+		if (resumed) {
+			// The pooled connection we were reusing turned out to be dead, so this is no reflection on the current message.
+			// Aborting ensures that its recipients are returned to the cache untouched, to be retried on a new connection.
+			setFlag(S2_ABORT);
+		}
 
 		if (pstate == PROTO_STATE.S_HELO && disconnect_status == 0) {
 			// We've obviously reacted to the rejection of an EHLO by falling back to HELO, but the subsequent disconnect indicates that the
@@ -505,7 +631,7 @@ class Client
 			}
 		}
 		clearFlag(S2_DNSWAIT);
-		dnsInfo.clear();
+		mxcnt = 0;
 
 		// don't call disconnect() till next Dispatcher callback, to prevent reentrancy issues
 		if (shared.getTranscript() != null && discmsg != null) shared.getTranscript().event(pfx_log, discmsg, getSystemTime());
@@ -558,6 +684,7 @@ class Client
 			if (shared.getTranscript() != null) shared.getTranscript().event(pfx_log, "Switched to SSL mode", getSystemTime());
 			initMessage();
 			pipe_cap = 1; //we will go through EHLO response again
+			chunking = false;
 			issueAction(PROTO_ACTION.A_EHLO, PROTO_STATE.S_EHLO);
 			break;
 
@@ -577,7 +704,11 @@ class Client
 				tmr_sesstmt.cancel();
 				tmr_sesstmt = null;
 			}
-			if (pstate != PROTO_STATE.S_STLS) getReader().endReceive();
+			if (pstate == PROTO_STATE.S_IDLE) {
+				getReader().receiveDelimited((byte)'\n'); //keep listening, so that we notice if the server drops us
+			} else if (pstate != PROTO_STATE.S_STLS) {
+				getReader().endReceive();
+			}
 		} else {
 			long tmt = (alt_tmtprotocol == 0 ? conncfg.getIdleTimeout().toMillis() : alt_tmtprotocol);
 			if (tmr_sesstmt == null) {
@@ -617,9 +748,18 @@ class Client
 			break;
 
 		case S_RESET:
+			if (reply_status == okreply) resumed = false;
 			issueAction(PROTO_ACTION.A_MAILFROM, PROTO_STATE.S_MAILFROM, okreply, null, rspdata);
 			break;
 
+		case S_IDLE:
+			// this is either the reply to a keepalive, or an unsolicited reply that can only mean the server is about to hang up
+			if (dataWait < 0 || reply_status != okreply) {
+				dataWait = 0;
+				return issueDisconnect(0, "Idle connection dropped by server", rspdata);
+			}
+			break;
+
 		case S_HELO:
 			issueAction(PROTO_ACTION.A_STARTSESSION, null, okreply, null, rspdata);
 			break;
@@ -632,6 +772,8 @@ class Client
 					pipe_cap = conncfg.getMaxPipeline();
 				} else if (matchesExtension(rspdata, Protocol.EXT_STLS, false)) {
 					setFlag(S2_SERVER_STLS);
+				} else if (matchesExtension(rspdata, Protocol.EXT_CHUNKING, false)) {
+					chunking = conncfg.isChunking();
 				} else if (active_relay != null && active_relay.auth_enabled && auth_method == null
 						&& (matchesExtension(rspdata, Protocol.EXT_AUTH, false)
 								|| (active_relay.auth_compat && matchesExtension(rspdata, Protocol.EXT_AUTH_COMPAT, true)))) {
@@ -783,6 +925,15 @@ class Client
 
 		case A_DATA:
 			if (isFlagSet(S2_SENT_DATACMD)) break; //in case we pipelined it before receiving all recip responses
+			if (chunking) {
+				// BDAT carries the message body, so unlike DATA we don't send it till all the recipients have been accepted
+				if (recip_id != msgparams.recipCount()) {
+					flushPipeline();
+					break;
+				}
+				setFlag(S2_SENT_DATACMD);
+				return issueAction(PROTO_ACTION.A_MAILBODY, PROTO_STATE.S_MAILBODY);
+			}
 			if (pipe_count != 0) {
 				//in pipelined send-ahead mode - forego canned ByteBuffer, to piggyback reply on the buffered pipeline
 				sendPipelinedRequest(Protocol.CMDREQ_DATA, true, null, null, false);
@@ -794,16 +945,25 @@ class Client
 
 		case A_MAILBODY:
 			Path fh_msg = shared.getController().getQueue().getMessage(msgparams.getSPID(), msgparams.getRecipient(0).qid);
-			long msgbytes = Files.size(fh_msg);
+			long msgbytes = SpoolCompression.getContentSize(fh_msg);
 			alt_tmtprotocol = calculateMaxTime(msgbytes, conncfg.getMinRateData());
 			if (alt_tmtprotocol < conncfg.getIdleTimeout().toMillis()) alt_tmtprotocol = 0;
 			try {
-				getWriter().transmit(fh_msg);
+				if (chunking) {
+					msgbytes = transmitChunked(fh_msg);
+				} else {
+					InputStream strm = SpoolCompression.openCompressed(fh_msg);
+					if (strm == null) {
+						getWriter().transmit(fh_msg);
+					} else {
+						transmitInflated(strm, msgbytes);
+					}
+					transmit(shared.getSmtpRequestEOM());
+				}
 			} catch (IOException ex) {
 				if (Files.exists(fh_msg, FileOps.LINKOPTS_NONE)) throw ex; //prob some temporary comms issue
 				return issueDisconnect(Protocol.REPLYCODE_PERMERR_MISC, "Spool file missing", FAILMSG_NOSPOOL);
 			}
-			transmit(shared.getSmtpRequestEOM());
 
 			if (shared.getTranscript() != null) {
 				shared.getTmpSB().setLength(0);
@@ -815,7 +975,15 @@ class Client
 
 		case A_ENDMESSAGE:
 			shared.getController().messageCompleted(this);
-			if (msgparams.recipCount() == 0) return issueAction(PROTO_ACTION.A_QUIT, PROTO_STATE.S_QUIT);
+			if (msgparams.recipCount() == 0) {
+				if (dataWait == 0) {
+					// Offer ourself to the connection pool. We have to be idle beforehand, as the Controller may reuse us at once.
+					initMessage();
+					transitionState(PROTO_STATE.S_IDLE);
+					if (shared.getController().senderIdle(this)) return pstate;
+				}
+				return issueAction(PROTO_ACTION.A_QUIT, PROTO_STATE.S_QUIT);
+			}
 			initMessage();
 			LEVEL lvl = LEVEL.TRC2;
 			if (getLogger().isActive(lvl)) {
@@ -1038,14 +1206,17 @@ class Client
 		rspbuf.append(Protocol.EOL_BC);
 		pipe_count++;
 
-		if (flush || (pipe_count == pipe_cap)) {
-			dataWait = dataWait + pipe_count - 1; //subtract one because transmit() will also increment it
-			transmit(rspbuf);
-			pipe_count = 0;
-		}
+		if (flush || (pipe_count == pipe_cap)) flushPipeline();
 		return (pipe_count == 0);
 	}
 
+	private void flushPipeline() throws IOException {
+		if (pipe_count == 0) return;
+		dataWait = dataWait + pipe_count - 1; //subtract one because transmit() will also increment it
+		transmit(shared.getPipelineBuffer());
+		pipe_count = 0;
+	}
+
 	private void transmit(ByteChars data) throws IOException {
 		ByteBuffer buf = shared.encodeData(data);
 		transmit(buf);
@@ -1060,6 +1231,58 @@ class Client
 		dataWait++;
 	}
 
+	// Streams a compressed spool file's message body to the server, decompressing it on the fly.
+	// The writer pulls each chunk from the channel as the connection drains, so the body is only inflated as fast as it
+	// can be sent, and never held in memory all at once.
+	private void transmitInflated(InputStream strm, long msgbytes) throws IOException {
+		java.nio.channels.FileChannel chan = SpoolCompression.asChannel(strm, msgbytes, SharedFields.INFLATE_BUFSIZ);
+		boolean done = false;
+		try {
+			getWriter().transmitChunked(chan, 0, msgbytes, SharedFields.INFLATE_BUFSIZ, true);
+			done = true;
+		} finally {
+			if (!done) chan.close();
+		}
+	}
+
+	// Sends the message body to the server as a single BDAT chunk (see RFC-3030), and returns its size.
+	// The spool holds the message in its dot-stuffed form as received via DATA, but chunk data is sent raw, so we have to
+	// unstuff it. BDAT has to state the size up front, so we make a first pass over the spool file to count that, and then
+	// hand the writer a channel which unstuffs the file (and inflates it if it's compressed) as the connection drains.
+	// So like DATA, the body is never held in memory all at once.
+	private long transmitChunked(Path fh) throws IOException {
+		long msgbytes = 0;
+		byte[] buf = shared.getInflateBuffer();
+		try (InputStream strm = new UnstuffingInputStream(SpoolCompression.open(fh))) {
+			int nbytes;
+			while ((nbytes = strm.read(buf)) != -1) msgbytes += nbytes;
+		}
+		transmitChunkCommand(msgbytes);
+		if (msgbytes == 0) return 0;
+
+		InputStream strm = new UnstuffingInputStream(SpoolCompression.open(fh));
+		java.nio.channels.FileChannel chan = SpoolCompression.asChannel(strm, msgbytes, SharedFields.INFLATE_BUFSIZ);
+		boolean done = false;
+		try {
+			getWriter().transmitChunked(chan, 0, msgbytes, SharedFields.INFLATE_BUFSIZ, true);
+			done = true;
+		} finally {
+			if (!done) chan.close();
+		}
+		return msgbytes;
+	}
+
+	private void transmitChunkCommand(long len) throws IOException {
+		StringBuilder sb = shared.getTmpSB();
+		sb.setLength(0);
+		sb.append(' ').append(len);
+		ByteChars cmdbuf = shared.getTmpBC().clear();
+		cmdbuf.append(Protocol.CMDREQ_BDAT).append(sb);
+		cmdbuf.append(' ').append(Protocol.CMDARG_BDAT_LAST);
+		cmdbuf.append(Protocol.EOL_BC);
+		transmit(cmdbuf);
+	}
+
 	private short getReplyCode(ByteArrayRef rsp) {
 		int off = rsp.offset();
 		short statuscode = (short)((rsp.buffer()[off++] - '0') * 100);
@@ -1093,12 +1316,15 @@ class Client
 		pfx_log = LOG_PREFIX+"/E"+getCMID()+"-"+cnxid;
 		initChannelMonitor();
 		initMessage();
-		dnsInfo.clear();
+		mxcnt = 0;
+		mxtotal = 0;
 		conncfg = shared.getDefaultConfig();
 		pipe_cap = 1;
+		chunking = false;
 		remote_tsap = null;
 		active_relay = null;
 		pstate = PROTO_STATE.S_DISCON;
+		resumed = false;
 		disconnect_status = 0;
 		dataWait = 0;
 		alt_tmtprotocol = 0;
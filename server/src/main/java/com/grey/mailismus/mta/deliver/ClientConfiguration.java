@@ -9,6 +9,7 @@ import java.util.List;
 
 import com.grey.base.config.XmlConfig;
 import com.grey.base.utils.IP;
+import com.grey.base.utils.TimeOps;
 import com.grey.naf.BufferGenerator;
 import com.grey.naf.dns.resolver.ResolverDNS;
 import com.grey.naf.reactor.Dispatcher;
@@ -24,13 +25,15 @@ class ClientConfiguration {
 			Delivery.Controller ctl,
 			ResolverDNS dns,
 			AppConfig appConfig,
-			int max_serverconns) throws IOException, GeneralSecurityException
+			int max_serverconns,
+			String instance) throws IOException, GeneralSecurityException
 	{
 		Dispatcher dsptch = ctl.getDispatcher();
 
 		boolean fallback_mx_a = xmlcfg.getBool("fallbackMX_A", false);
 		BufferGenerator bufferGenerator = createBufferGenerator(xmlcfg);
-		Transcript transcript = createTranscript(xmlcfg, dsptch);
+		Transcript transcript = createTranscript(xmlcfg, dsptch, instance);
+		DestinationCache destcache = createDestinationCache(xmlcfg, dsptch);
 
 		// read the per-connection config
 		ConnectionConfig defaultConfig = createConnectionConfig(xmlcfg, 0, null, dsptch, appConfig, max_serverconns, fallback_mx_a);
@@ -44,13 +47,22 @@ class ClientConfiguration {
 			}
 		}
 
+		// Different domains can share the same servers, so the delivery shards have to share their per-server connection counts
+		java.util.concurrent.ConcurrentHashMap<Integer, java.util.concurrent.atomic.AtomicInteger> serverconns = null;
+		if (instance != null) {
+			serverconns = dsptch.getApplicationContext().getNamedItem(SharedFields.class.getName()+"-serverconns",
+					() -> new java.util.concurrent.ConcurrentHashMap<>());
+		}
+
 		SharedFields shared = SharedFields.builder()
 				.withController(ctl)
 				.withDnsResolver(dns)
+				.withDestinationCache(destcache)
 				.withBufferGenerator(bufferGenerator)
 				.withTranscript(transcript)
 				.withDefaultConfig(defaultConfig)
 				.withRemoteConfigs(remotesConfig)
+				.withSharedServerConnections(serverconns)
 				.build();
 		ctl.getDispatcher().getLogger().info(LOG_PREFIX+": "+bufferGenerator);
 		return shared;
@@ -81,6 +93,7 @@ class ClientConfiguration {
 		// ESMTP settings
 		int max_pipe = xmlcfg.getInt("maxpipeline", false, dflts==null ? 25 : dflts.getMaxPipeline());
 		if (max_pipe == 0) max_pipe = 1;
+		boolean chunking = xmlcfg.getBool("chunking", dflts==null ? false : dflts.isChunking());
 
 		SSLConfig anonssl = null;
 		XmlConfig sslcfg = xmlcfg.getSection("anonssl");
@@ -100,6 +113,7 @@ class ClientConfiguration {
 				.withFallbackMX2A(fallback_mx_a)
 				.withMaxServerConnections(max_serverconns)
 				.withMaxPipeline(max_pipe)
+				.withChunking(chunking)
 				.withDelayChannelClose(Duration.ofMillis(delayChannelClose))
 				.withAnonSSL(anonssl)
 				.withIpNets(ipnets);
@@ -117,8 +131,19 @@ class ClientConfiguration {
 		return bufferGenerator;
 	}
 
-	private static Transcript createTranscript(XmlConfig xmlcfg, Dispatcher dsptch) {
-		return Transcript.create(dsptch, xmlcfg, "transcript");
+	private static DestinationCache createDestinationCache(XmlConfig xmlcfg, Dispatcher dsptch) {
+		int size = xmlcfg.getInt("destcache", false, 1000);
+		if (size == 0) return null;
+		long ttl = xmlcfg.getTime("destcache_ttl", TimeOps.parseMilliTime("5m"));
+		long negttl = xmlcfg.getTime("destcache_negttl", TimeOps.parseMilliTime("1m"));
+		long downtime = xmlcfg.getTime("host_downtime", TimeOps.parseMilliTime("1m"));
+		DestinationCache cache = new DestinationCache(size, ttl, negttl, downtime);
+		dsptch.getLogger().info(LOG_PREFIX+": "+cache);
+		return cache;
+	}
+
+	private static Transcript createTranscript(XmlConfig xmlcfg, Dispatcher dsptch, String instance) {
+		return Transcript.create(dsptch, xmlcfg, "transcript", instance);
 	}
 
 	private static IP.Subnet[] parseSubnets(XmlConfig cfg, String fldnam, AppConfig appConfig) throws UnknownHostException {
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.deliver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.grey.base.utils.ByteChars;
+
+/**
+ * Adapts the max number of simultaneous connections to each destination (ie. domain or relay) to how well it's coping,
+ * in place of a single static maxserverconnections limit for all of them.
+ * <br>
+ * The limit follows an AIMD (Additive Increase, Multiplicative Decrease) scheme, as in TCP congestion control. It is raised
+ * by one after each round of successful connections (ie. as many as the current limit), and halved when the destination
+ * pushes back with a temporary error (such as a 421 response or a refused connection) or its per-message latency rises
+ * sharply above its long-term average. It is bounded by the configured floor and ceiling.
+ * <br>
+ * Only connections launched since the last cut can trigger a further cut, as the others were launched under the old limit,
+ * so a burst of failures from one round of connections only counts once.
+ * <br>
+ * The destinations are held in a bounded map, with the least-recently used being forgotten when it fills up.
+ * This is a single-threaded class which runs in the context of the Forwarder's Dispatcher.
+ */
+class ConcurrencyLimiter
+{
+	private static final int MAXTARGETS = 10_000;
+	private static final int MIN_LATENCY_SAMPLES = 8; //don't judge latency till we have an established average
+
+	static final class Target {
+		final Object key;
+		int limit;
+		int credit; //successful connections since the limit was last changed
+		long lastcut; //time at which the limit was last cut
+		long latency_fast; //short-term smoothed latency per message (ms)
+		long latency_slow; //long-term smoothed latency per message (ms)
+		int samples;
+
+		Target(Object key, int limit) {
+			this.key = key;
+			this.limit = limit;
+		}
+	}
+
+	private final int floor;
+	private final int ceiling;
+	private final int initial;
+	private final int latency_factor; //zero means latency is ignored
+	private final Map<Object, Target> targets;
+
+	private int raisecnt;
+	private int cutcnt;
+
+	public int size() {return targets.size();}
+	public int raises() {return raisecnt;}
+	public int cuts() {return cutcnt;}
+	public int ceiling() {return ceiling;}
+
+	public ConcurrencyLimiter(int floor, int ceiling, int initial, int latency_factor)
+	{
+		this.floor = Math.max(1, Math.min(floor, ceiling));
+		this.ceiling = ceiling;
+		this.initial = Math.max(this.floor, Math.min(initial, ceiling));
+		this.latency_factor = latency_factor;
+		targets = new LinkedHashMap<Object, Target>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Object, Target> eldest) {
+				return size() > MAXTARGETS;
+			}
+		};
+	}
+
+	// The key is a Relay or destination domain, as for the Forwarder's per-server connection counts
+	public int getLimit(Object key)
+	{
+		Target t = targets.get(key);
+		return (t == null ? initial : t.limit);
+	}
+
+	// Called when a connection to the given destination has finished sending its messages.
+	// domain_error is the status which applied to the destination as a whole, if any.
+	public void connectionCompleted(Object key, short domain_error, long launched, int msgcnt, long systime)
+	{
+		boolean congested = (domain_error >= 400 && domain_error < 500); //transient errors, including 421 and connect failures
+		if (!congested && (domain_error != 0 || msgcnt == 0)) return; //tells us nothing about the destination's capacity
+		Target t = targets.get(key);
+		if (t == null) {
+			if (key instanceof ByteChars) key = new ByteChars().populate((ByteChars)key); //original belongs to queue cache
+			t = new Target(key, initial);
+			targets.put(key, t);
+		}
+
+		if (!congested) {
+			long latency = (systime - launched) / msgcnt;
+			if (t.samples++ == 0) {
+				t.latency_fast = latency;
+				t.latency_slow = latency;
+			} else {
+				t.latency_fast += (latency - t.latency_fast) / 2;
+				t.latency_slow += (latency - t.latency_slow) / 16;
+			}
+			congested = (latency_factor != 0 && t.samples >= MIN_LATENCY_SAMPLES
+					&& t.latency_fast > Math.max(1, t.latency_slow) * latency_factor);
+		}
+
+		if (congested) {
+			if (launched <= t.lastcut) return; //launched before the last cut, so already accounted for
+			int limit = Math.max(floor, t.limit / 2);
+			if (limit != t.limit) cutcnt++;
+			t.limit = limit;
+			t.credit = 0;
+			t.lastcut = systime;
+			return;
+		}
+
+		if (++t.credit >= t.limit && t.limit < ceiling) {
+			t.limit++;
+			t.credit = 0;
+			raisecnt++;
+		}
+	}
+
+	// Lists the destinations whose limit differs from the initial one, up to the given max
+	public int getAdjusted(java.util.List<Target> lst, int max)
+	{
+		int cnt = 0;
+		for (Target t : targets.values()) {
+			if (t.limit == initial) continue;
+			if (lst.size() < max) lst.add(t);
+			cnt++;
+		}
+		return cnt;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ConcurrencyLimiter floor="+floor+", ceiling="+ceiling+", initial="+initial+", latency-factor="+latency_factor;
+	}
+}
@@ -28,6 +28,7 @@ public class ConnectionConfig
 
 	private final int maxServerConnections; //max simultaneous connections to any one server, zero means no limit
 	private final int maxPipeline; //max requests that can be pipelined in one send
+	private final boolean chunking; //send messages with BDAT rather than DATA, if the server supports it
 
 	private final Duration idleTimeout;
 	private final Duration delayChannelClose; //has solved abort-on-close issues in the past
@@ -45,6 +46,7 @@ public class ConnectionConfig
 		this.fallbackMX2A = bldr.fallbackMX2A;
 		this.maxServerConnections = bldr.maxServerConnections;
 		this.maxPipeline = bldr.maxPipeline;
+		this.chunking = bldr.chunking;
 		this.idleTimeout = bldr.idleTimeout;
 		this.delayChannelClose = bldr.delayChannelClose;
 		this.minRateData = bldr.minRateData;
@@ -88,6 +90,10 @@ public class ConnectionConfig
 		return maxPipeline;
 	}
 
+	public boolean isChunking() {
+		return chunking;
+	}
+
 	public Duration getIdleTimeout() {
 		return idleTimeout;
 	}
@@ -127,6 +133,7 @@ public class ConnectionConfig
 				+", fallback-MX-to-A="+fallbackMX2A
 				+", max-server-connections="+maxServerConnections
 				+", max-pipeline="+maxPipeline
+				+", chunking="+chunking
 				+", idle-timeout="+idleTimeout
 				+", delay-channel-close="+delayChannelClose
 				+", min-rate-data="+minRateData
@@ -149,6 +156,7 @@ public class ConnectionConfig
 		private boolean fallbackMX2A;
 		private int maxServerConnections;
 		private int maxPipeline = 25;
+		private boolean chunking;
 		private Duration idleTimeout = Duration.ofMinutes(1);
 		private Duration delayChannelClose = Duration.ZERO;
 		private long minRateData = 1024;
@@ -198,6 +206,11 @@ public class ConnectionConfig
 			return this;
 		}
 
+		public Builder withChunking(boolean chunking) {
+			this.chunking = chunking;
+			return this;
+		}
+
 		public Builder withIdleTimeout(Duration tmt) {
 			this.idleTimeout = tmt;
 			return this;
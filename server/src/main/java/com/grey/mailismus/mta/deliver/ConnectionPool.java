@@ -0,0 +1,161 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.deliver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.grey.base.collections.HashedMapIntValue;
+import com.grey.base.utils.ByteChars;
+
+/**
+ * Holds the idle SMTP connections which the Forwarder keeps open after their messages have been sent, so that they can be
+ * handed to later batches for the same destination, rather than making a new connection (with its TCP, STARTTLS, EHLO and
+ * AUTH overheads) each time.
+ * <br>
+ * Connections are keyed on their destination, in the same way as the Forwarder's per-server connection counts, ie. on the
+ * Relay for routed messages and on the destination domain otherwise. This class merely records the connections - it is up
+ * to the Forwarder to keep them alive, and to close them once they expire.
+ * <br>
+ * This is a single-threaded class which runs in the context of the Forwarder's Dispatcher.
+ */
+class ConnectionPool
+{
+	static final class Entry {
+		final Object key; //Relay or destination domain - always a stable copy, never a queue-cache field
+		final long connected; //time at which the connection was originally launched
+		long parked; //time at which it last became idle - zero while it is in use
+		long pinged; //time at which it was last known to be alive
+
+		Entry(Object key, long connected) {
+			this.key = key;
+			this.connected = connected;
+		}
+	}
+
+	private final int maxsize;
+	private final long maxidle;
+	private final long maxlife;
+	private final long keepalive;
+
+	private final Map<Object, List<Delivery.MessageSender>> idle = new HashMap<>();
+	private final Map<Delivery.MessageSender, Entry> entries = new HashMap<>(); //all pooled connections, idle or in use
+	private int idlecnt;
+	private int reusecnt;
+
+	public int size() {return idlecnt;}
+	public int reuseCount() {return reusecnt;}
+	public long keepAliveInterval() {return keepalive;}
+
+	public ConnectionPool(int maxsize, long maxidle, long maxlife, long keepalive)
+	{
+		this.maxsize = maxsize;
+		this.maxidle = maxidle;
+		this.maxlife = maxlife;
+		this.keepalive = keepalive;
+	}
+
+	// Called when the sender has delivered all the messages it was given. If the pool accepts the connection, the returned
+	// Entry identifies its key, and the sender must stay connected until it is reused or closed. Returns null if the pool is
+	// full or the connection has already reached its maximum lifetime.
+	public Entry park(Delivery.MessageSender sender, long systime)
+	{
+		Entry ent = entries.get(sender);
+		Delivery.MessageParams msgparams = sender.getMessageParams();
+		long connected = (ent == null ? msgparams.launchTime() : ent.connected);
+		if (idlecnt == maxsize || systime - connected >= maxlife) return null;
+
+		if (ent == null) {
+			Object key = msgparams.getRelay();
+			if (key == null) {
+				if (msgparams.getDestination() == null) return null;
+				key = new ByteChars().populate(msgparams.getDestination()); //take a copy, as the original belongs to the queue cache
+			}
+			ent = new Entry(key, connected);
+			entries.put(sender, ent);
+		}
+		List<Delivery.MessageSender> lst = idle.get(ent.key);
+		if (lst == null) {
+			lst = new ArrayList<>();
+			idle.put(ent.key, lst);
+		}
+		lst.add(sender);
+		ent.parked = systime;
+		ent.pinged = systime;
+		idlecnt++;
+		return ent;
+	}
+
+	// Returns the most recently parked connection to the given destination, or null if there isn't one.
+	// Most recent first means that the surplus connections are the ones left to expire if traffic drops.
+	// Connections which are in the process of closing remain in the pool until remove() is called, but are skipped here.
+	public Delivery.MessageSender take(Object key)
+	{
+		List<Delivery.MessageSender> lst = idle.get(key);
+		if (lst == null) return null;
+		for (int idx = lst.size() - 1; idx != -1; idx--) {
+			Delivery.MessageSender sender = lst.get(idx);
+			if (!sender.isIdle()) continue;
+			lst.remove(idx);
+			if (lst.isEmpty()) idle.remove(key);
+			entries.get(sender).parked = 0;
+			idlecnt--;
+			reusecnt++;
+			return sender;
+		}
+		return null;
+	}
+
+	// Called when a pooled connection has closed, whether idle or not. Returns null if it was never pooled.
+	public Entry remove(Delivery.MessageSender sender)
+	{
+		Entry ent = entries.remove(sender);
+		if (ent == null || ent.parked == 0) return ent;
+		List<Delivery.MessageSender> lst = idle.get(ent.key);
+		lst.remove(sender);
+		if (lst.isEmpty()) idle.remove(ent.key);
+		idlecnt--;
+		return ent;
+	}
+
+	// Sorts the idle connections into those which have expired and should be closed, and those which are due a keepalive.
+	// The latter are assumed to be pinged by the caller.
+	public void sweep(long systime, List<Delivery.MessageSender> expired, List<Delivery.MessageSender> ping)
+	{
+		for (List<Delivery.MessageSender> lst : idle.values()) {
+			for (int idx = 0; idx != lst.size(); idx++) {
+				Delivery.MessageSender sender = lst.get(idx);
+				if (!sender.isIdle()) continue; //already closing
+				Entry ent = entries.get(sender);
+				if (systime - ent.parked >= maxidle || systime - ent.connected >= maxlife) {
+					expired.add(sender);
+				} else if (systime - ent.pinged >= keepalive / 2) {
+					ent.pinged = systime;
+					ping.add(sender);
+				}
+			}
+		}
+	}
+
+	public void getIdle(List<Delivery.MessageSender> lst)
+	{
+		for (List<Delivery.MessageSender> senders : idle.values()) {
+			for (int idx = 0; idx != senders.size(); idx++) {
+				if (senders.get(idx).isIdle()) lst.add(senders.get(idx));
+			}
+		}
+	}
+
+	// Adds the idle connections to the given per-destination counts
+	public void countConnections(HashedMapIntValue<Object> counts)
+	{
+		for (Map.Entry<Object, List<Delivery.MessageSender>> ent : idle.entrySet()) {
+			Object key = ent.getKey();
+			counts.put(key, counts.get(key) + ent.getValue().size());
+		}
+	}
+}
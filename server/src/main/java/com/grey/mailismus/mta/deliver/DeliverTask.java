@@ -6,32 +6,77 @@ package com.grey.mailismus.mta.deliver;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.grey.base.config.XmlConfig;
+import com.grey.logging.Logger;
 import com.grey.naf.EventListenerNAF;
 import com.grey.naf.reactor.Dispatcher;
+import com.grey.naf.reactor.config.DispatcherConfig;
+import com.grey.mailismus.AppConfig;
 import com.grey.mailismus.mta.MTA_Task;
+import com.grey.mailismus.mta.queue.QueueFactory;
+import com.grey.mailismus.mta.queue.QueueManager;
+import com.grey.mailismus.errors.MailismusConfigException;
 import com.grey.mailismus.nafman.Loader;
 
+/*
+ * In sharded mode, the queue is partitioned by destination domain and each partition is delivered by its own Forwarder,
+ * running in its own Dispatcher (ie. thread). This task's own Forwarder handles partition zero, and it starts and stops the
+ * Dispatchers of the others.
+ */
 public final class DeliverTask
 	extends MTA_Task
 	implements EventListenerNAF
 {
+	private static final long SHARD_STOPWAIT = 10_000;
+
 	private final Forwarder sender;
+	private final List<Dispatcher> shards = new ArrayList<>();
 
 	public DeliverTask(String name, Dispatcher dsptch, XmlConfig cfg) throws IOException, GeneralSecurityException {
 		super(name, dsptch, cfg, null, DFLT_FACT_MS, DFLT_FACT_QUEUE, createResolverDNS(dsptch));
+		int shardcnt = taskConfig().getInt("shards", false, 1);
+		if (shardcnt < 1) throw new MailismusConfigException("DeliverTask="+name+": Invalid shards="+shardcnt);
+		if (shardcnt > 1) getQueue().setPartition(0, shardcnt);
 		sender = new Forwarder(dsptch, this, taskConfig(), this, null);
 		registerQueueOps(Loader.PREF_SHOWQ_DELIVER);
+
+		for (int idx = 1; idx < shardcnt; idx++) {
+			String shardname = dsptch.getName()+"-shard"+idx;
+			DispatcherConfig dcfg = new DispatcherConfig.Builder()
+					.withName(shardname)
+					.build();
+			Logger logger = com.grey.logging.Factory.getLogger(shardname);
+			Dispatcher d = Dispatcher.create(dsptch.getApplicationContext(), dcfg, logger);
+			Shard shard = new Shard(name, idx, shardcnt, d, cfg, getAppConfig(), taskConfig());
+			d.loadRunnable(shard);
+			sender.addShard(shard.sender);
+			shards.add(d);
+		}
 	}
 
 	@Override
-	protected void startTask() {
+	protected void startTask() throws IOException {
 		sender.start();
+		for (int idx = 0; idx != shards.size(); idx++) {
+			shards.get(idx).start();
+		}
 	}
 
 	@Override
 	protected boolean stopNaflet() {
+		for (int idx = 0; idx != shards.size(); idx++) {
+			shards.get(idx).stop();
+		}
+		for (int idx = 0; idx != shards.size(); idx++) {
+			Dispatcher d = shards.get(idx);
+			Dispatcher.STOPSTATUS stopsts = d.waitStopped(SHARD_STOPWAIT, true);
+			if (stopsts != Dispatcher.STOPSTATUS.STOPPED) {
+				getDispatcher().getLogger().warn("DeliverTask="+getName()+" failed to stop Dispatcher="+d.getName()+" - "+stopsts);
+			}
+		}
 		return sender.stop();
 	}
 
@@ -41,4 +86,40 @@ public final class DeliverTask
 		getDispatcher().getLogger().info("DeliverTask="+getName()+" received event="+eventId+"/"+evtsrc.getClass().getName()+"/"+data);
 		nafletStopped();
 	}
-}
\ No newline at end of file
+
+
+	// Runs the Forwarder for one of the other partitions, within its own Dispatcher.
+	// Local delivery is done by partition zero (ie. the main Forwarder), as that is where all the domainless recipients go, so
+	// this one has no message store.
+	private static final class Shard
+		extends com.grey.naf.Naflet
+		implements EventListenerNAF
+	{
+		final Forwarder sender;
+
+		Shard(String name, int idx, int shardcnt, Dispatcher d, XmlConfig cfg, AppConfig appcfg, XmlConfig taskcfg)
+				throws IOException, GeneralSecurityException
+		{
+			super(name+"-shard"+idx, d, cfg);
+			QueueManager qmgr = QueueFactory.init(DFLT_FACT_QUEUE, d, null, appcfg, name);
+			qmgr.setPartition(idx, shardcnt);
+			sender = new Forwarder(d, taskcfg, appcfg, qmgr, null, this, null, null, createResolverDNS(d));
+		}
+
+		@Override
+		protected void startNaflet() {
+			sender.start();
+		}
+
+		@Override
+		protected boolean stopNaflet() {
+			return sender.stop();
+		}
+
+		@Override
+		public void eventIndication(String eventId, Object evtsrc, Object data) {
+			getDispatcher().getLogger().info("DeliverTask-Shard="+getName()+" received event="+eventId);
+			nafletStopped();
+		}
+	}
+}
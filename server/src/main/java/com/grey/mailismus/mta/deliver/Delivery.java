@@ -21,6 +21,10 @@ public interface Delivery
 	{
 		void messageCompleted(MessageSender sender);
 		void senderCompleted(MessageSender sender);
+		// Called when a sender has no more messages to send, while its connection is still usable. Returns true if the
+		// controller wants to keep the connection open for reuse, in which case the sender must stay idle until start() or
+		// stop() is called again.
+		boolean senderIdle(MessageSender sender);
 		Dispatcher getDispatcher();
 		QueueManager getQueue();
 		Routing getRouting();
@@ -35,6 +39,10 @@ public interface Delivery
 		short getDomainError();
 		String getLogID();
 		void setEventListener(EventListenerNAF l);
+		// These relate to idle connections (see Controller.senderIdle). A sender stops being idle as soon as it starts to
+		// close, so isIdle() determines whether it can be reused, and keepAlive() returns false if it can't be pinged.
+		default boolean isIdle() {return false;}
+		default boolean keepAlive() {return false;}
 	}
 
 
@@ -46,6 +54,7 @@ public interface Delivery
 		private Relay relay;
 		private int spid;
 		private int msgcnt;
+		private long launchtime;
 
 		public int getSPID() {return spid;}
 		public ByteChars getSender() {return sender;}
@@ -55,11 +64,13 @@ public interface Delivery
 		public int recipCount() {return recips.size();}
 		int messageCount() {return msgcnt;}
 		int incrementMessages() {return ++msgcnt;}
+		long launchTime() {return launchtime;}
 
-		MessageParams init(Relay rly, ByteChars destdom) {
+		MessageParams init(Relay rly, ByteChars destdom, long time) {
 			clear();
 			relay = rly;
 			if (relay == null) destdomain = destdom;
+			launchtime = time;
 			return this;
 		}
 
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.deliver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.grey.base.utils.ByteChars;
+import com.grey.base.utils.TimeOps;
+import com.grey.naf.dns.resolver.engine.ResolverAnswer;
+
+/**
+ * Remembers the outcome of the DNS lookups on destination domains, and the health of the mail servers they resolved to.
+ * <br>
+ * The resolved IPs are held in MX-preference order for a limited time, as are negative results (ie. nonexistent domains)
+ * so that Clients can usually skip the DNS lookup altogether. Per-IP stats are kept on the connection attempts, and an IP
+ * which recently refused a connection is treated as down for a while, so that subsequent Clients skip straight past it to
+ * the next MX, or fail at once if every MX is down.
+ * <br>
+ * Both maps are bounded, with the least-recently used entries being discarded when they fill up.
+ * This is a single-threaded class which runs in the context of the Forwarder's Dispatcher, and is shared by its Clients.
+ */
+class DestinationCache
+{
+	static final class Destination {
+		final int[] ips; //null for negative entries
+		final ResolverAnswer.STATUS status;
+		final long expiry;
+
+		Destination(int[] ips, ResolverAnswer.STATUS status, long expiry) {
+			this.ips = ips;
+			this.status = status;
+			this.expiry = expiry;
+		}
+	}
+
+	static final class HostStats {
+		int okcnt;
+		int failcnt;
+		int consecfails; //failures since the last success
+		long lastfail;
+		long latency; //smoothed connect time, in milliseconds
+
+		void succeeded(long time) {
+			okcnt++;
+			consecfails = 0;
+			latency = (okcnt == 1 ? time : latency + ((time - latency) >> 3));
+		}
+
+		void failed(long systime) {
+			failcnt++;
+			consecfails++;
+			lastfail = systime;
+		}
+	}
+
+	private final int maxsize;
+	private final long ttl;
+	private final long negttl;
+	private final long downtime;
+
+	private final Map<ByteChars, Destination> destinations;
+	private final Map<Integer, HostStats> hosts;
+
+	private int hitcnt;
+	private int misscnt;
+	private int skipcnt;
+
+	public int size() {return destinations.size();}
+	public int hostCount() {return hosts.size();}
+	public int hits() {return hitcnt;}
+	public int misses() {return misscnt;}
+	public int skips() {return skipcnt;}
+
+	public DestinationCache(int maxsize, long ttl, long negttl, long downtime)
+	{
+		this.maxsize = maxsize;
+		this.ttl = ttl;
+		this.negttl = negttl;
+		this.downtime = downtime;
+		destinations = new BoundedMap<>(maxsize);
+		hosts = new BoundedMap<>(maxsize * 4); //allow for multiple MX hosts per domain
+	}
+
+	// Returns null if the domain is not cached, or its entry has expired
+	public Destination get(ByteChars domain, long systime)
+	{
+		Destination dest = destinations.get(domain);
+		if (dest != null && systime >= dest.expiry) {
+			destinations.remove(domain);
+			dest = null;
+		}
+		if (dest == null) {
+			misscnt++;
+		} else {
+			hitcnt++;
+		}
+		return dest;
+	}
+
+	// Unlike get(), this doesn't count as a hit or miss, and doesn't discard an expired entry
+	public boolean contains(ByteChars domain, long systime)
+	{
+		Destination dest = destinations.get(domain);
+		return (dest != null && systime < dest.expiry);
+	}
+
+	// The domain is copied, as the caller's instance belongs to the queue cache
+	public void putAddresses(ByteChars domain, int[] ips, int cnt, long systime)
+	{
+		if (cnt == 0) return;
+		int[] arr = java.util.Arrays.copyOf(ips, cnt);
+		destinations.put(new ByteChars().populate(domain), new Destination(arr, ResolverAnswer.STATUS.OK, systime + ttl));
+	}
+
+	// Only definitive answers are cached - temporary DNS failures are left for the next Client to retry
+	public void putNegative(ByteChars domain, ResolverAnswer.STATUS status, long systime)
+	{
+		if (negttl == 0) return;
+		destinations.put(new ByteChars().populate(domain), new Destination(null, status, systime + negttl));
+	}
+
+	// Removes the IPs which are currently regarded as down, compacting the remainder in place, and returns the number left.
+	// The relative order of the remaining IPs is preserved, so that the MX preferences are still respected.
+	public int filterLive(int[] ips, int cnt, long systime)
+	{
+		int live = 0;
+		for (int idx = 0; idx != cnt; idx++) {
+			if (isDown(ips[idx], systime)) {
+				skipcnt++;
+				continue;
+			}
+			ips[live++] = ips[idx];
+		}
+		return live;
+	}
+
+	public boolean isDown(int ip, long systime)
+	{
+		return isDown(hosts.get(ip), systime);
+	}
+
+	private boolean isDown(HostStats stats, long systime)
+	{
+		return (stats != null && stats.consecfails != 0 && systime - stats.lastfail < downtime);
+	}
+
+	public void connectSucceeded(int ip, long time)
+	{
+		getStats(ip).succeeded(time);
+	}
+
+	public void connectFailed(int ip, long systime)
+	{
+		getStats(ip).failed(systime);
+	}
+
+	public HostStats getStats(int ip)
+	{
+		HostStats stats = hosts.get(ip);
+		if (stats == null) {
+			stats = new HostStats();
+			hosts.put(ip, stats);
+		}
+		return stats;
+	}
+
+	public int downCount(long systime)
+	{
+		int cnt = 0;
+		for (HostStats stats : hosts.values()) { //don't call get() in here, as it would reorder the map under us
+			if (isDown(stats, systime)) cnt++;
+		}
+		return cnt;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "DestinationCache size="+maxsize+", ttl="+TimeOps.expandMilliTime(ttl)+", negttl="+TimeOps.expandMilliTime(negttl)
+				+", downtime="+TimeOps.expandMilliTime(downtime);
+	}
+
+
+	private static final class BoundedMap<K,V> extends LinkedHashMap<K,V>
+	{
+		private static final long serialVersionUID = 1L;
+		private final int maxsize;
+
+		BoundedMap(int maxsize) {
+			super(16, 0.75f, true); //access order, so that the eldest entry is the least recently used
+			this.maxsize = maxsize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K,V> eldest) {
+			return size() > maxsize;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.deliver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+import com.grey.mailismus.mta.queue.Cache;
+import com.grey.mailismus.mta.queue.MessageRecip;
+
+/**
+ * Groups the remote recipients in the Forwarder's queue cache by their destination, so that it can find the next message
+ * for a given connection without rescanning the whole cache.
+ * <br>
+ * The destination is the same as the key of the Forwarder's per-server connection counts, ie. the Relay for routed recipients
+ * and the domain otherwise. The recipients are held in one array, ordered by destination and then by the cache's own order
+ * (ie. by SPID and QID), so that each destination is a contiguous slice of it, and the recipients of any one message are
+ * contiguous within that.
+ * Each slice has a cursor which marks its first recipient that might still be pending, so the recipients which have already
+ * been handed to a sender are only stepped over once. Recipients can revert to the pending state if their sender fails, in
+ * which case rewind() must be called on their destination.
+ * <br>
+ * The index holds references to the cache entries, so it has to be invalidated whenever the cache is loaded or flushed,
+ * and it is then rebuilt on demand.
+ * This is a single-threaded class which runs in the context of the Forwarder's Dispatcher.
+ */
+class DestinationIndex
+{
+	static final class Slice {
+		final int id;
+		final Object key; //Relay or destination domain
+		final Relay relay; //null if not routed
+		int start;
+		int end;
+		int next; //cursor - entries before this are known to be no longer pending
+
+		Slice(int id, Object key, Relay relay) {
+			this.id = id;
+			this.key = key;
+			this.relay = relay;
+		}
+	}
+
+	private final Map<Object, Slice> lookup = new HashMap<>();
+	private final List<Slice> slices = new ArrayList<>();
+	private MessageRecip[] recips = new MessageRecip[0];
+	private int[] sliceids = new int[0]; //temp array, used during build
+	private boolean valid;
+
+	public boolean isValid() {return valid;}
+	public int sliceCount() {return slices.size();}
+	public Slice getSlice(int idx) {return slices.get(idx);}
+	public Slice getSlice(Object key) {return lookup.get(key);}
+	public MessageRecip get(int idx) {return recips[idx];}
+
+	public void invalidate()
+	{
+		if (!valid) return;
+		lookup.clear();
+		slices.clear();
+		java.util.Arrays.fill(recips, null); //don't hold on to the cache's entries
+		valid = false;
+	}
+
+	// The router maps each recipient to its Relay, or null if it's not routed.
+	// Local recipients (null domain) are excluded.
+	public void build(Cache cache, Function<MessageRecip, Relay> router)
+	{
+		build(cache::get, cache.size(), cache.capacity(), router);
+	}
+
+	void build(IntFunction<MessageRecip> cache, int cachesize, int capacity, Function<MessageRecip, Relay> router)
+	{
+		invalidate();
+		if (recips.length < cachesize) {
+			recips = new MessageRecip[capacity];
+			sliceids = new int[capacity];
+		}
+
+		// assign each entry to a slice, and count the size of each slice
+		for (int qslot = 0; qslot != cachesize; qslot++) {
+			MessageRecip recip = cache.apply(qslot);
+			if (recip.domain_to == null) {
+				sliceids[qslot] = -1;
+				continue;
+			}
+			Relay relay = router.apply(recip);
+			Object key = (relay == null ? recip.domain_to : relay);
+			Slice slice = lookup.get(key);
+			if (slice == null) {
+				slice = new Slice(slices.size(), key, relay);
+				lookup.put(key, slice);
+				slices.add(slice);
+			}
+			sliceids[qslot] = slice.id;
+			slice.end++;
+		}
+
+		// lay the slices out end to end, in the order their destinations were first encountered
+		int pos = 0;
+		for (int idx = 0; idx != slices.size(); idx++) {
+			Slice slice = slices.get(idx);
+			int cnt = slice.end;
+			slice.start = pos;
+			slice.next = pos;
+			slice.end = pos; //used as the insertion point below, and ends up in the right place
+			pos += cnt;
+		}
+
+		// distribute the entries, which preserves the cache order within each slice
+		for (int qslot = 0; qslot != cachesize; qslot++) {
+			int id = sliceids[qslot];
+			if (id == -1) continue;
+			recips[slices.get(id).end++] = cache.apply(qslot);
+		}
+		valid = true;
+	}
+
+	// Returns the index of the slice's first pending recipient, or -1 if there are none. The cursor is advanced past any
+	// recipients which are no longer pending, so they don't have to be examined again.
+	public int nextPending(Slice slice)
+	{
+		while (slice.next != slice.end) {
+			if (recips[slice.next].qstatus == MessageRecip.STATUS_READY) return slice.next;
+			slice.next++;
+		}
+		return -1;
+	}
+
+	// Called when some of this destination's recipients have reverted to the pending state
+	public void rewind(Object key)
+	{
+		Slice slice = lookup.get(key);
+		if (slice != null) slice.next = slice.start;
+	}
+}
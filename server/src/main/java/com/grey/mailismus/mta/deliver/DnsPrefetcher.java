@@ -0,0 +1,97 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.deliver;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.grey.base.utils.ByteChars;
+import com.grey.logging.Logger.LEVEL;
+import com.grey.naf.reactor.Dispatcher;
+import com.grey.naf.dns.resolver.ResolverDNS;
+import com.grey.naf.dns.resolver.engine.ResolverAnswer;
+
+/**
+ * Issues the MX lookups for a newly loaded batch of destination domains up front, rather than leaving each Client to do its
+ * own lookup once it gets launched, which can be some time later if the connection limits are holding it back.
+ * <br>
+ * The resolved IPs are stored in the DestinationCache, where the Clients will find them, and in any case the lookups also
+ * warm up the DNS resolver's own cache. Only successful answers are stored, as the handling of failures depends on the
+ * Client's per-destination config (eg. whether it falls back to an A lookup).
+ * The number of lookups in progress is capped, to avoid flooding the DNS resolver with a large batch.
+ * <br>
+ * This is a single-threaded class which runs in the context of the Forwarder's Dispatcher.
+ */
+class DnsPrefetcher
+	implements ResolverDNS.Client
+{
+	private final Dispatcher dsptch;
+	private final ResolverDNS resolver;
+	private final DestinationCache destcache; //null if disabled
+	private final int maxpending;
+	private final Set<ByteChars> pending = new HashSet<>();
+
+	private int querycnt;
+	private int[] tmpips = new int[8];
+
+	public int pendingCount() {return pending.size();}
+	public int queryCount() {return querycnt;}
+
+	public DnsPrefetcher(Dispatcher dsptch, ResolverDNS resolver, DestinationCache destcache, int maxpending)
+	{
+		this.dsptch = dsptch;
+		this.resolver = resolver;
+		this.destcache = destcache;
+		this.maxpending = maxpending;
+	}
+
+	// Returns false if no more lookups can be issued for now
+	public boolean prefetch(ByteChars domain)
+	{
+		if (pending.size() >= maxpending) return false;
+		if (pending.contains(domain)) return true;
+		if (destcache != null && destcache.contains(domain, dsptch.getSystemTime())) return true;
+		ByteChars key = new ByteChars().populate(domain); //take a copy, as the original belongs to the queue cache
+		pending.add(key);
+		querycnt++;
+		ResolverAnswer answer;
+		try {
+			answer = resolver.resolveMailDomain(key, this, key, 0);
+		} catch (Exception ex) {
+			pending.remove(key);
+			dsptch.getLogger().log(LEVEL.TRC, ex, false, "SMTP-Delivery: DNS prefetch failed for domain="+key);
+			return true;
+		}
+		if (answer != null) dnsResolved(dsptch, answer, key);
+		return true;
+	}
+
+	@Override
+	public void dnsResolved(Dispatcher d, ResolverAnswer answer, Object callerparam)
+	{
+		ByteChars domain = (ByteChars)callerparam;
+		if (!pending.remove(domain)) return; //we've been closed
+		if (destcache == null || answer.result != ResolverAnswer.STATUS.OK || answer.qtype != ResolverDNS.QTYPE_MX) return;
+		int cnt = answer.size();
+		if (cnt > tmpips.length) tmpips = new int[cnt];
+		for (int idx = 0; idx != cnt; idx++) {
+			tmpips[idx] = answer.getMX(idx).getIP();
+		}
+		destcache.putAddresses(domain, tmpips, cnt, dsptch.getSystemTime());
+	}
+
+	public void close()
+	{
+		if (pending.isEmpty()) return;
+		resolver.cancel(this);
+		pending.clear();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "DnsPrefetcher max-pending="+maxpending+(destcache == null ? " - no destination cache" : "");
+	}
+}
@@ -39,13 +39,16 @@ import com.grey.mailismus.mta.Protocol;
 import com.grey.mailismus.mta.queue.Cache;
 import com.grey.mailismus.mta.queue.MessageRecip;
 import com.grey.mailismus.mta.queue.QueueManager;
+import com.grey.mailismus.mta.queue.QueueWakeup;
 import com.grey.mailismus.ms.MessageStore;
 import com.grey.mailismus.nafman.Loader;
 
 public class Forwarder
 	implements Delivery.Controller,
 		TimerNAF.Handler,
-		NafManCommand.Handler
+		NafManCommand.Handler,
+		QueueWakeup.Handler,
+		LocalDelivery.Handler
 {
 	public interface BatchCallback {
 		void batchCompleted(int qsize, Delivery.Stats stats);
@@ -76,9 +79,26 @@ public class Forwarder
 		}
 	}
 
+	// An immutable copy of a shard's openStats, which it publishes for the primary shard to report
+	private static final class ShardStats {
+		final int conncnt;
+		final int sendermsgcnt;
+		final int remotecnt;
+		final int remotefailcnt;
+		ShardStats(Delivery.Stats stats) {
+			conncnt = stats.conncnt;
+			sendermsgcnt = stats.sendermsgcnt;
+			remotecnt = stats.remotecnt;
+			remotefailcnt = stats.remotefailcnt;
+		}
+	}
+
 	private static final boolean CHECK_OFFLINE = SysProps.get("grey.mta.smtpclient.offlinecheck", false);
 	private static final int TMRTYPE_QPOLL = 1;
 	private static final int TMRTYPE_KILLSENDERS = 2;
+	private static final int TMRTYPE_POOL = 3;
+
+	private static final int MAX_COUNTERS_TARGETS = 25; //max number of adaptive connection limits to list in NAFMAN COUNTERS
 
 	// The rule of thumb here is that we should not spend more than 2 minutes on each batch of cached messages we load from the
 	// queue, before flushing the results back to the queue.
@@ -98,6 +118,7 @@ public class Forwarder
 	private final long interval_low;
 	private final long interval_high;
 	private final long interval_err;
+	private final boolean streaming; //cache is continuously drained and topped up, rather than processed in batches
 
 	private final Dispatcher dsptch;
 	private final QueueManager qmgr;
@@ -109,8 +130,14 @@ public class Forwarder
 	private final EventListenerNAF sendersEventListener;
 	private final BatchCallback batchCallback;
 	private final Cache qcache;
+	private final QueueWakeup wakeup; //null if disabled, in which case we rely purely on polling
 	private final ObjectWell<Delivery.MessageSender> sparesenders;
 	private final HashedSet<Delivery.MessageSender> activesenders = new HashedSet<>();
+	private final ConnectionPool connpool; //idle connections which are kept open for reuse - null if pooling is disabled
+	private final DestinationIndex destindex = new DestinationIndex(); //groups the cached recipients by destination
+	private final DnsPrefetcher prefetcher; //null if disabled
+	private final java.util.function.Function<MessageRecip, Relay> router = this::getRoute;
+	private final LocalDelivery localdelivery; //delivers to the Message-Store in worker threads - null means do it synchronously
 
 	// This maps connection targets (ie. SMTP servers) to the number of simultaneous connections we currently have to them.
 	// The map values can be of type ByteChars (destination domain) or Relay.
@@ -118,12 +145,35 @@ public class Forwarder
 	// treat it as as one target, and limit the total connections to it.
 	private final HashedMapIntValue<Object> active_serverconns;
 
+	// If this is non-null, it overrides max_serverconns with an adaptive limit per target, with max_serverconns as the ceiling
+	private final ConcurrencyLimiter limiter;
+
+	// If this is non-null, it defers the recipients of destination domains which have been persistently failing
+	private final CircuitBreaker breaker;
+
+	// In sharded mode, each destination domain belongs to just one shard, so the above map still enforces max_serverconns for
+	// domains, but the same relay can be used by all the shards, so their connections to relays are counted in this shared map.
+	// It is keyed on the relay's string form, as each shard has its own Routing instance.
+	private final java.util.concurrent.ConcurrentHashMap<String, java.util.concurrent.atomic.AtomicInteger> shared_relayconns;
+	private final String shardlbl; //null if not sharded
+	private final List<Forwarder> shards = new ArrayList<>(); //the other shards, as seen by the primary one
+
+	// The primary shard reports the other shards' counters from its own Dispatcher thread, so each shard publishes copies of
+	// them for it to read, rather than exposing the live fields which only its own thread may touch. The stats are copied at
+	// the end of each batch (when openStats gets updated) and the sender count whenever it changes.
+	private volatile ShardStats publishedStats;
+	private volatile int publishedSenders;
+
 	private TimerNAF tmr_qpoll;
 	private TimerNAF tmr_killsenders;
+	private TimerNAF tmr_pool;
 	private boolean has_stopped;
 	private boolean inShutdown;
 	private boolean inScan;
-	private boolean sendDeferred;
+	private volatile boolean sendDeferred; //can be set by the primary shard's Dispatcher
+	private long stream_nextload; //in streaming mode, we don't poll the queue again before this time if it was empty
+	private long last_poll; //time at which we last scanned the queue
+	private boolean wakeup_due; //a wakeup has already brought the next poll forward
 
 	// batchStats is logged and reset at the end of each batch, while openStats is accumulated for an open-ended period,
 	// until retrieved and reset by the NAFMAN COUNTERS command (and unlike the running totals below, it is only updated
@@ -146,6 +196,8 @@ public class Forwarder
 	//pre-allocated merely for efficiency
 	private final EmailAddress tmpemaddr = new EmailAddress();
 	private final StringBuilder tmpsb = new StringBuilder();
+	private final List<Delivery.MessageSender> tmpsenders = new ArrayList<>();
+	private final List<Delivery.MessageSender> tmpsenders2 = new ArrayList<>();
 
 	@Override public Dispatcher getDispatcher() {return dsptch;}
 	@Override public QueueManager getQueue() {return qmgr;}
@@ -156,6 +208,8 @@ public class Forwarder
 	// these counts should give the same result
 	public int activeSendersCount() {return activesenders.size();}
 	public int activeConnectionsCount() {return sharedFields.getActiveServerConnections();}
+	public int idleConnectionsCount() {return (connpool == null ? 0 : connpool.size());}
+	public int localDeliveriesCount() {return (localdelivery == null ? 0 : localdelivery.inFlight());}
 
 	public Forwarder(Dispatcher d, MTA_Task task, XmlConfig cfg, EventListenerNAF evtl, BatchCallback bcb) throws IOException, GeneralSecurityException {
 		this(d, cfg, task.getAppConfig(), task.getQueue(), task.getMS(), evtl, null, bcb, task.getResolverDNS());
@@ -172,7 +226,8 @@ public class Forwarder
 		eventListener = evtl;
 		batchCallback = bcb;
 		Logger log = dsptch.getLogger();
-		audit = Audit.create("MTA-Delivery", "audit", dsptch, cfg);
+		shardlbl = (qmgr.partitionCount() > 1 ? "shard"+qmgr.partitionID() : null);
+		audit = Audit.create("MTA-Delivery", "audit", dsptch, cfg, shardlbl);
 		XmlConfig relaycfg = cfg.getSection("relays");
 		routing = new Routing(relaycfg, dsptch.getApplicationContext().getConfig(), log);
 
@@ -186,6 +241,12 @@ public class Forwarder
 		delay_start = cfg.getTime("delay_start", interval_high);
 		max_conntime = cfg.getTime("maxconntime", TimeOps.parseMilliTime("2m"));
 		max_senderlife = cfg.getTime("maxsenderlife", TimeOps.parseMilliTime("4m"));
+		int poolsize = cfg.getInt("poolsize", false, 0);
+		long pool_idletime = cfg.getTime("pool_idletime", TimeOps.parseMilliTime("1m"));
+		long pool_keepalive = Math.max(TimeOps.MSECS_PER_SECOND, cfg.getTime("pool_keepalive", TimeOps.parseMilliTime("30s")));
+		connpool = (poolsize == 0 ? null : new ConnectionPool(poolsize, pool_idletime, max_conntime, pool_keepalive));
+		int localthreads = (ms == null ? 0 : cfg.getInt("localthreads", false, 2));
+		localdelivery = (localthreads == 0 ? null : new LocalDelivery(dsptch, ms, localthreads, this));
 
 		if (routing.modeSlaveRelay()) {
 			// We will only ever connect to a single destination, so "maxconnections" and "maxserverconnections" collapse into the same quantity.
@@ -198,8 +259,13 @@ public class Forwarder
 		}
 		max_msgrecips = cfg.getInt("maxrecips", false, 50); //well within RFC-5321 server-requirement of 100
 		max_connmsgs = cfg.getInt("maxmessages", false, _max_connmsgs);
-		max_simulconns = cfg.getInt("maxconnections", false, _max_simulconns);
-		max_serverconns = Math.min(max_simulconns, _max_serverconns);
+		int simulconns = cfg.getInt("maxconnections", false, _max_simulconns);
+		max_serverconns = Math.min(simulconns, _max_serverconns);
+		if (shardlbl != null && simulconns != 0) {
+			//the overall limit is divided between the shards
+			simulconns = (simulconns + qmgr.partitionCount() - 1) / qmgr.partitionCount();
+		}
+		max_simulconns = simulconns;
 
 		// Some msgs will have multiple recips, and some domains will have multiple messages that can be batched into one connection,
 		// so the cache size should be a multiple of the max connections. We also need to beware of loading a huge cache which we end up
@@ -210,31 +276,69 @@ public class Forwarder
 			if (cap_qcache < 2500) cap_qcache = 2500;
 		}
 		cap_qcache = (int)cfg.getSize("queuecache", cap_qcache);
-		qcache = qmgr.initCache(cap_qcache);
+		streaming = cfg.getBool("streaming", false);
+		qcache = (streaming ? qmgr.initStreamingCache(cap_qcache) : qmgr.initCache(cap_qcache));
 		batchStats = new Delivery.Stats(dsptch);
 		openStats = new Delivery.Stats(dsptch);
+		boolean wakeup_watch = cfg.getBool("wakeup_watch", false);
+		wakeup = (cfg.getBool("wakeup", true) ? new QueueWakeup(qmgr, QueueWakeup.EVENT_INCOMING, wakeup_watch, this) : null);
 
 		sendersEventListener = new SenderReaper(this);
 		if (senderFactory == null) {
 			XmlConfig smtpcfg = cfg.getSection("client");
-			sharedFields = ClientConfiguration.createSharedFields(smtpcfg, this, dnsResolver, appConfig, max_serverconns);
+			sharedFields = ClientConfiguration.createSharedFields(smtpcfg, this, dnsResolver, appConfig, max_serverconns, shardlbl);
 			senderFactory = new ClientFactory(sharedFields);
 		} else {
 			// sender-factory is only supplied in some test modes, never in production mode
 			sharedFields = null;
 		}
 		sparesenders = new ObjectWell<>(senderFactory, "SmtpFwd");
+		int prefetch = cfg.getInt("dns_prefetch", false, 100);
+		if (prefetch != 0 && sharedFields != null && !routing.modeSlaveRelay()) {
+			prefetcher = new DnsPrefetcher(dsptch, sharedFields.getDnsResolver(), sharedFields.getDestinationCache(), prefetch);
+		} else {
+			prefetcher = null;
+		}
 		active_serverconns = (max_serverconns == 0 ? null : new HashedMapIntValue<>());
+		if (max_serverconns != 0 && cfg.getBool("adaptiveconnections", false)) {
+			limiter = new ConcurrencyLimiter(cfg.getInt("minserverconnections", false, 2), max_serverconns,
+					cfg.getInt("initserverconnections", false, 10), cfg.getInt("latencyfactor", false, 3));
+		} else {
+			limiter = null;
+		}
+		int breaker_failures = cfg.getInt("breaker_failures", false, 0);
+		if (breaker_failures != 0 && !routing.modeSlaveRelay()) {
+			breaker = new CircuitBreaker(breaker_failures, cfg.getTime("breaker_opentime", TimeOps.parseMilliTime("5m")),
+					cfg.getTime("breaker_maxtime", TimeOps.parseMilliTime("1h")), log);
+		} else {
+			breaker = null;
+		}
+		if (shardlbl == null || max_serverconns == 0) {
+			shared_relayconns = null;
+		} else {
+			shared_relayconns = dsptch.getApplicationContext().getNamedItem(Forwarder.class.getName()+"-relayconns",
+					() -> new java.util.concurrent.ConcurrentHashMap<>());
+		}
 
+		if (shardlbl != null) log.info("SMTP-Delivery: shard="+qmgr.partitionID()+"/"+qmgr.partitionCount());
 		log.info("SMTP-Delivery: slave-relay mode="+routing.modeSlaveRelay());
-		log.info("SMTP-Delivery: queue-cache="+qcache.capacity()+"/"+cap_qcache);
+		log.info("SMTP-Delivery: queue-cache="+qcache.capacity()+"/"+cap_qcache+(streaming ? " - streaming mode" : ""));
 		log.info("SMTP-Delivery: maxconns="+max_simulconns+"; maxconns-per-server="+max_serverconns);
+		if (limiter != null) log.info("SMTP-Delivery: adaptive connections - "+limiter);
+		if (breaker != null) log.info("SMTP-Delivery: "+breaker);
+		if (localdelivery != null) log.info("SMTP-Delivery: "+localdelivery);
+		if (prefetcher != null) log.info("SMTP-Delivery: "+prefetcher);
 		log.info("SMTP-Delivery: maxmessages-per-conn="+max_connmsgs+"; maxrecips-per-msg="+max_msgrecips
 				+"; maxconntime="+TimeOps.expandMilliTime(max_conntime));
+		if (connpool != null) {
+			log.info("SMTP-Delivery: connection pool="+poolsize+" - idletime="+TimeOps.expandMilliTime(pool_idletime)
+					+", keepalive="+TimeOps.expandMilliTime(pool_keepalive));
+		}
 		log.info("SMTP-Delivery Intervals: Low="+TimeOps.expandMilliTime(interval_low)
 				+", High="+TimeOps.expandMilliTime(interval_high)
 				+", Error="+TimeOps.expandMilliTime(interval_err)
-				+" - Start-Delay="+TimeOps.expandMilliTime(delay_start));
+				+" - Start-Delay="+TimeOps.expandMilliTime(delay_start)
+				+(wakeup == null ? " - wakeup=N" : " - wakeup=Y"));
 
 		if (dsptch.getNafManAgent() != null) {
 			NafManRegistry reg = dsptch.getNafManAgent().getRegistry();
@@ -243,6 +347,12 @@ public class Forwarder
 		}
 	}
 
+	// Called on the primary shard, to register the others
+	public void addShard(Forwarder shard)
+	{
+		shards.add(shard);
+	}
+
 	public void start()
 	{
 		dsptch.getLogger().info("SMTP-Delivery: Starting");
@@ -264,9 +374,14 @@ public class Forwarder
 			tmr_killsenders.cancel();
 			tmr_killsenders = null;
 		}
+		if (tmr_pool != null) {
+			tmr_pool.cancel();
+			tmr_pool = null;
+		}
 		stopSenders();
+		closeIdleConnections();
 
-		if (activeSendersCount() == 0) {
+		if (activeSendersCount() == 0 && idleConnectionsCount() == 0 && localDeliveriesCount() == 0) {
 			stopped(false);
 			done = true;
 		}
@@ -283,15 +398,38 @@ public class Forwarder
 		}
 	}
 
+	private void closeIdleConnections()
+	{
+		if (idleConnectionsCount() == 0) return;
+		List<Delivery.MessageSender> lst = new ArrayList<>();
+		connpool.getIdle(lst);
+		for (int idx = 0; idx != lst.size(); idx++) {
+			Delivery.MessageSender sender = lst.get(idx);
+			if (sender.stop()) senderCompleted(sender, true);
+		}
+	}
+
 	private void stopped(boolean notify)
 	{
 		if (has_stopped) return;
 		dsptch.getLogger().info("SMTP-Delivery: Shutdown - notify="+notify);
+		if (streaming && qcache.size() != 0) {
+			//return the whole cache to the queue, which will restore any recipients that are still pending
+			try {
+				flushStream(true);
+			} catch (Throwable ex) {
+				dsptch.getLogger().log(LEVEL.ERR, ex, true, "SMTP-Delivery: Final Queue-Flush failed");
+			}
+		}
 		Transcript transcript = (sharedFields == null ? null : sharedFields.getTranscript());
 		if (transcript != null) transcript.close(dsptch.getSystemTime());
+		if (wakeup != null) wakeup.close();
+		if (localdelivery != null) localdelivery.shutdown();
+		if (prefetcher != null) prefetcher.close();
 		qmgr.stop();
 		if (audit != null) audit.close();
 		if (active_serverconns != null) active_serverconns.clear();
+		destindex.invalidate();
 		qcache.clear();
 		has_stopped = true;
 		if (notify && eventListener != null) eventListener.eventIndication(EventListenerNAF.EVENTID_ENTITY_STOPPED, this, null);
@@ -304,6 +442,8 @@ public class Forwarder
 		{
 		case TMRTYPE_QPOLL:
 			tmr_qpoll = null;
+			wakeup_due = false;
+			last_poll = dsptch.getRealTime();
 			long interval = 0;
 			try {
 				if (!processQueue()) interval = interval_high; //no pending recips
@@ -323,12 +463,29 @@ public class Forwarder
 			stopSenders();
 			break;
 
+		case TMRTYPE_POOL:
+			tmr_pool = null;
+			sweepConnectionPool();
+			break;
+
 		default:
 			dsptch.getLogger().error("SMTP-Delivery: Unexpected timer-type - "+tmr);
 			break;
 		}
 	}
 
+	// New recipients have been queued, so rather than wait for the next scheduled poll, bring it forward to the earliest time
+	// that interval_low allows. This only applies while we're idle (ie. the timer is pending), as in batch mode the queue will
+	// be rescanned as soon as the current batch completes anyway, and in streaming mode as soon as a connection frees up.
+	@Override
+	public void queueWakeup(QueueWakeup w)
+	{
+		if (tmr_qpoll == null || wakeup_due || inShutdown) return;
+		stream_nextload = 0;
+		wakeup_due = true;
+		tmr_qpoll.reset(Math.max(0, last_poll + interval_low - dsptch.getRealTime()));
+	}
+
 	// Not much we can do - very unlikely error however, as our NAF entry point (timerEventIndication) doesn't even throw.
 	@Override
 	public void eventError(TimerNAF tmr, Dispatcher d, Throwable ex)
@@ -346,10 +503,12 @@ public class Forwarder
 				return false;
 			}
 		}
+		if (streaming) return streamQueue();
 
 		// load pending messages from queue
 		batchStats.reset();
-		if (active_serverconns != null) active_serverconns.clear();
+		resetServerConnections();
+		destindex.invalidate();
 		qcache.clear();
 		qmgr.getMessages(qcache, sendDeferred);
 		sendDeferred = false;
@@ -381,12 +540,13 @@ public class Forwarder
 		} finally {
 			inScan = false;
 		}
+		prefetchDestinations(); //for those destinations that are still waiting for a connection
 		long time2 = dsptch.getRealTime();
 		long launchtime = time2 - time1;
 		total_launchtime += launchtime;
 		total_sendtime -= (time2 - batchStats.start); //because we will later add the time from batchStats.start onwards
 
-		if (activeSendersCount() == 0) {
+		if (activeSendersCount() == 0 && localDeliveriesCount() == 0) {
 			cacheProcessed();
 		} else {
 			if (dsptch.getLogger().isActive(lvl)) {
@@ -395,6 +555,7 @@ public class Forwarder
 				if (activeSendersCount() != sendercnt) tmpsb.append("/active=").append(activeSendersCount());
 				tmpsb.append(" - pending-recips=").append(pending_recips);
 				if (ms != null) tmpsb.append(", local=").append(batchStats.localcnt);
+				if (localDeliveriesCount() != 0) tmpsb.append(" (inflight=").append(localDeliveriesCount()).append(')');
 				if (batchStats.localfailcnt != 0) tmpsb.append(" (fail=").append(batchStats.localfailcnt).append(')');
 				tmpsb.append(" (launchtime=").append(launchtime).append("ms)");
 				dsptch.getLogger().log(lvl, tmpsb);
@@ -404,89 +565,270 @@ public class Forwarder
 		return true;
 	}
 
-	private void processCache()
+	// In streaming mode, each poll writes back the recipients which have completed since the last one, then tops up the cache
+	// if there is spare connection capacity, and launches senders for any pending recipients. So unlike batch mode, there is
+	// never any need to wait for all the senders to finish, and a slow remote server only holds up its own recipients.
+	private boolean streamQueue() throws IOException
 	{
-		boolean local_done = (ms == null);
-		int qlimit = qcache.size();
+		long time1 = dsptch.getRealTime();
+		killExpiredSenders(time1);
+		flushStream(false);
+
+		int prevsize = qcache.size();
+		boolean spare_conns = (max_simulconns == 0 || activeSendersCount() < max_simulconns);
+		int loadcnt = 0;
+		if (spare_conns && prevsize != qcache.capacity() && (time1 >= stream_nextload || sendDeferred)) {
+			if (prevsize == 0) {
+				qmgr.getMessages(qcache, sendDeferred);
+			} else {
+				qmgr.topupMessages(qcache, sendDeferred);
+			}
+			sendDeferred = false;
+			loadcnt = qcache.size() - prevsize;
+			long time2 = dsptch.getRealTime();
+			total_qtime += time2 - time1;
+			if (loadcnt == 0) {
+				stream_nextload = time2 + interval_high; //no point rescanning the queue till then
+			} else {
+				stream_nextload = 0;
+				pending_recips += loadcnt;
+				batchcnt++;
+				qcache.sort();
+				destindex.invalidate();
+			}
+		}
 
-		for (int qslot = 0; qslot != qlimit; qslot++) {
-			if (pending_recips == 0) break;
-			if (!local_done) {
+		if (pending_recips != 0 && spare_conns) {
+			long time2 = dsptch.getRealTime();
+			int prevsenders = activeSendersCount();
+			try {
+				inScan = true;
+				processCache();
+			} finally {
+				inScan = false;
+			}
+			total_launchtime += dsptch.getRealTime() - time2;
+			LEVEL lvl = LEVEL.TRC;
+			if (dsptch.getLogger().isActive(lvl)) {
+				tmpsb.setLength(0);
+				tmpsb.append("SMTP-Delivery: Streamed recipients=").append(loadcnt).append('/').append(qcache.size());
+				tmpsb.append(" - launched senders=").append(activeSendersCount() - prevsenders);
+				tmpsb.append("/active=").append(activeSendersCount()).append(", pending-recips=").append(pending_recips);
+				if (batchStats.localcnt != 0) tmpsb.append(", local=").append(batchStats.localcnt);
+				dsptch.getLogger().log(lvl, tmpsb);
+			}
+		}
+		if (loadcnt != 0) prefetchDestinations();
+		// synchronous local deliveries are already complete, and the others get flushed by a later poll
+		if (activeSendersCount() == 0) flushStream(false);
+		tmr_qpoll = dsptch.setTimer(qcache.size() == 0 ? interval_high : interval_low, TMRTYPE_QPOLL, this);
+		return true;
+	}
+
+	// Writes back the completed recipients in streaming mode, or the whole cache if the 'all' arg is true.
+	// Each flush is reported as a batch, in terms of the stats and the callback.
+	private void flushStream(boolean all) throws IOException
+	{
+		long time1 = dsptch.getRealTime();
+		int qsize = qcache.size();
+		int cnt = 0;
+		try {
+			if (all) {
+				qmgr.messagesProcessed(qcache);
+				pending_recips = 0;
+				cnt = qsize;
+			} else {
+				cnt = qmgr.flushCompleted(qcache);
+			}
+		} finally {
+			// the flushed entries will be recycled, so the index can no longer refer to them
+			if (all || cnt != 0 || qcache.size() != qsize) destindex.invalidate();
+			total_qtime += dsptch.getRealTime() - time1;
+		}
+		if (cnt == 0) return;
+		LEVEL lvl = LEVEL.TRC;
+		if (dsptch.getLogger().isActive(lvl)) {
+			tmpsb.setLength(0);
+			tmpsb.append("SMTP-Delivery: Flushed completed recips=").append(cnt).append(" (cache=").append(qcache.size());
+			tmpsb.append(", qtime=").append(dsptch.getRealTime() - time1).append("ms)");
+			tmpsb.append(" with SMTP recips=").append(batchStats.remotecnt);
+			if (batchStats.remotefailcnt != 0) tmpsb.append(" (fail=").append(batchStats.remotefailcnt).append(')');
+			if (batchStats.localcnt != 0) tmpsb.append(", local=").append(batchStats.localcnt);
+			tmpsb.append(" - active-conns=").append(activeSendersCount()).append(", pending-recips=").append(pending_recips);
+			dsptch.getLogger().log(lvl, tmpsb);
+		}
+		accumulateStats();
+		if (batchCallback != null) batchCallback.batchCompleted(cnt, batchStats);
+		batchStats.reset();
+	}
+
+	// max_senderlife applies to each sender individually in streaming mode, since there are no batches
+	private void killExpiredSenders(long systime)
+	{
+		if (activeSendersCount() == 0) return;
+		tmpsenders.clear();
+		tmpsenders.addAll(activesenders); //loop on copy of set to avoid ConcurrentModification from callbacks
+		for (int idx = 0; idx != tmpsenders.size(); idx++) {
+			Delivery.MessageSender sender = tmpsenders.get(idx);
+			if (systime - sender.getMessageParams().launchTime() < max_senderlife) continue;
+			dsptch.getLogger().info("SMTP-Delivery: Killing apparently hung Sender="+sender.getLogID()
+					+" - remote="+getPeerText(sender.getMessageParams()));
+			if (sender.stop()) senderCompleted(sender, true);
+		}
+		tmpsenders.clear();
+	}
+
+	private void processCache()
+	{
+		if (ms != null) {
+			// Local recipients (null domain) are sorted to the top of the cache
+			int qlimit = qcache.size();
+			for (int qslot = 0; qslot != qlimit; qslot++) {
+				if (pending_recips == 0) break;
 				MessageRecip recip = qcache.get(qslot);
-				if (recip.domain_to == null) {
-					// local recipient
-					if (recip.qstatus != MessageRecip.STATUS_READY) continue; //probably a redundant check
-					Path fh = qmgr.getMessage(recip.spid, recip.qid);
-					try {
-						ms.deliver(recip.mailbox_to, fh.toFile());
-						if (audit != null) audit.log("Delivered", recip, false, dsptch.getSystemTime(), qmgr.externalSPID(recip.spid));
-						recip.smtp_status = Protocol.REPLYCODE_OK;
-					} catch (Exception ex) {
-						dsptch.getLogger().log(LEVEL.TRC, ex, false, "SMTP-Delivery: Bouncing message for user="+recip.mailbox_to);
-						recip.smtp_status = Protocol.REPLYCODE_PERMERR_MISC;
-						batchStats.localfailcnt++;
-					}
-					recip.qstatus = MessageRecip.STATUS_DONE;
-					pending_recips--;
-					batchStats.localcnt++;
-					total_localcnt++;
+				if (recip.domain_to != null) break; //we've now seen all the local recipients
+				if (recip.qstatus != MessageRecip.STATUS_READY) continue; //also skips those already in progress
+				Path fh = qmgr.getMessage(recip.spid, recip.qid);
+				pending_recips--;
+				if (localdelivery != null) {
+					localdelivery.deliver(recip, fh.toFile());
 					continue;
 				}
+				Exception error = null;
+				try {
+					ms.deliver(recip.mailbox_to, fh.toFile());
+				} catch (Exception ex) {
+					error = ex;
+				}
+				recordLocalDelivery(recip, error);
 			}
-			// Current message is for a remote recipient.
-			// Local recipients (null domain) are sorted to the top of the cache, so we've already seen them all.
-			local_done = true;
-			if (max_simulconns != 0 && activeSendersCount() == max_simulconns) break; //no more connections allowed
-			Delivery.MessageSender sender = populateSender(null, qslot, qlimit);
-			if (sender == null) break;
-			startSender(sender);
+		}
+
+		// Launch senders for the remote recipients, one destination at a time, in the order in which they were first
+		// encountered in the cache (so roughly oldest first). Each sender starts with one message, and is then refilled
+		// with the destination's subsequent messages by messageCompleted().
+		DestinationIndex index = getDestinationIndex();
+		for (int idx = 0; idx != index.sliceCount(); idx++) {
+			DestinationIndex.Slice slice = index.getSlice(idx);
+			while (pending_recips != 0) {
+				if (max_simulconns != 0 && activeSendersCount() == max_simulconns) return; //no more connections allowed
+				Delivery.MessageSender sender = populateSender(null, slice);
+				if (sender == null) break; //destination has nothing left to send, or no more connections allowed to it
+				int pending = pending_recips;
+				startSender(sender);
+				if (pending_recips > pending) break; //it failed synchronously, so don't keep relaunching its recipients
+			}
+			if (pending_recips == 0) break;
 		}
 	}
 
-	// If dest_domain is passed in, then we're only interested in cache entries that match that.
-	private Delivery.MessageSender populateSender(Delivery.MessageSender sender, int qslot, int limit)
+	// Called in the Dispatcher thread when an asynchronous local delivery has completed
+	@Override
+	public void localDeliveryCompleted(MessageRecip recip, Throwable ex)
 	{
-		Delivery.MessageParams msgparams = null;
-		Relay sender_relay = null;
-		ByteChars dest_domain = null;
-		if (sender != null) {
-			msgparams = sender.getMessageParams();
-			sender_relay = msgparams.getRelay();
-			dest_domain = msgparams.getDestination();
+		recordLocalDelivery(recip, ex);
+		senderReleased(); //completes the batch if this was the last thing it was waiting for
+	}
+
+	private void recordLocalDelivery(MessageRecip recip, Throwable ex)
+	{
+		if (ex == null) {
+			if (audit != null) audit.log("Delivered", recip, false, dsptch.getSystemTime(), qmgr.externalSPID(recip.spid));
+			recip.smtp_status = Protocol.REPLYCODE_OK;
+		} else {
+			dsptch.getLogger().log(LEVEL.TRC, ex, false, "SMTP-Delivery: Bouncing message for user="+recip.mailbox_to);
+			recip.smtp_status = Protocol.REPLYCODE_PERMERR_MISC;
+			batchStats.localfailcnt++;
 		}
+		recip.qstatus = MessageRecip.STATUS_DONE;
+		batchStats.localcnt++;
+		total_localcnt++;
+	}
 
-		int spid = 0;
-		while (qslot != limit) {
-			if (pending_recips == 0) break;
-			MessageRecip recip = qcache.get(qslot++);
-			if (spid != 0 && recip.spid != spid) break; //no entries left for this message
-			if (recip.qstatus != MessageRecip.STATUS_READY) continue;
-			Relay recip_relay = getRoute(recip);
-			if (sender != null) {
-				//these conditions will be met in slave-relay mode, as sender_relay non-null and recip_relay is same
-				if (sender_relay != recip_relay) continue;
-				if (sender_relay == null) {
-					if (!dest_domain.equals(recip.domain_to)) continue; //dest_domain is guaranteed non-null here
+	// Looks up the destination domains of a newly loaded batch in advance, so that the Senders which are held back by the
+	// connection limits don't have to wait for DNS once they are launched. This is called after the initial Senders have
+	// been launched, so it skips the destinations which already have a connection or have nothing left waiting, as well as
+	// those which are routed via a relay or whose circuit breaker is open.
+	private void prefetchDestinations()
+	{
+		if (prefetcher == null) return;
+		DestinationIndex index = getDestinationIndex();
+		long systime = dsptch.getRealTime();
+		for (int idx = 0; idx != index.sliceCount(); idx++) {
+			DestinationIndex.Slice slice = index.getSlice(idx);
+			if (slice.relay != null || index.nextPending(slice) == -1) continue;
+			ByteChars domain = (ByteChars)slice.key;
+			if (breaker != null && breaker.getDeferral(domain, systime) != 0) continue;
+			if (active_serverconns != null && active_serverconns.get(domain) != 0) continue; //already being looked up
+			if (!prefetcher.prefetch(domain)) break;
+		}
+	}
+
+	// The index is rebuilt on demand after the cache has been loaded or flushed
+	private DestinationIndex getDestinationIndex()
+	{
+		if (!destindex.isValid()) destindex.build(qcache, router);
+		return destindex;
+	}
+
+	// Allocates the next pending message for the given destination to the sender, ie. its pending recipients for that
+	// message, up to max_msgrecips. If sender is null, a new one is allocated (or an idle one is taken from the pool) if
+	// the destination has anything to send and the connection limits allow it.
+	// Returns the sender, which is null if no new one was allocated.
+	private Delivery.MessageSender populateSender(Delivery.MessageSender sender, DestinationIndex.Slice slice)
+	{
+		DestinationIndex index = getDestinationIndex();
+		int pos = index.nextPending(slice);
+		if (pos == -1) return sender;
+		MessageRecip recip = index.get(pos);
+		Relay recip_relay = slice.relay;
+		Delivery.MessageParams msgparams;
+
+		if (sender == null) {
+			Object key = slice.key;
+			if (breaker != null && recip_relay == null) {
+				short status = breaker.getDeferral(recip.domain_to, dsptch.getRealTime());
+				if (status != 0) {
+					// destination is down, so defer all its recipients without making any attempt to connect
+					int cnt = failDestination(recip.domain_to, status);
+					breaker.deferred(cnt);
+					LEVEL lvl = LEVEL.TRC;
+					if (dsptch.getLogger().isActive(lvl)) {
+						tmpsb.setLength(0);
+						tmpsb.append("SMTP-Delivery/batch=").append(batchcnt).append(": Circuit breaker deferred recips=").append(cnt);
+						tmpsb.append(" for domain=").append(recip.domain_to).append(" with status=").append(status);
+						dsptch.getLogger().log(lvl, tmpsb);
+					}
+					return null;
 				}
 			}
-
-			//current MessageRecip matches the criteria so allocate to sender - might have to allocate sender too
+			//an idle connection to this target is already included in its connection count
+			sender = (connpool == null ? null : connpool.take(key));
 			if (sender == null) {
 				if (max_serverconns != 0) { //recall that this is zero in slave-relay mode (but not only in that mode)
-					Object key = (recip_relay == null ? recip.domain_to : recip_relay);
 					int cnt = active_serverconns.get(key);
-					if (cnt == max_serverconns) continue; //no more connections allowed to this target
+					int maxcnt = (limiter == null ? max_serverconns : limiter.getLimit(key));
+					if (cnt >= maxcnt) return null; //no more connections allowed to this target
+					if (recip_relay != null && shared_relayconns != null && !acquireRelayConnection(recip_relay, maxcnt)) return null;
 					active_serverconns.put(key, cnt+1);
 				}
-				//null dest_domain means grab every entry for this SPID, else we're tied to initial recipient domain
 				sender = sparesenders.extract(); //extract() won't return null because this ObjectWell is uncapped
-				activesenders.add(sender);
-				sendercnt++;
-				msgparams = sender.getMessageParams().init(recip_relay, recip.domain_to);
-				sender_relay = msgparams.getRelay();
-				dest_domain = msgparams.getDestination();
 			}
-			spid = recip.spid;
+			if (breaker != null && recip_relay == null) breaker.launched(recip.domain_to);
+			activesenders.add(sender);
+			sendersChanged();
+			sendercnt++;
+			msgparams = sender.getMessageParams().init(recip_relay, recip.domain_to, dsptch.getRealTime());
+		} else {
+			msgparams = sender.getMessageParams();
+		}
+
+		// The slice holds the message's recipients for this destination contiguously, but some may already be in progress
+		int spid = recip.spid;
+		while (pos != slice.end) {
+			recip = index.get(pos++);
+			if (recip.spid != spid) break; //no entries left for this message
+			if (recip.qstatus != MessageRecip.STATUS_READY) continue;
 			msgparams.addRecipient(recip);
 			recip.qstatus = MessageRecip.STATUS_BUSY;
 			pending_recips--;
@@ -518,12 +860,16 @@ public class Forwarder
 		msgparams.resetMessage();
 		if (!active || inScan || inShutdown || sender.getDomainError() != 0 || msgparams.messageCount() == max_connmsgs) return;
 
-		if (time1 - batchStats.start > max_conntime) {
+		long conntime = time1 - (streaming ? msgparams.launchTime() : batchStats.start);
+		if (conntime > max_conntime) {
 			//don't refill this Sender
 			dsptch.getLogger().info("SMTP-Delivery/batch="+batchcnt+": Stopping slow Sender at messages="+msgparams.messageCount()
 					+" - remote="+getPeerText(msgparams)+" - "+sender);
 		} else {
-			populateSender(sender, 0, qcache.size());
+			Object key = msgparams.getRelay();
+			if (key == null) key = msgparams.getDestination();
+			DestinationIndex.Slice slice = getDestinationIndex().getSlice(key);
+			if (slice != null) populateSender(sender, slice);
 		}
 		long span = dsptch.getRealTime() - time1;
 		total_launchtime += span;
@@ -534,19 +880,24 @@ public class Forwarder
 	// which clears it. So a non-empty recipient list probably means we have an error condition to report.	
 	public void senderCompleted(Delivery.MessageSender sender, boolean aborted)
 	{
+		ConnectionPool.Entry pooled = (connpool == null ? null : connpool.remove(sender));
+		if (pooled != null && pooled.parked != 0) {
+			idleConnectionClosed(sender, pooled);
+			return;
+		}
 		Delivery.MessageParams msgparams = sender.getMessageParams();
 		if (msgparams.recipCount() != 0) recordMessageResult(sender);
 		activesenders.remove(sender);
+		sendersChanged();
 
-		if (active_serverconns != null) {
-			Object key = msgparams.getRelay();
-			if (key == null) key = msgparams.getDestination();
-			int cnt = active_serverconns.get(key);
-			if (--cnt == 0) {
-				active_serverconns.remove(key);
-			} else {
-				active_serverconns.put(key, cnt);
-			}
+		Object key = msgparams.getRelay();
+		if (key == null) key = msgparams.getDestination();
+		releaseServerConnection(key, msgparams.getRelay());
+		if (limiter != null && key != null) {
+			limiter.connectionCompleted(key, sender.getDomainError(), msgparams.launchTime(), msgparams.messageCount(), dsptch.getRealTime());
+		}
+		if (breaker != null && msgparams.getRelay() == null && msgparams.getDestination() != null) {
+			breaker.connectionCompleted(msgparams.getDestination(), sender.getDomainError(), msgparams.messageCount(), dsptch.getRealTime());
 		}
 
 		LEVEL lvl = LEVEL.TRC2;
@@ -561,13 +912,123 @@ public class Forwarder
 		}
 		msgparams.clear();
 		sparesenders.store(sender);
+		senderReleased();
+	}
+
+	// Called when a sender has finished with its messages, whether it has disconnected or been parked in the connection pool
+	private void senderReleased()
+	{
 		if (inScan) return; //take no further action if within a synchronous callback
 
-		if (activeSendersCount() == 0) {
+		if (streaming) {
+			if (inShutdown) {
+				if (activeSendersCount() == 0 && idleConnectionsCount() == 0 && localDeliveriesCount() == 0) stopped(true);
+			} else if (tmr_qpoll != null && (pending_recips != 0 || dsptch.getRealTime() >= stream_nextload)) {
+				tmr_qpoll.reset(0); //make immediate use of the freed connection
+			}
+			return;
+		}
+
+		if (activeSendersCount() == 0 && localDeliveriesCount() == 0) {
 			cacheProcessed();
 		}
 	}
 
+	// The sender has delivered all its messages and its connection is still open, so we can keep it for reuse. It remains
+	// registered in the per-server connection counts, and is parked in the pool until populateSender() takes it back out
+	// again, or it expires.
+	@Override
+	public boolean senderIdle(Delivery.MessageSender sender)
+	{
+		if (connpool == null || inShutdown || sender.getDomainError() != 0) return false;
+		Delivery.MessageParams msgparams = sender.getMessageParams();
+		if (max_connmsgs != 0 && msgparams.messageCount() >= max_connmsgs) return false;
+		ConnectionPool.Entry pooled = connpool.park(sender, dsptch.getRealTime());
+		if (pooled == null) return false;
+		activesenders.remove(sender);
+		sendersChanged();
+		if (limiter != null) {
+			limiter.connectionCompleted(pooled.key, (short)0, msgparams.launchTime(), msgparams.messageCount(), dsptch.getRealTime());
+		}
+		if (breaker != null && msgparams.getRelay() == null) {
+			breaker.connectionCompleted((ByteChars)pooled.key, (short)0, msgparams.messageCount(), dsptch.getRealTime());
+		}
+
+		Relay relay = msgparams.getRelay();
+		if (active_serverconns != null && relay == null) {
+			// Re-register the domain's connection count under the pool's stable copy of the domain name, as the current key
+			// might be a field of a queue-cache entry, which could be recycled.
+			int cnt = active_serverconns.get(pooled.key);
+			active_serverconns.remove(pooled.key);
+			active_serverconns.put(pooled.key, cnt);
+		}
+		LEVEL lvl = LEVEL.TRC2;
+		if (dsptch.getLogger().isActive(lvl)) {
+			tmpsb.setLength(0);
+			tmpsb.append("SMTP-Delivery/batch=").append(batchcnt).append(": Sender=").append(sender.getLogID());
+			tmpsb.append(" is now idle");
+			if (msgparams.messageCount() != 1) tmpsb.append(" after msgcnt=").append(msgparams.messageCount());
+			tmpsb.append(" - remote=").append(getPeerText(msgparams));
+			tmpsb.append(" - active-conns=").append(activeSendersCount()).append(", idle-conns=").append(connpool.size());
+			dsptch.getLogger().log(lvl, tmpsb);
+		}
+		msgparams.init(relay, relay == null ? (ByteChars)pooled.key : null, msgparams.launchTime());
+		if (tmr_pool == null) tmr_pool = dsptch.setTimer(connpool.keepAliveInterval() / 2, TMRTYPE_POOL, this);
+		senderReleased();
+		return true;
+	}
+
+	// An idle connection has closed, whether because it expired or because the server dropped it
+	private void idleConnectionClosed(Delivery.MessageSender sender, ConnectionPool.Entry pooled)
+	{
+		releaseServerConnection(pooled.key, pooled.key instanceof Relay ? (Relay)pooled.key : null);
+		LEVEL lvl = LEVEL.TRC2;
+		if (dsptch.getLogger().isActive(lvl)) {
+			dsptch.getLogger().log(lvl, "SMTP-Delivery: Idle Sender="+sender.getLogID()+" has closed - remote="
+					+getPeerText(sender.getMessageParams())+" - idle-conns="+connpool.size());
+		}
+		sender.getMessageParams().clear();
+		sparesenders.store(sender);
+		if (inShutdown && activeSendersCount() == 0 && connpool.size() == 0 && localDeliveriesCount() == 0) stopped(true);
+	}
+
+	// Closes the expired idle connections and pings the others
+	private void sweepConnectionPool()
+	{
+		connpool.sweep(dsptch.getRealTime(), tmpsenders, tmpsenders2);
+		for (int idx = 0; idx != tmpsenders2.size(); idx++) {
+			tmpsenders2.get(idx).keepAlive();
+		}
+		for (int idx = 0; idx != tmpsenders.size(); idx++) {
+			Delivery.MessageSender sender = tmpsenders.get(idx);
+			if (sender.stop()) senderCompleted(sender, true);
+		}
+		tmpsenders.clear();
+		tmpsenders2.clear();
+		if (connpool.size() != 0 && !inShutdown) tmr_pool = dsptch.setTimer(connpool.keepAliveInterval() / 2, TMRTYPE_POOL, this);
+	}
+
+	private void releaseServerConnection(Object key, Relay relay)
+	{
+		if (active_serverconns == null) return;
+		int cnt = active_serverconns.get(key);
+		if (--cnt <= 0) {
+			active_serverconns.remove(key);
+		} else {
+			active_serverconns.put(key, cnt);
+		}
+		if (shared_relayconns != null && relay != null) releaseRelayConnection(relay);
+	}
+
+	// The per-server connection counts are reset at the start and end of each batch in batch mode, but any idle connections
+	// in the pool remain open, and so they continue to be counted.
+	private void resetServerConnections()
+	{
+		if (active_serverconns == null) return;
+		active_serverconns.clear();
+		if (connpool != null) connpool.countConnections(active_serverconns);
+	}
+
 	private boolean recordMessageResult(Delivery.MessageSender sender)
 	{
 		Delivery.MessageParams msgparams = sender.getMessageParams();
@@ -585,6 +1046,9 @@ public class Forwarder
 				pending_recips++;
 			}
 		}
+		if (processed_cnt != recipcnt && destindex.isValid()) {
+			destindex.rewind(msgparams.getRelay() == null ? msgparams.getDestination() : msgparams.getRelay());
+		}
 		if (processed_cnt == 0) return false;
 
 		batchStats.remotecnt += processed_cnt;
@@ -633,35 +1097,44 @@ public class Forwarder
 		if (domain_error != 0 && !routing.modeSlaveRelay()) {
 			// Domain-wide error, so apply it to all cache entries for this domain.
 			ByteChars destdomain = msgparams.getDestination(); //will be null if getRelay() non-null
-			int qsize = qcache.size();
-			int orig_pending = pending_recips;
-			for (int qslot = 0; qslot != qsize; qslot++) {
-				MessageRecip recip = qcache.get(qslot);
-				if (recip.qstatus != MessageRecip.STATUS_READY) continue;
-				if (getRoute(recip) != msgparams.getRelay()) continue;
-				if (destdomain == null || !destdomain.equals(recip.domain_to)) continue;
-				recip.qstatus = MessageRecip.STATUS_DONE;
-				recip.smtp_status = domain_error;
-				pending_recips--;
-			}
+			int cnt = (destdomain == null ? 0 : failDestination(destdomain, domain_error));
 			lvl = LEVEL.TRC;
-			if ((pending_recips != orig_pending) && dsptch.getLogger().isActive(lvl)) {
+			if (cnt != 0 && dsptch.getLogger().isActive(lvl)) {
 				tmpsb.setLength(0);
 				tmpsb.append("SMTP-Delivery/batch=").append(batchcnt).append(": Applied error=").append(domain_error);
-				tmpsb.append(" to pending recips=").append(orig_pending - pending_recips).append(" for domain=").append(destdomain);
+				tmpsb.append(" to pending recips=").append(cnt).append(" for domain=").append(destdomain);
 				dsptch.getLogger().log(lvl, tmpsb);
 			}
 		}
 		return true;
 	}
 
+	// Applies the given status to all the pending cache entries for this destination domain (excluding any which are routed
+	// via a relay) and returns the number of entries affected.
+	private int failDestination(ByteChars destdomain, short status)
+	{
+		DestinationIndex index = getDestinationIndex();
+		DestinationIndex.Slice slice = index.getSlice(destdomain);
+		if (slice == null) return 0;
+		int cnt = 0;
+		for (int pos = slice.next; pos != slice.end; pos++) {
+			MessageRecip recip = index.get(pos);
+			if (recip.qstatus != MessageRecip.STATUS_READY) continue;
+			recip.qstatus = MessageRecip.STATUS_DONE;
+			recip.smtp_status = status;
+			cnt++;
+		}
+		pending_recips -= cnt;
+		return cnt;
+	}
+
 	private void cacheProcessed()
 	{
 		if (tmr_killsenders != null) {
 			tmr_killsenders.cancel();
 			tmr_killsenders = null;
 		}
-		if (active_serverconns != null) active_serverconns.clear();
+		resetServerConnections();
 		int qsize = qcache.size();
 		long interval = interval_low;
 		long time1 = dsptch.getRealTime();
@@ -695,19 +1168,47 @@ public class Forwarder
 		TimeOps.expandMilliTime(total_launchtime, tmpsb, false);
 		dsptch.getLogger().info(tmpsb);
 
+		accumulateStats();
+		if (batchCallback != null) batchCallback.batchCompleted(qsize, batchStats);
+
+		if (inShutdown) {
+			if (idleConnectionsCount() == 0) stopped(true);
+			return;
+		}
+		tmr_qpoll = dsptch.setTimer(interval, TMRTYPE_QPOLL, this);
+	}
+
+	private boolean acquireRelayConnection(Relay relay, int maxcnt)
+	{
+		java.util.concurrent.atomic.AtomicInteger cnt = shared_relayconns.computeIfAbsent(relay.toString(),
+				k -> new java.util.concurrent.atomic.AtomicInteger());
+		while (true) {
+			int val = cnt.get();
+			if (val >= maxcnt) return false;
+			if (cnt.compareAndSet(val, val+1)) return true;
+		}
+	}
+
+	private void releaseRelayConnection(Relay relay)
+	{
+		java.util.concurrent.atomic.AtomicInteger cnt = shared_relayconns.get(relay.toString());
+		if (cnt != null) cnt.decrementAndGet();
+	}
+
+	private void accumulateStats()
+	{
 		openStats.localcnt += batchStats.localcnt;
 		openStats.localfailcnt += batchStats.localfailcnt;
 		openStats.remotecnt += batchStats.remotecnt;
 		openStats.remotefailcnt += batchStats.remotefailcnt;
 		openStats.conncnt += batchStats.conncnt;
 		openStats.sendermsgcnt += batchStats.sendermsgcnt;
-		if (batchCallback != null) batchCallback.batchCompleted(qsize, batchStats);
+		if (shardlbl != null) publishedStats = new ShardStats(openStats);
+	}
 
-		if (inShutdown) {
-			stopped(true);
-			return;
-		}
-		tmr_qpoll = dsptch.setTimer(interval, TMRTYPE_QPOLL, this);
+	private void sendersChanged()
+	{
+		if (shardlbl != null) publishedSenders = activesenders.size();
 	}
 
 	private Relay getRoute(MessageRecip mr)
@@ -742,13 +1243,57 @@ public class Forwarder
 			tmpsb.append("<br/>SMTP Messages: ").append(openStats.sendermsgcnt);
 			tmpsb.append("<br/>SMTP Recipients: OK=").append(openStats.remotecnt-openStats.remotefailcnt).append("; Fail=").append(openStats.remotefailcnt);
 			tmpsb.append("<br/>Local Recipients: OK=").append(openStats.localcnt-openStats.localfailcnt).append("; Fail=").append(openStats.localfailcnt);
+			if (localdelivery != null) tmpsb.append("; In Progress=").append(localDeliveriesCount());
 			tmpsb.append("<br/>Current SMTP Connections: ").append(activeConnectionsCount());
 			if (active_serverconns != null) tmpsb.append(" (Peers=").append(activeSendersCount())
 				.append('/').append(active_serverconns == null ? 0 : active_serverconns.size()).append(')');
+			if (connpool != null) tmpsb.append("<br/>Pooled SMTP Connections: Idle=").append(connpool.size())
+				.append("; Reused=").append(connpool.reuseCount());
+			if (limiter != null) {
+				List<ConcurrencyLimiter.Target> adjusted = new ArrayList<>();
+				int cnt = limiter.getAdjusted(adjusted, MAX_COUNTERS_TARGETS);
+				tmpsb.append("<br/>Adaptive Server Limits: Ceiling=").append(limiter.ceiling()).append("; Raised=").append(limiter.raises())
+					.append("; Cut=").append(limiter.cuts()).append("; Adjusted Targets=").append(cnt).append('/').append(limiter.size());
+				for (int idx = 0; idx != adjusted.size(); idx++) {
+					ConcurrencyLimiter.Target t = adjusted.get(idx);
+					tmpsb.append("<br/>&nbsp;&nbsp;&nbsp;&nbsp;").append(t.key instanceof Relay ? ((Relay)t.key).display() : t.key);
+					tmpsb.append(": Connections=").append(active_serverconns.get(t.key)).append("; Limit=").append(t.limit);
+				}
+				if (cnt > adjusted.size()) tmpsb.append("<br/>&nbsp;&nbsp;&nbsp;&nbsp;...");
+			}
+			if (breaker != null) tmpsb.append("<br/>Circuit Breakers: Open=").append(breaker.openCount())
+				.append("; Deferred Recipients=").append(breaker.deferCount());
+			if (prefetcher != null) tmpsb.append("<br/>DNS Prefetch: Lookups=").append(prefetcher.queryCount())
+				.append("; In Progress=").append(prefetcher.pendingCount());
+			DestinationCache destcache = (sharedFields == null ? null : sharedFields.getDestinationCache());
+			if (destcache != null) {
+				tmpsb.append("<br/>Destination Cache: Domains=").append(destcache.size()).append("; Hits=").append(destcache.hits())
+					.append("; Misses=").append(destcache.misses()).append("; Servers=").append(destcache.hostCount())
+					.append(" (Down=").append(destcache.downCount(dsptch.getRealTime())).append("; Skipped=").append(destcache.skips()).append(')');
+			}
+			// The other shards' stats are as they published them at the end of their latest batch (see publishedStats), so
+			// they're consistent with each other but may lag slightly. Note that the above totals are for this shard only.
+			for (int idx = 0; idx != shards.size(); idx++) {
+				Forwarder shard = shards.get(idx);
+				ShardStats stats = shard.publishedStats;
+				tmpsb.append("<br/>Shard ").append(shard.qmgr.partitionID());
+				if (stats == null) {
+					tmpsb.append(": No batches yet");
+				} else {
+					tmpsb.append(": SMTP Connections=").append(stats.conncnt);
+					tmpsb.append(", Messages=").append(stats.sendermsgcnt);
+					tmpsb.append(", Recipients OK=").append(stats.remotecnt-stats.remotefailcnt).append("/Fail=").append(stats.remotefailcnt);
+				}
+				tmpsb.append(", Current Connections=").append(shard.publishedSenders);
+			}
 			if (StringOps.stringAsBool(cmd.getArg(NafManCommand.ATTR_RESET))) openStats.reset();
 		} else if (cmd.getCommandDef().code.equals(Loader.CMD_SENDQ)) {
 			if (tmr_qpoll != null) tmr_qpoll.reset(0);
 			sendDeferred = true;
+			// the other shards will pick this up at their next queue poll
+			for (int idx = 0; idx != shards.size(); idx++) {
+				shards.get(idx).sendDeferred = true;
+			}
 		} else {
 			dsptch.getLogger().error("SMTP-Delivery: Missing case for NAFMAN cmd="+cmd.getCommandDef().code);
 			return null;
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.deliver;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.grey.base.utils.TimeOps;
+import com.grey.naf.reactor.Dispatcher;
+import com.grey.naf.reactor.Producer;
+import com.grey.naf.reactor.TimerNAF;
+import com.grey.mailismus.mta.queue.MessageRecip;
+import com.grey.mailismus.ms.MessageStore;
+import com.grey.logging.Logger.LEVEL;
+
+/**
+ * Delivers the Forwarder's local recipients to the Message-Store in a small pool of worker threads, so that the file I/O
+ * this entails doesn't stall the Forwarder's Dispatcher, and hence all its SMTP connections.
+ * <br>
+ * Each delivery is handed back to the Dispatcher thread via a Producer once it has completed, and the Handler is called
+ * from there, so the Forwarder's own state (the queue cache and its stats) is only ever accessed in its own thread.
+ * The recipient remains in the BUSY state while its delivery is in progress.
+ * <br>
+ * If a worker fails to hand a Job back via the Producer, it parks it in the orphans queue instead, since it can't log
+ * or call the Handler in its own thread. A timer runs while deliveries are in flight, and completes any orphaned Jobs
+ * in the Dispatcher thread, so they are still counted down.
+ */
+class LocalDelivery
+	implements Producer.Consumer<LocalDelivery.Job>, TimerNAF.Handler
+{
+	private static final int TMRTYPE_START = 1;
+	private static final int TMRTYPE_REAP = 2;
+	private static final long REAP_INTERVAL = TimeOps.MSECS_PER_SECOND;
+
+	public interface Handler {
+		// ex is null if the message was successfully delivered
+		void localDeliveryCompleted(MessageRecip recip, Throwable ex);
+	}
+
+	static final class Job implements Runnable {
+		private final MessageStore ms;
+		private final Producer<Job> channel;
+		private final java.util.Queue<Job> orphans;
+		final MessageRecip recip;
+		private final String username; //copied from the recip, as its fields are not ours to read in this thread
+		private final java.io.File msg;
+		private final long systime; //the Dispatcher's clock is not ours to read either
+		Throwable error;
+		String warning;
+		Throwable produce_error;
+
+		Job(MessageStore ms, Producer<Job> channel, java.util.Queue<Job> orphans, MessageRecip recip, java.io.File msg, long systime) {
+			this.ms = ms;
+			this.channel = channel;
+			this.orphans = orphans;
+			this.recip = recip;
+			this.msg = msg;
+			this.systime = systime;
+			username = recip.mailbox_to.toString();
+		}
+
+		@Override
+		public void run() {
+			try {
+				warning = ms.deliver(username, msg, systime);
+			} catch (Throwable ex) {
+				error = ex;
+			}
+			try {
+				channel.produce(this);
+			} catch (Throwable ex) {
+				// leave it to the Dispatcher to notice (see reapOrphans) - the concurrent queue publishes the job's fields
+				produce_error = ex;
+				orphans.add(this);
+			}
+		}
+	}
+
+	private final Dispatcher dsptch;
+	private final MessageStore ms;
+	private final Handler handler;
+	private final ExecutorService threadpool;
+	private final Producer<Job> resultsChannel;
+	private final java.util.Queue<Job> orphans = new java.util.concurrent.ConcurrentLinkedQueue<>();
+	private final int nthreads;
+	private int inflight; //only accessed in the Dispatcher thread
+	private TimerNAF tmr_reap;
+
+	public int inFlight() {return inflight;}
+
+	public LocalDelivery(Dispatcher dsptch, MessageStore ms, int nthreads, Handler handler)
+	{
+		this.dsptch = dsptch;
+		this.ms = ms;
+		this.nthreads = nthreads;
+		this.handler = handler;
+		String name = "LocalDelivery-"+dsptch.getName();
+		resultsChannel = new Producer<>(name, dsptch, this);
+		dsptch.setTimer(0, TMRTYPE_START, this); //need to start the Producer within Dispatcher thread
+
+		AtomicInteger thrdcnt = new AtomicInteger();
+		threadpool = new ThreadPoolExecutor(nthreads, nthreads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), (r) -> {
+			Thread thrd = new Thread(r, name+"-"+thrdcnt.incrementAndGet());
+			thrd.setDaemon(true);
+			return thrd;
+		});
+	}
+
+	// The message file is resolved by the caller, as the QueueManager is not thread-safe
+	public void deliver(MessageRecip recip, java.io.File msg)
+	{
+		Job job = new Job(ms, resultsChannel, orphans, recip, msg, dsptch.getSystemTime());
+		recip.qstatus = MessageRecip.STATUS_BUSY;
+		inflight++;
+		threadpool.execute(job);
+		if (tmr_reap == null) tmr_reap = dsptch.setTimer(REAP_INTERVAL, TMRTYPE_REAP, this);
+	}
+
+	// The Forwarder waits for any in-flight deliveries to complete before calling this
+	public void shutdown()
+	{
+		if (tmr_reap != null) {
+			tmr_reap.cancel();
+			tmr_reap = null;
+		}
+		threadpool.shutdown();
+		resultsChannel.stopDispatcherRunnable();
+	}
+
+	@Override
+	public void producerIndication(Producer<Job> p)
+	{
+		Job job;
+		while ((job = p.consume()) != null) {
+			jobCompleted(job);
+		}
+	}
+
+	@Override
+	public void timerIndication(TimerNAF tmr, Dispatcher d) throws java.io.IOException
+	{
+		switch (tmr.getType())
+		{
+		case TMRTYPE_START:
+			resultsChannel.startDispatcherRunnable();
+			break;
+
+		case TMRTYPE_REAP:
+			tmr_reap = null;
+			reapOrphans();
+			if (inflight != 0 && tmr_reap == null) tmr_reap = dsptch.setTimer(REAP_INTERVAL, TMRTYPE_REAP, this);
+			break;
+
+		default:
+			dsptch.getLogger().error("LocalDelivery: Unexpected timer-type - "+tmr);
+			break;
+		}
+	}
+
+	// Completes the jobs which the workers failed to hand back via the Producer
+	private void reapOrphans()
+	{
+		Job job;
+		while ((job = orphans.poll()) != null) {
+			dsptch.getLogger().log(LEVEL.WARN, job.produce_error, true, "LocalDelivery failed to return result for user="+job.username+" to Producer");
+			jobCompleted(job);
+		}
+	}
+
+	private void jobCompleted(Job job)
+	{
+		inflight--;
+		if (inflight == 0 && tmr_reap != null) {
+			tmr_reap.cancel();
+			tmr_reap = null;
+		}
+		if (job.warning != null) dsptch.getLogger().warn("LocalDelivery: user="+job.username+" - "+job.warning);
+		handler.localDeliveryCompleted(job.recip, job.error);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "LocalDelivery threads="+nthreads;
+	}
+}
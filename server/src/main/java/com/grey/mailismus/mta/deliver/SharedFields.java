@@ -33,6 +33,7 @@ class SharedFields {
 
 	private final Delivery.Controller controller;
 	private final ResolverDNS dnsResolver;
+	private final DestinationCache destCache; //null if disabled
 	private final Transcript transcript;
 	private final BufferGenerator bufferGenerator;
 
@@ -45,12 +46,16 @@ class SharedFields {
 	private final ByteBuffer smtpRequestData = Task.constBuffer(Protocol.CMDREQ_DATA+Protocol.EOL);
 	private final ByteBuffer smtpRequestQuit = Task.constBuffer(Protocol.CMDREQ_QUIT+Protocol.EOL);
 	private final ByteBuffer smtpRequestReset = Task.constBuffer(Protocol.CMDREQ_RESET+Protocol.EOL);
+	private final ByteBuffer smtpRequestNoop = Task.constBuffer(Protocol.CMDREQ_NOOP+Protocol.EOL);
 	private final ByteBuffer smtpRequestEOM = Task.constBuffer(Protocol.EOM);
 	private final ByteBuffer smtpRequestSTLS = Task.constBuffer(Protocol.CMDREQ_STLS+Protocol.EOL);
 	private final Map<String,ByteBuffer> smtpRequestHelo = new HashMap<>(); //keyed on announce-host
 	private final Map<String,ByteBuffer> smtpRequestEhlo = new HashMap<>(); //keyed on announce-host
 
 	private final HashedMapIntInt activeServerConns = new HashedMapIntInt(); //maps server IP to current connection count
+	private final java.util.concurrent.ConcurrentHashMap<Integer, java.util.concurrent.atomic.AtomicInteger> sharedServerConns; //null if not sharded
+
+	static final int INFLATE_BUFSIZ = 16 * 1024;
 
 	// temp work areas pre-allocated for efficiency
 	private final ByteChars pipelineBuffer = new ByteChars(); //used up in one callback, so safe to share
@@ -65,14 +70,17 @@ class SharedFields {
 	private final ByteChars tmpLightBC = new ByteChars(-1); //lightweight object without own storage
 
 	private ByteBuffer tmpNioBuffer; //grows on demand
+	private byte[] inflateBuffer; //only needed for compressed spool files, so allocated on demand
 
 	public SharedFields(Builder bldr) throws GeneralSecurityException {
 		this.controller = bldr.controller;
 		this.dnsResolver = bldr.dnsResolver;
+		this.destCache = bldr.destCache;
 		this.bufferGenerator = bldr.bufferGenerator;
 		this.transcript = bldr.transcript;
 		this.defaultConfig = bldr.defaultConfig;
 		this.remotesConfig = Collections.unmodifiableList(bldr.remoteConfigs);
+		this.sharedServerConns = bldr.sharedServerConns;
 
 		authTypesSupported = new HashMap<>();
 		SaslEntity.MECH[] methods = new SaslEntity.MECH[] {SaslEntity.MECH.PLAIN,
@@ -101,7 +109,18 @@ class SharedFields {
 		int max_serverconns = (conncfg == null ? 0 : conncfg.getMaxServerConnections());
 		if (max_serverconns == 0) return true;
 		int cnt = activeServerConns.get(ip);
-		if (cnt == max_serverconns) return false;
+		if (sharedServerConns == null) {
+			if (cnt == max_serverconns) return false;
+		} else {
+			// the limit applies across all the delivery shards, so it's their combined count that matters
+			java.util.concurrent.atomic.AtomicInteger total = sharedServerConns.computeIfAbsent(ip,
+					k -> new java.util.concurrent.atomic.AtomicInteger());
+			while (true) {
+				int val = total.get();
+				if (val >= max_serverconns) return false;
+				if (total.compareAndSet(val, val+1)) break;
+			}
+		}
 		activeServerConns.put(ip, cnt+1);
 		return true;
 	}
@@ -109,6 +128,10 @@ class SharedFields {
 	public void decrementServerConnections(int ip, ConnectionConfig conncfg) {
 		if (conncfg == null || conncfg.getMaxServerConnections() == 0) return;
 		if (ip == 0) return;
+		if (sharedServerConns != null) {
+			java.util.concurrent.atomic.AtomicInteger total = sharedServerConns.get(ip);
+			if (total != null) total.decrementAndGet();
+		}
 		int cnt = activeServerConns.get(ip);
 		if (--cnt == 0) {
 			activeServerConns.remove(ip);
@@ -144,6 +167,10 @@ class SharedFields {
 		return controller;
 	}
 
+	public DestinationCache getDestinationCache() {
+		return destCache;
+	}
+
 	public ResolverDNS getDnsResolver() {
 		return dnsResolver;
 	}
@@ -184,6 +211,10 @@ class SharedFields {
 		return smtpRequestReset;
 	}
 
+	public ByteBuffer getSmtpRequestNoop() {
+		return smtpRequestNoop;
+	}
+
 	public ByteBuffer getSmtpRequestEOM() {
 		return smtpRequestEOM;
 	}
@@ -232,6 +263,11 @@ class SharedFields {
 		return tmpLightBC;
 	}
 
+	public byte[] getInflateBuffer() {
+		if (inflateBuffer == null) inflateBuffer = new byte[INFLATE_BUFSIZ];
+		return inflateBuffer;
+	}
+
 	public static Builder builder() {
 		return new Builder();
 	}
@@ -240,10 +276,12 @@ class SharedFields {
 	static class Builder {
 		private Delivery.Controller controller;
 		private ResolverDNS dnsResolver;
+		private DestinationCache destCache;
 		private BufferGenerator bufferGenerator;
 		private Transcript transcript;
 		private ConnectionConfig defaultConfig;
 		private final List<ConnectionConfig> remoteConfigs = new ArrayList<>();
+		private java.util.concurrent.ConcurrentHashMap<Integer, java.util.concurrent.atomic.AtomicInteger> sharedServerConns;
 
 		private Builder() {
 		}
@@ -258,6 +296,11 @@ class SharedFields {
 			return this;
 		}
 
+		public Builder withDestinationCache(DestinationCache cache) {
+			this.destCache = cache;
+			return this;
+		}
+
 		public Builder withBufferGenerator(BufferGenerator bufferGenerator) {
 			this.bufferGenerator = bufferGenerator;
 			return this;
@@ -288,6 +331,12 @@ class SharedFields {
 			return this;
 		}
 
+		// Supplied when multiple delivery shards are sending to the same servers, so that they can share the per-server counts
+		public Builder withSharedServerConnections(java.util.concurrent.ConcurrentHashMap<Integer, java.util.concurrent.atomic.AtomicInteger> conns) {
+			this.sharedServerConns = conns;
+			return this;
+		}
+
 		public SharedFields build() throws GeneralSecurityException {
 			return new SharedFields(this);
 		}
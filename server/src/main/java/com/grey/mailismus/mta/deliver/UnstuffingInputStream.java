@@ -0,0 +1,77 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.deliver;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a message body from the spool, which holds it in its dot-stuffed SMTP form (as received via DATA), and returns it
+ * with the stuffing removed, as required by BDAT (RFC-3030).
+ * We only need to look at the first byte of each line, and drop it if it's a dot.
+ */
+final class UnstuffingInputStream
+	extends java.io.FilterInputStream
+{
+	private boolean bol = true; //the next byte is at the start of a line
+
+	public UnstuffingInputStream(InputStream strm) {
+		super(strm);
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b;
+		while ((b = in.read()) != -1) {
+			if (bol && b == '.') {
+				bol = false; //drop the stuffed dot, but not the original one which follows it
+				continue;
+			}
+			bol = (b == '\n');
+			return b;
+		}
+		return -1;
+	}
+
+	@Override
+	public int read(byte[] buf, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		while (true) {
+			int nbytes = in.read(buf, off, len);
+			if (nbytes <= 0) return nbytes;
+			int lmt = off + nbytes;
+			int pos = off;
+			for (int idx = off; idx != lmt; idx++) {
+				byte b = buf[idx];
+				if (bol && b == '.') {
+					bol = false;
+					continue;
+				}
+				bol = (b == '\n');
+				buf[pos++] = b;
+			}
+			if (pos != off) return pos - off;
+			//we only read a stuffed dot, so keep going rather than return zero
+		}
+	}
+
+	// The underlying stream's skip() would bypass the unstuffing
+	@Override
+	public long skip(long n) throws IOException {
+		long total = 0;
+		while (total < n && read() != -1) total++;
+		return total;
+	}
+
+	@Override
+	public int available() {
+		return 0;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+}
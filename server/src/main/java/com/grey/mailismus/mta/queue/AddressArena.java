@@ -0,0 +1,142 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.queue;
+
+import com.grey.base.utils.ByteChars;
+
+/*
+ * Interns the address fields of a columnar Cache into a shared byte arena.
+ * Each distinct value is stored once per batch, and is represented by a lightweight ByteChars view onto the arena, which
+ * is shared by all the MessageRecip entries that have that value (typically the same sender or destination domain).
+ * The arena and the views are recycled on clear(), so a steady-state batch allocates no new objects.
+ * If the arena fills up, a bigger one is allocated but the existing data is not moved, as the views issued so far still
+ * point into the old one - it is simply discarded on the next clear().
+ */
+final class AddressArena
+{
+	private byte[] arena;
+	private int arena_used;
+
+	private final java.util.ArrayList<ByteChars> views = new java.util.ArrayList<ByteChars>();
+	private int viewcnt;
+	private int[] view_hash;
+	private int[] view_slot; //records where each view is in the hash table, so that clear() only has to reset those slots
+	private int[] table; //open-addressed hash table of view indices (plus 1, so that zero means empty)
+	private int tablemask;
+
+	public int size() {return viewcnt;}
+
+	public AddressArena(int maxvalues, int bytes_per_value)
+	{
+		arena = new byte[Math.max(1024, maxvalues * bytes_per_value)];
+		int tblsiz = Integer.highestOneBit(Math.max(16, maxvalues * 2) - 1) << 1;
+		table = new int[tblsiz];
+		tablemask = tblsiz - 1;
+		view_hash = new int[maxvalues];
+		view_slot = new int[maxvalues];
+	}
+
+	public ByteChars intern(CharSequence val)
+	{
+		int len = val.length();
+		int hash = hash(val, len);
+		int slot = hash & tablemask;
+		int ref;
+		while ((ref = table[slot]) != 0) {
+			int vidx = ref - 1;
+			if (view_hash[vidx] == hash && sameValue(views.get(vidx), val, len)) return views.get(vidx);
+			slot = (slot + 1) & tablemask;
+		}
+		if (viewcnt == view_hash.length || viewcnt * 2 >= table.length) {
+			grow();
+			return intern(val);
+		}
+		if (arena_used + len > arena.length) {
+			arena = new byte[Math.max(arena.length * 2, len)];
+			arena_used = 0;
+		}
+		int off = arena_used;
+		if (val instanceof ByteChars) {
+			ByteChars bc = (ByteChars)val;
+			System.arraycopy(bc.buffer(), bc.offset(), arena, off, len);
+		} else {
+			for (int idx = 0; idx != len; idx++) arena[off + idx] = (byte)val.charAt(idx);
+		}
+		arena_used += len;
+
+		ByteChars view;
+		if (viewcnt == views.size()) {
+			view = new ByteChars(-1); //lightweight object without own storage
+			views.add(view);
+		} else {
+			view = views.get(viewcnt);
+		}
+		view.set(arena, off, len);
+		view_hash[viewcnt] = hash;
+		view_slot[viewcnt] = slot;
+		table[slot] = ++viewcnt;
+		return view;
+	}
+
+	public void clear()
+	{
+		for (int idx = 0; idx != viewcnt; idx++) {
+			table[view_slot[idx]] = 0;
+		}
+		viewcnt = 0;
+		arena_used = 0;
+	}
+
+	private void grow()
+	{
+		int newsiz = table.length * 2;
+		table = new int[newsiz];
+		tablemask = newsiz - 1;
+		if (viewcnt == view_hash.length) {
+			view_hash = java.util.Arrays.copyOf(view_hash, view_hash.length * 2);
+			view_slot = java.util.Arrays.copyOf(view_slot, view_slot.length * 2);
+		}
+		for (int idx = 0; idx != viewcnt; idx++) {
+			int slot = view_hash[idx] & tablemask;
+			while (table[slot] != 0) slot = (slot + 1) & tablemask;
+			table[slot] = idx + 1;
+			view_slot[idx] = slot;
+		}
+	}
+
+	private static int hash(CharSequence val, int len)
+	{
+		int h = 0;
+		if (val instanceof ByteChars) {
+			ByteChars bc = (ByteChars)val;
+			byte[] buf = bc.buffer();
+			int off = bc.offset();
+			for (int idx = 0; idx != len; idx++) h = 31 * h + buf[off + idx];
+		} else {
+			for (int idx = 0; idx != len; idx++) h = 31 * h + (byte)val.charAt(idx);
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean sameValue(ByteChars view, CharSequence val, int len)
+	{
+		if (view.size() != len) return false;
+		byte[] buf = view.buffer();
+		int off = view.offset();
+		if (val instanceof ByteChars) {
+			ByteChars bc = (ByteChars)val;
+			byte[] buf2 = bc.buffer();
+			int off2 = bc.offset();
+			for (int idx = 0; idx != len; idx++) {
+				if (buf[off + idx] != buf2[off2 + idx]) return false;
+			}
+		} else {
+			for (int idx = 0; idx != len; idx++) {
+				if (buf[off + idx] != (byte)val.charAt(idx)) return false;
+			}
+		}
+		return true;
+	}
+}
@@ -32,22 +32,71 @@ public final class Cache
 	private final MessageRecip[] reciplist;
 	private int entrycnt;
 
+	// Columnar mode: sort() extracts the sort keys into primitive arrays parallel to reciplist in a single pass, and then
+	// orders them without any further dereferencing of the MessageRecip objects. The address fields are interned into a
+	// shared byte arena (see QueueManager.allocCacheField) rather than being copied into a ByteChars object per field.
+	// The MessageRecip objects remain as the per-slot views, as the Delivery and Reports tasks retain references to them
+	// and update their fields while a batch is in progress.
+	private final AddressArena arena;
+	private final long[] sortkeys;
+	private final int[] col_qid;
+	private final int[] col_tmp;
+	private final MessageRecip[] sortbuf;
+
+	// Streaming mode: the Cache is never cleared in one go, but has its completed entries drained by moveCompleted() while
+	// the rest are still in progress, and is then topped up again (see QueueManager.topupMessages).
+	private final boolean streaming;
+
 	public MessageRecip get(int idx) {return reciplist[idx];}
 	public int capacity() {return reciplist.length;}
 	public int size() {return entrycnt;}
+	public boolean isColumnar() {return (arena != null);}
+	public boolean isStreaming() {return streaming;}
 
 	Cache(int cap)
 	{
+		this(cap, false, false);
+	}
+
+	Cache(int cap, boolean columnar)
+	{
+		this(cap, columnar, false);
+	}
+
+	Cache(int cap, boolean columnar, boolean streaming)
+	{
+		this.streaming = streaming;
 		reciplist = new MessageRecip[cap];
 
 		for (int idx = 0; idx != cap; idx++) {
 			reciplist[idx] = new MessageRecip();
 		}
+
+		if (columnar) {
+			arena = new AddressArena(cap * 3, 24); //3 address fields per entry, of which many will be duplicates
+			sortkeys = new long[cap];
+			col_qid = new int[cap];
+			col_tmp = new int[cap];
+			sortbuf = new MessageRecip[cap];
+		} else {
+			arena = null;
+			sortkeys = null;
+			col_qid = null;
+			col_tmp = null;
+			sortbuf = null;
+		}
 	}
 
 	public void clear()
 	{
 		truncate(0);
+		if (arena != null) arena.clear();
+	}
+
+	// Only valid in columnar mode - the returned value remains valid until the next clear()
+	com.grey.base.utils.ByteChars intern(CharSequence val)
+	{
+		return arena.intern(val);
 	}
 
 	public MessageRecip addEntry(int qid, int spid, long recvtime, int iprecv,
@@ -66,11 +115,95 @@ public final class Cache
 		}
 	}
 
+	// Moves the completed entries (qstatus=DONE) into the given Cache, which must have room for them, and closes up the gaps
+	// they leave here, so that the remaining entries keep their relative order and the free slots are at the end.
+	// The MessageRecip objects are swapped with spare ones from the other Cache rather than copied, so any references
+	// that are held to the remaining entries stay valid, and the moved ones keep their identity.
+	// Returns the number of entries moved.
+	int moveCompleted(Cache dest)
+	{
+		int origcnt = dest.entrycnt;
+		int keep = 0;
+		for (int idx = 0; idx != entrycnt; idx++) {
+			MessageRecip mr = reciplist[idx];
+			if (mr.qstatus == MessageRecip.STATUS_DONE) {
+				int slot = dest.entrycnt++;
+				reciplist[idx] = dest.reciplist[slot];
+				dest.reciplist[slot] = mr;
+			} else {
+				if (keep != idx) {
+					reciplist[idx] = reciplist[keep]; //a spare one, as [keep, idx) only contains those
+					reciplist[keep] = mr;
+				}
+				keep++;
+			}
+		}
+		entrycnt = keep;
+		return dest.entrycnt - origcnt;
+	}
+
 	public void sort()
 	{
+		if (arena != null) {
+			sortColumns();
+			return;
+		}
 		java.util.Arrays.sort(reciplist, 0, entrycnt, mrcmp_spid);
 	}
 
+	// Produces the same order as MessageRecipComparator_BySpid, by sorting packed {spid, slot} keys within the local and
+	// remote partitions, and then ordering any runs of equal SPIDs by QID (such runs are short, as they represent multiple
+	// recipients of the same message).
+	private void sortColumns()
+	{
+		int nlocal = 0;
+		int pos_remote = entrycnt;
+		for (int idx = 0; idx != entrycnt; idx++) {
+			MessageRecip mr = reciplist[idx];
+			long key = ((long)mr.spid << 32) | idx;
+			col_qid[idx] = mr.qid;
+			if (mr.domain_to == null) {
+				sortkeys[nlocal++] = key;
+			} else {
+				sortkeys[--pos_remote] = key;
+			}
+		}
+		java.util.Arrays.sort(sortkeys, 0, nlocal);
+		java.util.Arrays.sort(sortkeys, nlocal, entrycnt);
+
+		// apply the new order to reciplist and the QID column
+		for (int idx = 0; idx != entrycnt; idx++) {
+			int slot = (int)sortkeys[idx];
+			sortbuf[idx] = reciplist[slot];
+			col_tmp[idx] = col_qid[slot];
+		}
+		for (int idx = 0; idx != entrycnt; idx++) {
+			reciplist[idx] = sortbuf[idx];
+			sortbuf[idx] = null;
+			col_qid[idx] = col_tmp[idx];
+		}
+
+		// insertion sort on QID within runs of equal SPID, which never cross the partition boundary
+		for (int idx = 1; idx < entrycnt; idx++) {
+			if (idx == nlocal) continue;
+			long spid = sortkeys[idx] >> 32;
+			int qid = col_qid[idx];
+			if ((sortkeys[idx-1] >> 32) != spid || col_qid[idx-1] <= qid) continue;
+			MessageRecip mr = reciplist[idx];
+			long key = sortkeys[idx];
+			int pos = idx;
+			while (pos != 0 && pos != nlocal && (sortkeys[pos-1] >> 32) == spid && col_qid[pos-1] > qid) {
+				reciplist[pos] = reciplist[pos-1];
+				col_qid[pos] = col_qid[pos-1];
+				sortkeys[pos] = sortkeys[pos-1];
+				pos--;
+			}
+			reciplist[pos] = mr;
+			col_qid[pos] = qid;
+			sortkeys[pos] = key;
+		}
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder(size()*80);
@@ -27,7 +27,16 @@ abstract public class QueueManager
 	protected final String loglbl;
 	private final long[] retrydelays;
 	private final int maxcachesize;
+	private final boolean columnar_cache;
 	private final Spooler spool;
+	private Cache loadcache; //the Cache that is currently being populated by loadMessages()
+	private int partition_id;
+	private int partition_count = 1;
+	private boolean partition_filter; //true while getMessages() is loading a partitioned batch
+	private Cache flushcache; //receives the completed entries of the streaming Cache, for flushCompleted()
+	private boolean topup_load; //true while topupMessages() is loading
+	private boolean partial_update; //true while flushCompleted() is updating
+	private final java.util.List<QueueWakeup> wakeups; //consumers of this queue, which are notified of new entries
 
 	// spids_done contains SPIDs that are definitely ready for deletion (ie. orphaned), while spids_preserved are definitely not.
 	// spids_candidates records the delivery count of SPIDs we're not sure about.
@@ -39,6 +48,8 @@ abstract public class QueueManager
 	protected final com.grey.base.collections.ObjectWell<ByteChars> bcwell;
 	private final com.grey.base.collections.HashedSetInt tmpspidset = new com.grey.base.collections.HashedSetInt(0, 10f);
 	private final java.util.ArrayList<ByteChars> cacherefs = new java.util.ArrayList<ByteChars>();
+	private final java.util.ArrayList<SubmitHandle> grpbatch = new java.util.ArrayList<SubmitHandle>();
+	private boolean[] grpresults = new boolean[0];
 	private final StringBuilder tmpsb = new StringBuilder();
 
 	/*
@@ -65,6 +76,13 @@ abstract public class QueueManager
 	// set contains definite orphans, and this base class will handle their spool-files cleanup.
 	protected abstract void determineOrphans(com.grey.base.collections.HashedSetInt orphan_candidates)
 			throws java.io.IOException;
+	// If updateMessages() merely queues up its updates to be committed later, then the spool-files of the completed recips
+	// cannot be deleted yet, as the database still refers to them until the update is committed, and a crash in the meantime
+	// would leave those references dangling. Such a subclass can take ownership of the two sets (which are the definite
+	// orphans and the candidates for determineOrphans) by copying them and returning true, and must then pass them to
+	// releaseOrphans() once its updates have been committed.
+	protected boolean deferOrphans(com.grey.base.collections.HashedSetInt done, com.grey.base.collections.HashedSetInt candidates)
+			{return false;}
 	/*
 	 * These methods are also eligible for override by the specialised queue-manager subclasses, but default implementations
 	 * are provided.
@@ -77,6 +95,30 @@ abstract public class QueueManager
 	}
 	public boolean supportsShow() {return false;} //show() is an optional method
 	public boolean verifyAddress(ByteChars full_email_address) {return true;}
+	// Queues which can load recipients independently of the other recipients stored alongside them can support partitioned
+	// loading (see setPartition), by means of the inPartition() method.
+	public boolean supportsPartitions() {return false;}
+	// Queues which support streaming delivery (see initStreamingCache) have to check isTopup() in loadMessages(), in which case
+	// they must retain their record of the entries loaded so far and not load them again, and isPartialUpdate() in
+	// updateMessages(), in which case the Cache only contains completed entries and the other loaded entries remain in flight.
+	public boolean supportsStreaming() {return false;}
+	// Returns the directory that QueueWakeup can watch for the given type of event, or null if this queue doesn't support that.
+	// Its entries must be created or modified whenever a recipient becomes ready for the corresponding consumer.
+	public java.nio.file.Path getWatchPath(int event) {return null;}
+	// Group-commit variant of storeMessage(), which allows a queue to persist a batch of submissions together. Each
+	// submission must still be stored atomically (with the same meaning as the return value of storeMessage) and its outcome
+	// is recorded in the corresponding element of results.
+	protected void storeMessages(java.util.List<SubmitHandle> batch, boolean[] results) {
+		for (int idx = 0; idx != batch.size(); idx++) {
+			SubmitHandle sph = batch.get(idx);
+			try {
+				results[idx] = storeMessage(sph);
+			} catch (Throwable ex) {
+				results[idx] = false;
+				dsptch.getLogger().log(LEVEL.INFO, ex, true, loglbl+"Submit-ctl failed on SPID="+Integer.toHexString(sph.spid));
+			}
+		}
+	}
 	protected void shutdown() {}
 	protected void doHousekeeping() {}
 
@@ -86,6 +128,10 @@ abstract public class QueueManager
 	public final int qsize(int flags) throws java.io.IOException {return qsize(null, null, flags);}
 	public final void getMessages(Cache cache) throws java.io.IOException {getMessages(cache, false);}
 	protected final Spooler getSpooler() {return spool;}
+	public final boolean isSpoolCompressed() {return spool.isCompressed();}
+	public final int partitionID() {return partition_id;}
+	public final int partitionCount() {return partition_count;}
+	protected final boolean isPartitioned() {return partition_filter;}
 
 	protected QueueManager(com.grey.naf.reactor.Dispatcher d, Spooler spooler, com.grey.base.config.XmlConfig cfg, String name)
 		throws java.io.IOException
@@ -98,9 +144,11 @@ abstract public class QueueManager
 		spool = spooler;
 		loglbl = "QMGR-"+name+": ";
 		bcwell = new com.grey.base.collections.ObjectWell<ByteChars>(ByteChars.class, "QMGR-"+name);
+		wakeups = QueueWakeup.getRegistry(this);
 
 		read_only = cfg.getBool("read_only", false);
 		maxcachesize = (int)cfg.getSize("maxmemoryqueue", 0);
+		columnar_cache = cfg.getBool("columnar_cache", false);
 		maxretrytime = cfg.getTime("retry_maxtime", com.grey.base.utils.TimeOps.parseMilliTime("72h"));
 		maxretrytime_ndr = Math.min(maxretrytime, cfg.getTime("retry_maxtime_reports", com.grey.base.utils.TimeOps.parseMilliTime("24h")));
 		prune_grace = cfg.getTime("prune_graceperiod", com.grey.base.utils.TimeOps.parseMilliTime("7d"));
@@ -122,6 +170,7 @@ abstract public class QueueManager
 
 		dsptch.getLogger().info(loglbl+"retry_maxtime="+com.grey.base.utils.TimeOps.expandMilliTime(maxretrytime)
 				+" (reports="+com.grey.base.utils.TimeOps.expandMilliTime(maxretrytime_ndr)+")"+" - retries = "+txt_retries+"...");
+		if (columnar_cache) dsptch.getLogger().info(loglbl+"columnar cache mode");
 		if (read_only) dsptch.getLogger().info(loglbl+"read-only mode");
 	}
 
@@ -145,41 +194,138 @@ abstract public class QueueManager
 	public final Cache initCache(int size)
 	{
 		if (maxcachesize != 0 && size > maxcachesize) size = maxcachesize;
-		return new Cache(size);
+		return new Cache(size, columnar_cache);
+	}
+
+	// Returns a Cache which is to be used in streaming mode, ie. it is loaded by getMessages() and then repeatedly drained by
+	// flushCompleted() and refilled by topupMessages(), until it is finally returned to messagesProcessed().
+	// Its address fields are not pooled, since its entries have independent lifetimes.
+	public final Cache initStreamingCache(int size)
+	{
+		if (!supportsStreaming()) throw new QException(loglbl+getClass().getName()+" does not support streaming delivery");
+		if (maxcachesize != 0 && size > maxcachesize) size = maxcachesize;
+		flushcache = new Cache(size, false, true);
+		return new Cache(size, false, true);
 	}
 
 	public final void getMessages(Cache msgcache, boolean get_deferred) throws java.io.IOException
 	{
 		restoreCacheFields();
-		loadMessages(msgcache, false, get_deferred);
+		loadcache = msgcache;
+		partition_filter = (partition_count > 1);
+		try {
+			loadMessages(msgcache, false, get_deferred);
+		} finally {
+			loadcache = null;
+			partition_filter = false;
+		}
+	}
+
+	// Loads more entries into the free slots of a streaming Cache, whose existing entries are left as they are
+	public final void topupMessages(Cache msgcache, boolean get_deferred) throws java.io.IOException
+	{
+		if (!msgcache.isStreaming()) throw new QException(loglbl+"Top-up requires a streaming cache");
+		loadcache = msgcache;
+		partition_filter = (partition_count > 1);
+		topup_load = true;
+		try {
+			loadMessages(msgcache, false, get_deferred);
+		} finally {
+			loadcache = null;
+			partition_filter = false;
+			topup_load = false;
+		}
+	}
+
+	protected final boolean isTopup() {return topup_load;}
+	protected final boolean isPartialUpdate() {return partial_update;}
+
+	// This restricts getMessages() to the recipients whose destination domain falls into the given partition of the queue,
+	// so that multiple delivery shards can each own a partition (see DeliverTask). Bounces are not affected.
+	public final void setPartition(int id, int count)
+	{
+		if (count > 1 && !supportsPartitions()) throw new QException(loglbl+getClass().getName()+" does not support partitioned delivery");
+		if (id < 0 || id >= count) throw new QException(loglbl+"Invalid partition="+id+"/"+count);
+		partition_id = id;
+		partition_count = count;
+		dsptch.getLogger().info(loglbl+"Partition="+id+"/"+count);
+	}
+
+	protected final boolean inPartition(CharSequence domain_to)
+	{
+		if (!partition_filter) return true;
+		return getPartition(domain_to, partition_count) == partition_id;
+	}
+
+	// The hash has to be stable across the queue-manager instances, so we can't use String.hashCode() on ByteChars.
+	// Only recipients with no domain (null or empty) are assigned to partition zero, which is therefore the one that does local
+	// delivery. Recipients in a local domain still have that domain at this stage (eg. if the SMTP server is not reducing them
+	// to local form) so they hash to any partition, like every other domain.
+	public static int getPartition(CharSequence domain_to, int count)
+	{
+		if (count <= 1 || domain_to == null || domain_to.length() == 0) return 0;
+		int hash = 0;
+		for (int idx = 0; idx != domain_to.length(); idx++) {
+			hash = 31 * hash + Character.toLowerCase(domain_to.charAt(idx));
+		}
+		hash ^= (hash >>> 16);
+		return (hash & Integer.MAX_VALUE) % count;
 	}
 
 	public final void getBounces(Cache msgcache) throws java.io.IOException
 	{
 		restoreCacheFields();
-		loadMessages(msgcache, true, false);
+		loadcache = msgcache;
+		try {
+			loadMessages(msgcache, true, false);
+		} finally {
+			loadcache = null;
+		}
 	}
 
 	public final int messagesProcessed(Cache cache) throws java.io.IOException
 	{
-		return messagesProcessed(cache, false);
+		return messagesProcessed(cache, false, null);
 	}
 
 	public final int bouncesProcessed(Cache cache) throws java.io.IOException
 	{
-		return messagesProcessed(cache, true);
+		return messagesProcessed(cache, true, null);
+	}
+
+	// Writes back the completed entries of a streaming Cache and removes them from it, leaving its other entries in flight.
+	// Returns the number of entries that were flushed.
+	public final int flushCompleted(Cache cache) throws java.io.IOException
+	{
+		if (!cache.isStreaming()) throw new QException(loglbl+"Partial flush requires a streaming cache");
+		flushcache.clear();
+		if (cache.moveCompleted(flushcache) == 0) return 0;
+		partial_update = true;
+		try {
+			return messagesProcessed(flushcache, false, cache);
+		} finally {
+			partial_update = false;
+			flushcache.clear();
+		}
 	}
 
 	// It's important to realise that this method is twinned with either getMessages() or getBounces(). The Cache that is
 	// populated in those methods is returned to us in this method, in the same thread.
 	// In any one instance of this class, this method is only twinned with one or the other of those Get methods, so there's
 	// no inter-thread contention.
-	private int messagesProcessed(Cache cache, boolean is_bounces_batch) throws java.io.IOException
+	// If inflight is non-null, this is a partial update (see flushCompleted) and inflight holds the entries that are still in
+	// progress, so their SPIDs must be preserved.
+	private int messagesProcessed(Cache cache, boolean is_bounces_batch, Cache inflight) throws java.io.IOException
 	{
 		spids_preserved.clear();
 		spids_done.clear();
 		spids_candidates.clear();
 		int cachesize = cache.size();
+		if (inflight != null && !spool.isHardLinked()) {
+			for (int idx = 0; idx != inflight.size(); idx++) {
+				spids_preserved.add(inflight.get(idx).spid);
+			}
+		}
 		int delivcnt = 0;
 		int failcnt = 0;
 
@@ -218,6 +364,7 @@ abstract public class QueueManager
 		}
 		int undetermined = 0; //no. of SPIDs whose orphan status cannot be resolved without determineOrphans()
 		int spidcache = 0;
+		boolean deferred = false;
 
 		if (!spool.isHardLinked()) {
 			// update the global refs (while pruning the orphan candidates) and then act on the preserved messages
@@ -230,17 +377,15 @@ abstract public class QueueManager
 			}
 			undetermined = spids_candidates.size();
 
-			// if we have orphan candidates, ask the subclass to prune the set and then add the result to spids_done
+			tmpspidset.clear();
 			if (undetermined != 0) {
-				tmpspidset.clear();
 				IteratorInt it = spids_candidates.recycledKeysIterator();
 				while (it.hasNext()) tmpspidset.add(it.next());
-				determineOrphans(tmpspidset);
-				it = tmpspidset.recycledIterator();
-				while (it.hasNext()) spids_done.add(it.next());
 			}
-			// now delete the orphaned SPIDs
-			spool.deleteOrphans(spids_done);
+			if (spids_done.size() != 0 || tmpspidset.size() != 0) {
+				deferred = deferOrphans(spids_done, tmpspidset);
+				if (!deferred) releaseOrphans(spids_done, tmpspidset);
+			}
 		}
 
 		LEVEL loglvl = LEVEL.TRC;
@@ -251,15 +396,37 @@ abstract public class QueueManager
 			if (undetermined != 0 || spids_done.size() != 0) {
 				tmpsb.append(" - pruned spools=").append(spids_done.size());
 				if (undetermined != 0) tmpsb.append(", undetermined=").append(undetermined);
+				if (deferred) tmpsb.append(" (deferred)");
 			}
 			if (spidcache != 0) tmpsb.append(" - spidcache=").append(spidcache);
 			dsptch.getLogger().log(loglvl, tmpsb);
 		}
 		cache.clear();
-		restoreCacheFields();
+		if (inflight == null) restoreCacheFields();
+		if (failcnt != 0 && !is_bounces_batch) QueueWakeup.signal(wakeups, QueueWakeup.EVENT_BOUNCES, dsptch.getLogger());
 		return (delivcnt+failcnt);
 	}
 
+	// On entry, 'done' contains SPIDs which are known to be orphans and 'candidates' contains the SPIDs which may be. We ask
+	// the subclass to prune the latter and then delete the spool-files of both. The 'done' set is updated.
+	protected final void releaseOrphans(com.grey.base.collections.HashedSetInt done, com.grey.base.collections.HashedSetInt candidates)
+		throws java.io.IOException
+	{
+		if (candidates.size() != 0) {
+			determineOrphans(candidates);
+			IteratorInt it = candidates.recycledIterator();
+			while (it.hasNext()) done.add(it.next());
+		}
+		spool.deleteOrphans(done);
+	}
+
+	// Wakes up this queue's own consumer (as opposed to all consumers of the queue's spool area), for queues which load
+	// recipients in the background and so have to tell the consumer when they become available.
+	protected final void wakeupConsumer(int event)
+	{
+		QueueWakeup.signal(wakeups, this, event);
+	}
+
 	public final java.io.OutputStream createDiagnosticFile(int spid, int qid) throws java.io.IOException
 	{
 		java.io.OutputStream fstrm = null;
@@ -329,7 +496,10 @@ abstract public class QueueManager
 		try {
 			if (!rollback) {
 				success = sph.close(dsptch.getLogger()); //spool needs to be visible before control-queue commit
-				if (success) success = storeMessage(sph);
+				if (success) {
+					spool.storeBody(sph);
+					success = storeMessage(sph);
+				}
 			}
 		} catch (Throwable ex) {
 			success = false;
@@ -345,10 +515,73 @@ abstract public class QueueManager
 			}
 		} else {
 			spool.releaseHandle(sph);
+			QueueWakeup.signal(wakeups, QueueWakeup.EVENT_INCOMING, dsptch.getLogger());
 		}
 		return success;
 	}
 
+	// Group-commit equivalent of calling endSubmit(sph, false) on each of the submissions in the batch, with the result for
+	// each one being recorded in the corresponding element of results.
+	// If sync is true, the spool files are forced to disk before the control-queue commit refers to them, so that a crash can
+	// never leave the queue pointing at a message body that was lost from the OS cache.
+	public final void endSubmit(java.util.List<SubmitHandle> batch, boolean[] results)
+	{
+		endSubmit(batch, results, false);
+	}
+
+	public final void endSubmit(java.util.List<SubmitHandle> batch, boolean[] results, boolean sync)
+	{
+		if (read_only) {
+			for (int idx = 0; idx != batch.size(); idx++) {
+				endSubmit(batch.get(idx), true);
+				results[idx] = false; //rolled back, so not committed
+			}
+			return;
+		}
+		grpbatch.clear();
+		for (int idx = 0; idx != batch.size(); idx++) {
+			SubmitHandle sph = batch.get(idx);
+			results[idx] = sph.close(dsptch.getLogger()); //spool needs to be visible before control-queue commit
+			if (results[idx] && sync) {
+				try {
+					sph.sync();
+				} catch (Throwable ex) {
+					results[idx] = false;
+					dsptch.getLogger().log(LEVEL.INFO, ex, false, loglbl+"Submit-sync failed on SPID="+Integer.toHexString(sph.spid));
+				}
+			}
+			if (results[idx]) {
+				spool.storeBody(sph);
+				grpbatch.add(sph);
+			}
+		}
+
+		if (grpbatch.size() != 0) {
+			if (grpresults.length < grpbatch.size()) grpresults = new boolean[grpbatch.size()];
+			storeMessages(grpbatch, grpresults);
+			int pos = 0;
+			for (int idx = 0; idx != batch.size(); idx++) {
+				if (results[idx]) results[idx] = grpresults[pos++];
+			}
+			grpbatch.clear();
+		}
+
+		boolean stored = false;
+		for (int idx = 0; idx != batch.size(); idx++) {
+			SubmitHandle sph = batch.get(idx);
+			if (results[idx]) {
+				spool.releaseHandle(sph);
+				stored = true;
+			} else {
+				int spid = sph.spid;
+				if (!spool.cancel(sph)) {
+					dsptch.getLogger().trace(loglbl+"group submission failed to rollback SPID="+Integer.toHexString(spid));
+				}
+			}
+		}
+		if (stored) QueueWakeup.signal(wakeups, QueueWakeup.EVENT_INCOMING, dsptch.getLogger());
+	}
+
 	public final int submitCopy(int src_spid, int src_qid, ByteChars sender,
 			java.util.ArrayList<com.grey.base.utils.EmailAddress> recips)
 	{
@@ -376,9 +609,12 @@ abstract public class QueueManager
 	// This could potentially be reduced by interning the allocated fields, but over time the ObjectWell size would still
 	// tend towards the ceiling of 7,500 (as it will never release the extra storage required by the least intern-friendly
 	// batches) so probably not much point.
+	// A columnar Cache does intern its fields however, into its own storage which is recycled along with the Cache itself.
 	protected final ByteChars allocCacheField(CharSequence inpval)
 	{
 		if (inpval == null) return null;
+		if (loadcache != null && loadcache.isColumnar()) return loadcache.intern(inpval);
+		if (loadcache != null && loadcache.isStreaming()) return new ByteChars().populate(inpval);
 		ByteChars outval = bcwell.extract().populate(inpval);
 		cacherefs.add(outval);
 		return outval;
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.queue;
+
+import com.grey.logging.Logger.LEVEL;
+import com.grey.naf.reactor.Dispatcher;
+import com.grey.naf.reactor.Producer;
+import com.grey.naf.reactor.TimerNAF;
+
+/*
+ * Wakes up a queue consumer (ie. the Delivery or Reports task) when new recipients become available, so that it doesn't have
+ * to wait for its next poll of the queue.
+ * Within this process, the QueueManagers raise the signal directly when they store new messages (EVENT_INCOMING) or write
+ * back failed recipients, some of which may have become bounces (EVENT_BOUNCES). A QueueManager which loads recipients in the
+ * background also signals its own consumer when a load completes. The signal is passed to the consumer's
+ * Dispatcher via a Producer, and any further signals are coalesced into it until the consumer has been called.
+ * Submissions made by other processes are not seen that way, so the consumer can also opt to watch the queue's storage (see
+ * QueueManager.getWatchPath) by means of the WatchService, which is based on inotify on Linux. This runs in its own thread.
+ */
+public final class QueueWakeup
+	implements Producer.Consumer<QueueWakeup>
+{
+	public interface Handler {
+		void queueWakeup(QueueWakeup w);
+	}
+
+	public static final int EVENT_INCOMING = 1;
+	public static final int EVENT_BOUNCES = 2;
+
+	private final int event;
+	private final Handler handler;
+	private final Dispatcher dsptch;
+	private final QueueManager owner; //the QueueManager instance which the consumer loads from
+	private final Producer<QueueWakeup> channel;
+	private final java.util.List<QueueWakeup> registry;
+	private final java.util.concurrent.atomic.AtomicBoolean pending = new java.util.concurrent.atomic.AtomicBoolean();
+	private final java.nio.file.WatchService watcher;
+	private final String name;
+
+	public QueueWakeup(QueueManager qmgr, int evt, boolean watch, Handler h) throws java.io.IOException
+	{
+		dsptch = qmgr.dsptch;
+		owner = qmgr;
+		event = evt;
+		handler = h;
+		name = "QueueWakeup-"+dsptch.getName()+"-"+(event == EVENT_BOUNCES ? "bounces" : "incoming");
+		channel = new Producer<>(name, dsptch, this);
+		TimerNAF.Handler onStart = new TimerNAF.Handler() {
+			@Override
+			public void timerIndication(TimerNAF t, Dispatcher d) throws java.io.IOException {
+				channel.startDispatcherRunnable(); //need to call this within Dispatcher thread
+			}
+		};
+		dsptch.setTimer(0, 0, onStart);
+
+		java.nio.file.Path watchpath = (watch ? qmgr.getWatchPath(event) : null);
+		if (watchpath != null) {
+			watcher = watchpath.getFileSystem().newWatchService();
+			watchpath.register(watcher, java.nio.file.StandardWatchEventKinds.ENTRY_CREATE,
+					java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY);
+			Thread thrd = new Thread(this::runWatcher, name);
+			thrd.setDaemon(true);
+			thrd.start();
+		} else {
+			watcher = null;
+			if (watch) dsptch.getLogger().info(name+": Queue="+qmgr.getClass().getName()+" does not support watching");
+		}
+		registry = getRegistry(qmgr);
+		registry.add(this);
+		dsptch.getLogger().info(name+": Created with watch="+watchpath);
+	}
+
+	public void close()
+	{
+		registry.remove(this);
+		channel.stopDispatcherRunnable();
+		if (watcher != null) {
+			try {
+				watcher.close();
+			} catch (Exception ex) {
+				dsptch.getLogger().trace(name+": Failed to close WatchService - "+ex);
+			}
+		}
+	}
+
+	// This can be called in any thread, so the caller supplies a logger it owns. Returns false if the Producer has been shut
+	// down, which means our consumer's Dispatcher has stopped.
+	private boolean signal(com.grey.logging.Logger log)
+	{
+		if (!pending.compareAndSet(false, true)) return true; //the consumer has yet to pick up the previous one
+		try {
+			channel.produce(this);
+		} catch (Throwable ex) {
+			pending.set(false);
+			if (log != null) log.log(LEVEL.INFO, ex, false, name+" failed to signal Producer");
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void producerIndication(Producer<QueueWakeup> p)
+	{
+		while (p.consume() != null) {}
+		pending.set(false);
+		handler.queueWakeup(this);
+	}
+
+	// The events themselves don't matter, as the consumer will scan the queue anyway
+	private void runWatcher()
+	{
+		try {
+			while (true) {
+				java.nio.file.WatchKey key = watcher.take();
+				key.pollEvents();
+				if (!signal(null)) break; //this thread has no logger of its own, and there's no one left to tell anyway
+				if (!key.reset()) break;
+			}
+		} catch (java.nio.file.ClosedWatchServiceException | InterruptedException ex) {
+			//we're being shut down
+		}
+	}
+
+	static void signal(java.util.List<QueueWakeup> registry, int evt, com.grey.logging.Logger log)
+	{
+		for (QueueWakeup w : registry) { //a CopyOnWriteArrayList, so this is safe against concurrent registrations
+			if (w.event == evt) w.signal(log);
+		}
+	}
+
+	static void signal(java.util.List<QueueWakeup> registry, QueueManager qmgr, int evt)
+	{
+		for (QueueWakeup w : registry) {
+			if (w.owner == qmgr && w.event == evt) w.signal(qmgr.dsptch.getLogger());
+		}
+	}
+
+	// Returns the list of consumers registered for the given queue, which is identified by its spool area
+	static java.util.List<QueueWakeup> getRegistry(QueueManager qmgr)
+	{
+		java.util.concurrent.ConcurrentHashMap<java.nio.file.Path, java.util.List<QueueWakeup>> registries
+				= qmgr.dsptch.getApplicationContext().getNamedItem(QueueWakeup.class.getName()+"-registries",
+						() -> new java.util.concurrent.ConcurrentHashMap<>());
+		return registries.computeIfAbsent(qmgr.getSpooler().getRoot(), k -> new java.util.concurrent.CopyOnWriteArrayList<>());
+	}
+}
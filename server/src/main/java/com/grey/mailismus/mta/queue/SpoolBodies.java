@@ -0,0 +1,133 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.queue;
+
+import com.grey.base.utils.FileOps;
+import com.grey.base.collections.HashedMap;
+import com.grey.base.collections.HashedMapIntKey;
+
+/*
+ * The content-addressed body store behind the Spooler's dedup mode.
+ * Each distinct message body (as identified by its digest) is held once, under a file named after its digest, and the
+ * spool files of all the SPIDs with that body are hard links to it. This means the spool files can still be read and
+ * deleted as normal, and the only book keeping required is a reference count on each body, so that its own name can be
+ * removed once the last SPID which shares it has gone.
+ * The reference counts are in memory, like the Spooler's SPID cache, and are shared by all the Spoolers on the same root
+ * directory. Bodies left over from a previous run have no reference count, but removing their name never affects the spool
+ * files which are linked to them, so they are simply swept up by housekeep() once they are old enough.
+ */
+final class SpoolBodies
+{
+	static final String DIR_BODIES = "bodies";
+	private static final String EXT_BODY = ".body";
+	private static final String EXT_TMPLINK = ".lnk";
+	private static final char[] hexdigits = "0123456789abcdef".toCharArray();
+
+	private final java.nio.file.Path dh;
+	private final HashedMap<String, Body> bodies = new HashedMap<String, Body>();
+	private final HashedMapIntKey<Body> spid_bodies = new HashedMapIntKey<Body>();
+	private final StringBuilder tmpsb = new StringBuilder();
+
+	private int stats_dups; //number of SPIDs which shared an existing body
+
+	public synchronized int size() {return bodies.size();}
+
+	SpoolBodies(java.nio.file.Path dhroot) throws java.io.IOException
+	{
+		dh = dhroot.resolve(DIR_BODIES);
+		FileOps.ensureDirExists(dh);
+	}
+
+	// Registers the given spool file as SPID's copy of the body with the given digest. If we already hold that body, the spool
+	// file is atomically replaced by a link to it, else it becomes the held copy.
+	// Returns true if the body was a duplicate.
+	synchronized boolean add(int spid, java.nio.file.Path fh, byte[] digest) throws java.io.IOException
+	{
+		String key = hexString(digest);
+		Body body = bodies.get(key);
+		boolean dup = true;
+		if (body == null) {
+			body = new Body(key, dh.resolve(key+EXT_BODY));
+			try {
+				java.nio.file.Files.createLink(body.path, fh);
+				dup = false;
+			} catch (java.nio.file.FileAlreadyExistsException ex) {
+				//left over from a previous run, so link to that
+			}
+			bodies.put(key, body);
+		}
+
+		if (dup) {
+			java.nio.file.Path fhtmp = fh.resolveSibling(fh.getFileName()+EXT_TMPLINK);
+			try {
+				java.nio.file.Files.createLink(fhtmp, body.path);
+			} catch (java.nio.file.NoSuchFileException ex) {
+				//the held copy has been removed behind our back, so ours takes its place
+				java.nio.file.Files.createLink(body.path, fh);
+				dup = false;
+			}
+			if (dup) {
+				java.nio.file.Files.move(fhtmp, fh, java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+						java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+				// The links share the body's timestamp, so bring it up to date, else housekeep() would judge this
+				// SPID's spool file by the age of the first one.
+				java.nio.file.Files.setLastModifiedTime(fh, java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis()));
+				stats_dups++;
+			}
+		}
+		body.refs++;
+		spid_bodies.put(spid, body);
+		return dup;
+	}
+
+	// Called when the given SPID's spool file has been deleted, whether individually or by the Spooler's housekeep()
+	synchronized void release(int spid)
+	{
+		Body body = spid_bodies.remove(spid);
+		if (body == null || --body.refs != 0) return;
+		bodies.remove(body.key);
+		FileOps.deleteFile(body.path);
+	}
+
+	// Removes held bodies that are not referenced by any SPIDs we know about, and which are older than the given time.
+	synchronized int housekeep(long oldest_timestamp) throws java.io.IOException
+	{
+		int cnt = 0;
+		try (java.nio.file.DirectoryStream<java.nio.file.Path> ds = java.nio.file.Files.newDirectoryStream(dh)) {
+			for (java.nio.file.Path fpath : ds) {
+				String filename = FileOps.getFilename(fpath);
+				if (!filename.endsWith(EXT_BODY)) continue;
+				if (bodies.containsKey(filename.substring(0, filename.length() - EXT_BODY.length()))) continue;
+				if (java.nio.file.Files.getLastModifiedTime(fpath).toMillis() >= oldest_timestamp) continue;
+				if (FileOps.deleteFile(fpath) == null) cnt++;
+			}
+		}
+		return cnt;
+	}
+
+	private String hexString(byte[] digest)
+	{
+		tmpsb.setLength(0);
+		for (int idx = 0; idx != digest.length; idx++) {
+			tmpsb.append(hexdigits[(digest[idx] >> 4) & 0xF]).append(hexdigits[digest[idx] & 0xF]);
+		}
+		return tmpsb.toString();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "SpoolBodies[bodies="+bodies.size()+", spids="+spid_bodies.size()+", dups="+stats_dups+"]";
+	}
+
+
+	private static final class Body
+	{
+		final String key;
+		final java.nio.file.Path path;
+		int refs;
+
+		Body(String k, java.nio.file.Path p) {key = k; path = p;}
+	}
+}
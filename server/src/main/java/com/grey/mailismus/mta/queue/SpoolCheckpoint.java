@@ -0,0 +1,245 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.queue;
+
+import com.grey.base.utils.FileOps;
+import com.grey.base.collections.HashedMapIntInt;
+import com.grey.base.collections.IteratorInt;
+
+/*
+ * Persists the Spooler's SPID cache (the reference counts of the multi-recipient SPIDs), so that it can be restored on
+ * startup without having to scan the whole queue.
+ * It consists of a snapshot of the full map, and a journal of the changes made since then, which is replayed on top of it.
+ * Each journal record sets the absolute value of one entry (or removes it), so replaying it is idempotent, and once the
+ * journal has grown long enough it is folded into a new snapshot.
+ * Note that the SPID cache is only a cache - SPIDs which are missing from it are simply treated as orphan candidates and
+ * resolved against the queue - so the journal is not synced. If we crash, the worst that can happen is that we lose some
+ * records from its tail, which can only result in an entry that is missing (harmless) or whose count is too high (which
+ * means its spool file is left for housekeep() to clear away). Counts can never be too low, as the queue is always updated
+ * before the SPID cache.
+ *
+ * This class also persists the SPID allocator's high-water mark, which saves it from having to list all the spool files.
+ *
+ * All the methods which relate to the SPID cache must be called while holding its lock.
+ */
+final class SpoolCheckpoint
+{
+	private static final String FILE_SNAPSHOT = "refcnt.ckpt";
+	private static final String FILE_JOURNAL = "refcnt.jnl";
+	private static final String FILE_HIGHWATER = "spid.hwm";
+	private static final String EXT_TMP = ".tmp";
+	private static final int MAGIC = 0x4D534331;
+	private static final byte REC_SET = 1;
+	private static final byte REC_REMOVE = 2;
+	private static final int RECSIZ = 9;
+
+	private final java.nio.file.Path fh_snapshot;
+	private final java.nio.file.Path fh_journal;
+	private final int maxjournal;
+	private final com.grey.logging.Logger logger;
+	private final String loglbl;
+	private final java.nio.ByteBuffer jnlbuf = java.nio.ByteBuffer.allocate(RECSIZ * 1024);
+	private java.nio.channels.FileChannel jnlchan;
+	private int jnlcnt; //number of records in journal
+	private boolean disabled;
+
+	public SpoolCheckpoint(java.nio.file.Path dhroot, int maxjournal, com.grey.logging.Logger logger, String loglbl)
+	{
+		fh_snapshot = dhroot.resolve(FILE_SNAPSHOT);
+		fh_journal = dhroot.resolve(FILE_JOURNAL);
+		this.maxjournal = maxjournal;
+		this.logger = logger;
+		this.loglbl = loglbl;
+	}
+
+	// Restores the checkpointed SPID cache into refcnt, which is expected to be empty.
+	// Returns false if there is no usable checkpoint, in which case refcnt is left empty.
+	public boolean load(HashedMapIntInt refcnt)
+	{
+		jnlcnt = 0;
+		if (disabled || !java.nio.file.Files.exists(fh_snapshot)) return false;
+		try {
+			try (java.io.DataInputStream strm = new java.io.DataInputStream(new java.io.BufferedInputStream(java.nio.file.Files.newInputStream(fh_snapshot, FileOps.OPENOPTS_NONE)))) {
+				if (strm.readInt() != MAGIC) throw new java.io.IOException("Invalid snapshot header");
+				int cnt = strm.readInt();
+				for (int idx = 0; idx != cnt; idx++) {
+					int spid = strm.readInt();
+					refcnt.put(spid, strm.readInt());
+				}
+			}
+			if (java.nio.file.Files.exists(fh_journal)) {
+				try (java.io.DataInputStream strm = new java.io.DataInputStream(new java.io.BufferedInputStream(java.nio.file.Files.newInputStream(fh_journal, FileOps.OPENOPTS_NONE)))) {
+					byte[] rec = new byte[RECSIZ];
+					java.nio.ByteBuffer recbuf = java.nio.ByteBuffer.wrap(rec);
+					while (true) {
+						try {
+							strm.readFully(rec);
+						} catch (java.io.EOFException ex) {
+							break; //end of journal, possibly with a partial record that didn't get written in full
+						}
+						recbuf.clear();
+						byte rectype = recbuf.get();
+						int spid = recbuf.getInt();
+						if (rectype == REC_SET) {
+							refcnt.put(spid, recbuf.getInt());
+						} else if (rectype == REC_REMOVE) {
+							refcnt.remove(spid);
+						} else {
+							throw new java.io.IOException("Invalid journal record type="+rectype+" after records="+jnlcnt);
+						}
+						jnlcnt++;
+					}
+				}
+			}
+		} catch (Exception ex) {
+			if (logger != null) logger.info(loglbl+"Discarding unusable SPID checkpoint - "+com.grey.base.ExceptionUtils.summary(ex));
+			refcnt.clear();
+			jnlcnt = 0;
+			return false;
+		}
+		return true;
+	}
+
+	public void set(int spid, int cnt)
+	{
+		addRecord(REC_SET, spid, cnt);
+	}
+
+	public void remove(int spid)
+	{
+		addRecord(REC_REMOVE, spid, 0);
+	}
+
+	// Writes out the records added since the last call, and takes a new snapshot if the journal has grown long enough.
+	public void flush(HashedMapIntInt refcnt)
+	{
+		if (disabled) return;
+		try {
+			writeJournal();
+			if (jnlcnt >= maxjournal) writeSnapshot(refcnt);
+		} catch (Exception ex) {
+			abandon(ex);
+		}
+	}
+
+	public void save(HashedMapIntInt refcnt)
+	{
+		if (disabled) return;
+		try {
+			writeSnapshot(refcnt);
+		} catch (Exception ex) {
+			abandon(ex);
+		}
+	}
+
+	// The snapshot is written to a temp file which then replaces the old one, so an existing snapshot is never lost.
+	// Once the new one is in place, the journal is truncated.
+	private void writeSnapshot(HashedMapIntInt refcnt) throws java.io.IOException
+	{
+		java.nio.file.Path fhtmp = fh_snapshot.resolveSibling(FILE_SNAPSHOT+EXT_TMP);
+		try (java.io.FileOutputStream fstrm = new java.io.FileOutputStream(fhtmp.toFile())) {
+			java.io.DataOutputStream strm = new java.io.DataOutputStream(new java.io.BufferedOutputStream(fstrm, 64*1024));
+			strm.writeInt(MAGIC);
+			strm.writeInt(refcnt.size());
+			IteratorInt it = refcnt.recycledKeysIterator();
+			while (it.hasNext()) {
+				int spid = it.next();
+				strm.writeInt(spid);
+				strm.writeInt(refcnt.get(spid));
+			}
+			strm.flush();
+			fstrm.getFD().sync();
+		}
+		java.nio.file.Files.move(fhtmp, fh_snapshot, java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+				java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+		jnlbuf.clear();
+		openJournal().truncate(0);
+		jnlcnt = 0;
+	}
+
+	public void close()
+	{
+		if (jnlchan == null) return;
+		try {
+			jnlchan.close();
+		} catch (Exception ex) {
+			if (logger != null) logger.trace(loglbl+"Failed to close SPID journal - "+ex);
+		}
+		jnlchan = null;
+	}
+
+	private void addRecord(byte rectype, int spid, int cnt)
+	{
+		if (disabled) return;
+		try {
+			if (jnlbuf.remaining() < RECSIZ) writeJournal();
+			jnlbuf.put(rectype).putInt(spid).putInt(cnt);
+			jnlcnt++;
+		} catch (Exception ex) {
+			abandon(ex);
+		}
+	}
+
+	private void writeJournal() throws java.io.IOException
+	{
+		if (jnlbuf.position() == 0) return;
+		jnlbuf.flip();
+		java.nio.channels.FileChannel chan = openJournal();
+		while (jnlbuf.hasRemaining()) chan.write(jnlbuf);
+		jnlbuf.clear();
+	}
+
+	private java.nio.channels.FileChannel openJournal() throws java.io.IOException
+	{
+		if (jnlchan == null) {
+			jnlchan = java.nio.channels.FileChannel.open(fh_journal, java.nio.file.StandardOpenOption.CREATE,
+					java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.APPEND);
+		}
+		return jnlchan;
+	}
+
+	// If we can't maintain the checkpoint, we have to delete it rather than leave a stale one to be loaded next time
+	private void abandon(Exception ex)
+	{
+		if (logger != null) logger.warn(loglbl+"Disabling SPID checkpoint after failure - "+com.grey.base.ExceptionUtils.summary(ex));
+		disabled = true;
+		close();
+		FileOps.deleteFile(fh_snapshot);
+		FileOps.deleteFile(fh_journal);
+	}
+
+	// Returns the persisted high-water mark of the SPID allocator, or null if there is none
+	static Integer loadHighWater(java.nio.file.Path dhroot)
+	{
+		java.nio.file.Path fh = dhroot.resolve(FILE_HIGHWATER);
+		try {
+			String txt = new String(java.nio.file.Files.readAllBytes(fh), java.nio.charset.StandardCharsets.US_ASCII).trim();
+			return Integer.valueOf(Integer.parseUnsignedInt(txt, 16));
+		} catch (Exception ex) {
+			return null;
+		}
+	}
+
+	// This has to be durable before any SPIDs beyond the previous high-water mark are issued
+	static void saveHighWater(java.nio.file.Path dhroot, int spid) throws java.io.IOException
+	{
+		java.nio.file.Path fh = dhroot.resolve(FILE_HIGHWATER);
+		java.nio.file.Path fhtmp = dhroot.resolve(FILE_HIGHWATER+EXT_TMP);
+		try (java.io.FileOutputStream fstrm = new java.io.FileOutputStream(fhtmp.toFile())) {
+			fstrm.write(Integer.toHexString(spid).getBytes(java.nio.charset.StandardCharsets.US_ASCII));
+			fstrm.getFD().sync();
+		}
+		java.nio.file.Files.move(fhtmp, fh, java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+				java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// Called when checkpoints are not enabled, as any existing ones will go stale
+	static void discard(java.nio.file.Path dhroot)
+	{
+		FileOps.deleteFile(dhroot.resolve(FILE_SNAPSHOT));
+		FileOps.deleteFile(dhroot.resolve(FILE_JOURNAL));
+		FileOps.deleteFile(dhroot.resolve(FILE_HIGHWATER));
+	}
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.queue;
+
+import com.grey.base.utils.FileOps;
+
+/*
+ * The format of compressed spool files, and the means of reading them.
+ * A compressed spool file consists of a short header which identifies it as such, followed by the message body as a raw
+ * deflate stream, followed by a trailer which records the original size of the message.
+ * The header begins with a NUL, which can never be the first byte of an uncompressed spool file (as that is an RFC-822
+ * message), so compressed and uncompressed spool files can co-exist in the same spool area, and the readers below handle
+ * either kind. That means the compression setting can be changed at any time, without having to drain the queue.
+ */
+public final class SpoolCompression
+{
+	private static final byte[] MAGIC = {0, 'M', 'Z', 1};
+	private static final int TRAILER_SIZE = 8;
+	private static final int BUFSIZ = 8192;
+
+	// Returns a stream which yields the original content of the spool file, whether or not it is compressed.
+	public static java.io.InputStream open(java.nio.file.Path fh) throws java.io.IOException
+	{
+		java.io.InputStream strm = openCompressed(fh);
+		if (strm == null) strm = java.nio.file.Files.newInputStream(fh, FileOps.OPENOPTS_NONE);
+		return strm;
+	}
+
+	// Returns a decompressing stream if the spool file is compressed, or null if it isn't, in which case the caller can
+	// read the file directly (eg. by zero-copy transfer).
+	public static java.io.InputStream openCompressed(java.nio.file.Path fh) throws java.io.IOException
+	{
+		java.io.InputStream fstrm = java.nio.file.Files.newInputStream(fh, FileOps.OPENOPTS_NONE);
+		boolean ok = false;
+		try {
+			byte[] hdr = new byte[MAGIC.length];
+			int nbytes = readFully(fstrm, hdr);
+			if (nbytes != hdr.length || !java.util.Arrays.equals(hdr, MAGIC)) return null;
+			java.io.InputStream strm = new InflatingStream(fstrm);
+			ok = true;
+			return strm;
+		} finally {
+			if (!ok) fstrm.close();
+		}
+	}
+
+	// Wraps a stream returned by openCompressed() in a read-only channel, which inflates the content only as it is read, a
+	// window of chunksiz bytes at a time. This allows a compressed spool file to be handed to IOExecWriter.transmitChunked(),
+	// which reads each chunk as the connection drains, just as it would with an uncompressed file. The channel takes
+	// ownership of the stream and only supports reading forwards. The size arg is the content size (see getContentSize).
+	// Being read-only, it refuses writes and exclusive locks, as a FileChannel opened for reading would.
+	public static java.nio.channels.FileChannel asChannel(java.io.InputStream strm, long size, int chunksiz)
+	{
+		return new InflatingChannel(strm, size, chunksiz);
+	}
+
+	public static boolean isCompressed(java.nio.file.Path fh) throws java.io.IOException
+	{
+		try (java.nio.channels.FileChannel chan = java.nio.channels.FileChannel.open(fh)) {
+			return hasMagic(chan);
+		}
+	}
+
+	// Returns the size of the original message, which for an uncompressed spool file is simply the file size.
+	public static long getContentSize(java.nio.file.Path fh) throws java.io.IOException
+	{
+		try (java.nio.channels.FileChannel chan = java.nio.channels.FileChannel.open(fh)) {
+			long filesize = chan.size();
+			if (!hasMagic(chan)) return filesize;
+			java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate(TRAILER_SIZE);
+			chan.position(filesize - TRAILER_SIZE);
+			while (buf.hasRemaining() && chan.read(buf) != -1) {}
+			buf.flip();
+			return buf.getLong();
+		}
+	}
+
+	// Writes the header to the given file stream, and returns the stream which compresses the message body into it.
+	// The caller retains ownership of the Deflater, which may be reset and reused once the returned stream is closed.
+	static java.io.OutputStream wrap(java.io.OutputStream fstrm, java.util.zip.Deflater deflater, int bufsiz) throws java.io.IOException
+	{
+		fstrm.write(MAGIC);
+		return new DeflatingStream(fstrm, deflater, bufsiz);
+	}
+
+	private static boolean hasMagic(java.nio.channels.FileChannel chan) throws java.io.IOException
+	{
+		if (chan.size() < MAGIC.length + TRAILER_SIZE) return false;
+		java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate(MAGIC.length);
+		while (buf.hasRemaining() && chan.read(buf) != -1) {}
+		return java.util.Arrays.equals(buf.array(), MAGIC);
+	}
+
+	private static int readFully(java.io.InputStream strm, byte[] buf) throws java.io.IOException
+	{
+		int off = 0;
+		while (off != buf.length) {
+			int nbytes = strm.read(buf, off, buf.length - off);
+			if (nbytes == -1) break;
+			off += nbytes;
+		}
+		return off;
+	}
+
+
+	private static final class DeflatingStream
+		extends java.util.zip.DeflaterOutputStream
+	{
+		private boolean closed;
+
+		DeflatingStream(java.io.OutputStream fstrm, java.util.zip.Deflater deflater, int bufsiz) {
+			super(fstrm, deflater, bufsiz);
+		}
+
+		@Override
+		public void close() throws java.io.IOException
+		{
+			if (closed) return;
+			closed = true;
+			try {
+				finish();
+				java.nio.ByteBuffer trailer = java.nio.ByteBuffer.allocate(TRAILER_SIZE);
+				trailer.putLong(def.getBytesRead());
+				out.write(trailer.array());
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+
+	private static final class InflatingChannel
+		extends java.nio.channels.FileChannel
+	{
+		private final java.io.InputStream strm;
+		private final long size;
+		private final byte[] window; //holds the content from offset winpos onwards
+		private long winpos;
+		private int winlen;
+		private long position;
+
+		InflatingChannel(java.io.InputStream strm, long size, int chunksiz) {
+			this.strm = strm;
+			this.size = size;
+			window = new byte[chunksiz];
+		}
+
+		@Override
+		public int read(java.nio.ByteBuffer dst, long pos) throws java.io.IOException {
+			int off = locate(pos);
+			if (off == -1) return -1;
+			int len = Math.min(dst.remaining(), winlen - off);
+			dst.put(window, off, len);
+			return len;
+		}
+
+		@Override
+		public int read(java.nio.ByteBuffer dst) throws java.io.IOException {
+			int nbytes = read(dst, position);
+			if (nbytes > 0) position += nbytes;
+			return nbytes;
+		}
+
+		@Override
+		public long read(java.nio.ByteBuffer[] dsts, int offset, int length) throws java.io.IOException {
+			long total = 0;
+			for (int idx = offset; idx != offset + length; idx++) {
+				if (!dsts[idx].hasRemaining()) continue;
+				int nbytes = read(dsts[idx]);
+				if (nbytes == -1) return (total == 0 ? -1 : total);
+				total += nbytes;
+				if (dsts[idx].hasRemaining()) break;
+			}
+			return total;
+		}
+
+		// Stops short if the target can't take any more, as a non-blocking socket may not
+		@Override
+		public long transferTo(long pos, long count, java.nio.channels.WritableByteChannel target) throws java.io.IOException {
+			long total = 0;
+			while (total < count) {
+				int off = locate(pos + total);
+				if (off == -1) break;
+				int len = (int)Math.min(count - total, winlen - off);
+				int nbytes = target.write(java.nio.ByteBuffer.wrap(window, off, len));
+				total += nbytes;
+				if (nbytes < len) break;
+			}
+			return total;
+		}
+
+		// Makes sure the window holds the content at the given offset, and returns its index within the window, or -1
+		// if the offset is beyond the end of the content.
+		private int locate(long pos) throws java.io.IOException {
+			if (!isOpen()) throw new java.nio.channels.ClosedChannelException();
+			if (pos < winpos) throw new java.io.IOException("Compressed spool cannot be read backwards - pos="+pos+" vs "+winpos);
+			while (pos >= winpos + winlen) {
+				winpos += winlen;
+				winlen = 0;
+				int nbytes = readFully(strm, window);
+				if (nbytes == 0) return -1;
+				winlen = nbytes;
+			}
+			return (int)(pos - winpos);
+		}
+
+		@Override
+		public long position() {return position;}
+		@Override
+		public java.nio.channels.FileChannel position(long pos) {position = pos; return this;}
+		@Override
+		public long size() {return size;}
+		@Override
+		public void force(boolean metaData) {}
+		@Override
+		protected void implCloseChannel() throws java.io.IOException {strm.close();}
+
+		@Override
+		public int write(java.nio.ByteBuffer src) {throw new java.nio.channels.NonWritableChannelException();}
+		@Override
+		public long write(java.nio.ByteBuffer[] srcs, int offset, int length) {throw new java.nio.channels.NonWritableChannelException();}
+		@Override
+		public int write(java.nio.ByteBuffer src, long pos) {throw new java.nio.channels.NonWritableChannelException();}
+		@Override
+		public java.nio.channels.FileChannel truncate(long sz) {throw new java.nio.channels.NonWritableChannelException();}
+		@Override
+		public long transferFrom(java.nio.channels.ReadableByteChannel src, long pos, long count) {
+			throw new java.nio.channels.NonWritableChannelException();
+		}
+
+		// There is no file behind the inflated content, so the requested region is inflated into a temp file which is
+		// mapped instead. Like any read, it has to lie ahead of whatever has already been read.
+		@Override
+		public java.nio.MappedByteBuffer map(MapMode mode, long pos, long sz) throws java.io.IOException {
+			if (mode != MapMode.READ_ONLY) throw new java.nio.channels.NonWritableChannelException();
+			if (pos < 0 || sz < 0 || sz > Integer.MAX_VALUE) throw new IllegalArgumentException("Invalid map region="+pos+"/"+sz);
+			if (!isOpen()) throw new java.nio.channels.ClosedChannelException();
+			if (pos + sz > size) throw new java.io.IOException("Map region="+pos+"/"+sz+" is beyond end of content="+size);
+			java.nio.file.Path fh = java.nio.file.Files.createTempFile("mailismus-inflated", null);
+			try (java.nio.channels.FileChannel chan = java.nio.channels.FileChannel.open(fh, java.nio.file.StandardOpenOption.READ,
+					java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.DELETE_ON_CLOSE)) {
+				long nbytes = transferTo(pos, sz, chan);
+				if (nbytes != sz) throw new java.io.IOException("Map region="+pos+"/"+sz+" truncated at "+nbytes);
+				return chan.map(MapMode.READ_ONLY, 0, sz);
+			}
+		}
+
+		// The channel is private to its reader, so there is nothing to contend with for a shared lock, while an exclusive
+		// one is refused in the same way as on a FileChannel which was only opened for reading.
+		@Override
+		public java.nio.channels.FileLock lock(long pos, long sz, boolean shared) throws java.io.IOException {
+			return tryLock(pos, sz, shared);
+		}
+
+		@Override
+		public java.nio.channels.FileLock tryLock(long pos, long sz, boolean shared) throws java.io.IOException {
+			if (!shared) throw new java.nio.channels.NonWritableChannelException();
+			if (!isOpen()) throw new java.nio.channels.ClosedChannelException();
+			return new SharedLock(this, pos, sz);
+		}
+	}
+
+
+	private static final class SharedLock
+		extends java.nio.channels.FileLock
+	{
+		private boolean released;
+
+		SharedLock(java.nio.channels.FileChannel chan, long pos, long sz) {
+			super(chan, pos, sz, true);
+		}
+
+		@Override
+		public boolean isValid() {return !released && channel().isOpen();}
+
+		@Override
+		public void release() throws java.io.IOException {
+			if (!channel().isOpen()) throw new java.nio.channels.ClosedChannelException();
+			released = true;
+		}
+	}
+
+
+	// The Inflater is our own, so we have to release it on close.
+	// Note that the trailer also serves as the extra input byte which a raw Inflater requires after the deflate stream.
+	private static final class InflatingStream
+		extends java.util.zip.InflaterInputStream
+	{
+		private boolean closed;
+
+		InflatingStream(java.io.InputStream fstrm) {
+			super(fstrm, new java.util.zip.Inflater(true), BUFSIZ);
+		}
+
+		@Override
+		public void close() throws java.io.IOException
+		{
+			if (closed) return;
+			closed = true;
+			try {
+				super.close();
+			} finally {
+				inf.end();
+			}
+		}
+	}
+}
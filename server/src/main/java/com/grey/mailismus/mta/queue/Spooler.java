@@ -40,11 +40,14 @@ public final class Spooler
 	private final java.nio.file.Path dh_ndrdiag;
 	private final int spidmask;
 	private final int bufsiz_submit;
+	private final int compress_level; //zero means no compression
 	private final ObjectWell<SubmitHandle> poolSubmitHandles;
 	private final com.grey.logging.Logger logger;
 	private final String loglbl;
 	private final boolean isHardLinked;
 	private final HashedMapIntInt spids_refcnt;
+	private final SpoolBodies bodies; //null unless in dedup mode
+	private final SpoolCheckpoint checkpoint; //null unless SPID cache is checkpointed
 	private final SPID_Allocator spidgen;
 	private final int max_spidrefs;
 	private final Clock clock = Clock.systemUTC();
@@ -58,6 +61,8 @@ public final class Spooler
 
 	public static boolean isMultiSPID(int spid) {return ((spid & 0x1) == 1);}
 	public boolean isHardLinked() {return isHardLinked;}
+	boolean isCompressed() {return compress_level != 0;}
+	java.nio.file.Path getRoot() {return dhroot;}
 	private int mapSilo(int spid) {return spid & spidmask;}
 	boolean cancel(SubmitHandle sph) {return cancel(sph, sph.recips.size());}
 	void releaseHandle(SubmitHandle sph) {poolSubmitHandles.store(sph.release());}
@@ -75,6 +80,13 @@ public final class Spooler
 		bufsiz_submit = (int)cfg.getSize("bufsize", "16K");
 		isHardLinked = cfg.getBool("hardlinks", false);
 		max_spidrefs = (isHardLinked ? -1 : cfg.getInt("maxspidcache", false, 250_000));
+		boolean dedup = cfg.getBool("dedup", false);
+		boolean compress = cfg.getBool("compress", false);
+		boolean ckpt = cfg.getBool("checkpoint", false);
+		int ckpt_journal = cfg.getInt("checkpoint_journal", false, 100_000);
+		compress_level = (compress ? cfg.getInt("compresslevel", false, 1) : 0);
+		if (compress && (compress_level < 1 || compress_level > 9)) throw new MailismusConfigException(loglbl+"Invalid compresslevel="+compress_level+" - must be 1-9");
+		if (dedup && isHardLinked) throw new MailismusConfigException(loglbl+"dedup cannot be combined with hardlinks");
 
 		// create top-level directory of spool area
 		spidmask = (int)Math.pow(2, loadfactor) - 1;
@@ -83,12 +95,28 @@ public final class Spooler
 		fhsilo = createSiloDefs();
 		FileOps.ensureDirExists(dhroot);
 
-		if (isHardLinked) {
+		if (isHardLinked || dedup) {
 			verifySupportsHardLinks(dhroot);
 		}
 
+		if (dedup) {
+			ConcurrentHashMap<java.nio.file.Path,SpoolBodies> stores = appctx.getNamedItem(getClass().getName()+"-bodies", () -> new ConcurrentHashMap<>());
+			SpoolBodies store = stores.get(dhroot);
+			if (store == null) {
+				store = new SpoolBodies(dhroot);
+				SpoolBodies store2 = stores.putIfAbsent(dhroot, store);
+				if (store2 != null) store = store2;
+			}
+			bodies = store;
+		} else {
+			bodies = null;
+		}
+
+		if (!ckpt) SpoolCheckpoint.discard(dhroot);
+
 		if (max_spidrefs == -1) {
 			spids_refcnt = null;
+			checkpoint = null;
 		} else {
 			ConcurrentHashMap<java.nio.file.Path,HashedMapIntInt> refcounts = appctx.getNamedItem(getClass().getName()+"-refcnt", () -> new ConcurrentHashMap<>());
 			HashedMapIntInt map = refcounts.get(dhroot);
@@ -98,6 +126,19 @@ public final class Spooler
 				if (map2 != null) map = map2;
 			}
 			spids_refcnt = map;
+
+			if (ckpt) {
+				ConcurrentHashMap<java.nio.file.Path,SpoolCheckpoint> ckpts = appctx.getNamedItem(getClass().getName()+"-checkpoint", () -> new ConcurrentHashMap<>());
+				SpoolCheckpoint cp = ckpts.get(dhroot);
+				if (cp == null) {
+					cp = new SpoolCheckpoint(dhroot, ckpt_journal, logger, "Spooler: ");
+					SpoolCheckpoint cp2 = ckpts.putIfAbsent(dhroot, cp);
+					if (cp2 != null) cp = cp2;
+				}
+				checkpoint = cp;
+			} else {
+				checkpoint = null;
+			}
 		}
 
 		// Don't bother with ConcurrentHashMap, as we want to lock the SPID_Allocator constructor as well, to make sure only
@@ -106,7 +147,7 @@ public final class Spooler
 		synchronized (SPID_allocators) {
 			SPID_Allocator allocator = SPID_allocators.get(dhroot);
 			if (allocator == null) {
-				spidgen = new SPID_Allocator(dhroot, clock);
+				spidgen = new SPID_Allocator(dhroot, clock, ckpt);
 				SPID_allocators.put(dhroot, spidgen);
 			} else {
 				spidgen = allocator;
@@ -115,7 +156,7 @@ public final class Spooler
 
 		if (logger != null) {
 			logger.info(loglbl+"Root="+dhroot);
-			logger.trace(loglbl+"bufsiz="+bufsiz_submit+", hardlinks="+isHardLinked+", maxspidcache="+max_spidrefs
+			logger.trace(loglbl+"bufsiz="+bufsiz_submit+", hardlinks="+isHardLinked+", dedup="+dedup+", compress="+compress_level+", checkpoint="+ckpt+", maxspidcache="+max_spidrefs
 					+", silofactor="+loadfactor+"/"+fhsilo.length);
 		}
 	}
@@ -126,10 +167,15 @@ public final class Spooler
 		synchronized (spids_refcnt) {
 			//non-empty map doesn't mean we're the first to do this load, but it should mean it's cheap to repeat it
 			if (!spids_refcnt.isEmpty()) return;
+			if (checkpoint != null && checkpoint.load(spids_refcnt)) {
+				if (logger != null) logger.info(loglbl+"Restored SPID refs="+spids_refcnt.size()+" from checkpoint");
+				return;
+			}
 			loader.loadSPIDs(spids_refcnt, max_spidrefs);
 			if (logger != null && spids_refcnt.size() != 0) {
 				logger.info(loglbl+"Loaded existing SPID refs="+spids_refcnt.size());
 			}
+			if (checkpoint != null) checkpoint.save(spids_refcnt); //establish the baseline for the journal
 		}
 	}
 
@@ -145,11 +191,11 @@ public final class Spooler
 		try {
 			java.nio.file.Path fh1 = getMessage(sph.spid, 1);
 			try {
-				sph.create(fh1, bufsiz_submit, no_open);
+				sph.create(fh1, bufsiz_submit, no_open, bodies != null, compress_level);
 			} catch (java.io.IOException ex) {
 				//assume failure is due to missing silo directory - a 2nd failure is genuine
 				FileOps.ensureDirExists(FileOps.parentDirectory(fh1));
-				sph.create(fh1, bufsiz_submit, no_open);
+				sph.create(fh1, bufsiz_submit, no_open, bodies != null, compress_level);
 			}
 			filecnt++;
 
@@ -175,10 +221,29 @@ public final class Spooler
 		return sph;
 	}
 
+	// Called once the message body is complete, and before it is committed to the queue.
+	// In dedup mode, a body we already hold is replaced by a link to that - any failure here is harmless, as we simply keep
+	// the spool file as it is.
+	void storeBody(SubmitHandle sph)
+	{
+		if (bodies == null) return;
+		byte[] digest = sph.getBodyDigest();
+		if (digest == null) return;
+		try {
+			bodies.add(sph.spid, sph.getMessage(), digest);
+		} catch (Exception ex) {
+			if (logger != null) logger.info(loglbl+"Failed to dedup spool-file="+sph.getMessage()+" - "+ex);
+		}
+	}
+
 	private boolean cancel(SubmitHandle sph, int recipcnt)
 	{
 		if (spids_refcnt != null) {
 			synchronized (spids_refcnt) {
+				if (checkpoint != null && spids_refcnt.containsKey(sph.spid)) {
+					checkpoint.remove(sph.spid);
+					checkpoint.flush(spids_refcnt);
+				}
 				spids_refcnt.remove(sph.spid);
 			}
 		}
@@ -188,6 +253,7 @@ public final class Spooler
 			java.nio.file.Path fh1 = sph.getMessage();
 			if (fh1 == null) fh1 = getMessage(sph.spid, 1);
 			if (!delete(fh1)) success = false;
+			if (bodies != null) bodies.release(sph.spid);
 		}
 
 		if (isHardLinked) {
@@ -230,15 +296,27 @@ public final class Spooler
 
 		// ... and here come the moving parts
 		try {
-			FileOps.copyFile(fhsrc, fhdst);
+			exportContent(fhsrc, fhdst);
 		} catch (Exception ex) {
 			// assume failure is due to missing directory - a 2nd failure is genuine
 			FileOps.ensureDirExists(FileOps.parentDirectory(fhdst));
-			FileOps.copyFile(fhsrc, fhdst);
+			exportContent(fhsrc, fhdst);
 		}
 		return fhdst;
 	}
 
+	// exported messages are always uncompressed, as they are intended for external consumption
+	private static void exportContent(java.nio.file.Path fhsrc, java.nio.file.Path fhdst) throws java.io.IOException
+	{
+		try (java.io.InputStream strm = SpoolCompression.openCompressed(fhsrc)) {
+			if (strm == null) {
+				FileOps.copyFile(fhsrc, fhdst);
+			} else {
+				java.nio.file.Files.copy(strm, fhdst, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+	}
+
 	// this only gets called when hard links aren't in use
 	void deleteOrphans(HashedSetInt spids)
 	{
@@ -250,7 +328,9 @@ public final class Spooler
 	boolean delete(int spid, int qid)
 	{
 		java.nio.file.Path fh = getMessage(spid, qid);
-		return delete(fh);
+		boolean ok = delete(fh);
+		if (bodies != null) bodies.release(spid);
+		return ok;
 	}
 
 	private boolean delete(java.nio.file.Path fh)
@@ -285,8 +365,13 @@ public final class Spooler
 				//we could just discard the new entry, but we want to be biased towards new messages, so discard random existing one
 				int delspid = spids_refcnt.recycledKeysIterator().next();
 				spids_refcnt.remove(delspid);
+				if (checkpoint != null) checkpoint.remove(delspid);
 			}
 			spids_refcnt.put(spid, cnt);
+			if (checkpoint != null) {
+				checkpoint.set(spid, cnt);
+				checkpoint.flush(spids_refcnt);
+			}
 		}
 	}
 
@@ -309,20 +394,24 @@ public final class Spooler
 					if (totalcnt == 0) {
 						//this is now known to be an orphan, so cross off the list of mere candidates
 						spids_refcnt.remove(spid);
+						if (checkpoint != null) checkpoint.remove(spid);
 						completed.add(spid);
 					} else {
 						if (totalcnt < 0) {
 							//something's gone wrong, so remove from global refs but leave as orphan candidate
 							spids_refcnt.remove(spid);
+							if (checkpoint != null) checkpoint.remove(spid);
 							if (logger != null) logger.error(loglbl+"SPID="+externalSPID(spid)+" has excess delivcnt="+batchcnt+" vs refcnt="+(totalcnt+batchcnt));
 							continue;
 						}
 						//not an orphan candidate, as known refs remain
 						spids_refcnt.put(spid, totalcnt);
+						if (checkpoint != null) checkpoint.set(spid, totalcnt);
 					}
 					it.remove();
 				}
 			}
+			if (checkpoint != null) checkpoint.flush(spids_refcnt);
 			return spids_refcnt.size();
 		}
 	}
@@ -330,9 +419,36 @@ public final class Spooler
 	int housekeep(long oldest_timestamp) throws java.io.IOException
 	{
 		String[] filetypes = new String[]{EXT_SPOOL, EXT_NDRDIAG};
+		int cnt = 0;
+		if (bodies != null) {
+			// delete the spool files ourselves, so that we can release their share of the held bodies
+			cnt += housekeepSpool(oldest_timestamp);
+			filetypes = new String[]{EXT_NDRDIAG};
+		}
 		FileOps.Filter_EndsWith filter = new FileOps.Filter_EndsWith(filetypes, false, false);
-		int cnt = FileOps.deleteOlderThan(dhroot.toFile(), oldest_timestamp, filter, true);
-		if (cnt != 0 && logger != null) logger.trace(loglbl+"Housekeep deletes="+cnt);
+		cnt += FileOps.deleteOlderThan(dhroot.toFile(), oldest_timestamp, filter, true);
+		if (bodies != null) cnt += bodies.housekeep(oldest_timestamp);
+		if (cnt != 0 && logger != null) logger.trace(loglbl+"Housekeep deletes="+cnt+(bodies == null ? "" : " - "+bodies));
+		return cnt;
+	}
+
+	private int housekeepSpool(long oldest_timestamp) throws java.io.IOException
+	{
+		int cnt = 0;
+		for (int idx = 0; idx != fhsilo.length; idx++) {
+			if (!java.nio.file.Files.isDirectory(fhsilo[idx])) continue;
+			try (java.nio.file.DirectoryStream<java.nio.file.Path> ds = java.nio.file.Files.newDirectoryStream(fhsilo[idx])) {
+				for (java.nio.file.Path fpath : ds) {
+					String filename = FileOps.getFilename(fpath);
+					if (!filename.endsWith(EXT_SPOOL)) continue;
+					if (java.nio.file.Files.getLastModifiedTime(fpath).toMillis() >= oldest_timestamp) continue;
+					int spid = (int)StringOps.parseNumber(filename, 0, filename.length() - EXT_SPOOL.length(), 16);
+					if (!delete(fpath)) continue;
+					bodies.release(spid);
+					cnt++;
+				}
+			}
+		}
 		return cnt;
 	}
 
@@ -373,11 +489,29 @@ public final class Spooler
 		//SPID to assign to next single-recip message
 		private AtomicInteger nextspid_solo = new AtomicInteger();
 
-		public SPID_Allocator(java.nio.file.Path dhroot, Clock clock) throws java.io.IOException {
+		// In checkpoint mode, the SPIDs are issued in blocks, and the end of the current one is persisted before we
+		// issue any SPIDs from it, so that we can simply resume from there on restart, without scanning the spool.
+		private static final int RESERVE_BLOCK = 1 << 20;
+		private final java.nio.file.Path dh_checkpoint;
+		private volatile int reserved_limit;
+
+		public SPID_Allocator(java.nio.file.Path dhroot, Clock clock, boolean checkpoint) throws java.io.IOException {
+			dh_checkpoint = (checkpoint ? dhroot : null);
+			Integer hwm = (checkpoint ? SpoolCheckpoint.loadHighWater(dhroot) : null);
+			int intspid = (hwm == null ? scanSpool(dhroot, clock) : hwm.intValue());
+			if (isMultiSPID(intspid)) intspid++;
+			nextspid_solo.set(intspid);
+			nextspid_multi.set(intspid+1);
+			if (checkpoint) reserve(intspid);
+		}
+
+		private static int scanSpool(java.nio.file.Path dhroot, Clock clock) throws java.io.IOException {
 			long nextspid = clock.millis();
 			java.util.ArrayList<java.nio.file.Path> spooldirs = FileOps.directoryList(dhroot, false);
 			for (int idx = 0; idx != spooldirs.size(); idx++) {
 				java.nio.file.Path dhsilo = spooldirs.get(idx);
+				if (!java.nio.file.Files.isDirectory(dhsilo)) continue;
+				if (FileOps.getFilename(dhsilo).equals(SpoolBodies.DIR_BODIES)) continue; //not named after SPIDs
 				try (java.nio.file.DirectoryStream<java.nio.file.Path> ds = java.nio.file.Files.newDirectoryStream(dhsilo)) {
 					for (java.nio.file.Path fpath : ds) {
 						String filename = FileOps.getFilename(fpath);
@@ -389,17 +523,22 @@ public final class Spooler
 				}
 			}
 			if (nextspid == 0) nextspid++;
-			int intspid = (int)nextspid;
-			if (isMultiSPID(intspid)) intspid++;
-			nextspid_solo.set(intspid);
-			nextspid_multi.set(intspid+1);
+			return (int)nextspid;
 		}
 
-		public int getSPID(int recipcnt) {
+		public int getSPID(int recipcnt) throws java.io.IOException {
 			AtomicInteger nextspid = (recipcnt == 1 ? nextspid_solo : nextspid_multi);
 			int spid = nextspid.addAndGet(2);
 			if (spid == 0) spid = nextspid.addAndGet(2);
+			if (dh_checkpoint != null && spid - reserved_limit >= 0) reserve(spid); //subtraction copes with wraparound
 			return spid;
 		}
+
+		private synchronized void reserve(int spid) throws java.io.IOException {
+			if (dh_checkpoint == null || (reserved_limit != 0 && spid - reserved_limit < 0)) return; //already done by another thread
+			int limit = spid + RESERVE_BLOCK;
+			SpoolCheckpoint.saveHighWater(dh_checkpoint, limit);
+			reserved_limit = limit;
+		}
 	}
 }
\ No newline at end of file
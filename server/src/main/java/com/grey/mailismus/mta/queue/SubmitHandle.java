@@ -17,6 +17,11 @@ import com.grey.logging.Logger.LEVEL;
 public final class SubmitHandle
 {
 	private static final byte[] CRLF = {'\r', '\n'};
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+	private static final int DIGEST_HOLDBACK = 8; //the trailing bytes which close() may yet truncate, so are not digested till then
+	private static final int DIRECT_MINSIZE = 4096; //writes at least this big bypass the stream buffer, if we have a channel
+	private static final java.nio.file.OpenOption[] OPENOPTS_CHANNEL = {java.nio.file.StandardOpenOption.CREATE_NEW,
+																		java.nio.file.StandardOpenOption.WRITE};
 
 	public int spid;
 	public com.grey.base.utils.ByteChars sender;
@@ -27,18 +32,65 @@ public final class SubmitHandle
 	private java.nio.file.Path pthnam;
 	private com.grey.base.utils.MutableOutputStream strm;
 
+	// Uncompressed spool files are written via a FileChannel, so that large writes can go straight from the caller's
+	// buffer to the file, rather than being copied into the stream buffer first.
+	private java.nio.channels.FileChannel chan;
+	private java.nio.ByteBuffer chanbuf; //wraps the caller's most recent direct-write buffer
+
+	// the digest of the message body, which is only calculated in the Spooler's dedup mode
+	private java.security.MessageDigest digest;
+	private boolean digesting;
+	private byte[] body_digest; //non-null once the body is complete
+	private final byte[] digest_tail = new byte[DIGEST_HOLDBACK];
+	private int digest_tailcnt;
+
+	// only used in the Spooler's compression mode
+	private java.util.zip.Deflater deflater;
+	private int deflater_level;
+
 	public java.nio.file.Path getMessage() {return pthnam;}
+	byte[] getBodyDigest() {return body_digest;}
 	boolean close(com.grey.logging.Logger logger) {return close(0, false, logger);}
 
-	void create(java.nio.file.Path p, int bufsiz, boolean no_open) throws java.io.IOException
+	void create(java.nio.file.Path p, int bufsiz, boolean no_open, boolean calc_digest, int compress_level) throws java.io.IOException
 	{
+		if (calc_digest && !no_open) {
+			if (digest == null) {
+				try {
+					digest = java.security.MessageDigest.getInstance(DIGEST_ALGORITHM);
+				} catch (java.security.NoSuchAlgorithmException ex) {
+					throw new java.io.IOException("Spool digest not supported - "+DIGEST_ALGORITHM, ex);
+				}
+			}
+			digest.reset();
+			digesting = true;
+		}
 		java.io.OutputStream fstrm = null;
 		if (no_open) {
 			java.nio.file.Files.createFile(p, FileOps.FATTR_NONE);
+		} else if (compress_level == 0) {
+			chan = java.nio.channels.FileChannel.open(p, OPENOPTS_CHANNEL);
+			fstrm = java.nio.channels.Channels.newOutputStream(chan);
 		} else {
 			fstrm = java.nio.file.Files.newOutputStream(p, FileOps.OPENOPTS_CREATNEW);
 		}
-		if (fstrm != null) strm = new com.grey.base.utils.MutableOutputStream(fstrm, bufsiz);
+		if (fstrm != null) {
+			if (compress_level != 0) {
+				if (deflater == null || deflater_level != compress_level) {
+					if (deflater != null) deflater.end();
+					deflater = new java.util.zip.Deflater(compress_level, true);
+					deflater_level = compress_level;
+				}
+				deflater.reset();
+				try {
+					fstrm = SpoolCompression.wrap(fstrm, deflater, bufsiz);
+				} catch (java.io.IOException ex) {
+					fstrm.close();
+					throw ex;
+				}
+			}
+			strm = new com.grey.base.utils.MutableOutputStream(fstrm, bufsiz);
+		}
 		pthnam = p;
 	}
 
@@ -47,17 +99,37 @@ public final class SubmitHandle
 		if (strm == null) return true;
 		boolean ok = true;
 		try {
-			if (truncate != 0) strm.truncateBy(truncate);
+			if (truncate != 0) {
+				if (chan == null) {
+					strm.truncateBy(truncate);
+				} else {
+					// the bytes to be truncated may have been written directly to the channel, so can't rely on the stream
+					strm.flush();
+					chan.truncate(chan.position() - truncate); //also pulls back the position
+				}
+			}
 			if (add_crlf) strm.write(CRLF);
 			strm.close();
+			if (digesting) completeDigest(truncate, add_crlf);
 		} catch (Throwable ex) {
 			if (logger != null) logger.log(LEVEL.TRC, ex, false, "Failed to close spool-file - "+pthnam);
 			ok = false;
 		}
 		strm = null;
+		chan = null;
+		chanbuf = null;
+		digesting = false;
 		return ok;
 	}
 
+	// Forces the spool file to disk. The stream must already have been closed.
+	void sync() throws java.io.IOException
+	{
+		try (java.nio.channels.FileChannel fc = java.nio.channels.FileChannel.open(pthnam, java.nio.file.StandardOpenOption.WRITE)) {
+			fc.force(true);
+		}
+	}
+
 	// close() should already have been called to nullify strm
 	SubmitHandle release()
 	{
@@ -66,16 +138,65 @@ public final class SubmitHandle
 		recips = null;
 		sender_rewrites = null;
 		spid = 0;
+		digesting = false;
+		body_digest = null;
+		digest_tailcnt = 0;
 		return this;
 	}
 
 	public void write(byte[] buf, int off, int len) throws java.io.IOException
 	{
-		strm.write(buf, off, len);
+		if (chan == null || len < DIRECT_MINSIZE) {
+			strm.write(buf, off, len);
+		} else {
+			// flush what's already buffered, to preserve the ordering, then write the caller's buffer as is
+			strm.flush();
+			if (chanbuf == null || chanbuf.array() != buf) chanbuf = java.nio.ByteBuffer.wrap(buf);
+			chanbuf.limit(off + len).position(off);
+			while (chanbuf.hasRemaining()) chan.write(chanbuf);
+		}
+		if (digesting) updateDigest(buf, off, len);
 	}
 
 	public void write(ByteArrayRef arr) throws java.io.IOException
 	{
 		write(arr.buffer(), arr.offset(), arr.size());
 	}
-}
\ No newline at end of file
+
+	// Restarts the digest from the current position, so that whatever has been written so far is excluded from it.
+	// This allows the caller to write content which is unique to this submission (eg. a Received header) without it
+	// preventing otherwise identical bodies from being deduplicated.
+	public void startDigest()
+	{
+		if (!digesting) return;
+		digest.reset();
+		digest_tailcnt = 0;
+	}
+
+	// The final DIGEST_HOLDBACK bytes written so far are held back in digest_tail, so that close() can truncate them
+	private void updateDigest(byte[] buf, int off, int len)
+	{
+		int excess = digest_tailcnt + len - DIGEST_HOLDBACK;
+		if (excess <= 0) {
+			System.arraycopy(buf, off, digest_tail, digest_tailcnt, len);
+			digest_tailcnt += len;
+			return;
+		}
+		int fromtail = Math.min(excess, digest_tailcnt);
+		int frombuf = excess - fromtail;
+		digest.update(digest_tail, 0, fromtail);
+		digest.update(buf, off, frombuf);
+		System.arraycopy(digest_tail, fromtail, digest_tail, 0, digest_tailcnt - fromtail);
+		digest_tailcnt -= fromtail;
+		System.arraycopy(buf, off + frombuf, digest_tail, digest_tailcnt, len - frombuf);
+		digest_tailcnt = DIGEST_HOLDBACK;
+	}
+
+	private void completeDigest(int truncate, boolean add_crlf)
+	{
+		if (truncate > digest_tailcnt) return; //can't happen with the SMTP server's truncation, but no digest means no dedup
+		digest.update(digest_tail, 0, digest_tailcnt - truncate);
+		if (add_crlf) digest.update(CRLF);
+		body_digest = digest.digest();
+	}
+}
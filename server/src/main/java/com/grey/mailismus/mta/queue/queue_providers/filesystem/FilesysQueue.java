@@ -39,10 +39,21 @@ public final class FilesysQueue
 	private final long retryGranularity;
 	private final int maxFilesList;
 
-	private final com.grey.base.collections.HashedMap<String,java.io.File> deferdirs //keyed on simple filename
-			= new com.grey.base.collections.HashedMap<String,java.io.File>(0);
+	private final com.grey.base.collections.HashedMap<String,RetryWheel.DeferDir> deferdirs //keyed on simple filename
+			= new com.grey.base.collections.HashedMap<String,RetryWheel.DeferDir>(0);
 	private final com.grey.base.collections.HashedMap<MessageRecip, java.nio.file.Path> mmqcache
 			= new com.grey.base.collections.HashedMap<MessageRecip, java.nio.file.Path>(0,4);
+	private final com.grey.base.collections.HashedSet<java.nio.file.Path> mmqfiles //control files in flight, during a top-up load
+			= new com.grey.base.collections.HashedSet<java.nio.file.Path>();
+
+	// Index of the deferred control files, which is built on the first load of deferred messages, and thereafter kept up
+	// to date by updateMessages(). This relies on the fact that deferred files are only created by the same thread that loads
+	// them (see updateMessages).
+	private final RetryWheel retryWheel;
+	private final com.grey.base.collections.HashedMap<MessageRecip, RetryWheel.Entry> deferred_loaded
+			= new com.grey.base.collections.HashedMap<MessageRecip, RetryWheel.Entry>(0,4);
+	private final java.util.ArrayList<RetryWheel.Entry> deferred_unloadable = new java.util.ArrayList<RetryWheel.Entry>();
+	private boolean retryIndexBuilt;
 
 	// temp work areas, pre-allocated for efficiency
 	private final java.util.ArrayList<String> load_dirnames = new java.util.ArrayList<String>();
@@ -77,6 +88,7 @@ public final class FilesysQueue
 		deferredRoot_path = deferredRoot.toPath();
 		bounceDir_path = bounceDir.toPath();
 		mmq_nameparser = new FilenameParser(this);
+		retryWheel = new RetryWheel(retryGranularity, dsptch.getSystemTime());
 
 		FileOps.ensureDirExists(composeNewDir);
 		FileOps.ensureDirExists(composeBounceDir);
@@ -88,6 +100,17 @@ public final class FilesysQueue
 				+"; maxmmqlist="+maxFilesList);
 	}
 
+	@Override
+	public boolean supportsPartitions() {return true;}
+
+	@Override
+	public boolean supportsStreaming() {return true;}
+
+	@Override
+	public java.nio.file.Path getWatchPath(int event) {
+		return (event == com.grey.mailismus.mta.queue.QueueWakeup.EVENT_BOUNCES ? bounceDir_path : incomingDir_path);
+	}
+
 	@Override
 	public void loadSPIDs(com.grey.base.collections.HashedMapIntInt refcnt, int max) throws java.io.IOException
 	{
@@ -203,6 +226,7 @@ public final class FilesysQueue
 			final MessageRecip recip = msgcache.get(idx);
 			if (recip.qstatus != MessageRecip.STATUS_DONE) {
 				mmqcache.remove(recip); //leave the control file as is
+				retainDeferred(recip);
 				continue;
 			}
 
@@ -223,6 +247,7 @@ public final class FilesysQueue
 			java.io.File dirh_rename = null;
 			java.io.File dirh;
 			String filename;
+			RetryWheel.DeferDir deferdir = null;
 			if (isBounce) {
 				// Write to bounces dir. As is the case for new incoming messages, we rename the finished control file into
 				// its official directory after writing it, to ensure that the getBounces() method (which is called in a
@@ -236,7 +261,8 @@ public final class FilesysQueue
 				// create them is also the one which loads them, so it will never see partial files.
 				tmpsb.setLength(0);
 				tmpsb.append(FilenameParser.PFX_DEFERDIR).append(nextsend/1000); //min resolution is 1 sec, so avoid extra zeroes
-				dirh = getRetryDir(tmpsb.toString());
+				deferdir = getRetryDir(tmpsb.toString());
+				dirh = deferdir.dirh.toFile();
 				filename = mmq_nameparser.buildRetry(recip.spid, recip.qid);
 			}
 			// and write the new control file to disk
@@ -253,7 +279,28 @@ public final class FilesysQueue
 				dsptch.getLogger().log(LEVEL.WARN, ex, true, loglbl+"Store-Deferred failed on msg="+idx+"/"+cachesize+" - "+fh.getAbsolutePath());
 				recip.qstatus = MessageRecip.STATUS_READY; //signals base class to preserve the SPID
 				mmqcache.remove(recip);
+				retainDeferred(recip);
+			} else if (deferdir != null && retryIndexBuilt) {
+				addDeferred(deferdir, filename, nextsend);
+			}
+		}
+
+		if (isPartialUpdate()) {
+			// the rest of the loaded messages are still in flight, so only release the ones we've been given
+			for (int idx = 0; idx != cachesize; idx++) {
+				MessageRecip recip = msgcache.get(idx);
+				java.nio.file.Path fh = mmqcache.remove(recip);
+				if (fh == null) continue; //control file has been left in place
+				Exception ex = FileOps.deleteFile(fh);
+				if (ex != null) {
+					dsptch.getLogger().info(loglbl+"Failed to delete MMQ="+fh+" - "+ex);
+					retainDeferred(recip);
+					continue;
+				}
+				RetryWheel.Entry ent = deferred_loaded.remove(recip);
+				if (ent != null) releaseDeferred(ent);
 			}
+			return;
 		}
 
 		// Now that all messages have been requeued or delivered, we delete the original control files from which this batch of messages was loaded
@@ -265,9 +312,48 @@ public final class FilesysQueue
 			if (ex != null) {
 				//it has been processed, but will now get processed again, so remove from this batch's stats
 				dsptch.getLogger().info(loglbl+"Failed to delete MMQ="+fh+" - "+ex);
+				retainDeferred(mr);
 			}
 		}
 		mmqcache.clear();
+
+		// any deferred entries that are still in this map have now had their control file deleted
+		java.util.Iterator<RetryWheel.Entry> it_deferred = deferred_loaded.recycledValuesIterator();
+		while (it_deferred.hasNext()) {
+			releaseDeferred(it_deferred.next());
+		}
+		deferred_loaded.clear();
+	}
+
+	// The control file for this recip has been left in place, so restore it to the index as being due
+	private void retainDeferred(MessageRecip recip)
+	{
+		RetryWheel.Entry ent = deferred_loaded.remove(recip);
+		if (ent != null) retryWheel.requeue(ent);
+	}
+
+	private void addDeferred(RetryWheel.DeferDir deferdir, String filename, long nextsend)
+	{
+		retryWheel.add(new RetryWheel.Entry(retryWheel.getTick(nextsend), deferdir, filename));
+		deferdir.pending++;
+	}
+
+	// This entry's control file no longer exists, so remove its directory as well if it is now empty
+	private void releaseDeferred(RetryWheel.Entry ent)
+	{
+		if (--ent.dir.pending == 0) removeRetryDir(ent.dir);
+	}
+
+	private void removeRetryDir(RetryWheel.DeferDir deferdir)
+	{
+		try {
+			java.nio.file.Files.deleteIfExists(deferdir.dirh);
+			deferdirs.remove(deferdir.dirname);
+			LEVEL loglvl = LEVEL.TRC2;
+			if (dsptch.getLogger().isActive(loglvl)) dsptch.getLogger().log(loglvl, loglbl+"Cleared stale DeferDir="+deferdir.dirname);
+		} catch (Exception ex) {
+			dsptch.getLogger().log(LEVEL.TRC, ex, false, loglbl+"Failed to delete stale DeferDir="+deferdir.dirh);
+		}
 	}
 
 	@Override
@@ -304,7 +390,28 @@ public final class FilesysQueue
 	protected void loadMessages(com.grey.mailismus.mta.queue.Cache msgcache, boolean get_bounces, boolean get_deferred)
 		throws java.io.IOException
 	{
+		if (isTopup()) {
+			// the entries already in the cache are still in flight, and their control files mustn't be loaded again
+			mmqfiles.clear();
+			java.util.Iterator<java.nio.file.Path> it = mmqcache.recycledValuesIterator();
+			while (it.hasNext()) mmqfiles.add(it.next());
+			try {
+				loadMessages(msgcache, incomingDir_path, FilenameParser.PFX_MSGFILE);
+				if (msgcache.size() != msgcache.capacity()) loadDeferred(msgcache, get_deferred);
+			} finally {
+				mmqfiles.clear();
+			}
+			return;
+		}
 		mmqcache.clear();
+		if (deferred_loaded.size() != 0) {
+			//previous batch was never returned to us, so its control files are still in place
+			java.util.Iterator<RetryWheel.Entry> it = deferred_loaded.recycledValuesIterator();
+			while (it.hasNext()) {
+				retryWheel.requeue(it.next());
+			}
+			deferred_loaded.clear();
+		}
 		if (get_bounces) {
 			loadMessages(msgcache, bounceDir_path, FilenameParser.PFX_BOUNCEFILE);
 		} else {
@@ -319,36 +426,82 @@ public final class FilesysQueue
 		}
 	}
 
+	// Due recips are taken from the retry index, so this doesn't need to scan the deferred directories (other than to build
+	// the index on the first call).
 	private void loadDeferred(com.grey.mailismus.mta.queue.Cache msgcache, boolean fetchAll) throws java.io.IOException
+	{
+		if (!retryIndexBuilt) buildRetryIndex();
+		if (fetchAll) {
+			retryWheel.expireAll();
+		} else {
+			retryWheel.advance(dsptch.getSystemTime());
+		}
+		deferred_unloadable.clear();
+
+		while (msgcache.size() != msgcache.capacity()) {
+			RetryWheel.Entry ent = retryWheel.poll();
+			if (ent == null) break;
+			java.nio.file.Path fh = ent.dir.dirh.resolve(ent.filename);
+			mmq_nameparser.parse(ent.filename); //already known to be valid, as it was parsed when indexed
+			final int prevcachesize = msgcache.size();
+			try {
+				MessageRecip mr = loadMessage(msgcache, fh, mmq_nameparser.parsed_spid, mmq_nameparser.parsed_qid, FilenameParser.PFX_MSGFILE);
+				if (mr == null) {
+					//belongs to another partition, whose own index has this entry - recips never move between partitions
+					releaseDeferred(ent);
+					continue;
+				}
+				mmqcache.put(mr, fh);
+				deferred_loaded.put(mr, ent);
+			} catch (java.nio.file.NoSuchFileException ex) {
+				//control file has been removed behind our back, so drop it from the index
+				dsptch.getLogger().info(loglbl+"Deferred MMQ has disappeared - "+fh);
+				msgcache.truncate(prevcachesize);
+				releaseDeferred(ent);
+			} catch (Throwable ex) {
+				// See comments in the equivalent catch block of the directory-based loadMessages() below
+				dsptch.getLogger().log(LEVEL.WARN, ex, false, loglbl+"Failed to load deferred MMQ queuefile="+ent);
+				msgcache.truncate(prevcachesize);
+				deferred_unloadable.add(ent);
+			}
+		}
+		// leave these in the index, to be retried on a future load
+		for (int idx = 0; idx != deferred_unloadable.size(); idx++) {
+			retryWheel.requeue(deferred_unloadable.get(idx));
+		}
+		deferred_unloadable.clear();
+	}
+
+	// Scans the deferred directories to build the retry index, which is then maintained in memory
+	private void buildRetryIndex() throws java.io.IOException
 	{
 		java.util.ArrayList<String> dirlist = load_dirnames;
 		dirlist.clear();
 		FileOps.directoryListSimple(deferredRoot_path, 0, dirlist);
-		if (dirlist.size() == 0) return;
 		java.util.Collections.sort(dirlist);
+		int total = 0;
 
 		for (int idx = 0; idx != dirlist.size(); idx++) {
-			if (msgcache.size() == msgcache.capacity()) break;
 			String dirname = dirlist.get(idx);
 			if (dirname.charAt(0) != FilenameParser.PFX_DEFERDIR) continue; //safety check
-			if (!fetchAll) {
-				tmpbc.populate(dirname, FilenameParser.FILENAME_PFXLEN, dirname.length() - FilenameParser.FILENAME_PFXLEN);
-				long nextsend = tmpbc.parseDecimal() * 1000; //parse scheduled retry time out of directory name
-				if (nextsend > dsptch.getSystemTime()) break; //not yet due
-			}
-			java.io.File dirh = getRetryDir(dirname);
-
-			if (!loadMessages(msgcache, dirh.toPath(), FilenameParser.PFX_MSGFILE)) {
-				try {
-					boolean opsts = dirh.delete();
-					deferdirs.remove(dirname);
-					LEVEL loglvl = LEVEL.TRC2;
-					if (dsptch.getLogger().isActive(loglvl)) dsptch.getLogger().log(loglvl, loglbl+"Cleared stale DeferDir with status="+opsts+" - "+dirname);
-				} catch (Exception ex) {
-					dsptch.getLogger().log(LEVEL.TRC, ex, false, loglbl+"Failed to delete stale DeferDir="+dirh.getParent()+java.io.File.separatorChar+dirh.getName());
-				}
+			tmpbc.populate(dirname, FilenameParser.FILENAME_PFXLEN, dirname.length() - FilenameParser.FILENAME_PFXLEN);
+			long nextsend = tmpbc.parseDecimal() * 1000; //parse scheduled retry time out of directory name
+			RetryWheel.DeferDir deferdir = getRetryDir(dirname);
+
+			java.util.ArrayList<String> filelist = load_filenames;
+			filelist.clear();
+			FileOps.directoryListSimple(deferdir.dirh, 0, filelist);
+			java.util.Collections.sort(filelist);
+			for (int idx2 = 0; idx2 != filelist.size(); idx2++) {
+				String filename = filelist.get(idx2);
+				if (filename.charAt(0) != FilenameParser.PFX_MSGFILE || !mmq_nameparser.parse(filename)) continue;
+				addDeferred(deferdir, filename, nextsend);
+				total++;
 			}
+			if (deferdir.pending == 0) removeRetryDir(deferdir);
 		}
+		retryIndexBuilt = true;
+		dsptch.getLogger().info(loglbl+"Built retry index with deferred-recips="+total+", dirs="+deferdirs.size());
 	}
 
 	private boolean loadMessages(com.grey.mailismus.mta.queue.Cache msgcache, java.nio.file.Path dirh, char filepfx)
@@ -369,51 +522,11 @@ public final class FilesysQueue
 			final int spid = mmq_nameparser.parsed_spid;
 			final int qid = mmq_nameparser.parsed_qid;
 			final int prevcachesize = msgcache.size();
+			java.nio.file.Path fh = dirh.resolve(filename);
+			if (mmqfiles.size() != 0 && mmqfiles.contains(fh)) continue;
 			try {
-				// Read entire file into in-memory buffer
-				// The general-purpose FileOps.read() methods are too slow for our simple needs.
-				java.nio.file.Path fh = dirh.resolve(filename);
-				java.io.InputStream strm = java.nio.file.Files.newInputStream(fh, FileOps.OPENOPTS_NONE);
-				try {
-					FileOps.read(strm, -1, ctlfile_databuf.clear());
-				} finally {
-					strm.close();
-				}
-
-				int lmt = ctlfile_databuf.indexOf(DLM_FLDS);
-				tmplightbc.set(ctlfile_databuf, 0, lmt);
-				ByteChars addr_from = (tmplightbc.size() == 0 ? null : allocCacheField(tmplightbc));
-				int off = lmt + 1;
-
-				lmt = ctlfile_databuf.indexOf(off, DLM_FLDS);
-				long recvtime = ctlfile_databuf.parseDecimal(off, lmt - off);
-				off = lmt + 1;
-
-				lmt = ctlfile_databuf.indexOf(off, DLM_ROWS);
-				int iprecv = (int)ctlfile_databuf.parseDecimal(off, lmt - off);
-				off = lmt + 1;
-
-				lmt = ctlfile_databuf.indexOf(off, DLM_FLDS);
-				tmplightbc.set(ctlfile_databuf, off, lmt - off);
-				ByteChars mbx_to = allocCacheField(tmplightbc);
-				off = lmt + 1;
-
-				lmt = ctlfile_databuf.indexOf(off, DLM_FLDS);
-				tmplightbc.set(ctlfile_databuf, off, lmt - off);
-				ByteChars domain_to = (tmplightbc.size() == 0 ? null : allocCacheField(tmplightbc));
-				off = lmt + 1;
-
-				lmt = ctlfile_databuf.indexOf(off, DLM_FLDS);
-				short retrycnt = (short)ctlfile_databuf.parseDecimal(off, lmt - off);
-				off = lmt + 1;
-
-				int status = 0;
-				lmt = ctlfile_databuf.indexOf(off, DLM_ROWS);
-				if (filepfx == FilenameParser.PFX_BOUNCEFILE) status = (int)ctlfile_databuf.parseDecimal(off, lmt - off);
-				off = lmt + 1;
-
-				MessageRecip mr = msgcache.addEntry(qid, spid, recvtime, iprecv, addr_from, domain_to, mbx_to, retrycnt, status);
-				mmqcache.put(mr, fh);
+				MessageRecip mr = loadMessage(msgcache, fh, spid, qid, filepfx);
+				if (mr != null) mmqcache.put(mr, fh);
 			} catch (Throwable ex) {
 				// Discard all recips from this control file and continue. That means this control file will remain here until our next load
 				// and we may well fail to parse it every single time, so log at level=warning to alert admins that they may want to remove
@@ -426,6 +539,63 @@ public final class FilesysQueue
 		return true;
 	}
 
+	// Returns null if the recipient belongs to another partition
+	private MessageRecip loadMessage(com.grey.mailismus.mta.queue.Cache msgcache, java.nio.file.Path fh, int spid, int qid, char filepfx)
+		throws java.io.IOException
+	{
+		// Read entire file into in-memory buffer
+		// The general-purpose FileOps.read() methods are too slow for our simple needs.
+		java.io.InputStream strm = java.nio.file.Files.newInputStream(fh, FileOps.OPENOPTS_NONE);
+		try {
+			FileOps.read(strm, -1, ctlfile_databuf.clear());
+		} finally {
+			strm.close();
+		}
+
+		if (isPartitioned()) {
+			// check the destination domain first, so that we don't allocate any cache fields for other partitions
+			int off = ctlfile_databuf.indexOf(DLM_ROWS) + 1;
+			off = ctlfile_databuf.indexOf(off, DLM_FLDS) + 1;
+			int lmt = ctlfile_databuf.indexOf(off, DLM_FLDS);
+			tmplightbc.set(ctlfile_databuf, off, lmt - off);
+			if (!inPartition(tmplightbc)) return null;
+		}
+
+		int lmt = ctlfile_databuf.indexOf(DLM_FLDS);
+		tmplightbc.set(ctlfile_databuf, 0, lmt);
+		ByteChars addr_from = (tmplightbc.size() == 0 ? null : allocCacheField(tmplightbc));
+		int off = lmt + 1;
+
+		lmt = ctlfile_databuf.indexOf(off, DLM_FLDS);
+		long recvtime = ctlfile_databuf.parseDecimal(off, lmt - off);
+		off = lmt + 1;
+
+		lmt = ctlfile_databuf.indexOf(off, DLM_ROWS);
+		int iprecv = (int)ctlfile_databuf.parseDecimal(off, lmt - off);
+		off = lmt + 1;
+
+		lmt = ctlfile_databuf.indexOf(off, DLM_FLDS);
+		tmplightbc.set(ctlfile_databuf, off, lmt - off);
+		ByteChars mbx_to = allocCacheField(tmplightbc);
+		off = lmt + 1;
+
+		lmt = ctlfile_databuf.indexOf(off, DLM_FLDS);
+		tmplightbc.set(ctlfile_databuf, off, lmt - off);
+		ByteChars domain_to = (tmplightbc.size() == 0 ? null : allocCacheField(tmplightbc));
+		off = lmt + 1;
+
+		lmt = ctlfile_databuf.indexOf(off, DLM_FLDS);
+		short retrycnt = (short)ctlfile_databuf.parseDecimal(off, lmt - off);
+		off = lmt + 1;
+
+		int status = 0;
+		lmt = ctlfile_databuf.indexOf(off, DLM_ROWS);
+		if (filepfx == FilenameParser.PFX_BOUNCEFILE) status = (int)ctlfile_databuf.parseDecimal(off, lmt - off);
+		off = lmt + 1;
+
+		return msgcache.addEntry(qid, spid, recvtime, iprecv, addr_from, domain_to, mbx_to, retrycnt, status);
+	}
+
 	@Override
 	public int qsize(CharSequence sender, CharSequence recip, int flags) throws java.io.IOException
 	{
@@ -515,15 +685,15 @@ public final class FilesysQueue
 		data.append(retrycnt, tmpsb).append(DLM_FLDS).append(status, tmpsb).append(DLM_ROWS);
 	}
 
-	private java.io.File getRetryDir(String dirname)
+	private RetryWheel.DeferDir getRetryDir(String dirname)
 	{
-		java.io.File dirh = deferdirs.get(dirname);
-		if (dirh == null) {
+		RetryWheel.DeferDir deferdir = deferdirs.get(dirname);
+		if (deferdir == null) {
 			// we're either finding existing directories on startup, or about to create a new one
-			dirh = new java.io.File(deferredRoot, dirname);
-			deferdirs.put(dirname, dirh);
+			deferdir = new RetryWheel.DeferDir(dirname, deferredRoot_path.resolve(dirname));
+			deferdirs.put(dirname, deferdir);
 		}
-		return dirh;
+		return deferdir;
 	}
 
 	// Filter out illegal chars that would break our parsing of MMQ files.
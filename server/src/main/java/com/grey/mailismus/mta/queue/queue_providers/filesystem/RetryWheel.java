@@ -0,0 +1,239 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.queue.queue_providers.filesystem;
+
+/*
+ * Hierarchical timing wheel which indexes the deferred recipients by their next-send time, so that FilesysQueue can pick
+ * out the ones which are due without listing the deferred directories.
+ * Time is divided into ticks of the configured retry granularity. Level 0 has one slot per tick, and each higher level
+ * has slots which span all of the level below. Entries which are too far in the future for the top level are held in
+ * an overflow list, and re-placed each time the top level wraps around.
+ * As the wheel is advanced, entries cascade down from the higher levels, and are moved onto the due list once their tick
+ * has been reached, so the cost of a poll is proportional to the number of due entries (plus one slot per tick elapsed,
+ * but runs of empty slots are skipped).
+ */
+final class RetryWheel
+{
+	private static final int SLOTBITS = 6;
+	private static final int SLOTCNT = 1 << SLOTBITS; //number of slots on each level
+	private static final int SLOTMASK = SLOTCNT - 1;
+	private static final int LEVELS = 3;
+
+	// A deferred control file
+	static final class Entry
+	{
+		final long tick;
+		final DeferDir dir;
+		final String filename;
+		Entry next;
+
+		Entry(long tick, DeferDir dir, String filename) {
+			this.tick = tick;
+			this.dir = dir;
+			this.filename = filename;
+		}
+
+		@Override
+		public String toString() {return dir.dirname+"/"+filename;}
+	}
+
+	// A deferred directory, along with a count of the indexed control files it contains, so that we can tell when it's
+	// safe to remove it.
+	static final class DeferDir
+	{
+		final String dirname;
+		final java.nio.file.Path dirh;
+		int pending;
+
+		DeferDir(String dirname, java.nio.file.Path dirh) {
+			this.dirname = dirname;
+			this.dirh = dirh;
+		}
+	}
+
+	private final long granularity;
+	private final Entry[][] slots = new Entry[LEVELS][SLOTCNT];
+	private final int[] levelcnt = new int[LEVELS];
+	private Entry overflow;
+	private int overflowcnt;
+	private Entry duehead;
+	private Entry duetail;
+	private int duecnt;
+	private long curtick; //the most recent tick which has been processed - its entries (and earlier ones) are now due
+
+	public int size() {return duecnt + overflowcnt + levelcnt[0] + levelcnt[1] + levelcnt[2];}
+	public int dueCount() {return duecnt;}
+
+	public RetryWheel(long granularity, long systime)
+	{
+		this.granularity = granularity;
+		curtick = systime / granularity;
+	}
+
+	// Rounded up, so that an entry doesn't become due before its next-send time
+	public long getTick(long nextsend)
+	{
+		return (nextsend + granularity - 1) / granularity;
+	}
+
+	public void add(Entry ent)
+	{
+		long delta = ent.tick - curtick;
+		if (delta <= 0) {
+			appendDue(ent);
+			return;
+		}
+		for (int lvl = 0; lvl != LEVELS; lvl++) {
+			if (delta < (1L << (SLOTBITS * (lvl + 1)))) {
+				int slot = (int)((ent.tick >>> (SLOTBITS * lvl)) & SLOTMASK);
+				ent.next = slots[lvl][slot];
+				slots[lvl][slot] = ent;
+				levelcnt[lvl]++;
+				return;
+			}
+		}
+		ent.next = overflow;
+		overflow = ent;
+		overflowcnt++;
+	}
+
+	// Returns the next due entry, or null if none are due.
+	// The caller must have called advance() first, to bring the wheel up to date.
+	public Entry poll()
+	{
+		Entry ent = duehead;
+		if (ent == null) return null;
+		duehead = ent.next;
+		if (duehead == null) duetail = null;
+		ent.next = null;
+		duecnt--;
+		return ent;
+	}
+
+	// Puts back an entry that was obtained from poll() but could not be processed, so that it is retried next time round
+	public void requeue(Entry ent)
+	{
+		appendDue(ent);
+	}
+
+	public void advance(long systime)
+	{
+		long nowtick = systime / granularity;
+		while (curtick < nowtick) {
+			if (levelcnt[0] + levelcnt[1] + levelcnt[2] + overflowcnt == 0) {
+				curtick = nowtick; //nothing to cascade, so jump straight to the present
+				break;
+			}
+			// skip ahead over runs of empty slots, but stop short of the next boundary that might require cascading
+			if (levelcnt[0] == 0) {
+				long boundary;
+				if (levelcnt[1] != 0) {
+					boundary = curtick | SLOTMASK;
+				} else if (levelcnt[2] != 0) {
+					boundary = curtick | ((1L << (SLOTBITS * 2)) - 1);
+				} else {
+					boundary = curtick | ((1L << (SLOTBITS * 3)) - 1);
+				}
+				if (boundary > curtick) {
+					curtick = Math.min(boundary, nowtick);
+					continue;
+				}
+			}
+			curtick++;
+			if ((curtick & SLOTMASK) == 0) cascade(1);
+			Entry ent = slots[0][(int)(curtick & SLOTMASK)];
+			slots[0][(int)(curtick & SLOTMASK)] = null;
+			while (ent != null) {
+				Entry nxt = ent.next;
+				levelcnt[0]--;
+				appendDue(ent);
+				ent = nxt;
+			}
+		}
+	}
+
+	// Makes every entry due, regardless of its next-send time
+	public void expireAll()
+	{
+		for (int lvl = 0; lvl != LEVELS; lvl++) {
+			for (int slot = 0; slot != SLOTCNT; slot++) {
+				appendList(slots[lvl][slot]);
+				slots[lvl][slot] = null;
+			}
+			levelcnt[lvl] = 0;
+		}
+		appendList(overflow);
+		overflow = null;
+		overflowcnt = 0;
+	}
+
+	public void clear()
+	{
+		for (int lvl = 0; lvl != LEVELS; lvl++) {
+			java.util.Arrays.fill(slots[lvl], null);
+			levelcnt[lvl] = 0;
+		}
+		overflow = null;
+		overflowcnt = 0;
+		duehead = null;
+		duetail = null;
+		duecnt = 0;
+	}
+
+	// Called when curtick has just crossed a level-0 boundary, to re-place the entries in the level above, which are
+	// now within range of the level below. The top level's wraparound re-places the overflow entries.
+	private void cascade(int lvl)
+	{
+		if (lvl == LEVELS) {
+			Entry ent = overflow;
+			overflow = null;
+			overflowcnt = 0;
+			readd(ent);
+			return;
+		}
+		int slot = (int)((curtick >>> (SLOTBITS * lvl)) & SLOTMASK);
+		if (slot == 0) cascade(lvl + 1);
+		Entry ent = slots[lvl][slot];
+		slots[lvl][slot] = null;
+		while (ent != null) {
+			Entry nxt = ent.next;
+			levelcnt[lvl]--;
+			ent.next = null;
+			add(ent);
+			ent = nxt;
+		}
+	}
+
+	private void readd(Entry ent)
+	{
+		while (ent != null) {
+			Entry nxt = ent.next;
+			ent.next = null;
+			add(ent);
+			ent = nxt;
+		}
+	}
+
+	private void appendList(Entry ent)
+	{
+		while (ent != null) {
+			Entry nxt = ent.next;
+			appendDue(ent);
+			ent = nxt;
+		}
+	}
+
+	private void appendDue(Entry ent)
+	{
+		ent.next = null;
+		if (duetail == null) {
+			duehead = ent;
+		} else {
+			duetail.next = ent;
+		}
+		duetail = ent;
+		duecnt++;
+	}
+}
@@ -55,6 +55,7 @@ public final class ClusteredQueue
 	private final java.util.ArrayList<String> load_dirnames = new java.util.ArrayList<String>();
 	private final java.util.ArrayList<String> load_filenames = new java.util.ArrayList<String>();
 	private final ByteChars ctlfile_databuf = new ByteChars();
+	private final ByteChars submit_databuf = new ByteChars();
 	private final StringBuilder tmpsb = new StringBuilder();
 	private final ByteChars tmplightbc = new ByteChars(-1); //lightweight object without own storage
 	//these three are for ShowQ
@@ -125,17 +126,57 @@ public final class ClusteredQueue
 	protected boolean storeMessage(com.grey.mailismus.mta.queue.SubmitHandle sph) throws java.io.IOException
 	{
 		ctlfile_databuf.clear();
+		appendSubmission(ctlfile_databuf, sph);
+		if (currentIncomingCluster == null) currentIncomingCluster = cctl.createCluster(incomingDir, maxClusterSize);
+		currentIncomingCluster = cctl.writeCluster(currentIncomingCluster, ctlfile_databuf);
+		return true;
+	}
+
+	// Every cluster write is synced, so rather than doing one write per message, we gather as many messages as will fit in
+	// a cluster and write them all at once. Each message's records are contained in a single write, so each message is
+	// still stored all or nothing.
+	@Override
+	protected void storeMessages(java.util.List<com.grey.mailismus.mta.queue.SubmitHandle> batch, boolean[] results)
+	{
+		ctlfile_databuf.clear();
+		int first = 0; //the first message in the current write
+		for (int idx = 0; idx != batch.size(); idx++) {
+			appendSubmission(submit_databuf.clear(), batch.get(idx));
+			if (idx != first && ctlfile_databuf.size() + submit_databuf.size() > maxClusterSize) {
+				writeSubmissions(batch, first, idx, results);
+				ctlfile_databuf.clear();
+				first = idx;
+			}
+			ctlfile_databuf.append(submit_databuf);
+		}
+		if (first != batch.size()) writeSubmissions(batch, first, batch.size(), results);
+	}
+
+	private void writeSubmissions(java.util.List<com.grey.mailismus.mta.queue.SubmitHandle> batch, int first, int lmt, boolean[] results)
+	{
+		boolean ok = false;
+		try {
+			if (currentIncomingCluster == null) currentIncomingCluster = cctl.createCluster(incomingDir, maxClusterSize);
+			currentIncomingCluster = cctl.writeCluster(currentIncomingCluster, ctlfile_databuf);
+			ok = true;
+		} catch (Throwable ex) {
+			dsptch.getLogger().log(com.grey.logging.Logger.LEVEL.INFO, ex, true, loglbl+"Submit-ctl failed on group of "+(lmt - first)+" messages");
+		}
+		for (int idx = first; idx != lmt; idx++) {
+			results[idx] = ok;
+		}
+	}
+
+	private void appendSubmission(ByteChars databuf, com.grey.mailismus.mta.queue.SubmitHandle sph)
+	{
 		for (int idx = 0; idx != sph.recips.size(); idx++) {
 			int qid = idx + 1; //QID is only unique relative to SPID
 			com.grey.base.utils.EmailAddress recip = sph.recips.get(idx);
 			recip.decompose();
 			ByteChars sender_rewrite = (sph.sender_rewrites == null ? null : sph.sender_rewrites.get(idx));
 			ByteChars sender = (sender_rewrite == null ? sph.sender : sender_rewrite);
-			appendMessage(ctlfile_databuf, sph.spid, qid, sender, recip.domain, recip.mailbox, dsptch.getSystemTime(), sph.iprecv, 0, 0);
+			appendMessage(databuf, sph.spid, qid, sender, recip.domain, recip.mailbox, dsptch.getSystemTime(), sph.iprecv, 0, 0);
 		}
-		if (currentIncomingCluster == null) currentIncomingCluster = cctl.createCluster(incomingDir, maxClusterSize);
-		currentIncomingCluster = cctl.writeCluster(currentIncomingCluster, ctlfile_databuf);
-		return true;
 	}
 
 	@Override
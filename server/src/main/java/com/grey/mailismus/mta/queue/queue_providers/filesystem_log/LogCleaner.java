@@ -0,0 +1,84 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.queue.queue_providers.filesystem_log;
+
+/*
+ * Reclaims the space occupied by superseded records, by deleting the oldest log segment once it no longer contains any
+ * live records. If it still contains some but is sufficiently sparse (or the log as a whole is), the live records are
+ * first copied forward to the head segment.
+ * Segments are only reclaimed in order, which is what allows the Done records to be discarded along with them.
+ */
+final class LogCleaner
+{
+	private static final int MAXBATCH = 1024*1024; //flush relocated records once we've accumulated this many bytes
+
+	private final LogStore store;
+	private final int threshold; //percentage of live records below which a segment gets compacted
+	private final com.grey.logging.Logger logger;
+	private final LogStore.Batch batch = new LogStore.Batch();
+	private byte[] recbuf = new byte[256];
+
+	public LogCleaner(LogStore store, int threshold, com.grey.logging.Logger logger)
+	{
+		this.store = store;
+		this.threshold = threshold;
+		this.logger = logger;
+	}
+
+	// Returns the number of segments which were reclaimed, which will not exceed maxsegs
+	public int clean(int maxsegs) throws java.io.IOException
+	{
+		int cnt = 0;
+		synchronized (store) {
+			while (cnt != maxsegs) {
+				LogSegment seg = store.oldestSegment();
+				if (seg == null) break;
+				if (seg.live != 0) {
+					if (!isSparse(seg)) break;
+					relocate(seg);
+				}
+				if (logger != null) logger.trace("QueueLog: Reclaiming "+seg);
+				store.deleteSegment(seg);
+				cnt++;
+			}
+		}
+		return cnt;
+	}
+
+	private boolean isSparse(LogSegment seg)
+	{
+		if ((long)seg.live * 100 < (long)seg.records * threshold) return true;
+		return ((long)store.liveRecords() * 100 < store.totalRecords() * threshold);
+	}
+
+	private void relocate(LogSegment seg) throws java.io.IOException
+	{
+		batch.reset();
+		int off = LogSegment.HDRSIZE;
+		int framelen;
+		while ((framelen = seg.frameLength(off)) != 0) {
+			int pos = off + LogSegment.FRAMEHDR;
+			int lmt = pos + framelen;
+			while (pos < lmt) {
+				int reclen = seg.getInt(pos + LogStore.REC_LEN);
+				if (reclen < LogStore.RECLEN_DONE || pos + reclen > lmt) break; //corruption already reported by replay
+				long key = LogStore.makeKey(seg.getInt(pos + LogStore.REC_SPID), seg.getInt(pos + LogStore.REC_QID));
+				LogStore.Entry ent = store.getEntry(key);
+				if (ent != null && ent.seg == seg && ent.offset == pos) {
+					recbuf = store.readRecord(ent, recbuf);
+					batch.addRecord(ent, recbuf);
+					if (batch.size() >= MAXBATCH) {
+						store.relocate(batch);
+						batch.reset();
+					}
+				}
+				pos += reclen;
+			}
+			off = lmt;
+		}
+		store.relocate(batch);
+		batch.reset();
+	}
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.queue.queue_providers.filesystem_log;
+
+import com.grey.base.config.XmlConfig;
+import com.grey.base.utils.TimeOps;
+import com.grey.base.utils.ByteOps;
+import com.grey.base.utils.ByteChars;
+import com.grey.base.collections.HashedMapIntInt;
+import com.grey.base.collections.HashedSetInt;
+import com.grey.naf.NAFConfig;
+import com.grey.naf.reactor.Dispatcher;
+import com.grey.mailismus.AppConfig;
+import com.grey.mailismus.mta.Protocol;
+import com.grey.mailismus.mta.queue.Cache;
+import com.grey.mailismus.mta.queue.MessageRecip;
+import com.grey.mailismus.mta.queue.SubmitHandle;
+import com.grey.logging.Logger.LEVEL;
+
+/*
+ * A queue which records recipients and their status transitions as records appended to a log of memory-mapped segment
+ * files, rather than creating, renaming and deleting a control file per recipient or cluster.
+ * Each submission and each processed batch is appended as a single frame, so it is applied all-or-nothing.
+ * See LogStore for the shared state behind this class.
+ */
+public final class LogQueue
+	extends com.grey.mailismus.mta.queue.QueueManager
+	implements com.grey.mailismus.mta.queue.Spooler.SPID_Counter
+{
+	private final LogStore store;
+	private final LogCleaner cleaner;
+	private final java.nio.file.Path queueRoot;
+	private final long maxDeferredIgnore;
+	private final long retryGranularity;
+
+	// recips which have been loaded into the cache, and have not yet been returned via updateMessages()
+	private final java.util.HashMap<Long, LogStore.Entry> inflight = new java.util.HashMap<>();
+
+	private long lastload_deferred;
+	private boolean detached;
+	private int foreign_limit; //max recips from other partitions that we will skip over in one load
+
+	// temp work areas, pre-allocated for efficiency
+	private final LogStore.Batch batch = new LogStore.Batch();
+	private final java.util.ArrayList<LogStore.Entry> unprocessed = new java.util.ArrayList<>();
+	private final java.util.ArrayList<LogStore.Entry> foreign = new java.util.ArrayList<>();
+	private final ByteChars tmplightbc = new ByteChars(-1); //lightweight object without own storage
+	private byte[] recbuf = new byte[256];
+
+	public LogQueue(Dispatcher d, XmlConfig qcfg, AppConfig appcfg, String name) throws java.io.IOException
+	{
+		super(d, qcfg, name);
+		NAFConfig nafcfg = dsptch.getApplicationContext().getConfig();
+		String queuepath = nafcfg.getPath(qcfg, "rootpath", null, false, nafcfg.getPathVar()+"/queue", null);
+		int segsize = (int)qcfg.getSize("segmentsize", "16M");
+		int threshold = qcfg.getInt("compact_threshold", false, 50);
+		boolean with_sync = qcfg.getBool("sync", false);
+		maxDeferredIgnore = qcfg.getTime("deferred_maxignore", "5m");
+		retryGranularity = Math.max(TimeOps.MSECS_PER_SECOND, qcfg.getTime("retry_granularity", "1m")); //minimum is 1 sec
+
+		queueRoot = java.nio.file.Paths.get(queuepath).toAbsolutePath();
+		store = LogStore.attach(dsptch.getApplicationContext(), queueRoot, segsize, with_sync, dsptch.getLogger());
+		cleaner = new LogCleaner(store, threshold, dsptch.getLogger());
+
+		dsptch.getLogger().info(loglbl+"root-path="+queuepath);
+		dsptch.getLogger().info(loglbl+"segmentsize="+ByteOps.expandByteSize(segsize)
+				+"; compact_threshold="+threshold+"%; sync="+with_sync
+				+"; retry_granularity="+TimeOps.expandMilliTime(retryGranularity)
+				+"; deferred_maxignore="+TimeOps.expandMilliTime(maxDeferredIgnore));
+	}
+
+	@Override
+	public boolean supportsPartitions() {return true;}
+
+	@Override
+	public boolean supportsStreaming() {return true;}
+
+	// Updates are written to the log segments through a memory mapping, which doesn't reliably raise WatchService events, so
+	// this queue can't be watched. There is no need to, as it is locked to a single process (see LogStore), so every
+	// submission is seen by the in-process wakeup signals.
+	@Override
+	public java.nio.file.Path getWatchPath(int event) {return null;}
+
+	@Override
+	protected void shutdown()
+	{
+		if (detached) return;
+		detached = true;
+		synchronized (store) {
+			store.requeue(inflight.values());
+		}
+		inflight.clear();
+		store.detach();
+	}
+
+	@Override
+	public void loadSPIDs(HashedMapIntInt refcnt, int max)
+	{
+		synchronized (store) {
+			store.loadSPIDs(refcnt, max);
+		}
+	}
+
+	// The store tracks the number of queued recipients for each SPID, so this doesn't require any I/O
+	@Override
+	protected void determineOrphans(HashedSetInt orphan_candidates)
+	{
+		synchronized (store) {
+			store.pruneReferenced(orphan_candidates);
+		}
+	}
+
+	@Override
+	protected boolean storeMessage(SubmitHandle sph) throws java.io.IOException
+	{
+		long systime = dsptch.getSystemTime();
+		batch.reset();
+		for (int idx = 0; idx != sph.recips.size(); idx++) {
+			int qid = idx + 1; //QID is only unique relative to SPID
+			com.grey.base.utils.EmailAddress recip = sph.recips.get(idx);
+			recip.decompose();
+			ByteChars sender_rewrite = (sph.sender_rewrites == null ? null : sph.sender_rewrites.get(idx));
+			ByteChars sender = (sender_rewrite == null ? sph.sender : sender_rewrite);
+			batch.addRecip(LogStore.REC_NEW, sph.spid, qid, 0, systime, sph.iprecv, 0, 0, sender, recip.mailbox, recip.domain);
+		}
+		synchronized (store) {
+			store.commit(batch, null);
+		}
+		return true;
+	}
+
+	// The whole group goes into a single frame, so it costs one write (and one sync) and is applied all or nothing
+	@Override
+	protected void storeMessages(java.util.List<SubmitHandle> grp, boolean[] results)
+	{
+		long systime = dsptch.getSystemTime();
+		batch.reset();
+		for (int idx = 0; idx != grp.size(); idx++) {
+			SubmitHandle sph = grp.get(idx);
+			for (int idx2 = 0; idx2 != sph.recips.size(); idx2++) {
+				com.grey.base.utils.EmailAddress recip = sph.recips.get(idx2);
+				recip.decompose();
+				ByteChars sender_rewrite = (sph.sender_rewrites == null ? null : sph.sender_rewrites.get(idx2));
+				ByteChars sender = (sender_rewrite == null ? sph.sender : sender_rewrite);
+				batch.addRecip(LogStore.REC_NEW, sph.spid, idx2 + 1, 0, systime, sph.iprecv, 0, 0, sender, recip.mailbox, recip.domain);
+			}
+		}
+		boolean ok = false;
+		try {
+			synchronized (store) {
+				store.commit(batch, null);
+			}
+			ok = true;
+		} catch (Throwable ex) {
+			dsptch.getLogger().log(LEVEL.INFO, ex, true, loglbl+"Submit-ctl failed on group of "+grp.size()+" messages");
+		}
+		java.util.Arrays.fill(results, 0, grp.size(), ok);
+	}
+
+	@Override
+	protected void loadMessages(Cache msgcache, boolean get_bounces, boolean get_deferred)
+	{
+		synchronized (store) {
+			if (inflight.size() != 0 && !isTopup()) {
+				//previous batch was never returned to us, so make its recips available again
+				store.requeue(inflight.values());
+				inflight.clear();
+			}
+			unprocessed.clear();
+			// The recips are spread evenly over the partitions, so this window should contain a full cache of our own.
+			// It also bounds the time we spend holding the store lock, if the other partitions have a backlog.
+			foreign_limit = (isPartitioned() ? msgcache.capacity() * partitionCount() : 0);
+
+			if (get_bounces) {
+				while (msgcache.size() != msgcache.capacity()) {
+					if (!loadEntry(msgcache, store.pollBounce(), true)) break;
+				}
+			} else {
+				if (dsptch.getSystemTime() >= lastload_deferred + maxDeferredIgnore) {
+					loadDeferred(msgcache, get_deferred);
+					loadIncoming(msgcache);
+					lastload_deferred = dsptch.getSystemTime();
+				} else {
+					loadIncoming(msgcache);
+					loadDeferred(msgcache, get_deferred);
+				}
+			}
+			// corrupt records are left where they were
+			if (unprocessed.size() != 0) {
+				store.requeue(unprocessed);
+				unprocessed.clear();
+			}
+			// as are the recips that belong to other partitions
+			if (foreign.size() != 0) {
+				store.requeue(foreign);
+				foreign.clear();
+			}
+		}
+	}
+
+	private void loadIncoming(Cache msgcache)
+	{
+		while (msgcache.size() != msgcache.capacity()) {
+			if (!loadEntry(msgcache, store.pollIncoming(), false)) break;
+		}
+	}
+
+	private void loadDeferred(Cache msgcache, boolean fetch_all)
+	{
+		long systime = dsptch.getSystemTime();
+		while (msgcache.size() != msgcache.capacity()) {
+			if (!loadEntry(msgcache, store.pollDeferred(systime, fetch_all), false)) break;
+		}
+	}
+
+	private boolean loadEntry(Cache msgcache, LogStore.Entry ent, boolean as_bounce)
+	{
+		if (ent == null) return false;
+		try {
+			recbuf = store.readRecord(ent, recbuf);
+			java.nio.ByteBuffer rec = java.nio.ByteBuffer.wrap(recbuf);
+			long recvtime = rec.getLong(LogStore.REC_RECVTIME);
+			int iprecv = rec.getInt(LogStore.REC_IPRECV);
+			int retrycnt = rec.getShort(LogStore.REC_RETRIES);
+			int status = (as_bounce ? rec.getShort(LogStore.REC_STATUS) : 0);
+			if (isPartitioned() && !inPartition(getDomain(rec))) {
+				foreign.add(ent);
+				return (foreign.size() < foreign_limit);
+			}
+			int off = LogStore.REC_ADDRS;
+			int len = rec.getShort(off) & ByteOps.SHORTMASK;
+			off += 2;
+			tmplightbc.set(recbuf, off, len);
+			ByteChars addr_from = (len == 0 ? null : allocCacheField(tmplightbc));
+			off += len;
+			len = rec.getShort(off) & ByteOps.SHORTMASK;
+			off += 2;
+			tmplightbc.set(recbuf, off, len);
+			ByteChars mbx_to = allocCacheField(tmplightbc);
+			off += len;
+			len = rec.getShort(off) & ByteOps.SHORTMASK;
+			off += 2;
+			tmplightbc.set(recbuf, off, len);
+			ByteChars domain_to = (len == 0 ? null : allocCacheField(tmplightbc));
+			msgcache.addEntry(ent.qid, ent.spid, recvtime, iprecv, addr_from, domain_to, mbx_to, retrycnt, status);
+			inflight.put(LogStore.makeKey(ent.spid, ent.qid), ent);
+		} catch (Exception ex) {
+			dsptch.getLogger().log(LEVEL.WARN, ex, true, loglbl+"Failed to load record for SPID="+externalSPID(ent.spid)
+					+"/QID="+ent.qid+" from "+ent.seg);
+			unprocessed.add(ent);
+		}
+		return true;
+	}
+
+	// Returns the destination domain of the record, without allocating a cache field for it
+	private ByteChars getDomain(java.nio.ByteBuffer rec)
+	{
+		int off = LogStore.REC_ADDRS;
+		off += 2 + (rec.getShort(off) & ByteOps.SHORTMASK); //skip sender
+		off += 2 + (rec.getShort(off) & ByteOps.SHORTMASK); //skip mailbox
+		int len = rec.getShort(off) & ByteOps.SHORTMASK;
+		return tmplightbc.set(recbuf, off + 2, len);
+	}
+
+	@Override
+	protected void updateMessages(Cache msgcache, boolean is_bounces_batch) throws java.io.IOException
+	{
+		final int cachesize = msgcache.size();
+		batch.reset();
+		unprocessed.clear();
+
+		for (int idx = 0; idx != cachesize; idx++) {
+			final MessageRecip recip = msgcache.get(idx);
+			LogStore.Entry ent = inflight.remove(LogStore.makeKey(recip.spid, recip.qid));
+			if (ent == null) {
+				dsptch.getLogger().warn(loglbl+"Ignoring unknown recip="+recip);
+				continue;
+			}
+			if (recip.qstatus != MessageRecip.STATUS_DONE) {
+				unprocessed.add(ent);
+				continue;
+			}
+
+			if (is_bounces_batch || recip.smtp_status == Protocol.REPLYCODE_OK) {
+				batch.addDone(recip.spid, recip.qid);
+				continue;
+			}
+
+			// Failed message, so schedule the next retry - how soon depends on number of failures so far.
+			long delay = getRetryDelay(recip.retrycnt);
+			long nextsend = dsptch.getSystemTime() + delay;
+			long roundup = retryGranularity - (nextsend % retryGranularity);
+			nextsend += roundup; //round up next-send time to next standard interval
+			long maxtime = (recip.sender == null ? maxretrytime_ndr : maxretrytime);
+			boolean isBounce = (nextsend - recip.recvtime >= maxtime || recip.smtp_status >= Protocol.PERMERR_BASE);
+			recip.retrycnt++;
+			byte state = (isBounce ? LogStore.REC_BOUNCE : LogStore.REC_DEFERRED);
+			batch.addRecip(state, recip.spid, recip.qid, (isBounce ? 0 : nextsend), recip.recvtime, recip.ip_recv,
+					recip.retrycnt, recip.smtp_status, recip.sender, recip.mailbox_to, recip.domain_to);
+		}
+		// any leftovers weren't in the cache we were given, so just make them available again - unless this is a partial
+		// update, in which case they are still in flight
+		if (!isPartialUpdate()) {
+			unprocessed.addAll(inflight.values());
+			inflight.clear();
+		}
+
+		synchronized (store) {
+			try {
+				store.commit(batch, unprocessed);
+			} catch (java.io.IOException | RuntimeException ex) {
+				//nothing has been applied, so all the recips in this batch remain as they were
+				for (int idx = 0; idx != cachesize; idx++) {
+					MessageRecip recip = msgcache.get(idx);
+					LogStore.Entry ent = store.getEntry(LogStore.makeKey(recip.spid, recip.qid));
+					if (ent != null && ent.inflight) unprocessed.add(ent);
+				}
+				store.requeue(unprocessed);
+				throw ex;
+			} finally {
+				unprocessed.clear();
+			}
+		}
+
+		// reclaim at most one segment per batch, to keep the cost bounded
+		try {
+			cleaner.clean(1);
+		} catch (Exception ex) {
+			dsptch.getLogger().log(LEVEL.WARN, ex, true, loglbl+"Failed to compact queue log");
+		}
+	}
+
+	@Override
+	protected void doHousekeeping()
+	{
+		try {
+			int cnt = cleaner.clean(Integer.MAX_VALUE);
+			if (cnt != 0) dsptch.getLogger().trace(loglbl+"Housekeeping reclaimed segments="+cnt);
+		} catch (Exception ex) {
+			dsptch.getLogger().log(LEVEL.WARN, ex, true, loglbl+"Failed to compact queue log");
+		}
+	}
+
+	// filtering on sender or recip is not supported
+	@Override
+	public int qsize(CharSequence sender, CharSequence recip, int flags)
+	{
+		if (sender != null && sender.length() == 0) sender = null;
+		if (recip != null && recip.length() == 0) recip = null;
+		if (sender != null || recip != null) return -1;
+		int total = 0;
+		synchronized (store) {
+			if (flags == 0 || (flags & SHOWFLAG_NEW) != 0) total += store.countIncoming();
+			if (flags == 0 || (flags & SHOWFLAG_TEMPERR) != 0) total += store.countDeferred();
+			if (flags == 0 || (flags & SHOWFLAG_BOUNCES) != 0) total += store.countBounces();
+		}
+		return total;
+	}
+
+	// Log records are binary and the addresses are length-prefixed, so the only restriction is on their length
+	@Override
+	public boolean verifyAddress(ByteChars addr)
+	{
+		return (addr.size() <= ByteOps.SHORTMASK);
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.queue.queue_providers.filesystem_log;
+
+import com.grey.base.utils.FileOps;
+
+/*
+ * A segment is a fixed-size memory-mapped file, to which frames of queue records are appended.
+ * Each frame is preceded by its length, and the length is only written after the frame body, so a frame that was torn
+ * by a crash is seen as the end of the segment on replay. The unused tail of a mapped file is zero filled, which also
+ * reads as end-of-data.
+ */
+final class LogSegment
+{
+	public static final char PFX_SEGMENT = 'L';
+	public static final String SUFFIX = ".mql";
+	private static final int MAGIC = 0x4D514C31; //"MQL1"
+	public static final int HDRSIZE = 8; //magic number plus reserved int
+	public static final int FRAMEHDR = 4; //length prefix of each frame
+
+	public final long seqno;
+	public final java.nio.file.Path pthnam;
+	public final int capacity;
+	private final java.nio.channels.FileChannel chan;
+	private final java.nio.MappedByteBuffer mbuf;
+	private int writepos;
+
+	// These are maintained by the LogStore which owns this segment (and only under its lock).
+	// records is the total number of records in this segment, while live is the number which are still the current
+	// version of a queued recipient.
+	int records;
+	int live;
+
+	public int size() {return writepos;}
+
+	private LogSegment(java.nio.file.Path pthnam, long seqno, int cap, boolean create) throws java.io.IOException
+	{
+		this.pthnam = pthnam;
+		this.seqno = seqno;
+		java.nio.file.StandardOpenOption[] opts = (create ?
+				new java.nio.file.StandardOpenOption[]{java.nio.file.StandardOpenOption.CREATE_NEW,
+						java.nio.file.StandardOpenOption.READ, java.nio.file.StandardOpenOption.WRITE}
+				: new java.nio.file.StandardOpenOption[]{java.nio.file.StandardOpenOption.READ, java.nio.file.StandardOpenOption.WRITE});
+		chan = java.nio.channels.FileChannel.open(pthnam, opts);
+		try {
+			if (!create) cap = (int)chan.size();
+			capacity = cap;
+			mbuf = chan.map(java.nio.channels.FileChannel.MapMode.READ_WRITE, 0, capacity);
+			if (create) {
+				mbuf.putInt(0, MAGIC);
+			} else if (capacity >= HDRSIZE && mbuf.getInt(0) != MAGIC && mbuf.getInt(0) != 0) {
+				//a zero (or missing) magic number just means we crashed while creating it, so it's treated as empty
+				throw new java.io.IOException("Invalid queue-log segment - "+pthnam);
+			}
+		} catch (java.io.IOException | RuntimeException ex) {
+			chan.close();
+			throw ex;
+		}
+		writepos = HDRSIZE;
+	}
+
+	public static LogSegment create(java.nio.file.Path dh, long seqno, int cap) throws java.io.IOException
+	{
+		java.nio.file.Path pthnam = dh.resolve(makeFilename(seqno));
+		try {
+			return new LogSegment(pthnam, seqno, cap, true);
+		} catch (java.nio.file.NoSuchFileException ex) {
+			//assume failure is due to missing directory - a 2nd failure is genuine
+			FileOps.ensureDirExists(dh);
+			return new LogSegment(pthnam, seqno, cap, true);
+		}
+	}
+
+	public static LogSegment open(java.nio.file.Path pthnam, long seqno) throws java.io.IOException
+	{
+		return new LogSegment(pthnam, seqno, 0, false);
+	}
+
+	// Appends the frame contained in buf (from position to limit) and returns the offset of the frame body within the
+	// segment, or -1 if this segment doesn't have room for it.
+	public int append(java.nio.ByteBuffer buf, boolean with_sync)
+	{
+		int len = buf.remaining();
+		if (writepos + FRAMEHDR + len > capacity) return -1;
+		int off = writepos + FRAMEHDR;
+		java.nio.ByteBuffer dst = mbuf.duplicate();
+		dst.position(off);
+		dst.put(buf);
+		mbuf.putInt(writepos, len); //commits the frame
+		if (with_sync) mbuf.force();
+		writepos = off + len;
+		return off;
+	}
+
+	// Returns the length of the frame body which starts at off+FRAMEHDR, or zero if we have reached the end of the valid
+	// data. On return of zero, the segment is positioned to append after the last valid frame.
+	public int frameLength(int off)
+	{
+		int len = 0;
+		if (off + FRAMEHDR <= capacity) len = mbuf.getInt(off);
+		if (len <= 0 || off + FRAMEHDR + len > capacity) {
+			writepos = off;
+			return 0;
+		}
+		return len;
+	}
+
+	public int getInt(int off) {return mbuf.getInt(off);}
+	public long getLong(int off) {return mbuf.getLong(off);}
+	public byte getByte(int off) {return mbuf.get(off);}
+
+	public void read(int off, byte[] dst, int len)
+	{
+		java.nio.ByteBuffer src = mbuf.duplicate();
+		src.position(off);
+		src.get(dst, 0, len);
+	}
+
+	public void close()
+	{
+		try {
+			chan.close();
+		} catch (Exception ex) {} //nothing to lose, as mapped writes don't depend on the channel
+	}
+
+	public static String makeFilename(long seqno)
+	{
+		StringBuilder sb = new StringBuilder(24);
+		sb.append(PFX_SEGMENT);
+		String hex = Long.toHexString(seqno).toUpperCase();
+		for (int idx = hex.length(); idx < 16; idx++) sb.append('0');
+		return sb.append(hex).append(SUFFIX).toString();
+	}
+
+	public static long parseFilename(String filename)
+	{
+		if (filename.length() != 17 + SUFFIX.length() || filename.charAt(0) != PFX_SEGMENT || !filename.endsWith(SUFFIX)) return -1;
+		try {
+			return Long.parseUnsignedLong(filename.substring(1, 17), 16);
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "LogSegment="+seqno+"/size="+writepos+"/"+capacity+"/records="+live+"/"+records+" - "+pthnam;
+	}
+}
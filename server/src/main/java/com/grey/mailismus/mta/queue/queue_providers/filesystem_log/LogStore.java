@@ -0,0 +1,595 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.queue.queue_providers.filesystem_log;
+
+import com.grey.base.utils.ByteChars;
+import com.grey.base.utils.FileOps;
+import com.grey.base.collections.HashedMap;
+import com.grey.base.collections.HashedMapIntInt;
+import com.grey.base.collections.HashedSetInt;
+import com.grey.base.collections.IteratorInt;
+import com.grey.naf.ApplicationContextNAF;
+import com.grey.mailismus.mta.queue.Spooler;
+import com.grey.logging.Logger.LEVEL;
+
+/*
+ * This is the shared state of a log-structured queue, of which there is one per queue root directory. The various
+ * LogQueue instances (typically the Submit, Delivery and Reports tasks) that are configured with the same root all
+ * attach to the same LogStore, as it holds the in-memory index of the records in the log segments.
+ * The log is a sequence of segments, of which only the newest (the head) is ever appended to. Every change to a queued
+ * recipient is recorded by appending a new version of its record (or a Done record once it's removed) so the in-memory
+ * index simply points at the latest version of each recipient.
+ * Segments are only ever deleted in order, oldest first (see LogCleaner) so Done records never have to be carried forward,
+ * as by the time they are discarded there are no older records left for them to supersede.
+ * The index is only held in this process's memory, so the queue root is locked for as long as the LogStore is attached,
+ * to stop another process from opening the same queue and diverging from us.
+ * All methods must be called with the LogStore's monitor held, which is done by synchronizing on the LogStore instance.
+ */
+final class LogStore
+{
+	// record types
+	public static final byte REC_NEW = 'N';
+	public static final byte REC_DEFERRED = 'T';
+	public static final byte REC_BOUNCE = 'B';
+	public static final byte REC_DONE = 'D';
+
+	// record layout - all records start with the first 5 fields, and Done records consist of nothing else
+	public static final int REC_LEN = 0;
+	public static final int REC_TYPE = 4;
+	public static final int REC_SPID = 5;
+	public static final int REC_QID = 9;
+	public static final int REC_NEXTSEND = 13;
+	public static final int REC_RECVTIME = 21;
+	public static final int REC_IPRECV = 29;
+	public static final int REC_RETRIES = 33;
+	public static final int REC_STATUS = 35;
+	public static final int REC_ADDRS = 37; //sender, mailbox and domain follow as length-prefixed strings
+	public static final int RECLEN_DONE = REC_NEXTSEND;
+
+	public static final String LOCKFILE = "queue.lock";
+
+	static final class Entry
+	{
+		final int spid;
+		final int qid;
+		byte state;
+		long nextsend;
+		long seqno; //determines processing order within each state
+		LogSegment seg; //segment containing the latest version of this recipient's record
+		int offset;
+		boolean inflight; //true while loaded into a queue-cache, so not on any of the ready lists
+
+		Entry(int spid, int qid) {this.spid = spid; this.qid = qid;}
+	}
+
+	private static final java.util.Comparator<Entry> cmp_deferred = (e1, e2) -> {
+		int cmp = Long.compare(e1.nextsend, e2.nextsend);
+		return (cmp == 0 ? Long.compare(e1.seqno, e2.seqno) : cmp);
+	};
+
+	private final java.nio.file.Path dhroot;
+	private final int segsize;
+	private final boolean with_sync;
+	private final com.grey.logging.Logger logger;
+	private final String loglbl;
+	private final HashedMap<java.nio.file.Path,LogStore> registry;
+	private final java.nio.channels.FileChannel lockchan;
+
+	private final java.util.ArrayList<LogSegment> segments = new java.util.ArrayList<>();
+	private final java.util.HashMap<Long, Entry> index = new java.util.HashMap<>();
+	private final java.util.ArrayDeque<Entry> incoming = new java.util.ArrayDeque<>();
+	private final java.util.ArrayDeque<Entry> bounces = new java.util.ArrayDeque<>();
+	private final java.util.PriorityQueue<Entry> deferred = new java.util.PriorityQueue<>(cmp_deferred);
+	private final HashedMapIntInt spid_refs = new HashedMapIntInt(0, 10f); //number of queued recips for each multi-recip SPID
+
+	private LogSegment head;
+	private long next_segno = 1;
+	private long next_seqno = 1;
+	private long total_records; //total records in all segments, live or not
+	private int cnt_incoming;
+	private int cnt_deferred;
+	private int cnt_bounces;
+	private int users;
+
+	public static long makeKey(int spid, int qid) {return ((long)spid << 32) | (qid & 0xFFFFFFFFL);}
+	public int segmentCount() {return segments.size();}
+	public long totalRecords() {return total_records;}
+	public int liveRecords() {return index.size();}
+	public int countIncoming() {return cnt_incoming;}
+	public int countDeferred() {return cnt_deferred;}
+	public int countBounces() {return cnt_bounces;}
+	public boolean isReferenced(int spid) {return spid_refs.get(spid) != 0;}
+	public Entry getEntry(long key) {return index.get(key);}
+	public Entry pollIncoming() {return fetch(incoming.pollFirst());}
+	public Entry pollBounce() {return fetch(bounces.pollFirst());}
+
+	public static LogStore attach(ApplicationContextNAF appctx, java.nio.file.Path dhroot, int segsize, boolean with_sync,
+			com.grey.logging.Logger logger) throws java.io.IOException
+	{
+		HashedMap<java.nio.file.Path,LogStore> stores = appctx.getNamedItem(LogStore.class.getName()+"-stores", () -> new HashedMap<>());
+		synchronized (stores) {
+			LogStore store = stores.get(dhroot);
+			if (store == null) {
+				store = new LogStore(dhroot, segsize, with_sync, logger, stores);
+				stores.put(dhroot, store);
+			}
+			store.users++;
+			return store;
+		}
+	}
+
+	// The last user to detach closes the store, so that it will be reloaded from disk by the next one to attach
+	public void detach()
+	{
+		synchronized (registry) {
+			if (--users != 0) return;
+			registry.remove(dhroot);
+		}
+		synchronized (this) {
+			for (int idx = 0; idx != segments.size(); idx++) {
+				segments.get(idx).close();
+			}
+			segments.clear();
+			index.clear();
+			incoming.clear();
+			bounces.clear();
+			deferred.clear();
+			spid_refs.clear();
+			head = null;
+			releaseLock();
+		}
+	}
+
+	private LogStore(java.nio.file.Path dhroot, int segsize, boolean with_sync, com.grey.logging.Logger logger,
+			HashedMap<java.nio.file.Path,LogStore> registry) throws java.io.IOException
+	{
+		this.dhroot = dhroot;
+		this.segsize = segsize;
+		this.with_sync = with_sync;
+		this.logger = logger;
+		this.registry = registry;
+		loglbl = "QueueLog="+dhroot+": ";
+		FileOps.ensureDirExists(dhroot);
+		lockchan = acquireLock(dhroot);
+		try {
+			replay();
+		} catch (java.io.IOException | RuntimeException ex) {
+			for (int idx = 0; idx != segments.size(); idx++) {
+				segments.get(idx).close();
+			}
+			releaseLock();
+			throw ex;
+		}
+	}
+
+	// The lock is released when its channel is closed, which also happens if this process dies
+	private static java.nio.channels.FileChannel acquireLock(java.nio.file.Path dh) throws java.io.IOException
+	{
+		java.nio.file.Path pthnam = dh.resolve(LOCKFILE);
+		java.nio.channels.FileChannel chan = java.nio.channels.FileChannel.open(pthnam,
+				java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.WRITE);
+		java.nio.channels.FileLock lock = null;
+		try {
+			lock = chan.tryLock();
+		} catch (java.nio.channels.OverlappingFileLockException ex) {
+			//held by another application context within this JVM, which is just as much of a conflict
+		} catch (java.io.IOException | RuntimeException ex) {
+			chan.close();
+			throw ex;
+		}
+		if (lock == null) {
+			chan.close();
+			throw new java.io.IOException("Queue-log is already in use by another process - "+dh);
+		}
+		return chan;
+	}
+
+	private void releaseLock()
+	{
+		try {
+			lockchan.close();
+		} catch (Exception ex) {
+			if (logger != null) logger.log(LEVEL.INFO, ex, false, loglbl+"Failed to release lock");
+		}
+	}
+
+	private void replay() throws java.io.IOException
+	{
+		java.util.TreeMap<Long, java.nio.file.Path> seglist = new java.util.TreeMap<>();
+		try (java.nio.file.DirectoryStream<java.nio.file.Path> ds = java.nio.file.Files.newDirectoryStream(dhroot)) {
+			for (java.nio.file.Path fpath : ds) {
+				long segno = LogSegment.parseFilename(FileOps.getFilename(fpath));
+				if (segno != -1) seglist.put(segno, fpath);
+			}
+		}
+
+		for (java.util.Map.Entry<Long, java.nio.file.Path> ent : seglist.entrySet()) {
+			LogSegment seg = LogSegment.open(ent.getValue(), ent.getKey());
+			segments.add(seg);
+			next_segno = seg.seqno + 1;
+			replay(seg);
+		}
+
+		// empty segments would never be cleaned, if they're not the oldest
+		for (int idx = segments.size() - 1; idx >= 0; idx--) {
+			LogSegment seg = segments.get(idx);
+			if (seg.records == 0) deleteSegment(seg);
+		}
+
+		// now that we know the final state of each recip, put them on the ready lists in their original order
+		java.util.ArrayList<Entry> lst = new java.util.ArrayList<>(index.values());
+		lst.sort((e1, e2) -> Long.compare(e1.seqno, e2.seqno));
+		for (int idx = 0; idx != lst.size(); idx++) {
+			enqueue(lst.get(idx));
+		}
+		// we never append to a pre-existing segment, as its tail might be torn
+		head = createSegment(segsize);
+
+		if (logger != null) {
+			logger.info(loglbl+"Loaded segments="+segments.size()+" with records="+index.size()+"/"+total_records
+					+" - incoming="+cnt_incoming+", deferred="+cnt_deferred+", bounces="+cnt_bounces);
+		}
+	}
+
+	private void replay(LogSegment seg)
+	{
+		int off = LogSegment.HDRSIZE;
+		int framelen;
+		while ((framelen = seg.frameLength(off)) != 0) {
+			int pos = off + LogSegment.FRAMEHDR;
+			int lmt = pos + framelen;
+			while (pos < lmt) {
+				int reclen = seg.getInt(pos + REC_LEN);
+				byte rectype = seg.getByte(pos + REC_TYPE);
+				if (reclen < RECLEN_DONE || pos + reclen > lmt || (rectype != REC_DONE && reclen < REC_ADDRS)) {
+					//can't happen, as frames are written atomically, so somebody has been tinkering with the file
+					if (logger != null) logger.warn(loglbl+"Discarding corrupt frame at offset="+off+" - "+seg);
+					break;
+				}
+				int spid = seg.getInt(pos + REC_SPID);
+				int qid = seg.getInt(pos + REC_QID);
+				long nextsend = (rectype == REC_DONE ? 0 : seg.getLong(pos + REC_NEXTSEND));
+				apply(makeKey(spid, qid), spid, qid, rectype, nextsend, seg, pos);
+				pos += reclen;
+			}
+			off = lmt;
+		}
+	}
+
+	// Applies a record which has just been appended (or replayed) to the index, and returns the recipient's Entry, or
+	// null if it's been removed.
+	private Entry apply(long key, int spid, int qid, byte state, long nextsend, LogSegment seg, int off)
+	{
+		seg.records++;
+		total_records++;
+		Entry ent = index.get(key);
+		if (ent != null) {
+			ent.seg.live--;
+			adjustCount(ent.state, -1);
+		}
+		if (state == REC_DONE) {
+			if (ent != null) {
+				index.remove(key);
+				if (Spooler.isMultiSPID(spid)) {
+					int cnt = spid_refs.get(spid) - 1;
+					if (cnt <= 0) {
+						spid_refs.remove(spid);
+					} else {
+						spid_refs.put(spid, cnt);
+					}
+				}
+			}
+			return null;
+		}
+		if (ent == null) {
+			ent = new Entry(spid, qid);
+			index.put(key, ent);
+			if (Spooler.isMultiSPID(spid)) spid_refs.put(spid, spid_refs.get(spid) + 1);
+		}
+		ent.state = state;
+		ent.nextsend = nextsend;
+		ent.seqno = next_seqno++;
+		ent.seg = seg;
+		ent.offset = off;
+		seg.live++;
+		adjustCount(state, 1);
+		return ent;
+	}
+
+	// Appends the batch as a single frame, so that it is applied all-or-nothing. Entries which were loaded but not
+	// updated are returned to the ready lists as is.
+	public void commit(Batch batch, java.util.ArrayList<Entry> unprocessed) throws java.io.IOException
+	{
+		if (batch.cnt != 0) {
+			int off = append(batch);
+			for (int idx = 0; idx != batch.cnt; idx++) {
+				long key = batch.keys[idx];
+				Entry prev = index.get(key);
+				if (prev != null && !prev.inflight) unlist(prev); //not expected, but keep the lists consistent
+				Entry ent = apply(key, (int)(key >>> 32), (int)key, batch.states[idx], batch.nextsends[idx], head, off + batch.offsets[idx]);
+				if (ent != null) enqueue(ent);
+			}
+		}
+		if (unprocessed != null) requeue(unprocessed);
+	}
+
+	// Moves the live records in the batch (built by the LogCleaner) to the head segment, preserving their Entry state
+	public void relocate(Batch batch) throws java.io.IOException
+	{
+		if (batch.cnt == 0) return;
+		int off = append(batch);
+		for (int idx = 0; idx != batch.cnt; idx++) {
+			Entry ent = batch.entries[idx];
+			ent.seg.live--;
+			ent.seg = head;
+			ent.offset = off + batch.offsets[idx];
+			head.live++;
+			head.records++;
+			total_records++;
+		}
+	}
+
+	// Returns the segment offset at which the batch's frame was written
+	private int append(Batch batch) throws java.io.IOException
+	{
+		java.nio.ByteBuffer buf = batch.buf;
+		buf.flip();
+		int off = head.append(buf, with_sync);
+		if (off == -1) {
+			int cap = Math.max(segsize, LogSegment.HDRSIZE + LogSegment.FRAMEHDR + buf.remaining());
+			LogSegment seg = createSegment(cap);
+			head = seg;
+			off = head.append(buf, with_sync);
+		}
+		return off;
+	}
+
+	public void requeue(java.util.Collection<Entry> lst)
+	{
+		// incoming recips go back to the front of the list, to preserve their place
+		java.util.ArrayList<Entry> front = null;
+		for (Entry ent : lst) {
+			if (!ent.inflight || index.get(makeKey(ent.spid, ent.qid)) != ent) continue;
+			ent.inflight = false;
+			if (ent.state == REC_NEW) {
+				if (front == null) front = new java.util.ArrayList<>();
+				front.add(ent);
+			} else {
+				enqueue(ent);
+			}
+		}
+		if (front != null) {
+			front.sort((e1, e2) -> Long.compare(e2.seqno, e1.seqno));
+			for (int idx = 0; idx != front.size(); idx++) {
+				incoming.addFirst(front.get(idx));
+			}
+		}
+	}
+
+	public Entry pollDeferred(long systime, boolean fetch_all)
+	{
+		Entry ent = deferred.peek();
+		if (ent == null || (!fetch_all && ent.nextsend > systime)) return null;
+		return fetch(deferred.poll());
+	}
+
+	private static Entry fetch(Entry ent)
+	{
+		if (ent != null) ent.inflight = true;
+		return ent;
+	}
+
+	private void enqueue(Entry ent)
+	{
+		ent.inflight = false;
+		switch (ent.state) {
+		case REC_NEW:
+			incoming.addLast(ent);
+			break;
+		case REC_DEFERRED:
+			deferred.add(ent);
+			break;
+		case REC_BOUNCE:
+			bounces.addLast(ent);
+			break;
+		default:
+			throw new IllegalStateException("Missing case for queue-log record="+ent.state);
+		}
+	}
+
+	private void unlist(Entry ent)
+	{
+		switch (ent.state) {
+		case REC_NEW:
+			incoming.remove(ent);
+			break;
+		case REC_DEFERRED:
+			deferred.remove(ent);
+			break;
+		case REC_BOUNCE:
+			bounces.remove(ent);
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void adjustCount(byte state, int delta)
+	{
+		switch (state) {
+		case REC_NEW:
+			cnt_incoming += delta;
+			break;
+		case REC_DEFERRED:
+			cnt_deferred += delta;
+			break;
+		case REC_BOUNCE:
+			cnt_bounces += delta;
+			break;
+		default:
+			break;
+		}
+	}
+
+	// Copies the recipient's current record into buf, or into a larger replacement array (which is returned) if it doesn't fit
+	public byte[] readRecord(Entry ent, byte[] buf)
+	{
+		int reclen = ent.seg.getInt(ent.offset + REC_LEN);
+		if (buf.length < reclen) buf = new byte[reclen + 64];
+		ent.seg.read(ent.offset, buf, reclen);
+		return buf;
+	}
+
+	// Returns the oldest segment, so long as it is not also the head
+	public LogSegment oldestSegment()
+	{
+		if (segments.size() < 2) return null;
+		return segments.get(0);
+	}
+
+	public void deleteSegment(LogSegment seg)
+	{
+		segments.remove(seg);
+		total_records -= seg.records;
+		seg.close();
+		Exception ex = FileOps.deleteFile(seg.pthnam);
+		if (ex != null && logger != null) logger.log(LEVEL.INFO, ex, false, loglbl+"Failed to delete segment="+seg);
+	}
+
+	private LogSegment createSegment(int cap) throws java.io.IOException
+	{
+		LogSegment seg = LogSegment.create(dhroot, next_segno++, cap);
+		segments.add(seg);
+		return seg;
+	}
+
+	public int loadSPIDs(HashedMapIntInt refcnt, int max)
+	{
+		IteratorInt it = spid_refs.recycledKeysIterator();
+		while (it.hasNext()) {
+			if (max != 0 && refcnt.size() >= max) break;
+			int spid = it.next();
+			refcnt.put(spid, spid_refs.get(spid));
+		}
+		return refcnt.size();
+	}
+
+	public void pruneReferenced(HashedSetInt spids)
+	{
+		IteratorInt it = spids.recycledIterator();
+		while (it.hasNext()) {
+			if (isReferenced(it.next())) it.remove();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+"/segments="+segments.size()+"/records="+index.size()+"/"+total_records+" - "+dhroot;
+	}
+
+
+	/*
+	 * Accumulates a frame of records, along with the index updates that will be applied once it's been appended.
+	 */
+	static final class Batch
+	{
+		java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate(4096);
+		int cnt;
+		long[] keys = new long[64];
+		byte[] states = new byte[keys.length];
+		long[] nextsends = new long[keys.length];
+		int[] offsets = new int[keys.length]; //offset of each record within the frame
+		Entry[] entries = new Entry[keys.length]; //only used for relocations
+
+		public int size() {return buf.position();}
+
+		public Batch reset()
+		{
+			buf.clear();
+			java.util.Arrays.fill(entries, 0, cnt, null);
+			cnt = 0;
+			return this;
+		}
+
+		public void addDone(int spid, int qid)
+		{
+			int off = startRecord(RECLEN_DONE, spid, qid, REC_DONE, 0);
+			buf.putInt(off + REC_LEN, RECLEN_DONE);
+		}
+
+		public void addRecip(byte state, int spid, int qid, long nextsend, long recvtime, int iprecv, int retrycnt, int status,
+				ByteChars sender, ByteChars mbx, ByteChars domain)
+		{
+			int len = REC_ADDRS + 6 + sizeOf(sender) + sizeOf(mbx) + sizeOf(domain);
+			int off = startRecord(len, spid, qid, state, nextsend);
+			buf.putLong(nextsend);
+			buf.putLong(recvtime);
+			buf.putInt(iprecv);
+			buf.putShort((short)retrycnt);
+			buf.putShort((short)status);
+			putString(sender);
+			putString(mbx);
+			putString(domain);
+			buf.putInt(off + REC_LEN, buf.position() - off);
+		}
+
+		// copies an existing record, on behalf of the LogCleaner
+		public void addRecord(Entry ent, byte[] rec)
+		{
+			int reclen = java.nio.ByteBuffer.wrap(rec).getInt(REC_LEN);
+			int off = startRecord(reclen, ent.spid, ent.qid, ent.state, ent.nextsend);
+			buf.position(off);
+			buf.put(rec, 0, reclen);
+			entries[cnt-1] = ent;
+		}
+
+		private int startRecord(int reclen, int spid, int qid, byte state, long nextsend)
+		{
+			if (cnt == keys.length) growIndex();
+			if (buf.remaining() < reclen) {
+				java.nio.ByteBuffer newbuf = java.nio.ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + reclen));
+				buf.flip();
+				newbuf.put(buf);
+				buf = newbuf;
+			}
+			int off = buf.position();
+			keys[cnt] = makeKey(spid, qid);
+			states[cnt] = state;
+			nextsends[cnt] = nextsend;
+			offsets[cnt] = off;
+			cnt++;
+			buf.putInt(0); //length gets filled in when record is complete
+			buf.put(state);
+			buf.putInt(spid);
+			buf.putInt(qid);
+			return off;
+		}
+
+		private void growIndex()
+		{
+			int newcap = keys.length * 2;
+			keys = java.util.Arrays.copyOf(keys, newcap);
+			states = java.util.Arrays.copyOf(states, newcap);
+			nextsends = java.util.Arrays.copyOf(nextsends, newcap);
+			offsets = java.util.Arrays.copyOf(offsets, newcap);
+			entries = java.util.Arrays.copyOf(entries, newcap);
+		}
+
+		private void putString(ByteChars str)
+		{
+			if (str == null) {
+				buf.putShort((short)0);
+				return;
+			}
+			buf.putShort((short)str.size());
+			buf.put(str.buffer(), str.offset(), str.size());
+		}
+
+		private static int sizeOf(ByteChars str)
+		{
+			return (str == null ? 0 : str.size());
+		}
+	}
+}
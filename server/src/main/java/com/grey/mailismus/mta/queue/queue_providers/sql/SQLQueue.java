@@ -7,6 +7,7 @@ package com.grey.mailismus.mta.queue.queue_providers.sql;
 import com.grey.logging.Logger.LEVEL;
 import com.grey.base.utils.TimeOps;
 import com.grey.mailismus.mta.queue.QException;
+import com.grey.mailismus.mta.queue.QueueWakeup;
 import com.grey.mailismus.AppConfig;
 import com.grey.mailismus.errors.MailismusConfigException;
 
@@ -26,10 +27,25 @@ import com.grey.mailismus.errors.MailismusConfigException;
  *
  * Note that pstmt.setString(n, String) does not require the incoming string to be surrounded in quotes, and also handles embedded quotes ok
  * pstmt.setNull(n, java.sql.Types.VARCHAR) successfully conveys a NULL for a varchar field
+ *
+ * In async mode, the loads and updates which the Delivery and Reports tasks do in the course of each batch are run on the
+ * SQLWorkers threads instead of the Dispatcher thread, so that slow queries do not hold up all the other work on that
+ * Dispatcher. Their results are passed back to the Dispatcher via a Producer.
+ * - An update is queued up as a job, along with a load of the next batch, which will therefore be ready (prefetched) by the
+ *   time the caller next asks for it. If no load has been prefetched (or its results are already used up), then loadMessages()
+ *   returns nothing and starts a load in the background for the next call.
+ * - The recips whose updates are still pending are excluded from subsequent loads. If an update fails, it is retried ahead of
+ *   the next job.
+ * - The spool files of the messages which are completed by an update are not deleted (or even identified, as the recips
+ *   being deleted still refer to them) until that update has been committed. See deferOrphans().
+ * - When a prefetch which found some recips completes, the consumer is woken up to come and collect them.
+ * - Message submissions, and the infrequent admin and housekeeping operations, are still synchronous.
+ * Each SQLQueue only has one job outstanding at a time, so they are run in the order they were queued.
  */
 public final class SQLQueue
 	extends com.grey.mailismus.mta.queue.QueueManager
-	implements com.grey.mailismus.mta.queue.Spooler.SPID_Counter
+	implements com.grey.mailismus.mta.queue.Spooler.SPID_Counter,
+		com.grey.naf.reactor.Producer.Consumer<SQLQueue.AsyncJob>
 {
 	private static final String TBLNAM_SMTPQ = "MMTA_SMTPQUEUE";
 
@@ -39,7 +55,12 @@ public final class SQLQueue
 	// (which can also be increased by the Postgresql administrator anyway.
 	// However, since it doesn't constrain our cache size, we'll default sqlmax_subqrykeys to a much lower value, to
 	// be conservative.
+	// The updates are now prepared statements which are executed in JDBC batches rather than built with IN lists, and
+	// this setting also limits the number of rows in each batch (and the size of each array, where array parameters are
+	// supported) so that no one statement gets excessively large.
 	private final int sqlmax_subqrykeys;
+	private final boolean array_params;
+	private final boolean async_mode;
 
 	private static final String dflt_sqlcmd_add_recip = "INSERT INTO "+TBLNAM_SMTPQ
 		+ " (SPID, MAILADDR_FROM, RECVTIME, IPRECV, NEXTSEND, DOMAIN_TO, MAILBOX_TO)"
@@ -52,28 +73,84 @@ public final class SQLQueue
 		+ " WHERE NEXTSEND IS NULL";
 	private static final String dflt_sqlcmd_get_allspids = "SELECT SPID FROM "+TBLNAM_SMTPQ;
 
-	// command fragments
+	// These are keyed on a single QID, whose parameter comes last. If the database supports array parameters, then the
+	// KEYPARAM token is replaced by "= ANY(?)" and the key is an array of QIDs, else it is replaced by "= ?".
+	// Config overrides in the older format (where the QIDs were appended to a trailing "in (" and the values were
+	// substituted for #1# and #2# + #3#) are converted to this form - see Commands.parameterise()
+	private static final String KEYPARAM = "#KEY#";
+	private static final java.util.regex.Pattern LEGACY_KEYLIST = java.util.regex.Pattern.compile("\\s+in\\s*\\(\\s*$",
+			java.util.regex.Pattern.CASE_INSENSITIVE);
+	private static final java.util.regex.Pattern LEGACY_NEXTSEND = java.util.regex.Pattern.compile("#2#\\s*\\+\\s*#3#");
 	private static final String dflt_sqlcmd_del_recips = "DELETE FROM "+TBLNAM_SMTPQ
-		+" WHERE QID in ("; //append QIDs and closing bracket to this
+		+" WHERE QID "+KEYPARAM;
 	private static final String dflt_sqlcmd_update_recips = "UPDATE "+TBLNAM_SMTPQ
-		+" SET STATUS=#1#, NEXTSEND = #2# + #3#, RETRYCOUNT=RETRYCOUNT+1"
-		+" WHERE QID in ("; //append QIDs and closing bracket to this
+		+" SET STATUS = ?, NEXTSEND = ?, RETRYCOUNT=RETRYCOUNT+1"
+		+" WHERE QID "+KEYPARAM;
 	private static final String dflt_sqlcmd_set_errorbounces = "UPDATE "+TBLNAM_SMTPQ
-		+" SET NEXTSEND=NULL, STATUS=#1#"
-		+" WHERE QID in ("; //append QIDs and closing bracket to this
+		+" SET NEXTSEND=NULL, STATUS = ?"
+		+" WHERE QID "+KEYPARAM;
 	private static final String dflt_sqlcmd_set_expirybounces = "UPDATE "+TBLNAM_SMTPQ
 		+" SET NEXTSEND=NULL"
-		+" WHERE QID in ("; //append QIDs and closing bracket to this
+		+" WHERE QID "+KEYPARAM;
+
+	// command fragments
 	private static final String dflt_sqlcmd_get_spids = "SELECT SPID FROM "+TBLNAM_SMTPQ
 		+" WHERE SPID in ("; //append SPIDs and closing bracket to this
+	private static final String dflt_sqlcmd_get_spids_array = "SELECT SPID FROM "+TBLNAM_SMTPQ
+		+" WHERE SPID = ANY(?)";
+
+	// The commands executed by SQLSession, which may be in a worker thread, so this is immutable
+	static final class Commands
+	{
+		final String get_readyrecips;
+		final String get_bounces;
+		final String del_recips;
+		final String update_recips;
+		final String set_errorbounces;
+		final String set_expirybounces;
+		final int maxkeys;
+		final boolean array_params;
+
+		Commands(com.grey.base.config.XmlConfig cfg, int maxkeys, boolean array_params)
+		{
+			String keyparam = (array_params ? "= ANY(?)" : "= ?");
+			this.maxkeys = maxkeys;
+			this.array_params = array_params;
+			update_recips = parameterise(cfg, "sql_updaterecips", dflt_sqlcmd_update_recips, keyparam, 2);
+			del_recips = parameterise(cfg, "sql_delrecips", dflt_sqlcmd_del_recips, keyparam, 0);
+			get_readyrecips = cfg.getValue("sql_getready", true, dflt_sqlcmd_get_readyrecips);
+			get_bounces = cfg.getValue("sql_getbounces", true, dflt_sqlcmd_get_bounces);
+			set_errorbounces = parameterise(cfg, "sql_setbounces_err", dflt_sqlcmd_set_errorbounces, keyparam, 1);
+			set_expirybounces = parameterise(cfg, "sql_setbounces_tmt", dflt_sqlcmd_set_expirybounces, keyparam, 0);
+		}
+
+		// The valparams arg is the number of value parameters which precede the key. For the older format, these are
+		// #1# (the status) and then #2# + #3# (the send time plus the retry delay), which the new format passes as a
+		// single value.
+		static String parameterise(com.grey.base.config.XmlConfig cfg, String item, String dflt, String keyparam, int valparams)
+		{
+			String cmd = cfg.getValue(item, true, dflt);
+			if (cmd.contains(KEYPARAM)) return cmd.replace(KEYPARAM, keyparam);
+			java.util.regex.Matcher m = LEGACY_KEYLIST.matcher(cmd);
+			if (!m.find()) throw new MailismusConfigException("SQLQueue: "+item+" must end with QID "+KEYPARAM+" - "+cmd);
+			String legacy = cmd;
+			cmd = cmd.substring(0, m.start())+" "+keyparam;
+			int pos1 = cmd.indexOf("#1#");
+			int pos2 = cmd.indexOf("#2#");
+			cmd = LEGACY_NEXTSEND.matcher(cmd).replaceFirst("?").replace("#1#", "?");
+			int cnt = 0;
+			for (int idx = 0; idx != cmd.length(); idx++) {
+				if (cmd.charAt(idx) == '?') cnt++;
+			}
+			boolean valid = (cnt == valparams + 1 && cmd.indexOf('#') == -1);
+			if (valparams == 2 && (pos1 == -1 || pos2 == -1 || pos1 > pos2)) valid = false;
+			if (!valid) throw new MailismusConfigException("SQLQueue: "+item+" cannot be converted to a parameterised command - "+legacy);
+			return cmd;
+		}
+	}
 
+	private final Commands cmds;
 	private final String sqlcmd_add_recip;
-	private final String sqlcmd_get_readyrecips;
-	private final String sqlcmd_get_bounces;
-	private final String sqlcmd_del_recips;
-	private final String sqlcmd_update_recips;
-	private final String sqlcmd_set_errorbounces;
-	private final String sqlcmd_set_expirybounces;
 	private final String sqlcmd_get_allspids;
 	private final String sqlcmd_get_spids;
 
@@ -88,17 +165,34 @@ public final class SQLQueue
 	private static final int FAIL_GETRECIPS = 2;
 	private static final int FAIL_GETBOUNCES = 3;
 	private static final int FAIL_SHOW = 4;
+
+	private static final long ASYNC_SHUTDOWN_WAIT = 10_000; //how long to wait for the in-flight async job on shutdown
 	private final boolean failed_methods[] = new boolean[5];
 
 	private final com.grey.mailismus.DBHandle db;
+	private SQLSession mainsess; //the loads and updates on the main connection
 	private java.sql.PreparedStatement pstmt_add_recip;
-	private java.sql.PreparedStatement pstmt_get_readyrecips;
-	private java.sql.PreparedStatement pstmt_get_bounces;
+	private java.sql.PreparedStatement pstmt_get_spids; //only used if array_params is true
 	private java.sql.Statement stmt_misc;
 
+	// async mode
+	private final SQLWorkers workers;
+	private final com.grey.naf.reactor.Producer<AsyncJob> resultsChannel;
+	private final java.util.ArrayDeque<AsyncJob> jobs_queued = new java.util.ArrayDeque<AsyncJob>();
+	private final java.util.ArrayList<AsyncJob> jobs_spare = new java.util.ArrayList<AsyncJob>();
+	private final com.grey.base.collections.HashedSetInt pending_qids = new com.grey.base.collections.HashedSetInt(); //recips with updates pending
+	private AsyncJob job_inflight;
+	private AsyncJob job_lastupdate; //the job queued by the current updateMessages() call, if any
+	private java.util.concurrent.Future<?> job_future;
+	private AsyncJob job_prefetched; //completed load, ready to be handed out by loadMessages()
+	private boolean load_pending; //a queued or in-flight job includes a load
+	private boolean update_failed; //the job at the head of the queue is awaiting a retry
+	private boolean last_bounces; //the most recent loadMessages() params, which also apply to the prefetches
+	private boolean last_deferred;
+	private int prefetch_rows;
+
 	// Temp work areas, pre-allocated for efficiency
-	// modqids tracks the MessageRecips updates for deferred messages - it is indexed by retrycnt, and each element is hash-keyed on smtp_status
-	private final com.grey.base.collections.HashedMapIntKey<java.util.ArrayList<com.grey.mailismus.mta.queue.MessageRecip>>[] modqids;
+	private final SQLSession.Batch syncbatch = new SQLSession.Batch();
 	private final StringBuilder sqlcmd_misc = new StringBuilder(1024);
 	private final com.grey.base.utils.IntValue recipcounter = new com.grey.base.utils.IntValue(0);
 	private int[] tmp_spids = new int[0]; //will grow as necessary
@@ -113,39 +207,53 @@ public final class SQLQueue
 			throw new MailismusConfigException("The SQL-QueueManager does not support hard-linked spool files");
 		}
 
-		@SuppressWarnings("unchecked")
-		com.grey.base.collections.HashedMapIntKey<java.util.ArrayList<com.grey.mailismus.mta.queue.MessageRecip>>[] unchecked
-			= new com.grey.base.collections.HashedMapIntKey[10];
-		modqids = unchecked;
-		for (int idx = 0; idx != modqids.length; idx++) {
-			modqids[idx] = new com.grey.base.collections.HashedMapIntKey<java.util.ArrayList<com.grey.mailismus.mta.queue.MessageRecip>>(0, 10f);
-		}
+		String dbname = cfg.getValue("sql_dbname", true, "smtpq");
+		db = new com.grey.mailismus.DBHandle(dbname, appcfg.getDatabaseType(), dsptch.getApplicationContext(), cfg, dsptch.getLogger());
+		array_params = cfg.getBool("sql_arrayparams", db.dbtype.hasArrayParams);
 
 		sqlmax_subqrykeys = cfg.getInt("sql_maxsubquerykeys", false, 1000);
+		cmds = new Commands(cfg, sqlmax_subqrykeys, array_params);
 		sqlcmd_add_recip = cfg.getValue("sql_addrecip", true, dflt_sqlcmd_add_recip);
-		sqlcmd_update_recips = cfg.getValue("sql_updaterecips", true, dflt_sqlcmd_update_recips);
-		sqlcmd_del_recips = cfg.getValue("sql_delrecips", true, dflt_sqlcmd_del_recips);
-		sqlcmd_get_readyrecips = cfg.getValue("sql_getready", true, dflt_sqlcmd_get_readyrecips);
-		sqlcmd_get_bounces = cfg.getValue("sql_getbounces", true, dflt_sqlcmd_get_bounces);
-		sqlcmd_set_errorbounces = cfg.getValue("sql_setbounces_err", true, dflt_sqlcmd_set_errorbounces);
-		sqlcmd_set_expirybounces = cfg.getValue("sql_setbounces_tmt", true, dflt_sqlcmd_set_expirybounces);
 		sqlcmd_get_allspids = cfg.getValue("sql_getallspids", true, dflt_sqlcmd_get_allspids);
-		sqlcmd_get_spids = cfg.getValue("sql_getspids", true, dflt_sqlcmd_get_spids);
-
-		String dbname = cfg.getValue("sql_dbname", true, "smtpq");
-		db = new com.grey.mailismus.DBHandle(dbname, appcfg.getDatabaseType(), dsptch.getApplicationContext(), cfg, dsptch.getLogger());
+		String getspids = cfg.getValue("sql_getspids", true, array_params ? dflt_sqlcmd_get_spids_array : dflt_sqlcmd_get_spids);
+		if (array_params) {
+			// an override may still be a fragment, awaiting a list of SPIDs
+			java.util.regex.Matcher m = LEGACY_KEYLIST.matcher(getspids);
+			if (m.find()) getspids = getspids.substring(0, m.start())+" = ANY(?)";
+		}
+		sqlcmd_get_spids = getspids;
 		try {
 			initDatabase(cfg);
 		} catch (Exception ex) {
 			throw new QException(loglbl+"Failed to initialise database", ex);
 		}
-		dsptch.getLogger().trace(loglbl+" sql_maxsubquerykeys=" + sqlmax_subqrykeys);
+
+		async_mode = cfg.getBool("sql_async", false);
+		if (async_mode) {
+			int nthreads = cfg.getInt("sql_async_threads", false, 2);
+			int backlog = cfg.getInt("sql_async_backlog", false, 64);
+			workers = SQLWorkers.attach(dsptch.getApplicationContext(), db, nthreads, backlog);
+			resultsChannel = new com.grey.naf.reactor.Producer<>("SQLQueue-results", dsptch, this);
+			com.grey.naf.reactor.TimerNAF.Handler onStart = new com.grey.naf.reactor.TimerNAF.Handler() {
+				@Override
+				public void timerIndication(com.grey.naf.reactor.TimerNAF t, com.grey.naf.reactor.Dispatcher d) {
+					resultsChannel.startDispatcherRunnable(); //need to call this within Dispatcher thread
+				}
+			};
+			dsptch.setTimer(0, 0, onStart);
+			dsptch.getLogger().info(loglbl+"async mode - "+workers);
+		} else {
+			workers = null;
+			resultsChannel = null;
+		}
+		dsptch.getLogger().trace(loglbl+" sql_maxsubquerykeys=" + sqlmax_subqrykeys+", sql_arrayparams="+array_params);
 		if (FORCE_FAIL) dsptch.getLogger().info(loglbl+"Forced-Failure test mode is enabled");
 	}
 
 	@Override
 	protected void shutdown()
 	{
+		if (async_mode) stopAsync();
 		closeDatabase();
 	}
 
@@ -209,6 +317,10 @@ public final class SQLQueue
 	public void updateMessages(com.grey.mailismus.mta.queue.Cache cache, boolean is_bounces_batch)
 	{
 		if (read_only) return;
+		if (async_mode) {
+			queueUpdates(cache, is_bounces_batch);
+			return;
+		}
 		try {
 			tryUpdateMessages(cache, is_bounces_batch);
 		} catch (Throwable ex) {
@@ -261,9 +373,26 @@ public final class SQLQueue
 		}
 	}
 
+	// In async mode, the updates which will delete the completed recips have merely been queued, so the job which applies
+	// them takes charge of their orphaned SPIDs.
+	@Override
+	protected boolean deferOrphans(com.grey.base.collections.HashedSetInt done, com.grey.base.collections.HashedSetInt candidates)
+	{
+		AsyncJob job = job_lastupdate;
+		job_lastupdate = null;
+		if (job == null) return false;
+		copySet(done, job.orphans_done);
+		copySet(candidates, job.orphans_candidates);
+		return true;
+	}
+
 	@Override
 	protected void loadMessages(com.grey.mailismus.mta.queue.Cache cache, boolean get_bounces, boolean get_deferred)
 	{
+		if (async_mode) {
+			loadPrefetched(cache, get_bounces, get_deferred);
+			return;
+		}
 		getRecips(cache, get_bounces, get_deferred);
 	}
 
@@ -318,6 +447,7 @@ public final class SQLQueue
 			}
 			addRecipient(sph.recips.get(idx), sender);
 		}
+		pstmt_add_recip.executeBatch();
 		if (FORCE_FAIL) forced_failure(FAIL_STOREMSG, "Store-Message");
 		db.commit(true);
 	}
@@ -331,7 +461,7 @@ public final class SQLQueue
 		pstmt_add_recip.setString(2, sender);
 		pstmt_add_recip.setString(6, dom);
 		pstmt_add_recip.setString(7, mbx);
-		pstmt_add_recip.executeUpdate();
+		pstmt_add_recip.addBatch();
 	}
 
 	private void getRecips(com.grey.mailismus.mta.queue.Cache cache, boolean get_bounces, boolean get_deferred) {
@@ -371,70 +501,40 @@ public final class SQLQueue
 	private void loadRecips(com.grey.mailismus.mta.queue.Cache cache, boolean get_bounces, boolean get_deferred)
 		throws java.sql.SQLException
 	{
-		java.sql.PreparedStatement stmt;
-		if (get_bounces) {
-			stmt = pstmt_get_bounces;
-		} else {
-			stmt = pstmt_get_readyrecips;
-			stmt.clearParameters();
-			stmt.setLong(1, get_deferred ? Long.MAX_VALUE : dsptch.getSystemTime());
-		}
-		long bounce_cutoff = dsptch.getSystemTime() - maxretrytime;
-		long bounce_cutoff_ndr = dsptch.getSystemTime() - maxretrytime_ndr;
-		stmt.setMaxRows(cache.capacity() - cache.size());
-		java.sql.ResultSet rs = stmt.executeQuery();
-		int expirecnt = 0;
-
-		try {
-			while (rs.next()) {
-				boolean expired = false;
-				int qid = rs.getInt("QID");
-				short status = (get_bounces ? (short)rs.getInt("STATUS") : 0);
-				com.grey.base.utils.ByteChars sndr = allocCacheField(rs.getString("MAILADDR_FROM"));
-				com.grey.base.utils.ByteChars dom_to = allocCacheField(rs.getString("DOMAIN_TO"));
-				com.grey.base.utils.ByteChars mbox_to = allocCacheField(rs.getString("MAILBOX_TO"));
-				long recvtime = rs.getLong("RECVTIME");
-				if (!get_bounces) {
-					// we are being called in delivery mode, but we mark bounced messages for the reporting task
-					if (sndr == null) {
-						if (recvtime < bounce_cutoff_ndr) expired = true;
-					} else {
-						if (recvtime < bounce_cutoff) expired = true;
-					}
-				}
-				if (expired) {
-					if (tmp_spids.length <= expirecnt) tmp_spids = arrgrow(tmp_spids);
-					tmp_spids[expirecnt++] = qid;
-				} else {
-					cache.addEntry(qid, rs.getInt("SPID"), recvtime, rs.getInt("IPRECV"), sndr, dom_to, mbox_to,
-							(short)rs.getInt("RETRYCOUNT"), status);
-				}
-			}
-		} finally {
-			try {rs.close();} catch (Exception ex) {dsptch.getLogger().log(LEVEL.TRC2, ex, false, loglbl+"load-rs.close");}
-		}
+		long systime = dsptch.getSystemTime();
+		syncbatch.clear();
+		mainsess.loadRows(syncbatch, get_bounces, get_deferred ? Long.MAX_VALUE : systime, cache.capacity() - cache.size(),
+				systime - maxretrytime, systime - maxretrytime_ndr);
+		addRows(cache, syncbatch);
+	}
 
-		// now mark any expired messages as bounces
-		if (expirecnt != 0) {
-			int subkeynum = 0;
-			sqlcmd_misc.setLength(0);
-			for (int idx = 0; idx != expirecnt; idx++) {
-				subkeynum = buildSubquery(sqlcmd_set_expirybounces, subkeynum, null, tmp_spids[idx], sqlcmd_misc, stmt_misc);
-			}
-			if (subkeynum != 0) executeWithSubQuery(stmt_misc, sqlcmd_misc, false);
+	private void addRows(com.grey.mailismus.mta.queue.Cache cache, SQLSession.Batch batch)
+	{
+		for (int idx = 0; idx != batch.rowcnt; idx++) {
+			if (cache.size() == cache.capacity()) break;
+			if (pending_qids.size() != 0 && pending_qids.contains(batch.row_qid[idx])) continue; //update still outstanding
+			com.grey.base.utils.ByteChars sndr = allocCacheField(batch.row_sender[idx]);
+			com.grey.base.utils.ByteChars dom_to = allocCacheField(batch.row_domain[idx]);
+			com.grey.base.utils.ByteChars mbox_to = allocCacheField(batch.row_mailbox[idx]);
+			cache.addEntry(batch.row_qid[idx], batch.row_spid[idx], batch.row_recvtime[idx], batch.row_iprecv[idx], sndr, dom_to, mbox_to,
+					batch.row_retrycnt[idx], batch.row_status[idx]);
 		}
 	}
 
 	private void tryUpdateMessages(com.grey.mailismus.mta.queue.Cache cache, boolean is_bounces_batch)
 		throws java.sql.SQLException
 	{
-		for (int idx = 0; idx != modqids.length; idx++) {
-			java.util.Iterator<java.util.ArrayList<com.grey.mailismus.mta.queue.MessageRecip>> it = modqids[idx].recycledValuesIterator();
-			while (it.hasNext()) it.next().clear();
-		}
+		syncbatch.clear();
+		addUpdates(cache, is_bounces_batch, syncbatch);
+		mainsess.applyUpdates(syncbatch);
+		if (FORCE_FAIL) forced_failure(FAIL_UPDATERECIPS, "Update-Recips");
+		db.commit(true);
+	}
+
+	private void addUpdates(com.grey.mailismus.mta.queue.Cache cache, boolean is_bounces_batch, SQLSession.Batch batch)
+	{
 		final int cachesize = cache.size();
-		int subkeynum = 0;
-		sqlcmd_misc.setLength(0);
+		final long systime = dsptch.getSystemTime();
 
 		for (int idx = 0; idx != cachesize; idx++) {
 			com.grey.mailismus.mta.queue.MessageRecip recip = cache.get(idx);
@@ -444,7 +544,7 @@ public final class SQLQueue
 
 			if (is_bounces_batch || recip.smtp_status == com.grey.mailismus.mta.Protocol.REPLYCODE_OK) {
 				/*
-				 * Delete queue entries for delivered recips as we go along.
+				 * Delete queue entries for delivered recips.
 				 * Note if a non-leading sqlcmd_del_recips update throws (or if we encounter any errors between executing the first del_recips
 				 * command and deleting the last orphaned spool item), we will have lost track of any spool items which were orphaned (ie. are
 				 * not referred to by any more queued recipients) by deleting those recipients.
@@ -454,55 +554,15 @@ public final class SQLQueue
 				 * So a non-time critical thread needs to trawl the spool area at regular (but infrequent) intervals, and delete any items
 				 * it discovers to be orphaned.
 				 */
-				subkeynum = buildSubquery(sqlcmd_del_recips, subkeynum, null, recip.qid, sqlcmd_misc, stmt_misc);
+				batch.addUpdate(recip.qid, SQLSession.UPD_DELETE, (short)0, 0, 0);
+			} else if (recip.smtp_status >= com.grey.mailismus.mta.Protocol.PERMERR_BASE) {
+				batch.addUpdate(recip.qid, SQLSession.UPD_BOUNCE, recip.smtp_status, 0, recip.smtp_status * 1000);
 			} else {
-				int idx_modqids = (recip.retrycnt < modqids.length ? recip.retrycnt : modqids.length - 1);
-				java.util.ArrayList<com.grey.mailismus.mta.queue.MessageRecip> lst = modqids[idx_modqids].get(recip.smtp_status);
-				if (lst == null) {
-					lst = new java.util.ArrayList<com.grey.mailismus.mta.queue.MessageRecip>();
-					modqids[idx_modqids].put(recip.smtp_status, lst);
-				}
-				lst.add(recip);
-			}
-		}
-
-		//finish off the sqlcmd_del_recips loop, to delete the last of the delivered recips
-		if (subkeynum != 0) executeWithSubQuery(stmt_misc, sqlcmd_misc, false);
-
-		/*
-		 * Update the recipients who were marked as unsuccessful, so that they will be retried later.
-		 * The replace() calls generate some runtime String allocations, but the JDBC forces us to churn out lots of those anyway, so
-		 * temporarily suspend the usual fretting about this.
-		 */
-		final String sqlcmd_update2 = sqlcmd_update_recips.replace("#2#", Long.toString(dsptch.getSystemTime()));
-		for (int retrycnt = 0; retrycnt != modqids.length; retrycnt++) {
-			java.util.Iterator<java.util.ArrayList<com.grey.mailismus.mta.queue.MessageRecip>> it_status = modqids[retrycnt].recycledValuesIterator();
-			String sqlcmd_update3 = null;
-
-			while (it_status.hasNext()) {
-				java.util.ArrayList<com.grey.mailismus.mta.queue.MessageRecip> lst = it_status.next();
-				int cnt = lst.size();
-				if (cnt == 0) continue;
-				int status = lst.get(0).smtp_status; //every element of 'lst' has same status - this hashed node is keyed on smtp_status
-				String sqlcmd;
-
-				if (status >= com.grey.mailismus.mta.Protocol.PERMERR_BASE) {
-					sqlcmd = sqlcmd_set_errorbounces;
-				} else {
-					if (sqlcmd_update3 == null) sqlcmd_update3 = sqlcmd_update2.replace("#3#", Long.toString(getRetryDelay(retrycnt)));
-					sqlcmd = sqlcmd_update3;
-				}
-				sqlcmd = sqlcmd.replace("#1#", Integer.toString(status));
-				subkeynum = 0;
-				sqlcmd_misc.setLength(0);
-				for (int idx = 0; idx != cnt; idx++) {
-					subkeynum = buildSubquery(sqlcmd, subkeynum, null, lst.get(idx).qid, sqlcmd_misc, stmt_misc);
-				}
-				if (subkeynum != 0) executeWithSubQuery(stmt_misc, sqlcmd_misc, false);
+				// the recips which have the same status and retry delay form a group, as they set the same values
+				int retrycnt = Math.min(recip.retrycnt, 999);
+				batch.addUpdate(recip.qid, SQLSession.UPD_RETRY, recip.smtp_status, systime + getRetryDelay(retrycnt), recip.smtp_status * 1000 + retrycnt);
 			}
 		}
-		if (FORCE_FAIL) forced_failure(FAIL_UPDATERECIPS, "Update-Recips");
-		db.commit(true);
 	}
 
 	private void tryLoadSPIDs(com.grey.base.collections.HashedMapIntInt refcnt, int max) throws java.sql.SQLException
@@ -529,6 +589,21 @@ public final class SQLQueue
 		com.grey.base.collections.IteratorInt iter = candidates.recycledIterator();
 		while (iter.hasNext()) tmp_spids[spidcnt++] = iter.next();
 
+		if (array_params) {
+			for (int off = 0; off < spidcnt; off += sqlmax_subqrykeys) {
+				int cnt = Math.min(spidcnt - off, sqlmax_subqrykeys);
+				pstmt_get_spids.setArray(1, SQLSession.createKeyArray(db.getConnection(), tmp_spids, off, cnt));
+				java.sql.ResultSet rs = pstmt_get_spids.executeQuery();
+				try {
+					while (rs.next()) {
+						candidates.remove(rs.getInt("SPID"));
+					}
+				} finally {
+					try {rs.close();} catch (Exception ex) {dsptch.getLogger().log(LEVEL.TRC2, ex, false, loglbl+"orphans-rs.close");}
+				}
+			}
+			return;
+		}
 		int subkeynum = 0;
 		sqlcmd_misc.setLength(0);
 		for (int idx = 0; idx != spidcnt; idx++) {
@@ -676,8 +751,8 @@ public final class SQLQueue
 				ex_setup = db.executeScript("setup", getClass(), cfg, true, null, null, null);
 			}
 			pstmt_add_recip = db.prepareStatement(sqlcmd_add_recip);
-			pstmt_get_readyrecips = db.prepareStatement(sqlcmd_get_readyrecips);
-			pstmt_get_bounces = db.prepareStatement(sqlcmd_get_bounces);
+			mainsess = new SQLSession(db.getConnection(), cmds);
+			if (array_params) pstmt_get_spids = db.prepareStatement(sqlcmd_get_spids);
 			stmt_misc = db.createStatement();
 			success = true;
 		} finally {
@@ -689,8 +764,8 @@ public final class SQLQueue
 	{
 		if (db == null) return;
 		if (pstmt_add_recip != null) closeStatement(pstmt_add_recip); pstmt_add_recip = null;
-		if (pstmt_get_readyrecips != null) closeStatement(pstmt_get_readyrecips); pstmt_get_readyrecips = null;
-		if (pstmt_get_bounces != null) closeStatement(pstmt_get_bounces); pstmt_get_bounces = null;
+		if (mainsess != null) mainsess.close(); mainsess = null;
+		if (pstmt_get_spids != null) closeStatement(pstmt_get_spids); pstmt_get_spids = null;
 		if (stmt_misc != null) closeStatement(stmt_misc); stmt_misc = null;
 		db.close();
 	}
@@ -743,10 +818,289 @@ public final class SQLQueue
 		throw new QException(loglbl+msg+": Failing first transaction as directed");
 	}
 
-	private static int[] arrgrow(int[] arr)
+	private void loadPrefetched(com.grey.mailismus.mta.queue.Cache cache, boolean get_bounces, boolean get_deferred)
+	{
+		if (update_failed) {
+			// now is the time to retry the failed update
+			update_failed = false;
+			submitNext();
+		}
+		last_bounces = get_bounces;
+		last_deferred = get_deferred;
+		prefetch_rows = cache.capacity() - cache.size();
+		AsyncJob job = job_prefetched;
+		if (job != null) {
+			job_prefetched = null;
+			if (job.get_bounces == get_bounces && job.get_deferred == get_deferred) addRows(cache, job.batch);
+			releaseJob(job);
+			if (cache.size() != 0) return;
+		}
+		if (load_pending) return; //a load is already on its way
+		job = allocJob();
+		setLoad(job);
+		jobs_queued.add(job);
+		submitNext();
+	}
+
+	private void queueUpdates(com.grey.mailismus.mta.queue.Cache cache, boolean is_bounces_batch)
 	{
-		int[] arr2 = new int[arr.length + 256];
-		System.arraycopy(arr, 0, arr2, 0, arr.length);
-		return arr2;
+		AsyncJob job = allocJob();
+		SQLSession.Batch batch = job.batch;
+		job_lastupdate = null;
+		addUpdates(cache, is_bounces_batch, batch);
+		for (int idx = 0; idx != batch.updcnt; idx++) {
+			pending_qids.add(batch.upd_qid[idx]);
+		}
+		// piggyback a load of the next batch onto this update, so that it's ready when the caller next asks for it
+		if (!load_pending && prefetch_rows != 0) setLoad(job);
+		if (batch.updcnt == 0 && !job.load) {
+			releaseJob(job);
+			return;
+		}
+		if (batch.updcnt != 0) job_lastupdate = job;
+		jobs_queued.add(job);
+		submitNext();
+	}
+
+	private void setLoad(AsyncJob job)
+	{
+		long systime = dsptch.getSystemTime();
+		job.load = true;
+		job.get_bounces = last_bounces;
+		job.get_deferred = last_deferred;
+		job.maxrows = prefetch_rows;
+		job.sendtime = (last_deferred ? Long.MAX_VALUE : systime);
+		job.bounce_cutoff = systime - maxretrytime;
+		job.bounce_cutoff_ndr = systime - maxretrytime_ndr;
+		load_pending = true;
+	}
+
+	// Jobs are run one at a time, so that they are applied to the database in the order they were queued
+	private void submitNext()
+	{
+		if (job_inflight != null && job_inflight.produce_error != null) {
+			// the job has completed but will never be delivered by the Producer, so complete it here
+			AsyncJob job = job_inflight;
+			dsptch.getLogger().log(LEVEL.WARN, job.produce_error, true, loglbl+"failed to return async job to Producer");
+			job.produce_error = null;
+			jobCompleted(job);
+		}
+		if (job_inflight != null || update_failed) return;
+		AsyncJob job = jobs_queued.poll();
+		if (job == null) return;
+		try {
+			job_future = workers.execute(job);
+			job_inflight = job;
+		} catch (java.util.concurrent.RejectedExecutionException ex) {
+			// try again on the next call
+			jobs_queued.addFirst(job);
+			dsptch.getLogger().info(loglbl+"async job rejected - "+workers+" - "+com.grey.base.ExceptionUtils.summary(ex));
+		}
+	}
+
+	@Override
+	public void producerIndication(com.grey.naf.reactor.Producer<AsyncJob> p)
+	{
+		AsyncJob job;
+		while ((job = p.consume()) != null) {
+			jobCompleted(job);
+		}
+		submitNext();
+	}
+
+	private void jobCompleted(AsyncJob job)
+	{
+		if (job == job_inflight) {
+			job_inflight = null;
+			job_future = null;
+		}
+		if (job.load) load_pending = false;
+		SQLSession.Batch batch = job.batch;
+
+		if (job.error != null) {
+			String tag = (batch.updcnt == 0 ? "load" : "update");
+			dsptch.getLogger().log(LEVEL.INFO, job.error, true, loglbl+"async "+tag+" failed");
+			if (batch.updcnt == 0) {
+				releaseJob(job);
+				return;
+			}
+			// The updates are retried ahead of any later ones, once the caller next polls for messages.
+			// The load was lost, but the next poll will start another one.
+			job.error = null;
+			job.load = false;
+			jobs_queued.addFirst(job);
+			update_failed = true;
+			return;
+		}
+
+		for (int idx = 0; idx != batch.updcnt; idx++) {
+			pending_qids.remove(batch.upd_qid[idx]);
+		}
+		releaseOrphans(job);
+
+		// any previous prefetch predates these updates, so is now stale
+		if (job_prefetched != null) {
+			releaseJob(job_prefetched);
+			job_prefetched = null;
+		}
+		if (job.load) {
+			job_prefetched = job;
+			if (batch.rowcnt != 0) wakeupConsumer(job.get_bounces ? QueueWakeup.EVENT_BOUNCES : QueueWakeup.EVENT_INCOMING);
+		} else {
+			releaseJob(job);
+		}
+	}
+
+	// Called once the job's updates have been committed, so its completed recips no longer refer to their SPIDs
+	private void releaseOrphans(AsyncJob job)
+	{
+		if (job.orphans_done.size() == 0 && job.orphans_candidates.size() == 0) return;
+		try {
+			releaseOrphans(job.orphans_done, job.orphans_candidates);
+		} catch (Throwable ex) {
+			dsptch.getLogger().log(LEVEL.INFO, ex, true, loglbl+"failed to release orphans="+job.orphans_done.size()
+					+"/"+job.orphans_candidates.size());
+		}
+		job.orphans_done.clear();
+		job.orphans_candidates.clear();
+	}
+
+	private static void copySet(com.grey.base.collections.HashedSetInt src, com.grey.base.collections.HashedSetInt dst)
+	{
+		dst.clear();
+		com.grey.base.collections.IteratorInt it = src.recycledIterator();
+		while (it.hasNext()) dst.add(it.next());
+	}
+
+	// Waits for the job in flight to complete, and then applies any remaining updates on the main connection, as the
+	// worker threads and their connections may be shared with other queue instances that have already stopped.
+	private void stopAsync()
+	{
+		AsyncJob inflight = job_inflight;
+		if (inflight != null) {
+			boolean done = false;
+			try {
+				job_future.get(ASYNC_SHUTDOWN_WAIT, java.util.concurrent.TimeUnit.MILLISECONDS);
+				done = true;
+			} catch (Exception ex) {
+				dsptch.getLogger().info(loglbl+"async job did not complete on shutdown - "+com.grey.base.ExceptionUtils.summary(ex));
+			}
+			if (done) {
+				if (inflight.error == null) {
+					releaseOrphans(inflight);
+				} else if (inflight.batch.updcnt != 0) {
+					jobs_queued.addFirst(inflight);
+				}
+			}
+			job_inflight = null;
+			job_future = null;
+		}
+		resultsChannel.stopDispatcherRunnable();
+
+		AsyncJob job;
+		while ((job = jobs_queued.poll()) != null) {
+			if (job.batch.updcnt == 0) continue;
+			try {
+				mainsess.applyUpdates(job.batch);
+				db.commit(true);
+				releaseOrphans(job);
+			} catch (Throwable ex) {
+				dsptch.getLogger().log(LEVEL.INFO, ex, true, loglbl+"failed to apply "+job.batch.updcnt+" pending updates on shutdown");
+				try {db.commit(false);} catch (Exception ex2) {}
+			}
+		}
+		workers.detach();
+	}
+
+	// Test hook which waits for the outstanding jobs to complete and collects their results, as the Dispatcher would do
+	void awaitAsync() throws Exception
+	{
+		while (job_inflight != null) {
+			AsyncJob job = job_inflight;
+			job_future.get(ASYNC_SHUTDOWN_WAIT, java.util.concurrent.TimeUnit.MILLISECONDS);
+			producerIndication(resultsChannel);
+			if (job_inflight == job) throw new IllegalStateException(loglbl+"async job was not returned");
+		}
+	}
+
+	private AsyncJob allocJob()
+	{
+		int cnt = jobs_spare.size();
+		if (cnt == 0) return new AsyncJob(this);
+		return jobs_spare.remove(cnt - 1);
+	}
+
+	private void releaseJob(AsyncJob job)
+	{
+		job.batch.clear();
+		job.load = false;
+		job.error = null;
+		job.produce_error = null;
+		job.orphans_done.clear();
+		job.orphans_candidates.clear();
+		jobs_spare.add(job);
+	}
+
+
+	// An async unit of work, which applies a batch of updates and/or loads the next batch of recips.
+	// Its fields are set up in the Dispatcher thread before it's submitted, and then only touched by the worker thread
+	// until it's handed back via the Producer. The orphans sets are only ever touched by the Dispatcher thread.
+	static final class AsyncJob
+		implements Runnable
+	{
+		private final SQLQueue owner;
+		final SQLSession.Batch batch = new SQLSession.Batch();
+		boolean load;
+		boolean get_bounces;
+		boolean get_deferred;
+		int maxrows;
+		long sendtime;
+		long bounce_cutoff;
+		long bounce_cutoff_ndr;
+		Throwable error;
+		volatile Throwable produce_error; //set by the worker thread if it failed to hand the job back
+		final com.grey.base.collections.HashedSetInt orphans_done = new com.grey.base.collections.HashedSetInt();
+		final com.grey.base.collections.HashedSetInt orphans_candidates = new com.grey.base.collections.HashedSetInt();
+
+		AsyncJob(SQLQueue q) {owner = q;}
+
+		@Override
+		public void run()
+		{
+			try {
+				try {
+					execute();
+				} catch (Throwable ex) {
+					// the failed session has been discarded, so try again - treat as genuine error if we fail again
+					execute();
+				}
+			} catch (Throwable ex) {
+				error = ex;
+			}
+			try {
+				owner.resultsChannel.produce(this);
+			} catch (Throwable ex) {
+				// We can't log in this thread, so leave it to the Dispatcher to notice (see submitNext).
+				// This being a volatile write, it also publishes the rest of the job's fields.
+				produce_error = ex;
+			}
+		}
+
+		private void execute() throws java.sql.SQLException
+		{
+			SQLSession sess = owner.workers.borrowSession(owner.cmds);
+			boolean failed = true;
+			try {
+				if (batch.updcnt != 0) sess.applyUpdates(batch);
+				if (load) sess.loadRows(batch, get_bounces, sendtime, maxrows, bounce_cutoff, bounce_cutoff_ndr);
+				owner.workers.commit(sess, true);
+				failed = false;
+			} finally {
+				if (failed) {
+					try {owner.workers.commit(sess, false);} catch (Exception ex) {} //connection is being discarded anyway
+				}
+				owner.workers.releaseSession(sess, failed);
+			}
+		}
 	}
 }
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.queue.queue_providers.sql;
+
+/*
+ * The prepared statements which load and update the queue table on one database connection.
+ * SQLQueue has one of these on its main connection, and in async mode each pooled worker connection has its own one as
+ * well. They all operate on a Batch, which holds the updates and loaded rows in plain arrays, so that the work can be done
+ * off the Dispatcher thread, without touching the Cache.
+ */
+final class SQLSession
+{
+	// update actions
+	static final byte UPD_DELETE = 1; //recip is done with, so delete it
+	static final byte UPD_RETRY = 2; //temp error, so set status and next-send time
+	static final byte UPD_BOUNCE = 3; //perm error, so set status and mark as bounce
+
+	final java.sql.Connection cnx;
+	private final SQLQueue.Commands cmds;
+	private final java.sql.PreparedStatement pstmt_get_readyrecips;
+	private final java.sql.PreparedStatement pstmt_get_bounces;
+	private final java.sql.PreparedStatement pstmt_del_recips;
+	private final java.sql.PreparedStatement pstmt_update_recips;
+	private final java.sql.PreparedStatement pstmt_set_errorbounces;
+	private final java.sql.PreparedStatement pstmt_set_expirybounces;
+
+	private int[] tmpkeys = new int[0];
+	private long[] tmpsort = new long[0];
+
+	public SQLSession(java.sql.Connection cnx, SQLQueue.Commands cmds) throws java.sql.SQLException
+	{
+		this.cnx = cnx;
+		this.cmds = cmds;
+		pstmt_get_readyrecips = cnx.prepareStatement(cmds.get_readyrecips);
+		pstmt_get_bounces = cnx.prepareStatement(cmds.get_bounces);
+		pstmt_del_recips = cnx.prepareStatement(cmds.del_recips);
+		pstmt_update_recips = cnx.prepareStatement(cmds.update_recips);
+		pstmt_set_errorbounces = cnx.prepareStatement(cmds.set_errorbounces);
+		pstmt_set_expirybounces = cnx.prepareStatement(cmds.set_expirybounces);
+	}
+
+	// Closes the statements, but not the connection, which belongs to the caller
+	public void close()
+	{
+		closeStatement(pstmt_get_readyrecips);
+		closeStatement(pstmt_get_bounces);
+		closeStatement(pstmt_del_recips);
+		closeStatement(pstmt_update_recips);
+		closeStatement(pstmt_set_errorbounces);
+		closeStatement(pstmt_set_expirybounces);
+	}
+
+	public void applyUpdates(Batch batch) throws java.sql.SQLException
+	{
+		// delete the delivered recips
+		int cnt = 0;
+		if (tmpkeys.length < batch.updcnt) tmpkeys = new int[batch.updcnt];
+		for (int idx = 0; idx != batch.updcnt; idx++) {
+			if (batch.upd_action[idx] == UPD_DELETE) tmpkeys[cnt++] = batch.upd_qid[idx];
+		}
+		if (cnt != 0) {
+			int batchcnt = addKeyedBatch(pstmt_del_recips, 1, tmpkeys, cnt, 0);
+			if (batchcnt != 0) pstmt_del_recips.executeBatch();
+		}
+
+		// Update the recipients who were marked as unsuccessful, so that they will be retried later (or bounced).
+		// The rows are sorted so that those which set the same values are adjacent, and each such group is added to the
+		// batch in turn, with the keys of all its recips (as a single array parameter, where supported).
+		cnt = 0;
+		if (tmpsort.length < batch.updcnt) tmpsort = new long[batch.updcnt];
+		for (int idx = 0; idx != batch.updcnt; idx++) {
+			if (batch.upd_action[idx] == UPD_DELETE) continue;
+			tmpsort[cnt++] = ((long)batch.upd_group[idx] << 32) | idx;
+		}
+		java.util.Arrays.sort(tmpsort, 0, cnt);
+		int batchcnt_update = 0;
+		int batchcnt_err = 0;
+		int pos = 0;
+		while (pos != cnt) {
+			int idx1 = (int)tmpsort[pos];
+			int grp = batch.upd_group[idx1];
+			int keycnt = 0;
+			while (pos != cnt && (int)(tmpsort[pos] >>> 32) == grp) {
+				tmpkeys[keycnt++] = batch.upd_qid[(int)tmpsort[pos]];
+				pos++;
+			}
+			if (batch.upd_action[idx1] == UPD_BOUNCE) {
+				pstmt_set_errorbounces.setInt(1, batch.upd_status[idx1]);
+				batchcnt_err = addKeyedBatch(pstmt_set_errorbounces, 2, tmpkeys, keycnt, batchcnt_err);
+			} else {
+				pstmt_update_recips.setInt(1, batch.upd_status[idx1]);
+				pstmt_update_recips.setLong(2, batch.upd_nextsend[idx1]);
+				batchcnt_update = addKeyedBatch(pstmt_update_recips, 3, tmpkeys, keycnt, batchcnt_update);
+			}
+		}
+		if (batchcnt_update != 0) pstmt_update_recips.executeBatch();
+		if (batchcnt_err != 0) pstmt_set_errorbounces.executeBatch();
+	}
+
+	// Loads up to maxrows recips into the batch. If not loading bounces, any expired recips are marked as bounces instead.
+	public void loadRows(Batch batch, boolean get_bounces, long sendtime, int maxrows, long bounce_cutoff, long bounce_cutoff_ndr)
+		throws java.sql.SQLException
+	{
+		batch.rowcnt = 0;
+		java.sql.PreparedStatement stmt;
+		if (get_bounces) {
+			stmt = pstmt_get_bounces;
+		} else {
+			stmt = pstmt_get_readyrecips;
+			stmt.clearParameters();
+			stmt.setLong(1, sendtime);
+		}
+		stmt.setMaxRows(maxrows);
+		java.sql.ResultSet rs = stmt.executeQuery();
+		int expirecnt = 0;
+
+		try {
+			while (rs.next()) {
+				int qid = rs.getInt("QID");
+				String sndr = rs.getString("MAILADDR_FROM");
+				long recvtime = rs.getLong("RECVTIME");
+				if (!get_bounces) {
+					// we are being called in delivery mode, but we mark bounced messages for the reporting task
+					if (recvtime < (sndr == null ? bounce_cutoff_ndr : bounce_cutoff)) {
+						if (tmpkeys.length == expirecnt) tmpkeys = java.util.Arrays.copyOf(tmpkeys, expirecnt + 256);
+						tmpkeys[expirecnt++] = qid;
+						continue;
+					}
+				}
+				int idx = batch.addRow();
+				batch.row_qid[idx] = qid;
+				batch.row_spid[idx] = rs.getInt("SPID");
+				batch.row_recvtime[idx] = recvtime;
+				batch.row_iprecv[idx] = rs.getInt("IPRECV");
+				batch.row_sender[idx] = sndr;
+				batch.row_domain[idx] = rs.getString("DOMAIN_TO");
+				batch.row_mailbox[idx] = rs.getString("MAILBOX_TO");
+				batch.row_retrycnt[idx] = (short)rs.getInt("RETRYCOUNT");
+				batch.row_status[idx] = (get_bounces ? (short)rs.getInt("STATUS") : 0);
+			}
+		} finally {
+			rs.close();
+		}
+
+		// now mark any expired messages as bounces
+		if (expirecnt != 0) {
+			int batchcnt = addKeyedBatch(pstmt_set_expirybounces, 1, tmpkeys, expirecnt, 0);
+			if (batchcnt != 0) pstmt_set_expirybounces.executeBatch();
+		}
+	}
+
+	// Adds the given keys to the statement's batch, with the key as parameter number keyparam, and any preceding parameters
+	// left as already set by the caller. The batch is executed whenever it reaches sqlmax_subqrykeys entries, and the
+	// return value is the number of entries left pending in it (starting from batchcnt), which the caller must execute.
+	// With array parameters, each batch entry covers up to sqlmax_subqrykeys keys rather than just one.
+	private int addKeyedBatch(java.sql.PreparedStatement pstmt, int keyparam, int[] keys, int keycnt, int batchcnt)
+		throws java.sql.SQLException
+	{
+		int step = (cmds.array_params ? cmds.maxkeys : 1);
+		for (int off = 0; off < keycnt; off += step) {
+			if (cmds.array_params) {
+				pstmt.setArray(keyparam, createKeyArray(cnx, keys, off, Math.min(keycnt - off, step)));
+			} else {
+				pstmt.setInt(keyparam, keys[off]);
+			}
+			pstmt.addBatch();
+			if (++batchcnt == cmds.maxkeys) {
+				pstmt.executeBatch();
+				batchcnt = 0;
+			}
+		}
+		return batchcnt;
+	}
+
+	static java.sql.Array createKeyArray(java.sql.Connection cnx, int[] keys, int off, int cnt) throws java.sql.SQLException
+	{
+		Integer[] arr = new Integer[cnt];
+		for (int idx = 0; idx != cnt; idx++) {
+			arr[idx] = keys[off + idx];
+		}
+		return cnx.createArrayOf("integer", arr);
+	}
+
+	private static void closeStatement(java.sql.Statement stmt)
+	{
+		try {
+			stmt.close();
+		} catch (Exception ex) {} //we're discarding it anyway
+	}
+
+
+	// The updates to apply to the queue table, followed by the rows loaded from it
+	static final class Batch
+	{
+		int updcnt;
+		int[] upd_qid = new int[0];
+		byte[] upd_action = new byte[0];
+		short[] upd_status = new short[0];
+		long[] upd_nextsend = new long[0];
+		int[] upd_group = new int[0]; //the rows in each group set the same values
+
+		int rowcnt;
+		int[] row_qid = new int[0];
+		int[] row_spid = new int[0];
+		long[] row_recvtime = new long[0];
+		int[] row_iprecv = new int[0];
+		String[] row_sender = new String[0];
+		String[] row_domain = new String[0];
+		String[] row_mailbox = new String[0];
+		short[] row_retrycnt = new short[0];
+		short[] row_status = new short[0];
+
+		public void clear()
+		{
+			updcnt = 0;
+			java.util.Arrays.fill(row_sender, 0, rowcnt, null);
+			java.util.Arrays.fill(row_domain, 0, rowcnt, null);
+			java.util.Arrays.fill(row_mailbox, 0, rowcnt, null);
+			rowcnt = 0;
+		}
+
+		public void addUpdate(int qid, byte action, short status, long nextsend, int group)
+		{
+			if (updcnt == upd_qid.length) {
+				int cap = updcnt + 256;
+				upd_qid = java.util.Arrays.copyOf(upd_qid, cap);
+				upd_action = java.util.Arrays.copyOf(upd_action, cap);
+				upd_status = java.util.Arrays.copyOf(upd_status, cap);
+				upd_nextsend = java.util.Arrays.copyOf(upd_nextsend, cap);
+				upd_group = java.util.Arrays.copyOf(upd_group, cap);
+			}
+			upd_qid[updcnt] = qid;
+			upd_action[updcnt] = action;
+			upd_status[updcnt] = status;
+			upd_nextsend[updcnt] = nextsend;
+			upd_group[updcnt] = group;
+			updcnt++;
+		}
+
+		int addRow()
+		{
+			if (rowcnt == row_qid.length) {
+				int cap = rowcnt + 256;
+				row_qid = java.util.Arrays.copyOf(row_qid, cap);
+				row_spid = java.util.Arrays.copyOf(row_spid, cap);
+				row_recvtime = java.util.Arrays.copyOf(row_recvtime, cap);
+				row_iprecv = java.util.Arrays.copyOf(row_iprecv, cap);
+				row_sender = java.util.Arrays.copyOf(row_sender, cap);
+				row_domain = java.util.Arrays.copyOf(row_domain, cap);
+				row_mailbox = java.util.Arrays.copyOf(row_mailbox, cap);
+				row_retrycnt = java.util.Arrays.copyOf(row_retrycnt, cap);
+				row_status = java.util.Arrays.copyOf(row_status, cap);
+			}
+			return rowcnt++;
+		}
+	}
+}
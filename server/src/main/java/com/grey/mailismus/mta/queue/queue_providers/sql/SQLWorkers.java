@@ -0,0 +1,134 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.queue.queue_providers.sql;
+
+import com.grey.base.collections.HashedMap;
+import com.grey.naf.ApplicationContextNAF;
+
+/*
+ * The worker threads and pool of database connections which run the queue operations of SQLQueue instances in async mode.
+ * Each database has one of these per application context, which is shared by all the SQLQueue instances (typically one in
+ * each of the Delivery and Reports tasks) that use that database.
+ * Both pools are bounded. The thread pool rejects work once its backlog is full, rather than queueing it indefinitely, but
+ * since each SQLQueue only has one operation outstanding at a time, that would indicate a configuration problem.
+ */
+final class SQLWorkers
+{
+	private final String dbname;
+	private final com.grey.mailismus.DBHandle db; //only used to open and close connections, which is thread-safe
+	private final HashedMap<String, SQLWorkers> registry;
+	private final java.util.concurrent.ThreadPoolExecutor threadpool;
+	private final java.util.ArrayDeque<SQLSession> idle_sessions = new java.util.ArrayDeque<SQLSession>();
+	private final int maxconns;
+	private int users;
+	private int conncnt;
+
+	public static SQLWorkers attach(ApplicationContextNAF appctx, com.grey.mailismus.DBHandle db, int nthreads, int backlog)
+	{
+		HashedMap<String, SQLWorkers> workers = appctx.getNamedItem(SQLWorkers.class.getName()+"-workers", () -> new HashedMap<>());
+		synchronized (workers) {
+			SQLWorkers w = workers.get(db.name);
+			if (w == null) {
+				w = new SQLWorkers(db, nthreads, backlog, workers);
+				workers.put(db.name, w);
+			}
+			w.users++;
+			return w;
+		}
+	}
+
+	private SQLWorkers(com.grey.mailismus.DBHandle db, int nthreads, int backlog, HashedMap<String, SQLWorkers> registry)
+	{
+		this.db = db;
+		this.registry = registry;
+		dbname = db.name;
+		maxconns = nthreads;
+		java.util.concurrent.ThreadFactory tfact = (r) -> {
+			Thread t = new Thread(r, "SQLQueue-"+dbname);
+			t.setDaemon(true);
+			return t;
+		};
+		threadpool = new java.util.concurrent.ThreadPoolExecutor(nthreads, nthreads, 60, java.util.concurrent.TimeUnit.SECONDS,
+				new java.util.concurrent.ArrayBlockingQueue<Runnable>(backlog), tfact);
+		threadpool.allowCoreThreadTimeOut(true);
+	}
+
+	// The last user to detach shuts down the threads and closes the pooled connections
+	public void detach()
+	{
+		synchronized (registry) {
+			if (--users != 0) return;
+			registry.remove(dbname);
+		}
+		threadpool.shutdown();
+		synchronized (idle_sessions) {
+			SQLSession sess;
+			while ((sess = idle_sessions.poll()) != null) {
+				closeSession(sess);
+			}
+		}
+	}
+
+	public java.util.concurrent.Future<?> execute(Runnable job)
+	{
+		return threadpool.submit(job);
+	}
+
+	// Returns an idle session if there is one, else opens a new connection. There are as many connections as threads, so
+	// this never has to wait.
+	public SQLSession borrowSession(SQLQueue.Commands cmds) throws java.sql.SQLException
+	{
+		synchronized (idle_sessions) {
+			SQLSession sess = idle_sessions.poll();
+			if (sess != null) return sess;
+			if (conncnt == maxconns) throw new java.sql.SQLException("SQLQueue-"+dbname+" has no free connections - max="+maxconns);
+			conncnt++;
+		}
+		java.sql.Connection cnx = null;
+		try {
+			cnx = db.altConnection(false);
+			return new SQLSession(cnx, cmds);
+		} catch (Throwable ex) {
+			synchronized (idle_sessions) {
+				conncnt--;
+			}
+			if (cnx != null) {
+				try {db.close(cnx);} catch (Exception ex2) {}
+			}
+			throw ex;
+		}
+	}
+
+	// A session which failed is discarded, as its connection may be broken
+	public void releaseSession(SQLSession sess, boolean failed)
+	{
+		synchronized (idle_sessions) {
+			if (!failed && !threadpool.isShutdown()) {
+				idle_sessions.push(sess);
+				return;
+			}
+			conncnt--;
+		}
+		closeSession(sess);
+	}
+
+	public void commit(SQLSession sess, boolean txcommit) throws java.sql.SQLException
+	{
+		db.commit(sess.cnx, txcommit);
+	}
+
+	private void closeSession(SQLSession sess)
+	{
+		sess.close();
+		try {
+			db.close(sess.cnx);
+		} catch (Exception ex) {} //we're discarding it anyway
+	}
+
+	@Override
+	public String toString() {
+		return "SQLWorkers[db="+dbname+", threads="+maxconns+", conns="+conncnt+", users="+users+"]";
+	}
+}
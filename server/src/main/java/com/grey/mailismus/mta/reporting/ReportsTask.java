@@ -22,7 +22,8 @@ import com.grey.mailismus.errors.MailismusException;
  */
 public final class ReportsTask
 	extends com.grey.mailismus.mta.MTA_Task
-	implements com.grey.naf.reactor.TimerNAF.Handler
+	implements com.grey.naf.reactor.TimerNAF.Handler,
+		com.grey.mailismus.mta.queue.QueueWakeup.Handler
 {
 	private static final byte MSGID_DLM = '-';
 
@@ -56,10 +57,13 @@ public final class ReportsTask
 	private final com.grey.mailismus.mta.queue.QueueManager qmgr;
 	private final com.grey.mailismus.mta.queue.Cache qcache;
 	private final com.grey.mailismus.Audit audit;
+	private final com.grey.mailismus.mta.queue.QueueWakeup wakeup; //null if disabled
 	private final Logger logger;
 
 	private com.grey.naf.reactor.TimerNAF tmr_qpoll;
 	private com.grey.naf.reactor.TimerNAF tmr_housekeep;
+	private long last_poll;
+	private boolean wakeup_due; //a wakeup has already brought the next poll forward
 
 	// these are the stats counters that are retrieved and reset by the NAFMAN COUNTERS command
 	private long stats_start;
@@ -156,6 +160,12 @@ public final class ReportsTask
 		generate_ndr = ndrgen;
 		audit = com.grey.mailismus.Audit.create("MTA-Reports", "audit", getDispatcher(), taskcfg);
 		qcache = qmgr.initCache(cachesize);
+		if (taskcfg.getBool("wakeup", true)) {
+			wakeup = new com.grey.mailismus.mta.queue.QueueWakeup(qmgr, com.grey.mailismus.mta.queue.QueueWakeup.EVENT_BOUNCES,
+					taskcfg.getBool("wakeup_watch", false), this);
+		} else {
+			wakeup = null;
+		}
 		Templates templates = new Templates(taskcfg, mtarep_str, getAppConfig());
 
 		String str = templates.ndr_basehdrs.replace(Templates.TOKEN_RPTSUBJ, subj);
@@ -179,7 +189,8 @@ public final class ReportsTask
 		logger.info("ReportsTask Intervals: Low="+TimeOps.expandMilliTime(interval_low)
 				+", High="+TimeOps.expandMilliTime(interval_high)
 				+", Error="+TimeOps.expandMilliTime(interval_err)
-				+", Delay="+TimeOps.expandMilliTime(delay_start));
+				+", Delay="+TimeOps.expandMilliTime(delay_start)
+				+(wakeup == null ? " - wakeup=N" : " - wakeup=Y"));
 
 		if (getDispatcher().getNafManAgent() != null) {
 			com.grey.naf.nafman.NafManRegistry reg = getDispatcher().getNafManAgent().getRegistry();
@@ -206,6 +217,7 @@ public final class ReportsTask
 		if (tmr_housekeep != null) tmr_housekeep.cancel();
 		tmr_qpoll = null;
 		tmr_housekeep = null;
+		if (wakeup != null) wakeup.close();
 		qcache.clear();
 		qmgr.stop();
 		if (audit != null) audit.close();
@@ -222,6 +234,8 @@ public final class ReportsTask
 		{
 		case TMRTYPE_POLLQUEUE:
 			tmr_qpoll = null;
+			wakeup_due = false;
+			last_poll = getDispatcher().getRealTime();
 			interval = pollQueue();
 			tmr_qpoll = getDispatcher().setTimer(interval, TMRTYPE_POLLQUEUE, this);
 			break;
@@ -241,6 +255,16 @@ public final class ReportsTask
 		}
 	}
 
+	// The Delivery task has failed some recipients, which may include new bounces, so bring the next poll forward, subject to
+	// interval_low.
+	@Override
+	public void queueWakeup(com.grey.mailismus.mta.queue.QueueWakeup w)
+	{
+		if (tmr_qpoll == null || wakeup_due) return;
+		wakeup_due = true;
+		tmr_qpoll.reset(Math.max(0, last_poll + interval_low - getDispatcher().getRealTime()));
+	}
+
 	private long pollQueue()
 	{
 		long interval = interval_low;
@@ -469,7 +493,7 @@ public final class ReportsTask
 		java.io.InputStream msgstrm = null;
 
 		try {
-			msgstrm = java.nio.file.Files.newInputStream(msgfile, FileOps.OPENOPTS_NONE);
+			msgstrm = com.grey.mailismus.mta.queue.SpoolCompression.open(msgfile);
 		} catch (Exception ex) {
 			logger.log(LEVEL.TRC, ex, false, "ReportsTask: Failed to open spool file="+msgfile);
 			return;
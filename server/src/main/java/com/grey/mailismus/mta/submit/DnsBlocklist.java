@@ -0,0 +1,239 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.submit;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.grey.base.config.XmlConfig;
+import com.grey.base.utils.ByteChars;
+import com.grey.base.utils.TimeOps;
+import com.grey.logging.Logger.LEVEL;
+import com.grey.naf.reactor.Dispatcher;
+import com.grey.naf.dns.resolver.ResolverDNS;
+import com.grey.naf.dns.resolver.engine.ResolverAnswer;
+import com.grey.mailismus.errors.MailismusConfigException;
+
+/**
+ * Checks the IPs of incoming SMTP connections against a set of DNS blocklists (DNSBLs), by querying all the configured
+ * zones in parallel via the asynchronous DNS resolver.
+ * <br>
+ * Each zone has a weight, and an IP is blocked if the total weight of the zones which list it reaches the threshold.
+ * The verdict is cached per IP, for a longer period if it's listed than if it isn't, and any Servers (our Clients) which
+ * connect from the same IP while its lookups are in progress simply wait on the same result.
+ * Lookups which fail (eg. time out) are treated as unlisted, but an IP which is only cleared on that basis is not cached.
+ * <br>
+ * This is a single-threaded class which runs in the context of the SMTP server's Dispatcher.
+ */
+final class DnsBlocklist
+	implements ResolverDNS.Client
+{
+	private static final int IP_ERRCODES = 0x7FFFFF00; //127.255.255.x is used by some DNSBLs to report query errors, not listings
+
+	public interface Client {
+		// identifies the current connection, as the object is reused for subsequent ones
+		long getStartTime();
+		void dnsblCompleted(int score);
+	}
+
+	private static final class Zone {
+		final ByteChars name;
+		final int weight;
+		Zone(String name, int weight) {
+			this.name = new ByteChars(name);
+			this.weight = weight;
+		}
+	}
+
+	private static final class Entry {
+		final int ip;
+		int score;
+		int pending; //number of zones still to answer
+		boolean failed;
+		long expiry;
+		final List<Client> waiters = new ArrayList<>();
+		final List<Long> waiter_conntimes = new ArrayList<>();
+		Entry(int ip) {this.ip = ip;}
+	}
+
+	private static final class Lookup {
+		final Entry entry;
+		final Zone zone;
+		Lookup(Entry entry, Zone zone) {this.entry = entry; this.zone = zone;}
+	}
+
+	private final Dispatcher dsptch;
+	private final ResolverDNS resolver;
+	private final Zone[] zones;
+	private final int threshold;
+	private final long ttl;
+	private final long negative_ttl;
+	private final int maxcache;
+	private final Map<Integer, Entry> cache;
+	private final StringBuilder tmpsb = new StringBuilder();
+
+	private int querycnt;
+	private int blockcnt;
+
+	public int queryCount() {return querycnt;}
+	public int blockCount() {return blockcnt;}
+
+	public DnsBlocklist(XmlConfig cfg, Dispatcher dsptch, ResolverDNS resolver)
+	{
+		this.dsptch = dsptch;
+		this.resolver = resolver;
+		threshold = cfg.getInt("threshold", false, 1);
+		ttl = cfg.getTime("ttl", "1h");
+		negative_ttl = cfg.getTime("negative_ttl", "10m");
+		maxcache = cfg.getInt("cache_max", false, 10_000);
+
+		// each zone is expressed as name[:weight]
+		String[] arr = cfg.getTuple("zones", "|", true, null);
+		zones = new Zone[arr.length];
+		for (int idx = 0; idx != arr.length; idx++) {
+			String spec = arr[idx].trim();
+			int weight = 1;
+			int pos = spec.indexOf(':');
+			if (pos != -1) {
+				try {
+					weight = Integer.parseInt(spec.substring(pos+1).trim());
+				} catch (NumberFormatException ex) {
+					throw new MailismusConfigException("DNSBL: Invalid weight in zone="+spec);
+				}
+				spec = spec.substring(0, pos).trim();
+			}
+			if (spec.isEmpty()) throw new MailismusConfigException("DNSBL: Blank zone in "+String.join("|", arr));
+			zones[idx] = new Zone(spec, weight);
+		}
+
+		cache = new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+				return (size() > maxcache && eldest.getValue().pending == 0);
+			}
+		};
+	}
+
+	// Returns the IP's score if it's already known, else -1 to indicate that the lookups are in progress, in which case the
+	// Client will be called back via dnsblCompleted().
+	public int check(int ip, Client client)
+	{
+		long systime = dsptch.getSystemTime();
+		Entry entry = cache.get(ip);
+		if (entry != null) {
+			if (entry.pending == 0 && entry.expiry > systime) return entry.score;
+			if (entry.pending != 0) {
+				if (entry.score >= threshold) return entry.score; //already decided, even though some zones haven't answered
+				addWaiter(entry, client);
+				return -1;
+			}
+		}
+		entry = new Entry(ip);
+		cache.put(ip, entry);
+		entry.pending = zones.length;
+
+		// the DNSBL query name is the IP with its octets reversed, prefixed to the zone
+		for (int idx = 0; idx != zones.length; idx++) {
+			tmpsb.setLength(0);
+			for (int shift = 0; shift != 32; shift += 8) {
+				tmpsb.append((ip >>> shift) & 0xFF).append('.');
+			}
+			tmpsb.append(zones[idx].name);
+			ByteChars qname = new ByteChars().populate(tmpsb); //not shared, as the resolver may hang on to it while the query is pending
+			querycnt++;
+			ResolverAnswer answer;
+			try {
+				answer = resolver.resolveHostname(qname, this, new Lookup(entry, zones[idx]), 0);
+				if (answer == null) continue;
+			} catch (Exception ex) {
+				dsptch.getLogger().log(LEVEL.TRC, ex, false, "DNSBL: lookup failed on "+qname);
+				answer = null;
+			}
+			zoneAnswered(entry, zones[idx], answer);
+		}
+		if (entry.pending == 0 || entry.score >= threshold) return entry.score;
+		addWaiter(entry, client);
+		return -1;
+	}
+
+	public boolean isBlocked(int score)
+	{
+		return (score >= threshold);
+	}
+
+	@Override
+	public void dnsResolved(Dispatcher d, ResolverAnswer answer, Object callerparam)
+	{
+		Lookup lookup = (Lookup)callerparam;
+		zoneAnswered(lookup.entry, lookup.zone, answer);
+	}
+
+	private void zoneAnswered(Entry entry, Zone zone, ResolverAnswer answer)
+	{
+		if (entry.pending == 0) return;
+		entry.pending--;
+		boolean decided = (entry.score >= threshold);
+		if (answer == null || (answer.result != ResolverAnswer.STATUS.OK && answer.result != ResolverAnswer.STATUS.NODOMAIN)) {
+			entry.failed = true;
+		} else if (answer.result == ResolverAnswer.STATUS.OK) {
+			int code = answer.getA().getIP();
+			if ((code >>> 24) == 127 && (code & 0xFFFFFF00) != IP_ERRCODES) {
+				entry.score += zone.weight;
+				LEVEL lvl = LEVEL.TRC;
+				if (dsptch.getLogger().isActive(lvl)) {
+					dsptch.getLogger().log(lvl, "DNSBL: IP="+com.grey.base.utils.IP.displayDottedIP(entry.ip, null)+" is listed in "+zone.name
+							+" - code="+com.grey.base.utils.IP.displayDottedIP(code, null)+", score="+entry.score);
+				}
+			}
+		}
+		if (entry.pending == 0) {
+			long systime = dsptch.getSystemTime();
+			if (entry.score >= threshold) {
+				entry.expiry = systime + ttl;
+			} else {
+				entry.expiry = (entry.failed ? systime : systime + negative_ttl); //a failed lookup might have listed it
+			}
+		}
+		if (!decided && (entry.pending == 0 || entry.score >= threshold)) {
+			if (entry.score >= threshold) blockcnt++;
+			notifyWaiters(entry);
+		}
+	}
+
+	private void addWaiter(Entry entry, Client client)
+	{
+		entry.waiters.add(client);
+		entry.waiter_conntimes.add(client.getStartTime());
+	}
+
+	private void notifyWaiters(Entry entry)
+	{
+		for (int idx = 0; idx != entry.waiters.size(); idx++) {
+			Client client = entry.waiters.get(idx);
+			if (client.getStartTime() != entry.waiter_conntimes.get(idx)) continue; //connection has since ended
+			client.dnsblCompleted(entry.score);
+		}
+		entry.waiters.clear();
+		entry.waiter_conntimes.clear();
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder("DNSBL zones=");
+		String dlm = "";
+		for (int idx = 0; idx != zones.length; idx++) {
+			sb.append(dlm).append(zones[idx].name).append(':').append(zones[idx].weight);
+			dlm = "|";
+		}
+		sb.append(", threshold=").append(threshold);
+		sb.append(", ttl=").append(TimeOps.expandMilliTime(ttl)).append('/').append(TimeOps.expandMilliTime(negative_ttl));
+		sb.append(", cache-max=").append(maxcache);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.submit;
+
+/**
+ * Searches an incoming SMTP message body for its End-of-Message sequence (CRLF.CRLF, or optionally LF.LF) as it arrives
+ * in successive receive buffers, including the case where the sequence is split across them.
+ * <br>
+ * Every End-of-Message sequence pivots on a dot, so rather than comparing the sequence at every offset, we scan the buffer
+ * for dots a word (8 bytes) at a time using SWAR bit tricks, and only then inspect the bytes on either side of each one.
+ * The bytes preceding the current buffer are remembered in a small tail buffer, to match any sequence which straddles the
+ * boundary.
+ * <br>
+ * This class is not thread-safe, and each SMTP server connection has its own instance.
+ */
+final class EomScanner
+{
+	private static final java.lang.invoke.VarHandle WORDVIEW = java.lang.invoke.MethodHandles.byteArrayViewVarHandle(long[].class,
+																						java.nio.ByteOrder.LITTLE_ENDIAN);
+	private static final long DOTS = 0x2E2E2E2E2E2E2E2EL; //the byte '.' in every position
+	private static final long LOBITS = 0x0101010101010101L;
+	private static final long HIBITS = 0x8080808080808080L;
+	private static final int TAILSIZE = 4; //the most bytes which can precede the dot of an EOM sequence within the previous buffers
+
+	private final boolean allow_lf;
+	private final byte[] tail = new byte[TAILSIZE]; //the final bytes of the previous buffers
+	private int tailcnt;
+	private boolean bare_lf;
+
+	// Indicates whether the sequence matched by the most recent successful scan() was LF.LF rather than CRLF.CRLF
+	public boolean isBareLF() {return bare_lf;}
+
+	public EomScanner(boolean allow_lf)
+	{
+		this.allow_lf = allow_lf;
+	}
+
+	// Called at the start of each message body
+	public void reset()
+	{
+		tailcnt = 0;
+		bare_lf = false;
+	}
+
+	// Returns the offset just beyond the End-of-Message sequence, or -1 if this buffer doesn't complete it.
+	// In the latter case, the caller is expected to pass in the next buffer of the message body on the next call.
+	public int scan(byte[] buf, int off, int len)
+	{
+		final int lmt = off + len;
+		bare_lf = false;
+
+		// check any dots which are close enough to the buffer boundary that the sequence may span it
+		for (int pos = off - Math.min(tailcnt, 2); pos != off + 2 && pos != lmt; pos++) {
+			if (byteAt(buf, off, pos) == '.') {
+				int end = matchAt(buf, off, lmt, pos);
+				if (end != -1) return end;
+			}
+		}
+
+		// any remaining dots are preceded by at least 2 bytes of this buffer
+		int pos = off + 2;
+		while (pos + 8 <= lmt) {
+			long word = (long)WORDVIEW.get(buf, pos) ^ DOTS; //every dot is now a zero byte
+			long hits = (word - LOBITS) & ~word & HIBITS;
+			while (hits != 0) {
+				// The lowest hit is always a genuine zero byte, but borrows can produce false hits above it. That's
+				// harmless as matchAt() checks for the dot anyway.
+				int dotpos = pos + (Long.numberOfTrailingZeros(hits) >>> 3);
+				int end = matchAt(buf, off, lmt, dotpos);
+				if (end != -1) return end;
+				hits &= (hits - 1);
+			}
+			pos += 8;
+		}
+		while (pos < lmt) {
+			if (buf[pos] == '.') {
+				int end = matchAt(buf, off, lmt, pos);
+				if (end != -1) return end;
+			}
+			pos++;
+		}
+
+		// carry the final bytes forward to the next buffer
+		if (len >= TAILSIZE) {
+			System.arraycopy(buf, lmt - TAILSIZE, tail, 0, TAILSIZE);
+			tailcnt = TAILSIZE;
+		} else {
+			int keep = Math.min(tailcnt, TAILSIZE - len);
+			System.arraycopy(tail, tailcnt - keep, tail, 0, keep);
+			System.arraycopy(buf, off, tail, keep, len);
+			tailcnt = keep + len;
+		}
+		return -1;
+	}
+
+	// Checks whether the byte at dotpos is the dot of an End-of-Message sequence, and if so returns the offset beyond it.
+	// The dotpos arg may precede the start of the buffer, in which case it refers to the tail.
+	private int matchAt(byte[] buf, int off, int lmt, int dotpos)
+	{
+		if (byteAt(buf, off, dotpos) != '.') return -1;
+		int first = off - tailcnt;
+		if (dotpos - 2 >= first && dotpos + 2 < lmt
+				&& byteAt(buf, off, dotpos - 2) == '\r' && byteAt(buf, off, dotpos - 1) == '\n'
+				&& byteAt(buf, off, dotpos + 1) == '\r' && byteAt(buf, off, dotpos + 2) == '\n') {
+			return dotpos + 3;
+		}
+		if (allow_lf && dotpos - 1 >= first && dotpos + 1 < lmt
+				&& byteAt(buf, off, dotpos - 1) == '\n' && byteAt(buf, off, dotpos + 1) == '\n') {
+			bare_lf = true;
+			return dotpos + 2;
+		}
+		return -1;
+	}
+
+	private byte byteAt(byte[] buf, int off, int pos)
+	{
+		return (pos < off ? tail[tailcnt - (off - pos)] : buf[pos]);
+	}
+}
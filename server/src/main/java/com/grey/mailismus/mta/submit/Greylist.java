@@ -7,6 +7,7 @@ package com.grey.mailismus.mta.submit;
 import com.grey.logging.Logger.LEVEL;
 import com.grey.base.utils.TimeOps;
 import com.grey.mailismus.DBHandle;
+import com.grey.mailismus.errors.MailismusConfigException;
 import com.grey.mailismus.errors.MailismusStorageException;
 
 final class Greylist
@@ -40,6 +41,7 @@ final class Greylist
 	public final long retry_interval;
 	public final long expiry_interval;
 	private final long purge_interval;
+	private final long flush_interval; //how often the in-memory store writes out its journal
 	public final long updates_freeze; //prevents excessive updates for frequent correspondents
 	private final boolean primitive_ops;
 	private final int netprefix;
@@ -48,6 +50,7 @@ final class Greylist
 	private final com.grey.naf.reactor.Dispatcher dsptch;
 	private final com.grey.mailismus.DBHandle db;
 	private final com.grey.mailismus.IPlist whitelist;
+	private final GreylistTable memtable; //non-null means we're using the in-memory store instead of the database
 
 	private final java.sql.CallableStatement pstmt_vet;
 	private final java.sql.PreparedStatement pstmt_purge;
@@ -58,11 +61,24 @@ final class Greylist
 	private final java.sql.PreparedStatement pstmt_fetch;
 
 	private com.grey.naf.reactor.TimerNAF tmr_purge;
+	private com.grey.naf.reactor.TimerNAF tmr_flush;
+	private java.util.concurrent.Executor dbthread; //if set, purges are run in this thread rather than the Dispatcher's
 	private volatile boolean is_closed;
+	// The outcome of the last purge run in the DB thread, which can't log, so they're reported by the next purge timer.
+	// The count is written after the error, so reading it first publishes the error.
+	private volatile Throwable purge_error;
+	private volatile int purge_cnt = -1;
 
 	public int[] count() {return show(null);}
+	public boolean isInMemory() {return (memtable != null);}
+	public boolean isWhitelisted(int ip) {return (whitelist != null && whitelist.exists(ip));}
 
-	public Greylist(com.grey.naf.reactor.Dispatcher dsptch, DBHandle.Type dbtype, com.grey.base.config.XmlConfig cfg)
+	// Once this has been called, all database ops other than NAFMAN ones are expected to run in the given thread.
+	// The database handle is not thread-safe, so the ops are also serialised against each other.
+	void setExecutor(java.util.concurrent.Executor exec) {dbthread = exec;}
+
+	// The name identifies the owning SMTP listener, so that each listener gets its own in-memory store
+	public Greylist(com.grey.naf.reactor.Dispatcher dsptch, DBHandle.Type dbtype, com.grey.base.config.XmlConfig cfg, String name)
 		throws java.io.IOException
 	{
 		this.dsptch = dsptch;
@@ -71,6 +87,7 @@ final class Greylist
 		expiry_interval = cfg.getTime("expiry_interval", "7d");
 		purge_interval = cfg.getTime("purge_interval", "3h");
 		updates_freeze = cfg.getTime("updates_freeze", "1h");
+		flush_interval = cfg.getTime("flush_interval", "1s");
 
 		netprefix = cfg.getInt("netprefix", false, 28);
 		netmask = com.grey.base.utils.IP.prefixToMask(netprefix);
@@ -83,38 +100,65 @@ final class Greylist
 		}
 		Exception ex_setup = null;
 
-		// If setup-script encounters a genuine error, that will cause our initial purge to fail, and
-		// maybe even some of the prepareStatement() calls, so we assume any script errors are harmless
-		// as long as these subsequent ops succeed.
-		try {
-			db = new com.grey.mailismus.DBHandle(listname, dbtype, dsptch.getApplicationContext(), cfg, dsptch.getLogger());
-			db.connect(false, true);
-			ex_setup = db.executeScript("setup", getClass(), cfg, true, null, null, null);
-			db.connect(false, false);
-			primitive_ops = db.dbtype.hasStoredProcs ? cfg.getBool("primitive_ops", !db.dbtype.hasStoredProcs) : true;
-	
-			if (primitive_ops) {
-				pstmt_create = db.prepareStatement(sqlcmd_create);
-				pstmt_promote = db.prepareStatement(sqlcmd_promote);
-				pstmt_refresh = db.prepareStatement(sqlcmd_refresh);
-				pstmt_vet = null;
-			} else {
-				pstmt_vet = db.prepareCall(sqlcmd_vet);
-				pstmt_create = null;
-				pstmt_promote = null;
-				pstmt_refresh = null;
+		String store = cfg.getValue("store", true, "database");
+		if (store.equalsIgnoreCase("memory")) {
+			com.grey.naf.NAFConfig nafcfg = dsptch.getApplicationContext().getConfig();
+			String rootpath = nafcfg.getPath(cfg, "rootpath", null, false, nafcfg.getPathVar()+"/greylist", null)+"/"+name;
+			try {
+				memtable = new GreylistTable(java.nio.file.Paths.get(rootpath), qtine_interval, retry_interval, expiry_interval, updates_freeze);
+			} catch (Exception ex) {
+				throw new MailismusStorageException("Failed to initialise GreyList at "+rootpath, ex);
 			}
-			pstmt_fetch = db.prepareStatement(sqlcmd_fetch);
-			pstmt_purge = db.prepareStatement(sqlcmd_purge);
-			pstmt_clear = db.prepareStatement(sqlcmd_clear);
+			db = null;
+			primitive_ops = true;
+			pstmt_vet = null;
+			pstmt_create = null;
+			pstmt_promote = null;
+			pstmt_refresh = null;
+			pstmt_fetch = null;
+			pstmt_purge = null;
+			pstmt_clear = null;
 			purge();
-		} catch (Exception ex) {
-			if (ex_setup != null) dsptch.getLogger().info("Greylist setup failed - "+com.grey.base.ExceptionUtils.summary(ex_setup, false));
-			throw new MailismusStorageException("Failed to initialise GreyList", ex);
+			dsptch.getLogger().info("Greylist: in-memory store at "+rootpath);
+		} else if (!store.equalsIgnoreCase("database")) {
+			throw new MailismusConfigException("Invalid Greylist store="+store);
+		} else {
+			memtable = null;
+
+			// If setup-script encounters a genuine error, that will cause our initial purge to fail, and
+			// maybe even some of the prepareStatement() calls, so we assume any script errors are harmless
+			// as long as these subsequent ops succeed.
+			try {
+				db = new com.grey.mailismus.DBHandle(listname, dbtype, dsptch.getApplicationContext(), cfg, dsptch.getLogger());
+				db.connect(false, true);
+				ex_setup = db.executeScript("setup", getClass(), cfg, true, null, null, null);
+				db.connect(false, false);
+				primitive_ops = db.dbtype.hasStoredProcs ? cfg.getBool("primitive_ops", !db.dbtype.hasStoredProcs) : true;
+	
+				if (primitive_ops) {
+					pstmt_create = db.prepareStatement(sqlcmd_create);
+					pstmt_promote = db.prepareStatement(sqlcmd_promote);
+					pstmt_refresh = db.prepareStatement(sqlcmd_refresh);
+					pstmt_vet = null;
+				} else {
+					pstmt_vet = db.prepareCall(sqlcmd_vet);
+					pstmt_create = null;
+					pstmt_promote = null;
+					pstmt_refresh = null;
+				}
+				pstmt_fetch = db.prepareStatement(sqlcmd_fetch);
+				pstmt_purge = db.prepareStatement(sqlcmd_purge);
+				pstmt_clear = db.prepareStatement(sqlcmd_clear);
+				purge();
+			} catch (Exception ex) {
+				if (ex_setup != null) dsptch.getLogger().info("Greylist setup failed - "+com.grey.base.ExceptionUtils.summary(ex_setup, false));
+				throw new MailismusStorageException("Failed to initialise GreyList", ex);
+			}
 		}
 
-		// schedule regular purges
+		// schedule regular purges, and regular journal flushes for the in-memory store
 		tmr_purge = dsptch.setTimer(purge_interval, 0, this);
+		if (memtable != null) tmr_flush = dsptch.setTimer(flush_interval, 0, this);
 
 		int[] totals = count();
 		dsptch.getLogger().info("Greylist/"+netprefix+" loaded - Total="+totals[0]+", Grey="+totals[1]+" - primitives="+primitive_ops);
@@ -122,15 +166,17 @@ final class Greylist
 				+", maxretry="+TimeOps.expandMilliTime(retry_interval)
 				+", expiry="+TimeOps.expandMilliTime(expiry_interval)
 				+", purge="+TimeOps.expandMilliTime(purge_interval)
-				+", updates-freeze="+TimeOps.expandMilliTime(updates_freeze));
+				+", updates-freeze="+TimeOps.expandMilliTime(updates_freeze)
+				+(memtable == null ? "" : ", flush="+TimeOps.expandMilliTime(flush_interval)));
 	}
 
-	public void close()
+	public synchronized void close()
 	{
 		if (is_closed) return;
 		is_closed = true;
 
 		try {
+			if (memtable != null) memtable.close();
 			if (pstmt_vet != null) pstmt_vet.close();
 			if (pstmt_purge != null) pstmt_purge.close();
 			if (pstmt_clear != null) pstmt_clear.close();
@@ -138,13 +184,16 @@ final class Greylist
 			if (pstmt_create != null) pstmt_create.close();
 			if (pstmt_promote != null) pstmt_promote.close();
 			if (pstmt_refresh != null) pstmt_refresh.close();
-			db.close();
+			if (db != null) db.close();
 		} catch (Exception ex) {
 			dsptch.getLogger().log(LEVEL.TRC, ex, false, "Greylist: Shutdown errors");
 		}
 		if (whitelist != null) whitelist.close();
 		if (tmr_purge != null) tmr_purge.cancel();
 		tmr_purge = null;
+		if (tmr_flush != null) tmr_flush.cancel();
+		tmr_flush = null;
+		reportPurge();
 	}
 
 	public boolean vet(int ip, com.grey.base.utils.ByteChars addrfrom, com.grey.base.utils.ByteChars addrto)
@@ -156,21 +205,31 @@ final class Greylist
 	public boolean vet(int ip, byte[] addrfrom, byte[] addrto)
 	{
 		if (whitelist != null && whitelist.exists(ip)) return true;
+		return vet(ip, addrfrom, addrto, dsptch.getSystemTime());
+	}
+
+	// The whitelist has already been checked by the caller, and this may be called outside the Dispatcher thread, so the
+	// timestamp is supplied by the caller as well.
+	synchronized boolean vet(int ip, byte[] addrfrom, byte[] addrto, long systime)
+	{
+		if (is_closed) throw new MailismusStorageException("GreyList is closed");
 		ip &= netmask;
 		boolean success = false;
 		boolean approved;
 
 		try {
-			if (primitive_ops) {
-				approved = vet_primitives(ip, addrfrom, addrto, null);
+			if (memtable != null) {
+				approved = memtable.vet(ip, addrfrom, addrto, systime);
+			} else if (primitive_ops) {
+				approved = vet_primitives(ip, addrfrom, addrto, null, systime);
 			} else {
-				approved = vet_storedproc(ip, addrfrom, addrto);
+				approved = vet_storedproc(ip, addrfrom, addrto, systime);
 			}
 			success = true;
 		} catch (Exception ex) {
 			throw new MailismusStorageException("Failed to vet GreyList", ex);
 		} finally {
-			if (!success) db.commitNOSQL(false);
+			if (!success && db != null) db.commitNOSQL(false);
 		}
 		return approved;
 	}
@@ -182,13 +241,14 @@ final class Greylist
 	}
 
 	// Returns LOOKUP_WHITE if whitelisted, LOOKUP_ABSENT if unregistered, 0 if greylisted, else the expiry time
-	public long lookup(int ip, byte[] addrfrom, byte[] addrto)
+	public synchronized long lookup(int ip, byte[] addrfrom, byte[] addrto)
 	{
 		if (whitelist != null && whitelist.exists(ip)) return LOOKUP_WHITE;
 		ip &= netmask;
+		if (memtable != null) return memtable.lookup(ip, addrfrom, addrto, dsptch.getSystemTime());
 		long[] validtill = new long[1];
 		try {
-			vet_primitives(ip, addrfrom, addrto, validtill);
+			vet_primitives(ip, addrfrom, addrto, validtill, dsptch.getSystemTime());
 		} catch (Exception ex) {
 			throw new MailismusStorageException("Failed to lookup GreyList", ex);
 		}
@@ -197,22 +257,42 @@ final class Greylist
 
 	public int purge()
 	{
+		int cnt = purge(dsptch.getSystemTime());
+		if (cnt != 0) dsptch.getLogger().trace("Greylist purged recs="+cnt);
+		return cnt;
+	}
+
+	private synchronized int purge(long systime)
+	{
+		if (is_closed) return 0;
 		try {
+			if (memtable != null) return memtable.purge(systime);
 			pstmt_purge.clearParameters();
-			pstmt_purge.setLong(1, dsptch.getSystemTime() - retry_interval);
-			pstmt_purge.setLong(2, dsptch.getSystemTime() - expiry_interval);
+			pstmt_purge.setLong(1, systime - retry_interval);
+			pstmt_purge.setLong(2, systime - expiry_interval);
 			int cnt = pstmt_purge.executeUpdate();
 			db.commit(true);
-			if (cnt != 0) dsptch.getLogger().trace("Greylist purged recs="+cnt);
 			return cnt;
 		} catch (Exception ex) {
 			throw new MailismusStorageException("Failed to purge GreyList", ex);
 		}
 	}
 
-	public int reset()
+	// Writes out the in-memory store's buffered journal records
+	private synchronized void flush()
+	{
+		if (is_closed) return;
+		try {
+			memtable.flush();
+		} catch (Exception ex) {
+			throw new MailismusStorageException("Failed to flush GreyList journal", ex);
+		}
+	}
+
+	public synchronized int reset()
 	{
 		try {
+			if (memtable != null) return memtable.reset();
 			int cnt = pstmt_clear.executeUpdate();
 			db.commit(true);
 			return cnt;
@@ -221,8 +301,18 @@ final class Greylist
 		}
 	}
 
-	public int[] show(StringBuilder sb)
+	public synchronized int[] show(StringBuilder sb)
 	{
+		if (memtable != null) {
+			if (sb != null) {
+				sb.append("<rows>");
+				memtable.show(sb);
+				sb.append("</rows>");
+				sb.append("<summary total=\"").append(memtable.size()).append("\" grey=\"").append(memtable.greyCount());
+				sb.append("\" srcprefix=\"").append(netprefix).append("\"/>");
+			}
+			return new int[]{memtable.size(), memtable.greyCount()};
+		}
 		try {
 			return wrapped_show(sb);
 		} catch (Exception ex) {
@@ -230,7 +320,7 @@ final class Greylist
 		}
 	}
 
-	private boolean vet_primitives(int ip, byte[] addrfrom, byte[] addrto, long[] validtill) throws java.sql.SQLException
+	private boolean vet_primitives(int ip, byte[] addrfrom, byte[] addrto, long[] validtill, long systime) throws java.sql.SQLException
 	{
 		int gryid = 0;
 		java.sql.ResultSet rs = null;
@@ -250,7 +340,7 @@ final class Greylist
 				lastrecv = rs.getLong("LAST_RECV");
 			}
 		} finally {
-			if (rs != null) try {rs.close();} catch (Exception ex) {dsptch.getLogger().log(LEVEL.TRC, ex, false, "Greylist: closing Fetch RS");}
+			if (rs != null) try {rs.close();} catch (Exception ex) {logCloseError(ex, "Greylist: closing Fetch RS");}
 		}
 
 		if (gryid == 0)
@@ -263,10 +353,10 @@ final class Greylist
 			}
 			pstmt_create.clearParameters();
 			pstmt_create.setInt(1, ip);
-			pstmt_create.setLong(2, dsptch.getSystemTime());
+			pstmt_create.setLong(2, systime);
 			pstmt_create.setBytes(3, addrfrom);
 			pstmt_create.setBytes(4, addrto);
-			pstmt_create.setLong(5, dsptch.getSystemTime() + qtine_interval);
+			pstmt_create.setLong(5, systime + qtine_interval);
 			pstmt_create.executeUpdate();
 			updated = true;
 		}
@@ -281,10 +371,10 @@ final class Greylist
 					return false;
 				}
 
-				if (lastrecv + updates_freeze <= dsptch.getSystemTime())
+				if (lastrecv + updates_freeze <= systime)
 				{
 					pstmt_refresh.clearParameters();
-					pstmt_refresh.setLong(1, dsptch.getSystemTime());
+					pstmt_refresh.setLong(1, systime);
 					pstmt_refresh.setInt(2, gryid);
 					pstmt_refresh.executeUpdate();
 					updated = true;
@@ -299,7 +389,7 @@ final class Greylist
 					return false;
 				}
 
-				if (qtine > dsptch.getSystemTime())
+				if (qtine > systime)
 				{
 					gryid = 0;  // still quarantined/greylisted
 				}
@@ -307,7 +397,7 @@ final class Greylist
 				{
 					// promote this tuple to approved status
 					pstmt_promote.clearParameters();
-					pstmt_promote.setLong(1, dsptch.getSystemTime());
+					pstmt_promote.setLong(1, systime);
 					pstmt_promote.setInt(2, gryid);
 					pstmt_promote.executeUpdate();
 					updated = true;
@@ -318,7 +408,7 @@ final class Greylist
 		return (gryid != 0);
 	}
 
-	private boolean vet_storedproc(int ip, byte[] addrfrom, byte[] addrto) throws java.sql.SQLException
+	private boolean vet_storedproc(int ip, byte[] addrfrom, byte[] addrto, long systime) throws java.sql.SQLException
 	{
 		int gryid = 0;
 		java.sql.ResultSet rs = null;
@@ -327,7 +417,7 @@ final class Greylist
 		pstmt_vet.setInt(1, ip);
 		pstmt_vet.setBytes(2, addrfrom);
 		pstmt_vet.setBytes(3, addrto);
-		pstmt_vet.setLong(4, dsptch.getSystemTime());
+		pstmt_vet.setLong(4, systime);
 		pstmt_vet.setLong(5, qtine_interval);
 		pstmt_vet.setLong(6, updates_freeze);
 
@@ -337,7 +427,7 @@ final class Greylist
 			rs.next();
 			gryid = rs.getInt("RESULT");
 		} finally {
-			if (rs != null) try {rs.close();} catch (Exception ex) {dsptch.getLogger().log(LEVEL.TRC, ex, false, "Greylist: closing Proc RS");}
+			if (rs != null) try {rs.close();} catch (Exception ex) {logCloseError(ex, "Greylist: closing Proc RS");}
 		}
 		return (gryid != 0);
 	}
@@ -417,9 +507,62 @@ final class Greylist
 	@Override
 	public void timerIndication(com.grey.naf.reactor.TimerNAF t, com.grey.naf.reactor.Dispatcher d)
 	{
+		if (t == tmr_flush) {
+			tmr_flush = null;
+			try {
+				flush();
+			} catch (Exception ex) {
+				dsptch.getLogger().log(LEVEL.INFO, ex, true, "Greylist failed to flush journal");
+			}
+			tmr_flush = dsptch.setTimer(flush_interval, 0, this);
+			return;
+		}
 		if (t != tmr_purge) throw new MailismusStorageException("Unexpected Greylist timer="+t.getID()+"/"+t.getType());
 		tmr_purge = null;
-		purge();
+		if (dbthread == null) {
+			try {
+				purge();
+			} catch (Exception ex) {
+				// a failed background snapshot is reported here too, and we must carry on to re-arm the timer
+				dsptch.getLogger().log(LEVEL.INFO, ex, true, "Greylist failed to purge");
+			}
+		} else {
+			reportPurge();
+			long systime = dsptch.getSystemTime();
+			dbthread.execute(() -> {
+				Throwable error = null;
+				int cnt = 0;
+				try {
+					cnt = purge(systime);
+				} catch (Throwable ex) {
+					error = ex;
+				}
+				purge_error = error;
+				purge_cnt = cnt;
+			});
+		}
 		tmr_purge = dsptch.setTimer(purge_interval, 0, this);
 	}
+
+	// Logs the outcome of the previous purge in the DB thread, if any
+	private void reportPurge()
+	{
+		int cnt = purge_cnt;
+		if (cnt == -1) return; //no purge has completed since the last report
+		Throwable ex = purge_error;
+		purge_cnt = -1;
+		purge_error = null;
+		if (ex != null) {
+			dsptch.getLogger().log(LEVEL.INFO, ex, true, "Greylist failed to purge");
+		} else if (cnt != 0) {
+			dsptch.getLogger().trace("Greylist purged recs="+cnt);
+		}
+	}
+
+	// The vet ops run in the DB thread if there is one, where we can't log, and a failure to close a result set doesn't
+	// affect the verdict anyway.
+	private void logCloseError(Exception ex, String msg)
+	{
+		if (dbthread == null) dsptch.getLogger().log(LEVEL.TRC, ex, false, msg);
+	}
 }
\ No newline at end of file
@@ -0,0 +1,610 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.submit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.grey.base.utils.IP;
+
+/**
+ * An in-memory alternative to the Greylist's database table, which implements the same vetting rules.
+ * <br>
+ * The entries are held in an open-addressing hash table (with linear probing) which is keyed on a 64-bit fingerprint of
+ * the (IP, sender, recipient) tuple, and the fingerprint and timestamps of each entry are packed together in one array.
+ * The addresses are also retained, but only for the sake of the NAFMAN listing and the snapshot.
+ * Stale entries are expired incrementally as a side effect of vetting, as well as by the Greylist's periodic purges, and
+ * an entry which has become stale is also treated as absent when it is looked up.
+ * <br>
+ * The table is persisted as a snapshot file plus a journal of the changes made since then. The journal records are buffered
+ * as they occur and only written out by flush(), which the Greylist calls on a timer, so at most one flush interval's worth
+ * of changes is lost in a crash. A fresh snapshot is written (and a new journal started) on each purge.
+ * Each snapshot has a generation number, which is also the suffix of the journal started alongside it, and the journals
+ * which predate a snapshot are deleted once it has been written.
+ * <br>
+ * The purge only takes an in-memory copy of the table, and the snapshot is written from that copy in a background thread,
+ * so that the caller (typically the SMTP server's Dispatcher) is not held up by the file I/O. Until the new snapshot is in
+ * place the old one remains valid, and if we crash before then, the old snapshot is loaded and both journals are replayed.
+ * <br>
+ * This class is not thread-safe, and the Greylist serialises access to it.
+ */
+final class GreylistTable
+{
+	private static final int FILE_MAGIC = 0x4752594C; //GRYL
+	private static final String FILENAME_SNAPSHOT = "greylist.snap";
+	private static final String FILENAME_JOURNAL = "greylist.jnl";
+
+	private static final byte REC_CREATE = 'C';
+	private static final byte REC_UPDATE = 'U';
+	private static final byte REC_RESET = 'R';
+
+	// layout of the packed slots
+	private static final int STRIDE = 4;
+	private static final int FLD_FPRINT = 0; //zero means empty slot
+	private static final int FLD_CREATED = 1;
+	private static final int FLD_QTINE = 2; //zero means approved
+	private static final int FLD_LASTRECV = 3; //zero means not yet approved
+
+	private static final int EXPIRE_STEP = 8; //number of slots examined for expiry by each vet() call
+
+	private final long qtine_interval;
+	private final long retry_interval;
+	private final long expiry_interval;
+	private final long updates_freeze;
+	private final Path dirpath;
+	private final Path snapshotPath;
+	private final ExecutorService writer;
+
+	private long[] slots;
+	private int[] ips;
+	private byte[][] senders;
+	private byte[][] recips;
+	private int mask;
+	private int size;
+	private int grycnt; //number of entries which are not yet approved
+	private int expire_cursor;
+
+	private long generation;
+	private DataOutputStream journal;
+	private Future<Void> pending_snapshot; //the background snapshot write, if one is in progress
+
+	public int size() {return size;}
+	public int greyCount() {return grycnt;}
+
+	public GreylistTable(Path dirpath, long qtine_interval, long retry_interval, long expiry_interval, long updates_freeze)
+		throws IOException
+	{
+		this.qtine_interval = qtine_interval;
+		this.retry_interval = retry_interval;
+		this.expiry_interval = expiry_interval;
+		this.updates_freeze = updates_freeze;
+		this.dirpath = dirpath;
+		Files.createDirectories(dirpath);
+		snapshotPath = dirpath.resolve(FILENAME_SNAPSHOT);
+		allocate(1024);
+		load();
+		snapshot(); //compacts the journals into a new snapshot, and opens a new journal
+
+		writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), (r) -> {
+			Thread thrd = new Thread(r, "GreylistTable-"+dirpath.getFileName());
+			thrd.setDaemon(true);
+			return thrd;
+		});
+	}
+
+	public void close() throws IOException
+	{
+		try {
+			if (journal == null) return;
+			try {awaitSnapshot();} catch (IOException ex) {} //the final snapshot supersedes it anyway
+			snapshot();
+		} finally {
+			closeJournal();
+			writer.shutdown();
+		}
+	}
+
+	// This has the same semantics as the Greylist table's primitive ops
+	public boolean vet(int ip, byte[] addrfrom, byte[] addrto, long systime) throws IOException
+	{
+		expireSome(systime);
+		long fprint = fingerprint(ip, addrfrom, addrto);
+		int slot = find(fprint, systime);
+		if (slot == -1) {
+			// this tuple is not yet registered
+			slot = insert(fprint, ip, addrfrom, addrto, systime, systime + qtine_interval, 0);
+			writeCreate(slot);
+			return false;
+		}
+		int off = slot * STRIDE;
+		long qtine = slots[off+FLD_QTINE];
+		if (qtine == 0) {
+			// this tuple is already approved
+			if (slots[off+FLD_LASTRECV] + updates_freeze <= systime) {
+				slots[off+FLD_LASTRECV] = systime;
+				writeUpdate(slot);
+			}
+			return true;
+		}
+		if (qtine > systime) return false; //still quarantined
+
+		// promote this tuple to approved status
+		slots[off+FLD_QTINE] = 0;
+		slots[off+FLD_LASTRECV] = systime;
+		grycnt--;
+		writeUpdate(slot);
+		return true;
+	}
+
+	// Returns LOOKUP_ABSENT if unregistered, 0 if greylisted, else the expiry time
+	public long lookup(int ip, byte[] addrfrom, byte[] addrto, long systime)
+	{
+		int slot = find(fingerprint(ip, addrfrom, addrto), systime);
+		if (slot == -1) return Greylist.LOOKUP_ABSENT;
+		int off = slot * STRIDE;
+		if (slots[off+FLD_QTINE] != 0) return 0;
+		return slots[off+FLD_LASTRECV] + expiry_interval;
+	}
+
+	// Deletes all stale entries, and starts a new snapshot in the background
+	public int purge(long systime) throws IOException
+	{
+		int cnt = 0;
+		int slot = 0;
+		while (slot != ips.length) {
+			if (slots[slot*STRIDE+FLD_FPRINT] != 0 && isStale(slot, systime)) {
+				remove(slot); //another entry may have moved into this slot, so examine it again
+				cnt++;
+			} else {
+				slot++;
+			}
+		}
+		IOException ex = null;
+		if (pending_snapshot != null && pending_snapshot.isDone()) {
+			try {
+				awaitSnapshot();
+			} catch (IOException ex2) {
+				ex = ex2; //report it once the next snapshot is under way, as that will supersede the failed one
+			}
+		}
+		// if the previous snapshot is still being written, then this one is skipped and the journal carries on
+		if (pending_snapshot == null) pending_snapshot = writer.submit(rotate());
+		if (ex != null) throw ex;
+		return cnt;
+	}
+
+	// Waits for the background snapshot to be written, if one is in progress, and reports its failure
+	void awaitSnapshot() throws IOException
+	{
+		if (pending_snapshot == null) return;
+		Future<Void> f = pending_snapshot;
+		pending_snapshot = null;
+		try {
+			f.get();
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException) throw (IOException)cause;
+			throw new IOException("Failed to write Greylist snapshot="+snapshotPath, cause);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing Greylist snapshot="+snapshotPath, ex);
+		}
+	}
+
+	// Writes out the buffered journal records. Closing the journal (on a purge or close) also writes them out.
+	public void flush() throws IOException
+	{
+		if (journal != null) journal.flush();
+	}
+
+	public int reset() throws IOException
+	{
+		int cnt = size;
+		clear();
+		if (journal != null) {
+			journal.writeByte(REC_RESET);
+		}
+		return cnt;
+	}
+
+	// Produces the same output as the Greylist's database listing
+	public void show(StringBuilder sb)
+	{
+		java.util.Calendar dtcal = com.grey.base.utils.TimeOps.getCalendar(null);
+		com.grey.base.utils.ByteChars bc = new com.grey.base.utils.ByteChars();
+		for (int slot = 0; slot != ips.length; slot++) {
+			int off = slot * STRIDE;
+			if (slots[off+FLD_FPRINT] == 0) continue;
+			long qtine_till = slots[off+FLD_QTINE];
+			String status = (qtine_till == 0 ? "OK" : "GREY");
+			dtcal.setTimeInMillis(slots[off+FLD_CREATED]);
+			sb.append("<row ID=\"").append(slot+1).append("\" Status=\"").append(status).append("\" Created=\"");
+			com.grey.base.utils.TimeOps.makeTimeLogger(dtcal, sb, true, false);
+			sb.append("\" SourceNet=\"");
+			IP.displayDottedIP(ips[slot], sb);
+			sb.append("\" Sender=\"").append(senders[slot] == null ? "" : bc.populate(senders[slot]));
+			sb.append("\" Recip=\"").append(bc.populate(recips[slot]));
+			sb.append("\" QuarantineTill=\"");
+			if (qtine_till != 0) {
+				dtcal.setTimeInMillis(qtine_till);
+				com.grey.base.utils.TimeOps.makeTimeLogger(dtcal, sb, true, false);
+			}
+			sb.append("\" LastRecv=\"");
+			if (qtine_till == 0) {
+				dtcal.setTimeInMillis(slots[off+FLD_LASTRECV]);
+				com.grey.base.utils.TimeOps.makeTimeLogger(dtcal, sb, true, false);
+			}
+			sb.append("\"/>");
+		}
+	}
+
+	// Mirrors the Greylist's purge criteria
+	private boolean isStale(int slot, long systime)
+	{
+		int off = slot * STRIDE;
+		long qtine = slots[off+FLD_QTINE];
+		if (qtine != 0) return (qtine <= systime - retry_interval);
+		return (slots[off+FLD_LASTRECV] <= systime - expiry_interval);
+	}
+
+	private void expireSome(long systime)
+	{
+		if (size == 0) return;
+		int cnt = Math.min(EXPIRE_STEP, ips.length);
+		while (cnt-- != 0) {
+			int slot = expire_cursor;
+			if (slots[slot*STRIDE+FLD_FPRINT] != 0 && isStale(slot, systime)) {
+				remove(slot); //leave the cursor here, as another entry may have moved into this slot
+			} else {
+				expire_cursor = (expire_cursor + 1) & mask;
+			}
+		}
+	}
+
+	// Returns the slot, or -1 if absent. A stale entry is removed and reported as absent.
+	private int find(long fprint, long systime)
+	{
+		int slot = home(fprint);
+		long f;
+		while ((f = slots[slot*STRIDE+FLD_FPRINT]) != 0) {
+			if (f == fprint) {
+				if (systime != 0 && isStale(slot, systime)) {
+					remove(slot);
+					return -1;
+				}
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private int insert(long fprint, int ip, byte[] addrfrom, byte[] addrto, long created, long qtine, long lastrecv)
+	{
+		if ((size + 1) * 2 > ips.length) grow();
+		int slot = home(fprint);
+		while (slots[slot*STRIDE+FLD_FPRINT] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		int off = slot * STRIDE;
+		slots[off+FLD_FPRINT] = fprint;
+		slots[off+FLD_CREATED] = created;
+		slots[off+FLD_QTINE] = qtine;
+		slots[off+FLD_LASTRECV] = lastrecv;
+		ips[slot] = ip;
+		senders[slot] = addrfrom;
+		recips[slot] = addrto;
+		size++;
+		if (qtine != 0) grycnt++;
+		return slot;
+	}
+
+	// Backward-shift deletion, which avoids the need for tombstones
+	private void remove(int hole)
+	{
+		if (slots[hole*STRIDE+FLD_QTINE] != 0) grycnt--;
+		size--;
+		int slot = hole;
+		while (true) {
+			slot = (slot + 1) & mask;
+			long fprint = slots[slot*STRIDE+FLD_FPRINT];
+			if (fprint == 0) break;
+			int h = home(fprint);
+			// the entry can fill the hole if its home slot is not cyclically within (hole, slot]
+			boolean stays = (hole <= slot ? (h > hole && h <= slot) : (h > hole || h <= slot));
+			if (stays) continue;
+			System.arraycopy(slots, slot*STRIDE, slots, hole*STRIDE, STRIDE);
+			ips[hole] = ips[slot];
+			senders[hole] = senders[slot];
+			recips[hole] = recips[slot];
+			hole = slot;
+		}
+		java.util.Arrays.fill(slots, hole*STRIDE, (hole+1)*STRIDE, 0);
+		senders[hole] = null;
+		recips[hole] = null;
+	}
+
+	private void grow()
+	{
+		long[] oldslots = slots;
+		int[] oldips = ips;
+		byte[][] oldsenders = senders;
+		byte[][] oldrecips = recips;
+		allocate(oldips.length * 2);
+		for (int slot = 0; slot != oldips.length; slot++) {
+			int off = slot * STRIDE;
+			if (oldslots[off+FLD_FPRINT] == 0) continue;
+			insert(oldslots[off+FLD_FPRINT], oldips[slot], oldsenders[slot], oldrecips[slot],
+					oldslots[off+FLD_CREATED], oldslots[off+FLD_QTINE], oldslots[off+FLD_LASTRECV]);
+		}
+	}
+
+	private void allocate(int capacity)
+	{
+		slots = new long[capacity * STRIDE];
+		ips = new int[capacity];
+		senders = new byte[capacity][];
+		recips = new byte[capacity][];
+		mask = capacity - 1;
+		size = 0;
+		grycnt = 0;
+		expire_cursor = 0;
+	}
+
+	private void clear()
+	{
+		java.util.Arrays.fill(slots, 0);
+		java.util.Arrays.fill(senders, null);
+		java.util.Arrays.fill(recips, null);
+		size = 0;
+		grycnt = 0;
+	}
+
+	private int home(long fprint)
+	{
+		return (int)(fprint ^ (fprint >>> 32)) & mask;
+	}
+
+	// The IP is expected to have already been masked by the caller
+	static long fingerprint(int ip, byte[] addrfrom, byte[] addrto)
+	{
+		long h = 0xcbf29ce484222325L; //FNV-1a
+		h = (h ^ ip) * 0x100000001b3L;
+		if (addrfrom != null) {
+			for (int idx = 0; idx != addrfrom.length; idx++) {
+				h = (h ^ (addrfrom[idx] & 0xff)) * 0x100000001b3L;
+			}
+		}
+		h = (h ^ 0x100) * 0x100000001b3L; //separator, which can't occur in the byte values
+		for (int idx = 0; idx != addrto.length; idx++) {
+			h = (h ^ (addrto[idx] & 0xff)) * 0x100000001b3L;
+		}
+		// final avalanche (from MurmurHash3) so that the low-order bits used for the home slot are well mixed
+		h ^= (h >>> 33);
+		h *= 0xff51afd7ed558ccdL;
+		h ^= (h >>> 33);
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= (h >>> 33);
+		return (h == 0 ? 1 : h);
+	}
+
+	private void writeCreate(int slot) throws IOException
+	{
+		if (journal == null) return;
+		int off = slot * STRIDE;
+		journal.writeByte(REC_CREATE);
+		writeEntry(journal, ips[slot], slots[off+FLD_CREATED], slots[off+FLD_QTINE], slots[off+FLD_LASTRECV], senders[slot], recips[slot]);
+	}
+
+	private void writeUpdate(int slot) throws IOException
+	{
+		if (journal == null) return;
+		int off = slot * STRIDE;
+		journal.writeByte(REC_UPDATE);
+		journal.writeLong(slots[off+FLD_FPRINT]);
+		journal.writeLong(slots[off+FLD_QTINE]);
+		journal.writeLong(slots[off+FLD_LASTRECV]);
+	}
+
+	private static void writeEntry(DataOutputStream strm, int ip, long created, long qtine, long lastrecv, byte[] addrfrom, byte[] addrto)
+		throws IOException
+	{
+		strm.writeInt(ip);
+		strm.writeLong(created);
+		strm.writeLong(qtine);
+		strm.writeLong(lastrecv);
+		writeBytes(strm, addrfrom);
+		writeBytes(strm, addrto);
+	}
+
+	private void readEntry(DataInputStream strm) throws IOException
+	{
+		int ip = strm.readInt();
+		long created = strm.readLong();
+		long qtine = strm.readLong();
+		long lastrecv = strm.readLong();
+		byte[] addrfrom = readBytes(strm);
+		byte[] addrto = readBytes(strm);
+		long fprint = fingerprint(ip, addrfrom, addrto);
+		if (find(fprint, 0) == -1) insert(fprint, ip, addrfrom, addrto, created, qtine, lastrecv);
+	}
+
+	private static void writeBytes(DataOutputStream strm, byte[] buf) throws IOException
+	{
+		if (buf == null) {
+			strm.writeShort(-1);
+			return;
+		}
+		strm.writeShort(buf.length);
+		strm.write(buf);
+	}
+
+	private static byte[] readBytes(DataInputStream strm) throws IOException
+	{
+		int len = strm.readShort();
+		if (len == -1) return null;
+		byte[] buf = new byte[len];
+		strm.readFully(buf);
+		return buf;
+	}
+
+	private void load() throws IOException
+	{
+		if (Files.exists(snapshotPath)) {
+			try (DataInputStream strm = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)))) {
+				if (strm.readInt() != FILE_MAGIC) throw new IOException("Invalid Greylist snapshot="+snapshotPath);
+				generation = strm.readLong();
+				int cnt = strm.readInt();
+				for (int idx = 0; idx != cnt; idx++) {
+					readEntry(strm);
+				}
+			}
+		}
+		// replay the journals from the snapshot's generation onwards - there is more than one if we crashed while a new
+		// snapshot was being written
+		long gen = generation;
+		Path pth;
+		while (Files.exists(pth = journalPath(dirpath, gen))) {
+			if (!replay(pth, gen)) break;
+			generation = gen++;
+		}
+	}
+
+	// Returns false if the journal doesn't belong to the given generation
+	private boolean replay(Path pth, long gen) throws IOException
+	{
+		try (DataInputStream strm = new DataInputStream(new BufferedInputStream(Files.newInputStream(pth)))) {
+			if (strm.readInt() != FILE_MAGIC || strm.readLong() != gen) return false;
+			int rectype;
+			while ((rectype = strm.read()) != -1) {
+				if (rectype == REC_CREATE) {
+					readEntry(strm);
+				} else if (rectype == REC_UPDATE) {
+					long fprint = strm.readLong();
+					long qtine = strm.readLong();
+					long lastrecv = strm.readLong();
+					int slot = find(fprint, 0);
+					if (slot == -1) continue;
+					int off = slot * STRIDE;
+					if (slots[off+FLD_QTINE] != 0 && qtine == 0) grycnt--;
+					slots[off+FLD_QTINE] = qtine;
+					slots[off+FLD_LASTRECV] = lastrecv;
+				} else if (rectype == REC_RESET) {
+					clear();
+				} else {
+					throw new IOException("Invalid Greylist journal record="+rectype+" in "+pth);
+				}
+			}
+		} catch (EOFException ex) {
+			// the final record was only partially written, which means we crashed while writing it - discard it
+		}
+		return true;
+	}
+
+	// Writes a snapshot synchronously
+	private void snapshot() throws IOException
+	{
+		rotate().call();
+	}
+
+	// Starts a new journal, and returns a copy of the table as it stood at that point, from which to write the snapshot
+	private Snapshot rotate() throws IOException
+	{
+		closeJournal();
+		generation++;
+		Snapshot snap = new Snapshot(this);
+		Path pth = journalPath(dirpath, generation);
+		journal = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(pth)));
+		journal.writeInt(FILE_MAGIC);
+		journal.writeLong(generation);
+		journal.flush();
+		return snap;
+	}
+
+	private void closeJournal() throws IOException
+	{
+		if (journal == null) return;
+		DataOutputStream strm = journal;
+		journal = null;
+		strm.close();
+	}
+
+	private static Path journalPath(Path dirpath, long gen)
+	{
+		return dirpath.resolve(FILENAME_JOURNAL+"."+gen);
+	}
+
+	// An immutable copy of the table's entries, which is written to the snapshot file in the background thread.
+	// The address arrays are shared with the table, but they are never modified once stored.
+	private static final class Snapshot
+		implements java.util.concurrent.Callable<Void>
+	{
+		private final Path dirpath;
+		private final Path snapshotPath;
+		private final long generation;
+		private final long[] slots; //compacted, ie. there are no empty slots
+		private final int[] ips;
+		private final byte[][] senders;
+		private final byte[][] recips;
+
+		Snapshot(GreylistTable tbl) {
+			dirpath = tbl.dirpath;
+			snapshotPath = tbl.snapshotPath;
+			generation = tbl.generation;
+			slots = new long[tbl.size * STRIDE];
+			ips = new int[tbl.size];
+			senders = new byte[tbl.size][];
+			recips = new byte[tbl.size][];
+			int cnt = 0;
+			for (int slot = 0; slot != tbl.ips.length; slot++) {
+				if (tbl.slots[slot*STRIDE+FLD_FPRINT] == 0) continue;
+				System.arraycopy(tbl.slots, slot*STRIDE, slots, cnt*STRIDE, STRIDE);
+				ips[cnt] = tbl.ips[slot];
+				senders[cnt] = tbl.senders[slot];
+				recips[cnt] = tbl.recips[slot];
+				cnt++;
+			}
+		}
+
+		// Writes the copy to a new snapshot file, which then replaces the old one, and deletes the journals it supersedes
+		@Override
+		public Void call() throws IOException {
+			Path tmppath = snapshotPath.resolveSibling(FILENAME_SNAPSHOT+".tmp");
+			try (DataOutputStream strm = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmppath)))) {
+				strm.writeInt(FILE_MAGIC);
+				strm.writeLong(generation);
+				strm.writeInt(ips.length);
+				for (int idx = 0; idx != ips.length; idx++) {
+					int off = idx * STRIDE;
+					writeEntry(strm, ips[idx], slots[off+FLD_CREATED], slots[off+FLD_QTINE], slots[off+FLD_LASTRECV], senders[idx], recips[idx]);
+				}
+			}
+			Files.move(tmppath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			long gen = generation - 1;
+			while (Files.deleteIfExists(journalPath(dirpath, gen))) gen--;
+			return null;
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "GreylistTable entries="+size+"/grey="+grycnt+" - "+snapshotPath.getParent();
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.submit;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.grey.base.utils.ByteChars;
+import com.grey.base.utils.TimeOps;
+import com.grey.naf.reactor.Dispatcher;
+import com.grey.naf.reactor.Producer;
+import com.grey.naf.reactor.TimerNAF;
+import com.grey.logging.Logger.LEVEL;
+
+/**
+ * Runs the Greylist's database ops in a dedicated thread, so that a slow database doesn't stall the SMTP server's
+ * Dispatcher, and hence all its connections.
+ * <br>
+ * The verdict on each recipient is handed back to the Dispatcher thread via a Producer, and the Server (our Client) is
+ * called from there. The Server doesn't send any response to the RCPT command while the verdict is pending, which means
+ * it also stops reading from the connection, so any pipelined commands remain buffered until it resumes.
+ * <br>
+ * There is only one thread, as the Greylist's database handle is not thread-safe.
+ * <br>
+ * If the thread fails to hand a Request back via the Producer, it parks it in the orphans queue instead, as it can't log
+ * or call the Server itself. A timer runs while verdicts are outstanding, and delivers any orphaned ones from the
+ * Dispatcher thread, so the connection is not left waiting forever.
+ */
+final class GreylistVetter
+	implements Producer.Consumer<GreylistVetter.Request>, TimerNAF.Handler
+{
+	private static final int TMRTYPE_START = 1;
+	private static final int TMRTYPE_REAP = 2;
+	private static final long REAP_INTERVAL = TimeOps.MSECS_PER_SECOND;
+
+	public interface Client {
+		// identifies the current connection, as the object is reused for subsequent ones
+		long getStartTime();
+		void greylistVetted(Request req);
+	}
+
+	static final class Request implements Runnable {
+		private final Greylist greylst;
+		private final Producer<Request> channel;
+		private final java.util.Queue<Request> orphans;
+		private final Client client;
+		private final long client_conntime;
+		private final int ip;
+		private final byte[] addrfrom;
+		private final byte[] addrto;
+		private final long systime;
+		boolean approved;
+		Throwable error;
+		private Throwable produce_error;
+		private boolean is_cancelled; //only accessed in the Dispatcher thread
+
+		Request(Greylist greylst, Producer<Request> channel, java.util.Queue<Request> orphans,
+				Client client, int ip, ByteChars addrfrom, ByteChars addrto, long systime) {
+			this.greylst = greylst;
+			this.channel = channel;
+			this.orphans = orphans;
+			this.ip = ip;
+			this.systime = systime;
+			this.addrfrom = (addrfrom == null ? null : addrfrom.toArray());
+			this.addrto = addrto.toArray();
+			this.client = client;
+			client_conntime = client.getStartTime();
+		}
+
+		@Override
+		public void run() {
+			try {
+				approved = greylst.vet(ip, addrfrom, addrto, systime);
+			} catch (Throwable ex) {
+				error = ex;
+			}
+			try {
+				channel.produce(this);
+			} catch (Throwable ex) {
+				// leave it to the Dispatcher to notice (see reapOrphans) - the concurrent queue publishes the request's fields
+				produce_error = ex;
+				orphans.add(this);
+			}
+		}
+
+		// Note that this is called by the Dispatcher thread
+		void cancel() {
+			is_cancelled = true;
+		}
+
+		// this is called when we are back in the Dispatcher thread, so no MT considerations
+		Client getClient() {
+			if (is_cancelled || client.getStartTime() != client_conntime) {
+				return null;
+			}
+			return client;
+		}
+	}
+
+	private final Greylist greylst;
+	private final Dispatcher dsptch;
+	private final ExecutorService dbthread;
+	private final Producer<Request> resultsChannel;
+	private final java.util.Queue<Request> orphans = new java.util.concurrent.ConcurrentLinkedQueue<>();
+	private int inflight; //only accessed in the Dispatcher thread
+	private TimerNAF tmr_reap;
+
+	public int inFlight() {return inflight;}
+
+	public GreylistVetter(Greylist greylst, Dispatcher dsptch)
+	{
+		this.greylst = greylst;
+		this.dsptch = dsptch;
+		String name = "Greylist-"+dsptch.getName();
+		resultsChannel = new Producer<>(name, dsptch, this);
+		dsptch.setTimer(0, TMRTYPE_START, this); //need to start the Producer within Dispatcher thread
+
+		dbthread = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), (r) -> {
+			Thread thrd = new Thread(r, name);
+			thrd.setDaemon(true);
+			return thrd;
+		});
+		greylst.setExecutor(dbthread);
+	}
+
+	// The caller is expected to have already checked the whitelist, as that is not thread-safe
+	public Request vet(Client client, int ip, ByteChars addrfrom, ByteChars addrto)
+	{
+		Request req = new Request(greylst, resultsChannel, orphans, client, ip, addrfrom, addrto, dsptch.getSystemTime());
+		dbthread.execute(req);
+		inflight++;
+		if (tmr_reap == null) tmr_reap = dsptch.setTimer(REAP_INTERVAL, TMRTYPE_REAP, this);
+		return req;
+	}
+
+	// Any outstanding requests are discarded, and their connections are about to be terminated anyway
+	public void shutdown()
+	{
+		if (tmr_reap != null) {
+			tmr_reap.cancel();
+			tmr_reap = null;
+		}
+		dbthread.shutdownNow();
+		resultsChannel.stopDispatcherRunnable();
+	}
+
+	@Override
+	public void producerIndication(Producer<Request> p)
+	{
+		Request req;
+		while ((req = p.consume()) != null) {
+			requestCompleted(req);
+		}
+	}
+
+	@Override
+	public void timerIndication(TimerNAF tmr, Dispatcher d) throws java.io.IOException
+	{
+		switch (tmr.getType())
+		{
+		case TMRTYPE_START:
+			resultsChannel.startDispatcherRunnable();
+			break;
+
+		case TMRTYPE_REAP:
+			tmr_reap = null;
+			reapOrphans();
+			if (inflight != 0 && tmr_reap == null) tmr_reap = dsptch.setTimer(REAP_INTERVAL, TMRTYPE_REAP, this);
+			break;
+
+		default:
+			dsptch.getLogger().error("GreylistVetter: Unexpected timer-type - "+tmr);
+			break;
+		}
+	}
+
+	// Completes the requests which the DB thread failed to hand back via the Producer
+	private void reapOrphans()
+	{
+		Request req;
+		while ((req = orphans.poll()) != null) {
+			dsptch.getLogger().log(LEVEL.WARN, req.produce_error, true, "GreylistVetter failed to return result="+req.approved+" to Producer");
+			requestCompleted(req);
+		}
+	}
+
+	private void requestCompleted(Request req)
+	{
+		inflight--;
+		if (inflight == 0 && tmr_reap != null) {
+			tmr_reap.cancel();
+			tmr_reap = null;
+		}
+		Client client = req.getClient();
+		if (client == null) return; //connection must have terminated
+		client.greylistVetted(req);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "GreylistVetter";
+	}
+}
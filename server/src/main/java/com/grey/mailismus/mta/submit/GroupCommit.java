@@ -0,0 +1,112 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.submit;
+
+import com.grey.mailismus.mta.queue.QueueManager;
+import com.grey.mailismus.mta.queue.SubmitHandle;
+
+/*
+ * Gathers up the messages received by the SMTP sessions of one listener over a short interval (or until a maximum number
+ * have accumulated) and commits them to the queue together, so that the queue can persist them with one synced write rather
+ * than one per message.
+ * The sessions withhold their "250 Message accepted" responses (and stop reading from the client) until the group has been
+ * committed, so there is no change in the delivery guarantee - a client is never told a message has been accepted until
+ * it is safely on disk.
+ */
+final class GroupCommit
+	implements com.grey.naf.reactor.TimerNAF.Handler
+{
+	private final com.grey.naf.reactor.Dispatcher dsptch;
+	private final QueueManager qmgr;
+	private final long interval;
+	private final int maxmsgs;
+	private final boolean sync;
+
+	private final java.util.ArrayList<Server> sessions = new java.util.ArrayList<Server>();
+	private final java.util.ArrayList<SubmitHandle> batch = new java.util.ArrayList<SubmitHandle>();
+	private final java.util.ArrayList<Server> committed_sessions = new java.util.ArrayList<Server>();
+	private final java.util.ArrayList<SubmitHandle> committed_batch = new java.util.ArrayList<SubmitHandle>();
+	private boolean[] results;
+	private com.grey.naf.reactor.TimerNAF tmr_flush;
+
+	// these stats counters are retrieved and reset by the NAFMAN COUNTERS command, along with the Server's own ones
+	int stats_groups;	//number of group commits
+	int stats_msgs;		//number of messages committed in those groups
+
+	public int pending() {return sessions.size();}
+
+	public GroupCommit(com.grey.naf.reactor.Dispatcher d, QueueManager q, long intvl, int max, boolean sync)
+	{
+		dsptch = d;
+		qmgr = q;
+		interval = intvl;
+		maxmsgs = max;
+		this.sync = sync;
+		results = new boolean[maxmsgs];
+	}
+
+	public void add(Server srv, SubmitHandle sph)
+	{
+		sessions.add(srv);
+		batch.add(sph);
+		if (sessions.size() >= maxmsgs) {
+			flush();
+		} else if (tmr_flush == null) {
+			tmr_flush = dsptch.setTimer(interval, 0, this);
+		}
+	}
+
+	// Withdraws a session's message from the pending group, which leaves the session free to roll it back
+	public boolean cancel(Server srv)
+	{
+		int idx = sessions.indexOf(srv);
+		if (idx == -1) return false;
+		sessions.remove(idx);
+		batch.remove(idx);
+		if (sessions.size() == 0 && tmr_flush != null) {
+			tmr_flush.cancel();
+			tmr_flush = null;
+		}
+		return true;
+	}
+
+	// The pending group is moved aside before calling back the sessions, as the callbacks can result in a session being
+	// disconnected, and hence calling cancel().
+	public void flush()
+	{
+		if (tmr_flush != null) {
+			tmr_flush.cancel();
+			tmr_flush = null;
+		}
+		if (sessions.size() == 0) return;
+		committed_sessions.addAll(sessions);
+		committed_batch.addAll(batch);
+		sessions.clear();
+		batch.clear();
+		if (results.length < committed_batch.size()) results = new boolean[committed_batch.size()];
+
+		qmgr.endSubmit(committed_batch, results, sync);
+		stats_groups++;
+		stats_msgs += committed_batch.size();
+
+		for (int idx = 0; idx != committed_sessions.size(); idx++) {
+			committed_sessions.get(idx).submissionCommitted(committed_batch.get(idx), results[idx]);
+		}
+		committed_sessions.clear();
+		committed_batch.clear();
+	}
+
+	@Override
+	public void timerIndication(com.grey.naf.reactor.TimerNAF tmr, com.grey.naf.reactor.Dispatcher d)
+	{
+		tmr_flush = null;
+		flush();
+	}
+
+	@Override
+	public String toString() {
+		return "GroupCommit[interval="+interval+", max="+maxmsgs+", sync="+sync+", pending="+sessions.size()+"]";
+	}
+}
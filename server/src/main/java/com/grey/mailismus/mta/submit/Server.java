@@ -18,7 +18,6 @@ import com.grey.naf.reactor.Dispatcher;
 import com.grey.base.config.SysProps;
 import com.grey.base.config.XmlConfig;
 import com.grey.base.utils.ByteArrayRef;
-import com.grey.base.utils.ByteOps;
 import com.grey.base.utils.StringOps;
 import com.grey.base.utils.TimeOps;
 import com.grey.logging.Logger.LEVEL;
@@ -27,15 +26,17 @@ public final class Server
 	extends com.grey.naf.reactor.CM_Server
 	implements com.grey.naf.reactor.TimerNAF.Handler,
 		com.grey.naf.dns.resolver.ResolverDNS.Client,
-		com.grey.naf.nafman.NafManCommand.Handler
+		com.grey.naf.nafman.NafManCommand.Handler,
+		GreylistVetter.Client,
+		DnsBlocklist.Client
 {
 	private static final boolean REQUIRE_CRLF = SysProps.get("grey.mta.smtpserver.needcrlf", true);
 	private static final boolean TRANSCRIPTBODY = SysProps.get("grey.mta.smtpserver.transcriptbody", false);
 
-	private enum PROTO_STATE {S_DISCON, S_HELO, S_IDLE, S_MAILRECIPS, S_MAILBODY, S_FILTER, S_STLS, S_SASL}
+	private enum PROTO_STATE {S_DISCON, S_HELO, S_IDLE, S_MAILRECIPS, S_MAILBODY, S_CHUNKCMD, S_CHUNKDATA, S_FILTER, S_COMMIT, S_STLS, S_SASL}
 	private enum PROTO_EVENT {E_CONNECTED, E_DISCONNECT, E_DISCONNECTED, E_STLS,
 								E_GREET, E_HELO, E_EHLO, E_MAILFROM, E_MAILTO, E_QUIT,
-								E_BODYSTART, E_BODYDATA, E_ACCEPTMSG, E_REJECTMSG, E_FILTERMSG,
+								E_BODYSTART, E_BODYDATA, E_CHUNKSTART, E_CHUNKNEXT, E_CHUNKDATA, E_ACCEPTMSG, E_REJECTMSG, E_FILTERMSG,
 								E_SASL_PLAIN, E_SASL_CMD5, E_SASL_EXTERNAL, E_SASLRSP,
 								E_NOOP, E_RESET, E_NULLRECIPS, E_BADCMD, E_LOCALERROR}
 
@@ -55,6 +56,7 @@ public final class Server
 	private static final String DFLTRSP_EXCESSRECIPS = "452 Too many recipients" + Protocol.EOL;
 	private static final String DFLTRSP_EXCESSMSGS = "452 Too many messages for session - connect again" + Protocol.EOL;
 	private static final String DFLTRSP_BADHELLO = "501 Please say Hello properly" + Protocol.EOL;
+	private static final String DFLTRSP_BADCHUNK = "501 Invalid BDAT command" + Protocol.EOL;
 	private static final String DFLTRSP_NULLRECIPS = "503 No valid recipients specified" + Protocol.EOL;
 	private static final String DFLTRSP_ERRPROTO = "503 Invalid command" + Protocol.EOL;
 	private static final String DFLTRSP_NEEDSSL = "503 Requires SSL mode" + Protocol.EOL;
@@ -67,6 +69,7 @@ public final class Server
 	private static final String DFLTRSP_BADRECIP = "550 Invalid Recipient address" + Protocol.EOL;
 	private static final String DFLTRSP_RELAYDENIED = "550 Relaying denied" + Protocol.EOL;
 	private static final String DFLTRSP_BLACKLISTED = Protocol.REPLYCODE_BLACKLIST+" Service refused - your IP is on a blacklist" + Protocol.EOL;
+	private static final String DFLTRSP_DNSBLOCKED = Protocol.REPLYCODE_BLACKLIST+" Service refused - your IP is on a DNS blocklist" + Protocol.EOL;
 	private static final String DFLTRSP_MSGSIZE = "552 Message too large" + Protocol.EOL;
 
 	// pre-built elements of the Received header line
@@ -80,14 +83,15 @@ public final class Server
 	private static final com.grey.base.utils.ByteChars RCVHDR_FOR1 = new com.grey.base.utils.ByteChars("for <");
 	private static final com.grey.base.utils.ByteChars RCVHDR_FOR2 = new com.grey.base.utils.ByteChars(">; ");
 
-	private static final byte[] EOMSEQ_CRLF = {'\r', '\n', '.', '\r', '\n'};
-	private static final byte[] EOMSEQ_LF = {'\n', '.', '\n'};
+	private static final byte[] DOTSTUFF = {'.'};
 
 	private static final char[] SMTPREQ_HELO = Protocol.CMDREQ_HELO.toCharArray();
 	private static final char[] SMTPREQ_EHLO = Protocol.CMDREQ_EHLO.toCharArray();
 	private static final char[] SMTPREQ_MAILFROM = Protocol.CMDREQ_MAILFROM.toCharArray();
 	private static final char[] SMTPREQ_MAILTO = Protocol.CMDREQ_MAILTO.toCharArray();
 	private static final char[] SMTPREQ_DATA = Protocol.CMDREQ_DATA.toCharArray();
+	private static final char[] SMTPREQ_BDAT = Protocol.CMDREQ_BDAT.toCharArray();
+	private static final char[] SMTPARG_BDAT_LAST = Protocol.CMDARG_BDAT_LAST.toCharArray();
 	private static final char[] SMTPREQ_QUIT = Protocol.CMDREQ_QUIT.toCharArray();
 	private static final char[] SMTPREQ_NOOP = Protocol.CMDREQ_NOOP.toCharArray();
 	private static final char[] SMTPREQ_RESET = Protocol.CMDREQ_RESET.toCharArray();
@@ -114,9 +118,12 @@ public final class Server
 
 	private static final FSM_Trigger[] fsmTriggers = {
 		new FSM_Trigger(PROTO_STATE.S_MAILBODY, PROTO_EVENT.E_BODYDATA, null, null), //put this first as most common
+		new FSM_Trigger(PROTO_STATE.S_CHUNKDATA, PROTO_EVENT.E_CHUNKDATA, null, null),
 		new FSM_Trigger(PROTO_STATE.S_MAILRECIPS, PROTO_EVENT.E_MAILTO, SMTPREQ_MAILTO, null), //this is the next most common event
 		new FSM_Trigger(PROTO_STATE.S_IDLE, PROTO_EVENT.E_MAILFROM, SMTPREQ_MAILFROM, PROTO_STATE.S_MAILRECIPS),
 		new FSM_Trigger(PROTO_STATE.S_MAILRECIPS, PROTO_EVENT.E_BODYSTART, SMTPREQ_DATA, PROTO_STATE.S_MAILBODY),
+		new FSM_Trigger(PROTO_STATE.S_MAILRECIPS, PROTO_EVENT.E_CHUNKSTART, SMTPREQ_BDAT, PROTO_STATE.S_CHUNKDATA),
+		new FSM_Trigger(PROTO_STATE.S_CHUNKCMD, PROTO_EVENT.E_CHUNKNEXT, SMTPREQ_BDAT, PROTO_STATE.S_CHUNKDATA),
 		new FSM_Trigger(PROTO_STATE.S_HELO, PROTO_EVENT.E_HELO, SMTPREQ_HELO, PROTO_STATE.S_IDLE),
 		new FSM_Trigger(PROTO_STATE.S_HELO, PROTO_EVENT.E_EHLO, SMTPREQ_EHLO, PROTO_STATE.S_IDLE),
 		new FSM_Trigger(null, PROTO_EVENT.E_QUIT, SMTPREQ_QUIT, null),
@@ -140,6 +147,7 @@ public final class Server
 	private static final byte S2_ABORT = 1 << 3;
 	private static final byte S2_RECIPSTRANSFORM = 1 << 4; //original MAILTO recips have been modified
 	private static final byte S2_RECIPSDISCARD = 1 << 5; //at least one recip was discarded rather than rejected
+	private static final byte S2_LASTCHUNK = 1 << 6; //the current BDAT chunk is the final one
 
 	//status values returnd by some address-validation methods
 	private enum ADDR_STATUS {OK, REJECT, PENDING}
@@ -192,6 +200,7 @@ public final class Server
 		final boolean ext_pipeline;
 		final boolean ext_size;
 		final boolean ext_stls;
+		final boolean ext_chunking;
 
 		final com.grey.base.collections.HashedSet<com.grey.base.utils.ByteChars> sender_deny;
 		final com.grey.base.collections.HashedSet<com.grey.base.utils.ByteChars> sender_permit;
@@ -232,6 +241,7 @@ public final class Server
 			ext_pipeline = cfg.getBool("extPIPELINING", dfltcfg==null ? true : dfltcfg.ext_pipeline);
 			ext_size = cfg.getBool("extSIZE", dfltcfg==null ? true : dfltcfg.ext_size);
 			ext_stls = cfg.getBool("extSTARTTLS", dfltcfg==null ? sslcfg != null && sslcfg.isLatent() : dfltcfg.ext_stls);
+			ext_chunking = cfg.getBool("extCHUNKING", dfltcfg==null ? true : dfltcfg.ext_chunking);
 
 			if (common.dtory == null) {
 				authtypes_enabled = new java.util.HashSet<com.grey.base.sasl.SaslEntity.MECH>();
@@ -331,7 +341,9 @@ public final class Server
 		final com.grey.base.utils.IP.Subnet[] relay_clients;
 		final Routing routing;
 		final com.grey.mailismus.IPlist blacklst;
+		final DnsBlocklist dnsbl;
 		final Greylist greylst;
+		final GreylistVetter greyvetter; //null means greylist is vetted synchronously
 		final com.grey.base.collections.HashedMapIntInt ipconns = new com.grey.base.collections.HashedMapIntInt(0); //maps remote IP to number of current connections from it
 		final com.grey.mailismus.Transcript transcript;
 
@@ -341,6 +353,7 @@ public final class Server
 
 		final FilterManager filter_manager;
 		final long tmtfilter;
+		final GroupCommit groupcommit;
 
 		// read-only buffers - pre-allocated and pre-populated buffers, for efficient sending of canned replies
 		final java.nio.ByteBuffer smtprsp_ok;
@@ -348,10 +361,12 @@ public final class Server
 		final java.nio.ByteBuffer smtprsp_quit;
 		final java.nio.ByteBuffer smtprsp_shutdown;
 		final java.nio.ByteBuffer smtprsp_badhello;
+		final java.nio.ByteBuffer smtprsp_badchunk;
 		final java.nio.ByteBuffer smtprsp_badsender;
 		final java.nio.ByteBuffer smtprsp_badrecip;
 		final java.nio.ByteBuffer smtprsp_relaydenied;
 		final java.nio.ByteBuffer smtprsp_blacklisted;
+		final java.nio.ByteBuffer smtprsp_dnsblocked;
 		final java.nio.ByteBuffer smtprsp_greylisted;
 		final java.nio.ByteBuffer smtprsp_excessrecips;
 		final java.nio.ByteBuffer smtprsp_excessmsgs;
@@ -445,22 +460,40 @@ public final class Server
 				blacklst = null;
 			}
 
+			// Set up DNS blocklists, if configured
+			xpath = "dnsbl"+XmlConfig.XPATH_ENABLED;
+			XmlConfig cfg_dnsbl = cfg.getSection(xpath);
+			String dnsblrsp = DFLTRSP_DNSBLOCKED;
+			if (cfg_dnsbl.exists()) {
+				dnsbl = new DnsBlocklist(cfg_dnsbl, dsptch, task.getResolverDNS());
+				String rsp = cfg_dnsbl.getValue("smtpreply", false, null);
+				if (rsp != null) dnsblrsp = Protocol.REPLYCODE_BLACKLIST+" "+rsp+Protocol.EOL;
+				dsptch.getLogger().info(logpfx+dnsbl);
+			} else {
+				dnsbl = null;
+			}
+
 			// Set up greylisting, if configured
 			xpath = "greylist"+XmlConfig.XPATH_ENABLED;
 			XmlConfig cfg_grey = cfg.getSection(xpath);
 			String greyrsp = DFLTRSP_GREYLISTED;
 			if (cfg_grey.exists()) {
-				greylst = new Greylist(dsptch, appConfig.getDatabaseType(), cfg_grey);
+				greylst = new Greylist(dsptch, appConfig.getDatabaseType(), cfg_grey, lstnr.getName());
+				greyvetter = (cfg_grey.getBool("async", !greylst.isInMemory()) ? new GreylistVetter(greylst, dsptch) : null);
 				String rsp = cfg_grey.getValue("smtpreply", false, null);
 				if (rsp != null) greyrsp = Protocol.REPLYCODE_GREYLIST+" "+rsp+Protocol.EOL;
+				dsptch.getLogger().info("Greylist: async="+(greyvetter != null));
 			} else {
 				greylst = null;
+				greyvetter = null;
 			}
 
 			// Set up message filtering, if configured
 			xpath = "filter"+XmlConfig.XPATH_ENABLED;
 			XmlConfig cfg_filter = cfg.getSection(xpath);
 			if (cfg_filter.exists()) {
+				// the filters are given the spool file to read, and they can't read it in compressed form
+				if (qmgr.isSpoolCompressed()) throw new MailismusConfigException(logpfx+"Message filters cannot be combined with spool compression");
 				tmtfilter = cfg_filter.getTime("@timeout", TimeOps.parseMilliTime("2m"));
 				if (tmtfilter == 0) throw new MailismusConfigException(logpfx+"Filter timeout cannot be zero");
 				dsptch.getLogger().info(logpfx+"Filter timeout="+TimeOps.expandMilliTime(tmtfilter));
@@ -470,15 +503,28 @@ public final class Server
 				tmtfilter = 0;
 			}
 
+			// Set up group commit, if configured
+			long groupcommit_interval = cfg.getTime("groupcommit_interval", 0);
+			if (groupcommit_interval != 0) {
+				int groupcommit_max = cfg.getInt("groupcommit_max", false, 100);
+				if (groupcommit_max < 1) throw new MailismusConfigException(logpfx+"Invalid groupcommit_max="+groupcommit_max);
+				boolean groupcommit_sync = cfg.getBool("groupcommit_sync", false);
+				groupcommit = new GroupCommit(dsptch, qmgr, groupcommit_interval, groupcommit_max, groupcommit_sync);
+			} else {
+				groupcommit = null;
+			}
+
 			smtprsp_ok = com.grey.mailismus.Task.constBuffer(DFLTRSP_OK);
 			smtprsp_data = com.grey.mailismus.Task.constBuffer(DFLTRSP_DATA);
 			smtprsp_quit = com.grey.mailismus.Task.constBuffer(DFLTRSP_QUIT);
 			smtprsp_shutdown = com.grey.mailismus.Task.constBuffer(DFLTRSP_SHUTDOWN);
 			smtprsp_badhello = com.grey.mailismus.Task.constBuffer(DFLTRSP_BADHELLO);
+			smtprsp_badchunk = com.grey.mailismus.Task.constBuffer(DFLTRSP_BADCHUNK);
 			smtprsp_badsender = com.grey.mailismus.Task.constBuffer(DFLTRSP_BADSENDER);
 			smtprsp_badrecip = com.grey.mailismus.Task.constBuffer(DFLTRSP_BADRECIP);
 			smtprsp_relaydenied = com.grey.mailismus.Task.constBuffer(DFLTRSP_RELAYDENIED);
 			smtprsp_blacklisted = com.grey.mailismus.Task.constBuffer(blackrsp);
+			smtprsp_dnsblocked = com.grey.mailismus.Task.constBuffer(dnsblrsp);
 			smtprsp_greylisted = com.grey.mailismus.Task.constBuffer(greyrsp);
 			smtprsp_excessrecips = com.grey.mailismus.Task.constBuffer(DFLTRSP_EXCESSRECIPS);
 			smtprsp_excessmsgs = com.grey.mailismus.Task.constBuffer(DFLTRSP_EXCESSMSGS);
@@ -567,10 +613,16 @@ public final class Server
 	private int msgcnt; //number of messages received during current connection - for the prototype Server instance, this is the total
 	private int msgsize_body; //running total of current message size
 	private int badcmdcnt;
-	private int eomseq_off;
-	private int eomseqlf_off;
+	private final EomScanner eomscanner = new EomScanner(!REQUIRE_CRLF);
+	private int chunk_remaining; //bytes still to be received in the current BDAT chunk
+	private boolean chunk_bol; //the next BDAT byte is at the start of a line
+	private PROTO_EVENT chunk_reject; //non-null means we are discarding a rejected BDAT chunk, and will then raise this event
 	private int thisEntered; //detect how deeply nested we are, in terms of callbacks from NAF
 	private FilterExecutor msgfilter; //non-null means filter op currently in progress (S_FILTER tells us same thing)
+	private GreylistVetter.Request greyreq; //non-null means we're waiting for the Greylist verdict on the current recipient
+	private java.util.ArrayList<com.grey.base.utils.ByteChars> grey_alias_members; //saved addressAccepted() args, while greyreq is pending
+	private com.grey.base.utils.ByteChars grey_alias_dompart;
+	private boolean dnsbl_wait; //true means the greeting is being withheld until we get the DNSBL verdict
 	private int cnxid; //increments with each incarnation - useful for distinguishing Transcript logs
 	private String pfx_log;
 	private String pfx_transcript;
@@ -662,6 +714,13 @@ public final class Server
 			sb.append("<br/>Recipients: ").append(shared.stats_recipcnt).append(" (Rej=").append(shared.stats_rejrecips);
 			sb.append(")<br/>Current Connections: ").append(shared.current_conncnt).append(" (Clients=").append(shared.ipconns.size());
 			sb.append(")<br/>Peak concurrency: ").append(shared.stats_peakconcurrency).append(" (all-time=").append(shared.peak_conncnt).append(')');
+			if (shared.dnsbl != null) {
+				sb.append("<br/>DNSBL: Queries=").append(shared.dnsbl.queryCount()).append(", Blocked IPs=").append(shared.dnsbl.blockCount());
+			}
+			if (shared.groupcommit != null) {
+				sb.append("<br/>Group commits: ").append(shared.groupcommit.stats_groups).append(" (Messages=").append(shared.groupcommit.stats_msgs);
+				sb.append(", Pending=").append(shared.groupcommit.pending()).append(')');
+			}
 			if (StringOps.stringAsBool(cmd.getArg(com.grey.naf.nafman.NafManCommand.ATTR_RESET))) {
 				shared.stats_start = getSystemTime();
 				shared.stats_conncnt = 0;
@@ -670,6 +729,10 @@ public final class Server
 				shared.stats_rejconns = 0;
 				shared.stats_rejrecips = 0;
 				shared.stats_peakconcurrency = 0;
+				if (shared.groupcommit != null) {
+					shared.groupcommit.stats_groups = 0;
+					shared.groupcommit.stats_msgs = 0;
+				}
 			}
 		} else {
 			getLogger().error(pfx_log+": Missing case for NAFMAN cmd="+cmd.getCommandDef().code);
@@ -684,8 +747,10 @@ public final class Server
 		if (this == shared.prototype_server) {
 			if (shared.stopped) return true;
 			shared.stopped = true;
+			if (shared.groupcommit != null) shared.groupcommit.flush(); //the messages are complete, so don't discard them
 			shared.qmgr.stop();
 			if (shared.filter_manager != null) shared.filter_manager.shutdown();
+			if (shared.greyvetter != null) shared.greyvetter.shutdown();
 			if (shared.blacklst != null) shared.blacklst.close();
 			if (shared.greylst != null) shared.greylst.close();
 			if (shared.transcript != null)	shared.transcript.close(getSystemTime());
@@ -717,7 +782,7 @@ public final class Server
 			} else {
 				if (tmr_sesstmt.age(getDispatcher()) > Task.MIN_RESET_PERIOD) tmr_sesstmt.reset();
 			}
-			if (pstate == PROTO_STATE.S_MAILBODY) {
+			if (pstate == PROTO_STATE.S_MAILBODY || pstate == PROTO_STATE.S_CHUNKDATA) {
 				getReader().receive(0);
 			} else {
 				getReader().receiveDelimited((byte)'\n');
@@ -784,6 +849,7 @@ public final class Server
 		state2 = 0;
 		msgcnt = 0;
 		badcmdcnt = 0;
+		chunk_reject = null;
 		thisEntered = 0;
 		cnxid++;
 		setLogPrefix();
@@ -793,6 +859,10 @@ public final class Server
 		msgsender = null;
 		dnsAddress = null;
 		msgfilter = null;
+		greyreq = null;
+		grey_alias_members = null;
+		grey_alias_dompart = null;
+		dnsbl_wait = false;
 		msgrecips.clear();
 		sender_rewrites.clear();
 		rawrecips.clear();
@@ -847,11 +917,11 @@ public final class Server
 		if (pstate == PROTO_STATE.S_DISCON) return; //this method can be called in a loop, so skip it after a disconnect
 		thisEntered++;
 		clearFlag(S2_DATAWAIT);
-		if (shared.transcript != null && (pstate != PROTO_STATE.S_MAILBODY || TRANSCRIPTBODY)) {
+		if (shared.transcript != null && ((pstate != PROTO_STATE.S_MAILBODY && pstate != PROTO_STATE.S_CHUNKDATA) || TRANSCRIPTBODY)) {
 			shared.transcript.data_in(pfx_transcript, rcvdata, getSystemTime());
 		}
 
-		if (tmr_greet != null) {
+		if (tmr_greet != null || dnsbl_wait) {
 			executeAction(0, shared.smtprsp_premature, PROTO_EVENT.E_DISCONNECT);
 		} else {
 			if (pstate == PROTO_STATE.S_SASL) {
@@ -911,7 +981,7 @@ public final class Server
 
 		case TMRTYPE_GREET:
 			tmr_greet = null;
-			raiseEvent(PROTO_EVENT.E_GREET, null, null);
+			if (!dnsbl_wait) raiseEvent(PROTO_EVENT.E_GREET, null, null);
 			break;
 
 		default:
@@ -1011,6 +1081,14 @@ public final class Server
 			}
 			msgfilter = null;
 		}
+		dnsbl_wait = false;
+		if (greyreq != null) {
+			greyreq.cancel();
+			greyreq = null;
+			grey_alias_members = null;
+			grey_alias_dompart = null;
+		}
+		if (pstate == PROTO_STATE.S_COMMIT) shared.groupcommit.cancel(this);
 		concludeMessage(true); //if a message-submission is currently in progress, then it's obviously been aborted
 
 		if (isFlagSet(S2_DNSWAIT)) {
@@ -1059,6 +1137,12 @@ public final class Server
 			}
 			msgh = null;
 		}
+		releaseMessage();
+		return success;
+	}
+
+	private void releaseMessage()
+	{
 		while (msgrecips.size() != 0) {
 			shared.addrbufcache.store(msgrecips.remove(0));
 		}
@@ -1080,7 +1164,6 @@ public final class Server
 		}
 		clearFlag(S2_RECIPSTRANSFORM);
 		clearFlag(S2_RECIPSDISCARD);
-		return success;
 	}
 
 	private void executeAction(long delay, java.nio.ByteBuffer buf, PROTO_EVENT evt)
@@ -1113,6 +1196,8 @@ public final class Server
 		PROTO_EVENT evt2;
 		boolean is_valid;
 		long delay;
+		int rcvlen;
+		int excess;
 
 		switch (evt)
 		{
@@ -1138,8 +1223,21 @@ public final class Server
 					return pstate;
 				}
 			}
-			if (conncfg.delay_greet == 0) return raiseEvent(PROTO_EVENT.E_GREET, null, null);
-			tmr_greet = getDispatcher().setTimer(conncfg.delay_greet, TMRTYPE_GREET, this);
+			if (shared.dnsbl != null && !isRelayClient()) {
+				int score = shared.dnsbl.check(remote_tsap.ip, this);
+				if (score == -1) {
+					//the DNSBL lookups are in progress, so hold back the greeting till they complete - see dnsblCompleted()
+					dnsbl_wait = true;
+				} else if (shared.dnsbl.isBlocked(score)) {
+					executeAction(conncfg.delay_badcmd, shared.smtprsp_dnsblocked, PROTO_EVENT.E_DISCONNECT);
+					return pstate;
+				}
+			}
+			if (conncfg.delay_greet == 0) {
+				if (!dnsbl_wait) return raiseEvent(PROTO_EVENT.E_GREET, null, null);
+			} else {
+				tmr_greet = getDispatcher().setTimer(conncfg.delay_greet, TMRTYPE_GREET, this);
+			}
 			setFlag(S2_DATAWAIT); //turn on receive so we can trap premature responses
 			break;
 
@@ -1274,37 +1372,54 @@ public final class Server
 			break;
 
 		case E_BODYSTART:
-			if (msgrecips.size()== 0) {
-				//if this is because recips were silently dropped, pretend to accept the message, but discard it
-				if (!isFlagSet(S2_RECIPSDISCARD)) {
-					//client is aware we haven't accepted any recips, so reject DATA command with an error
-					return raiseEvent(PROTO_EVENT.E_NULLRECIPS, null, null);
-				}
-			} else {
-				msgh = shared.qmgr.startSubmit(msgsender, msgrecips, sender_rewrites, remote_tsap.ip);
-				if (!conncfg.omitrcvhdr) {
-					if (getSystemTime() - shared.dtcal.getTimeInMillis() > 1000) shared.dtcal.setTimeInMillis(getSystemTime()); //avoid too frequent
-					shared.tmpsb.setLength(0);
-					TimeOps.makeTimeRFC822(shared.dtcal, shared.tmpsb);
-					remote_tsap.ensureDotted();
-					bc = shared.tmpbcbuf.clear();
-					bc.append(RCVHDR_PFX).append(remote_tsap.dotted_ip).append(RCVHDR_HELO).append(remote_helo);
-					bc.append(RCVHDR_BY).append(conncfg.announcehost).append(RCVHDR_PREPKGNAM).append(shared.appConfig.getProductName());
-					bc.append(RCVHDR_WITH1).append("ESMTP"); //see RFC-3848 for WITH types
-					if (usingSSL()) bc.append('S');
-					if (username != null) bc.append('A');
-					bc.append(RCVHDR_WITH2).append(shared.qmgr.externalSPID(msgh.spid)).append(RCVHDR_WITH3);
-					if (rawrecips.size() == 1) bc.append(RCVHDR_FOR1).append(rawrecips.get(0)).append(RCVHDR_FOR2);
-					bc.append(shared.tmpsb).append(Protocol.EOL_BC);
-					msgh.write(bc);
-				}
+			if (!startMessageBody()) {
+				//client is aware we haven't accepted any recips, so reject DATA command with an error
+				return raiseEvent(PROTO_EVENT.E_NULLRECIPS, null, null);
 			}
 			transmit(shared.smtprsp_data);
-			msgsize_body = 0;
-			eomseq_off = 0;
-			eomseqlf_off = 0;
+			eomscanner.reset();
 			break;
 
+		case E_CHUNKSTART:
+			// First BDAT command of the message (RFC-3030).
+			// Even if we reject it, the client has probably pipelined the chunk behind it, so we have to read past the
+			// chunk (with no msgh, so it is discarded) before responding, or we would take its contents to be commands.
+			if (!parseChunkCommand(rcvdata)) return pstate;
+			chunk_bol = true;
+			if (!conncfg.ext_chunking) {
+				chunk_reject = PROTO_EVENT.E_BADCMD;
+			} else if (!startMessageBody()) {
+				chunk_reject = PROTO_EVENT.E_NULLRECIPS;
+			}
+			return receiveChunk();
+
+		case E_CHUNKNEXT:
+			if (!parseChunkCommand(rcvdata)) return pstate;
+			return receiveChunk();
+
+		case E_CHUNKDATA:
+			// The chunk has an exact byte count, so there is no End-of-Message sequence to search for.
+			// Anything received beyond the chunk is the next command, so push it back.
+			rcvlen = Math.min(rcvdata.size(), chunk_remaining);
+			excess = rcvdata.size() - rcvlen;
+			chunk_remaining -= rcvlen;
+			msgsize_body += rcvlen;
+
+			if (msgh != null) {
+				if (conncfg.max_msgsize != 0 && msgsize_body > conncfg.max_msgsize) {
+					transmit(shared.smtprsp_msgsize);
+					return issueDisconnect("Max message-size exceeded");
+				}
+				writeChunk(rcvdata.buffer(), rcvdata.offset(), rcvlen);
+			}
+
+			if (chunk_remaining != 0) {
+				setFlag(S2_DATAWAIT); //keep receiving, though we issue no response right now
+				break;
+			}
+			if (excess != 0) getReader().pushback(rcvdata.buffer(), rcvdata.offset() + rcvlen, excess);
+			return chunkReceived();
+
 		case E_BODYDATA:
 			// We look for the possible termination sequences (plural if we don't insist on CRLF) and we always strip
 			// the final 3 bytes from the message-body stream.
@@ -1312,16 +1427,9 @@ public final class Server
 			// body and has to go.
 			// If it was terminated by LF.LF, then we strip both the final .LF as well as the preceding LF, as we then
 			// add a CRLF to make sure the message is at least properly terminated.
-			int rcvlen = rcvdata.size();
-			int off_next = 0;
-			eomseq_off = ByteOps.find(rcvdata.buffer(), rcvdata.offset(), rcvlen, EOMSEQ_CRLF, eomseq_off);
-			if (eomseq_off < 0) {
-				off_next = -eomseq_off;
-			} else if (!REQUIRE_CRLF) {
-				eomseqlf_off = ByteOps.find(rcvdata.buffer(), rcvdata.offset(), rcvlen, EOMSEQ_LF, eomseqlf_off);
-				if (eomseqlf_off < 0) off_next = -eomseqlf_off;
-			}
-			int excess = (off_next == 0 ? 0 : rcvdata.limit() - off_next);
+			rcvlen = rcvdata.size();
+			int off_next = eomscanner.scan(rcvdata.buffer(), rcvdata.offset(), rcvlen);
+			excess = (off_next == -1 ? 0 : rcvdata.limit() - off_next);
 			rcvlen -= excess;
 			msgsize_body += rcvlen;
 
@@ -1331,17 +1439,17 @@ public final class Server
 					return issueDisconnect("Max message-size exceeded");
 				}
 				rcvdata.setSize(rcvlen);
-				msgh.write(rcvdata);
+				msgh.write(rcvdata); //for large reads, this goes straight from the receive buffer to the spool file
 
-				if (off_next != 0) {
+				if (off_next != -1) {
 					//we have now fully received the message body, so seal the spool
-					if (!msgh.close(3, eomseqlf_off < 0, getLogger())) {
+					if (!msgh.close(3, eomscanner.isBareLF(), getLogger())) {
 						return raiseSafeEvent(PROTO_EVENT.E_LOCALERROR, null, "Failed to close spool", false);
 					}
 				}
 			}
 
-			if (off_next == 0) {
+			if (off_next == -1) {
 				setFlag(S2_DATAWAIT); //keep receiving, though we issue no response right now
 				break;
 			}
@@ -1421,6 +1529,120 @@ public final class Server
 		return pstate;
 	}
 
+	// Writes the current message's Received header (unless disabled) to its spool file, and prepares to receive its body.
+	// Returns False if the client has no valid recipients, in which case there is no message.
+	private boolean startMessageBody() throws java.io.IOException
+	{
+		msgsize_body = 0;
+		if (msgrecips.size()== 0) {
+			//if this is because recips were silently dropped, pretend to accept the message, but discard it
+			return isFlagSet(S2_RECIPSDISCARD);
+		}
+		msgh = shared.qmgr.startSubmit(msgsender, msgrecips, sender_rewrites, remote_tsap.ip);
+		if (!conncfg.omitrcvhdr) {
+			if (getSystemTime() - shared.dtcal.getTimeInMillis() > 1000) shared.dtcal.setTimeInMillis(getSystemTime()); //avoid too frequent
+			shared.tmpsb.setLength(0);
+			TimeOps.makeTimeRFC822(shared.dtcal, shared.tmpsb);
+			remote_tsap.ensureDotted();
+			com.grey.base.utils.ByteChars bc = shared.tmpbcbuf.clear();
+			bc.append(RCVHDR_PFX).append(remote_tsap.dotted_ip).append(RCVHDR_HELO).append(remote_helo);
+			bc.append(RCVHDR_BY).append(conncfg.announcehost).append(RCVHDR_PREPKGNAM).append(shared.appConfig.getProductName());
+			bc.append(RCVHDR_WITH1).append("ESMTP"); //see RFC-3848 for WITH types
+			if (usingSSL()) bc.append('S');
+			if (username != null) bc.append('A');
+			bc.append(RCVHDR_WITH2).append(shared.qmgr.externalSPID(msgh.spid)).append(RCVHDR_WITH3);
+			if (rawrecips.size() == 1) bc.append(RCVHDR_FOR1).append(rawrecips.get(0)).append(RCVHDR_FOR2);
+			bc.append(shared.tmpsb).append(Protocol.EOL_BC);
+			msgh.write(bc);
+			msgh.startDigest(); //the header identifies this submission, so exclude it from the Spooler's dedup digest
+		}
+		return true;
+	}
+
+	// Parses the arguments of a BDAT command, ie. the chunk size and optional LAST keyword.
+	// Returns False if they are invalid, in which case we have already responded and disconnected, as the client will
+	// presumably send the chunk anyway and we have no way of telling where it ends.
+	private boolean parseChunkCommand(ByteArrayRef rcvdata)
+	{
+		int lmt = rcvdata.limit();
+		int off = rcvdata.offset();
+		long size = 0;
+		while (off != lmt && rcvdata.buffer()[off] >= '0' && rcvdata.buffer()[off] <= '9') {
+			size = (size * 10) + (rcvdata.buffer()[off++] - '0');
+			if (size > Integer.MAX_VALUE) break;
+		}
+		boolean valid = (off != rcvdata.offset() && size <= Integer.MAX_VALUE);
+		if (valid) {
+			rcvdata.advance(off - rcvdata.offset());
+			if (rcvdata.size() == 0) {
+				clearFlag(S2_LASTCHUNK);
+			} else if (rcvdata.buffer()[rcvdata.offset()] == ' ') {
+				while (rcvdata.buffer()[rcvdata.offset()] == ' ') rcvdata.advance(1); //trailing spaces were already stripped
+				valid = (matchesCommand(rcvdata, SMTPARG_BDAT_LAST) && rcvdata.size() == 0);
+				setFlag(S2_LASTCHUNK);
+			} else {
+				valid = false;
+			}
+		}
+		if (!valid) {
+			try {transmit(shared.smtprsp_badchunk);} catch (Throwable ex) {} //we're disconnecting anyway
+			issueDisconnect("Invalid BDAT command");
+			return false;
+		}
+		chunk_remaining = (int)size;
+		return true;
+	}
+
+	private PROTO_STATE receiveChunk() throws java.io.IOException
+	{
+		if (chunk_remaining == 0) return chunkReceived();
+		setFlag(S2_DATAWAIT); //the chunk data may be pipelined behind the command, so start receiving it
+		return pstate;
+	}
+
+	// The chunk data is raw, but the spool holds messages in their dot-stuffed SMTP form (as received via DATA) so we
+	// have to stuff it on the way in. We only need to look at the first byte of each line, to see if it's a dot.
+	private void writeChunk(byte[] buf, int off, int len) throws java.io.IOException
+	{
+		int lmt = off + len;
+		int off_write = off;
+		for (int idx = off; idx != lmt; idx++) {
+			if (chunk_bol && buf[idx] == '.') {
+				msgh.write(buf, off_write, idx - off_write);
+				msgh.write(DOTSTUFF, 0, DOTSTUFF.length);
+				off_write = idx; //the original dot follows the stuffed one
+			}
+			chunk_bol = (buf[idx] == '\n');
+		}
+		msgh.write(buf, off_write, lmt - off_write);
+	}
+
+	private PROTO_STATE chunkReceived() throws java.io.IOException
+	{
+		if (chunk_reject != null) {
+			PROTO_EVENT evt = chunk_reject;
+			chunk_reject = null;
+			clearFlag(S2_LASTCHUNK);
+			return raiseEvent(evt, evt == PROTO_EVENT.E_BADCMD ? PROTO_STATE.S_MAILRECIPS : null, null);
+		}
+		if (!isFlagSet(S2_LASTCHUNK)) {
+			transitionState(PROTO_STATE.S_CHUNKCMD);
+			transmit(shared.smtprsp_ok);
+			return pstate;
+		}
+		clearFlag(S2_LASTCHUNK);
+		if (msgh != null) {
+			//the chunk data needn't end with a line terminator, so add one if necessary
+			if (!msgh.close(0, !chunk_bol, getLogger())) {
+				return raiseSafeEvent(PROTO_EVENT.E_LOCALERROR, null, "Failed to close spool", false);
+			}
+		}
+		if (shared.filter_manager != null && msgh != null) {
+			return raiseEvent(PROTO_EVENT.E_FILTERMSG, PROTO_STATE.S_FILTER, null);
+		}
+		return raiseEvent(PROTO_EVENT.E_ACCEPTMSG, PROTO_STATE.S_IDLE, null);
+	}
+
 	private void messageReceived(boolean rollback, String action, CharSequence errmsg) throws java.io.IOException
 	{
 		msgcnt++;
@@ -1460,6 +1682,14 @@ public final class Server
 			shared.transcript.event(pfx_transcript, sb, getSystemTime());
 		}
 
+		// If group commit is enabled, our response has to wait till the group is committed, which will call us back via
+		// submissionCommitted(). We don't read any further client commands meanwhile.
+		if (!rollback && msgh != null && shared.groupcommit != null) {
+			transitionState(PROTO_STATE.S_COMMIT);
+			shared.groupcommit.add(this, msgh);
+			return;
+		}
+
 		// submit the message to the queue
 		if (!concludeMessage(rollback)) {
 			raiseSafeEvent(PROTO_EVENT.E_LOCALERROR, null, "Failed to submit msg="+spid+" - "+action, false);
@@ -1475,6 +1705,33 @@ public final class Server
 		transmit(shared.tmpbcbuf);
 	}
 
+	// Called by GroupCommit, once the group containing this session's message has been committed to the queue
+	void submissionCommitted(com.grey.mailismus.mta.queue.SubmitHandle sph, boolean ok)
+	{
+		if (sph != msgh || pstate != PROTO_STATE.S_COMMIT) return; //stale callback
+		CharSequence spid = shared.qmgr.externalSPID(msgh.spid);
+		msgh = null; //the queue has already either committed or rolled back the message
+		if (ok) {
+			shared.stats_msgcnt++;
+			shared.stats_recipcnt += msgrecips.size();
+		}
+		releaseMessage();
+		try {
+			thisEntered++;
+			transitionState(PROTO_STATE.S_IDLE);
+			if (!ok) {
+				raiseEvent(PROTO_EVENT.E_LOCALERROR, null, "Failed to submit msg="+spid+" - group commit");
+			} else {
+				shared.tmpbcbuf.populate(DFLTRSP_BODY).append(spid).append(Protocol.EOL_BC);
+				transmit(shared.tmpbcbuf);
+			}
+			exitThis();
+		} catch (Exception ex) {
+			if (!isBrokenPipe()) getLogger().log(LEVEL.ERR, ex, true, pfx_log+" failed on group commit");
+			raiseSafeEvent(PROTO_EVENT.E_LOCALERROR, null, "Failed on group commit - "+com.grey.base.ExceptionUtils.summary(ex), true);
+		}
+	}
+
 	// wait for next client command - the first to be issued over SSL
 	@Override
 	protected void startedSSL()
@@ -1651,51 +1908,19 @@ public final class Server
 			rsp = (usingSSL() ? conncfg.smtprsp_ehlo_ssl : conncfg.smtprsp_ehlo);
 		} else {
 			if (dnsEvent == PROTO_EVENT.E_MAILTO) {
-				if (shared.greylst != null) {
-					if (!shared.greylst.vet(remote_tsap.ip, msgsender, dnsAddress.full)) {
-						//temporary rejection - note that we don't increment shared.stats_rejrecips
-						LEVEL lvl = LEVEL.TRC2;
-						if (getLogger().isActive(lvl)) {
-							shared.tmpsb.setLength(0);
-							shared.tmpsb.append(pfx_log).append(" greylisted ").append(msgsender).append("=>").append(dnsAddress);
-							getLogger().log(lvl, shared.tmpsb);
-						}
-						return addressHandled(ADDR_STATUS.REJECT, shared.smtprsp_greylisted, 0, null);
-					}
-				}
-				if (alias_members == null) {
-					if (!msgrecips.contains(dnsAddress)) {
-						msgrecips.add(dnsAddress);
-						sender_rewrites.add(null);
-						dnsAddress = null;
+				if (shared.greylst != null && !shared.greylst.isWhitelisted(remote_tsap.ip)) {
+					if (shared.greyvetter != null) {
+						// park this recipient until the verdict arrives - see greylistVetted()
+						grey_alias_members = alias_members;
+						grey_alias_dompart = alias_dompart;
+						greyreq = shared.greyvetter.vet(this, remote_tsap.ip, msgsender, dnsAddress.full);
+						return ADDR_STATUS.PENDING;
 					}
-				} else {
-					for (int idx = 0; idx != alias_members.size(); idx++) {
-						com.grey.base.utils.ByteChars member = alias_members.get(idx);
-						com.grey.base.utils.EmailAddress addr = shared.addrbufcache.extract().set(member);
-						if (msgrecips.contains(addr)) {
-							//discard duplicate
-							shared.addrbufcache.store(addr);
-						} else {
-							boolean is_mbx = (addr.full.indexOf((byte)com.grey.base.utils.EmailAddress.DLM_DOM) == -1);
-							if (is_mbx || !shared.spf_sender_rewrite
-									|| (shared.dtory != null && shared.dtory.isLocalDomain(addr.domain))) {
-								sender_rewrites.add(null);
-							} else {
-								// rewrite sender for this recip, to avoid SPF validation failure at next hop
-								com.grey.base.utils.ByteChars altsender = shared.bcwell.extract().populate(msgsender);
-								int pos = altsender.indexOf((byte)com.grey.base.utils.EmailAddress.DLM_DOM);
-								if (pos != -1) altsender.setByte(pos, com.grey.base.utils.EmailAddress.DLM_RT);
-								if (alias_dompart.length() != 0) {
-									altsender.append(com.grey.base.utils.EmailAddress.DLM_DOM);
-									altsender.append(alias_dompart);
-								}
-								sender_rewrites.add(altsender);
-							}
-							msgrecips.add(addr);
-						}
+					if (!shared.greylst.vet(remote_tsap.ip, msgsender, dnsAddress.full)) {
+						return recipientGreylisted();
 					}
 				}
+				return recipientAccepted(alias_members, alias_dompart);
 			} else if (dnsEvent == PROTO_EVENT.E_MAILFROM) {
 				msgsender = shared.bcwell.extract().populate(dnsAddress.full);
 			} else {
@@ -1707,6 +1932,82 @@ public final class Server
 		return addressHandled(ADDR_STATUS.OK, rsp, 0, null);
 	}
 
+	private ADDR_STATUS recipientAccepted(java.util.ArrayList<com.grey.base.utils.ByteChars> alias_members,
+			com.grey.base.utils.ByteChars alias_dompart) throws java.io.IOException
+	{
+		if (alias_members == null) {
+			if (!msgrecips.contains(dnsAddress)) {
+				msgrecips.add(dnsAddress);
+				sender_rewrites.add(null);
+				dnsAddress = null;
+			}
+		} else {
+			for (int idx = 0; idx != alias_members.size(); idx++) {
+				com.grey.base.utils.ByteChars member = alias_members.get(idx);
+				com.grey.base.utils.EmailAddress addr = shared.addrbufcache.extract().set(member);
+				if (msgrecips.contains(addr)) {
+					//discard duplicate
+					shared.addrbufcache.store(addr);
+				} else {
+					boolean is_mbx = (addr.full.indexOf((byte)com.grey.base.utils.EmailAddress.DLM_DOM) == -1);
+					if (is_mbx || !shared.spf_sender_rewrite
+							|| (shared.dtory != null && shared.dtory.isLocalDomain(addr.domain))) {
+						sender_rewrites.add(null);
+					} else {
+						// rewrite sender for this recip, to avoid SPF validation failure at next hop
+						com.grey.base.utils.ByteChars altsender = shared.bcwell.extract().populate(msgsender);
+						int pos = altsender.indexOf((byte)com.grey.base.utils.EmailAddress.DLM_DOM);
+						if (pos != -1) altsender.setByte(pos, com.grey.base.utils.EmailAddress.DLM_RT);
+						if (alias_dompart.length() != 0) {
+							altsender.append(com.grey.base.utils.EmailAddress.DLM_DOM);
+							altsender.append(alias_dompart);
+						}
+						sender_rewrites.add(altsender);
+					}
+					msgrecips.add(addr);
+				}
+			}
+		}
+		return addressHandled(ADDR_STATUS.OK, shared.smtprsp_ok, 0, null);
+	}
+
+	private ADDR_STATUS recipientGreylisted() throws java.io.IOException
+	{
+		//temporary rejection - note that we don't increment shared.stats_rejrecips
+		LEVEL lvl = LEVEL.TRC2;
+		if (getLogger().isActive(lvl)) {
+			shared.tmpsb.setLength(0);
+			shared.tmpsb.append(pfx_log).append(" greylisted ").append(msgsender).append("=>").append(dnsAddress);
+			getLogger().log(lvl, shared.tmpsb);
+		}
+		return addressHandled(ADDR_STATUS.REJECT, shared.smtprsp_greylisted, 0, null);
+	}
+
+	// Called by the GreylistVetter when the verdict on the pending recipient arrives
+	@Override
+	public void greylistVetted(GreylistVetter.Request req)
+	{
+		if (req != greyreq) return; //stale callback
+		greyreq = null;
+		java.util.ArrayList<com.grey.base.utils.ByteChars> alias_members = grey_alias_members;
+		com.grey.base.utils.ByteChars alias_dompart = grey_alias_dompart;
+		grey_alias_members = null;
+		grey_alias_dompart = null;
+		try {
+			thisEntered++;
+			if (req.error != null) throw req.error;
+			if (req.approved) {
+				recipientAccepted(alias_members, alias_dompart);
+			} else {
+				recipientGreylisted();
+			}
+			exitThis();
+		} catch (Throwable ex) {
+			if (!isBrokenPipe()) getLogger().log(LEVEL.ERR, ex, true, pfx_log+" failed on Greylist verdict");
+			raiseSafeEvent(PROTO_EVENT.E_LOCALERROR, null, "Failed on Greylist verdict - "+com.grey.base.ExceptionUtils.summary(ex), true);
+		}
+	}
+
 	private ADDR_STATUS addressRejected(com.grey.naf.dns.resolver.engine.ResolverAnswer.STATUS status, java.nio.ByteBuffer rsp) throws java.io.IOException
 	{
 		LEVEL lvl = LEVEL.TRC;
@@ -1850,6 +2151,28 @@ public final class Server
 		}
 	}
 
+	// Called by the DnsBlocklist when the verdict on our remote IP arrives
+	@Override
+	public void dnsblCompleted(int score)
+	{
+		if (!dnsbl_wait) return; //stale callback
+		dnsbl_wait = false;
+		try {
+			thisEntered++;
+			if (shared.dnsbl.isBlocked(score)) {
+				LEVEL lvl = LEVEL.TRC;
+				if (getLogger().isActive(lvl)) getLogger().log(lvl, pfx_log+" rejecting connection on DNSBL score="+score);
+				executeAction(conncfg.delay_badcmd, shared.smtprsp_dnsblocked, PROTO_EVENT.E_DISCONNECT);
+			} else if (tmr_greet == null) {
+				raiseEvent(PROTO_EVENT.E_GREET, null, null);
+			}
+			exitThis();
+		} catch (Throwable ex) {
+			if (!isBrokenPipe()) getLogger().log(LEVEL.ERR, ex, true, pfx_log+" failed on DNSBL verdict");
+			raiseSafeEvent(PROTO_EVENT.E_LOCALERROR, null, "Failed on DNSBL verdict - "+com.grey.base.ExceptionUtils.summary(ex), true);
+		}
+	}
+
 	private boolean isRelayClient()
 	{
 		if (shared.relay_clients == null) return false;
@@ -1973,6 +2296,11 @@ public final class Server
 			ehlorsp.append(extprefix).append(Protocol.EXT_PIPELINE).append(Protocol.EOL);
 		}
 
+		if (conncfg.ext_chunking) {
+			idx_lastline = ehlorsp.length();
+			ehlorsp.append(extprefix).append(Protocol.EXT_CHUNKING).append(Protocol.EOL);
+		}
+
 		if (!sslmode && conncfg.ext_stls) {
 			idx_lastline = ehlorsp.length();
 			ehlorsp.append(extprefix).append(Protocol.EXT_STLS).append(Protocol.EOL);
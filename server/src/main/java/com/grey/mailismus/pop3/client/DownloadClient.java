@@ -537,7 +537,10 @@ public class DownloadClient
 			}
 			if (isConfig(CFG_SMTPMODE)) {
 				smtp_msgh = common.qmgr.startSubmit(smtp_sender, smtp_recips, null, IP.IP_LOCALHOST);
-				if (!isConfig(CFG_OMITRCVHDR)) smtp_msgh.write(common.tmpbc);
+				if (!isConfig(CFG_OMITRCVHDR)) {
+					smtp_msgh.write(common.tmpbc);
+					smtp_msgh.startDigest(); //exclude the Received header from the Spooler's dedup digest
+				}
 			} else {
 				try {
 					strm_curmsg = new java.io.FileOutputStream(fh_curmsg);
@@ -682,7 +685,7 @@ public class DownloadClient
 				// Deliver the message to its configured destination
 				if (isConfig(CFG_SMTPMODE)) {
 					java.nio.file.Path pth = common.qmgr.getMessage(smtp_msgh.spid, 0);
-					msgsiz = java.nio.file.Files.size(pth);
+					msgsiz = com.grey.mailismus.mta.queue.SpoolCompression.getContentSize(pth);
 					common.qmgr.endSubmit(smtp_msgh, false);
 					smtp_msgh = null;
 				} else {
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus;
+
+public class CidrTrieTest
+{
+	@org.junit.Test
+	public void testMixedPrefixes()
+	{
+		CidrTrie trie = new CidrTrie(4); //small initial capacity, to exercise growth
+		org.junit.Assert.assertFalse(trie.contains(ip(10, 1, 2, 3)));
+		trie.add(ip(10, 1, 0, 0), 16);
+		trie.add(ip(10, 1, 2, 0), 24);
+		trie.add(ip(10, 1, 2, 3), 32);
+		trie.add(ip(192, 168, 200, 77), 24); //host bits are discarded
+		trie.add(ip(10, 1, 2, 0), 24); //duplicate
+		org.junit.Assert.assertEquals(4, trie.size());
+
+		org.junit.Assert.assertEquals(32, trie.longestMatch(ip(10, 1, 2, 3)));
+		org.junit.Assert.assertEquals(24, trie.longestMatch(ip(10, 1, 2, 4)));
+		org.junit.Assert.assertEquals(16, trie.longestMatch(ip(10, 1, 3, 3)));
+		org.junit.Assert.assertEquals(-1, trie.longestMatch(ip(10, 2, 2, 3)));
+		org.junit.Assert.assertEquals(24, trie.longestMatch(ip(192, 168, 200, 1)));
+		org.junit.Assert.assertEquals(-1, trie.longestMatch(ip(192, 168, 201, 1)));
+
+		// a shorter prefix added after the longer ones, which has to be spliced in above them
+		trie.add(ip(10, 0, 0, 0), 8);
+		org.junit.Assert.assertEquals(8, trie.longestMatch(ip(10, 2, 2, 3)));
+		org.junit.Assert.assertEquals(32, trie.longestMatch(ip(10, 1, 2, 3)));
+		org.junit.Assert.assertFalse(trie.contains(ip(11, 1, 2, 3)));
+
+		// the default route matches everything
+		trie.add(0, 0);
+		org.junit.Assert.assertEquals(0, trie.longestMatch(ip(11, 1, 2, 3)));
+		org.junit.Assert.assertEquals(6, trie.size());
+
+		StringBuilder sb = new StringBuilder();
+		trie.forEach((key, prefix) -> sb.append(Integer.toHexString(key)).append('/').append(prefix).append(' '));
+		org.junit.Assert.assertEquals("0/0 a000000/8 a010000/16 a010200/24 a010203/32 c0a8c800/24 ", sb.toString());
+	}
+
+	@org.junit.Test
+	public void testRandom()
+	{
+		java.util.Random rnd = new java.util.Random(1);
+		int cnt = 20_000;
+		int[] keys = new int[cnt];
+		int[] lens = new int[cnt];
+		CidrTrie trie = new CidrTrie();
+		for (int idx = 0; idx != cnt; idx++) {
+			lens[idx] = 8 + rnd.nextInt(25);
+			keys[idx] = rnd.nextInt() & (-1 << (32 - lens[idx]));
+			trie.add(keys[idx], lens[idx]);
+		}
+
+		// compare against a brute-force search
+		for (int loop = 0; loop != 20_000; loop++) {
+			int ip = (loop % 2 == 0 ? rnd.nextInt() : keys[rnd.nextInt(cnt)] | (rnd.nextInt() & 0xff));
+			int expect = -1;
+			for (int idx = 0; idx != cnt; idx++) {
+				if (lens[idx] > expect && ((ip ^ keys[idx]) & (-1 << (32 - lens[idx]))) == 0) expect = lens[idx];
+			}
+			org.junit.Assert.assertEquals(expect, trie.longestMatch(ip));
+		}
+	}
+
+	private static int ip(int b1, int b2, int b3, int b4)
+	{
+		return (b1 << 24) | (b2 << 16) | (b3 << 8) | b4;
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.deliver;
+
+import com.grey.base.utils.ByteChars;
+
+public class CircuitBreakerTest
+{
+	private static final ByteChars DOMAIN = new ByteChars("domain1.com");
+
+	@org.junit.Test
+	public void testOpenAndClose()
+	{
+		CircuitBreaker breaker = new CircuitBreaker(3, 1000, 3000, null);
+		long systime = 10_000;
+		breaker.connectionCompleted(DOMAIN, (short)421, 0, systime);
+		breaker.connectionCompleted(DOMAIN, (short)550, 0, systime); //permanent errors don't count
+		breaker.connectionCompleted(DOMAIN, (short)421, 0, systime);
+		org.junit.Assert.assertEquals(0, breaker.getDeferral(DOMAIN, systime));
+		breaker.connectionCompleted(DOMAIN, (short)0, 1, systime); //success resets the count
+		breaker.connectionCompleted(DOMAIN, (short)421, 0, systime);
+		breaker.connectionCompleted(DOMAIN, (short)451, 0, systime);
+		org.junit.Assert.assertEquals(0, breaker.getDeferral(DOMAIN, systime));
+		org.junit.Assert.assertEquals(0, breaker.openCount());
+
+		breaker.connectionCompleted(DOMAIN, (short)421, 0, systime);
+		org.junit.Assert.assertEquals(421, breaker.getDeferral(DOMAIN, systime + 999));
+		org.junit.Assert.assertEquals(1, breaker.openCount());
+		org.junit.Assert.assertEquals(0, breaker.getDeferral(new ByteChars("domain2.com"), systime));
+
+		// open period has expired, so one probe is allowed through
+		systime += 1000;
+		org.junit.Assert.assertEquals(0, breaker.getDeferral(DOMAIN, systime));
+		breaker.launched(DOMAIN);
+		org.junit.Assert.assertEquals(421, breaker.getDeferral(DOMAIN, systime));
+
+		// probe fails, so breaker reopens for twice as long
+		breaker.connectionCompleted(DOMAIN, (short)421, 0, systime);
+		org.junit.Assert.assertEquals(421, breaker.getDeferral(DOMAIN, systime + 1999));
+		systime += 2000;
+		org.junit.Assert.assertEquals(0, breaker.getDeferral(DOMAIN, systime));
+		breaker.launched(DOMAIN);
+
+		// an inconclusive probe lets the next connection probe again
+		breaker.connectionCompleted(DOMAIN, (short)0, 0, systime);
+		org.junit.Assert.assertEquals(0, breaker.getDeferral(DOMAIN, systime));
+		breaker.launched(DOMAIN);
+
+		// probe succeeds, so breaker closes
+		breaker.connectionCompleted(DOMAIN, (short)0, 1, systime);
+		org.junit.Assert.assertEquals(0, breaker.getDeferral(DOMAIN, systime));
+		org.junit.Assert.assertEquals(0, breaker.openCount());
+		breaker.launched(DOMAIN);
+		breaker.connectionCompleted(DOMAIN, (short)421, 0, systime);
+		org.junit.Assert.assertEquals(0, breaker.getDeferral(DOMAIN, systime));
+	}
+
+	@org.junit.Test
+	public void testMaxOpenTime()
+	{
+		CircuitBreaker breaker = new CircuitBreaker(1, 1000, 3000, null);
+		long systime = 10_000;
+		breaker.connectionCompleted(DOMAIN, (short)421, 0, systime);
+		for (int idx = 0; idx != 5; idx++) {
+			systime += 5000;
+			breaker.launched(DOMAIN);
+			breaker.connectionCompleted(DOMAIN, (short)421, 0, systime);
+		}
+		org.junit.Assert.assertEquals(421, breaker.getDeferral(DOMAIN, systime + 2999));
+		org.junit.Assert.assertEquals(0, breaker.getDeferral(DOMAIN, systime + 3000));
+		breaker.deferred(7);
+		org.junit.Assert.assertEquals(7, breaker.deferCount());
+	}
+}
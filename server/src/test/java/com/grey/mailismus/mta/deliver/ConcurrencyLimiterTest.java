@@ -0,0 +1,71 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.deliver;
+
+import com.grey.base.utils.ByteChars;
+
+public class ConcurrencyLimiterTest
+{
+	private static final ByteChars DOMAIN = new ByteChars("domain1.com");
+
+	@org.junit.Test
+	public void testIncreaseAndDecrease()
+	{
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 12, 4, 0);
+		org.junit.Assert.assertEquals(4, limiter.getLimit(DOMAIN));
+		long systime = 1000;
+
+		// a round of successes raises the limit by one
+		for (int idx = 0; idx != 4; idx++) {
+			limiter.connectionCompleted(DOMAIN, (short)0, systime, 1, systime+10);
+		}
+		org.junit.Assert.assertEquals(5, limiter.getLimit(DOMAIN));
+		org.junit.Assert.assertEquals(1, limiter.raises());
+
+		// permanent errors and aborted connections tell us nothing
+		limiter.connectionCompleted(DOMAIN, (short)550, systime, 1, systime+10);
+		limiter.connectionCompleted(DOMAIN, (short)0, systime, 0, systime+10);
+		org.junit.Assert.assertEquals(5, limiter.getLimit(DOMAIN));
+
+		// a temporary error halves it, but the other connections of the same round don't cut it again
+		systime = 2000;
+		limiter.connectionCompleted(DOMAIN, (short)421, systime - 100, 0, systime);
+		org.junit.Assert.assertEquals(2, limiter.getLimit(DOMAIN));
+		limiter.connectionCompleted(DOMAIN, (short)421, systime - 50, 0, systime + 10);
+		org.junit.Assert.assertEquals(2, limiter.getLimit(DOMAIN));
+		org.junit.Assert.assertEquals(1, limiter.cuts());
+
+		// and it never goes below the floor
+		limiter.connectionCompleted(DOMAIN, (short)451, systime + 1, 0, systime + 20);
+		org.junit.Assert.assertEquals(2, limiter.getLimit(DOMAIN));
+
+		// nor above the ceiling
+		for (int idx = 0; idx != 200; idx++) {
+			limiter.connectionCompleted(DOMAIN, (short)0, systime + 30, 1, systime + 40);
+		}
+		org.junit.Assert.assertEquals(12, limiter.getLimit(DOMAIN));
+
+		java.util.List<ConcurrencyLimiter.Target> lst = new java.util.ArrayList<>();
+		org.junit.Assert.assertEquals(1, limiter.getAdjusted(lst, 10));
+		org.junit.Assert.assertEquals(DOMAIN, lst.get(0).key);
+		org.junit.Assert.assertNotSame(DOMAIN, lst.get(0).key);
+		org.junit.Assert.assertEquals(4, limiter.getLimit(new ByteChars("domain2.com")));
+	}
+
+	@org.junit.Test
+	public void testLatency()
+	{
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 20, 8, 3);
+		long systime = 1000;
+		for (int idx = 0; idx != 20; idx++) {
+			limiter.connectionCompleted(DOMAIN, (short)0, systime, 2, systime + 200); //100ms per message
+			systime += 1000;
+		}
+		int limit = limiter.getLimit(DOMAIN);
+		org.junit.Assert.assertEquals(10, limit);
+		limiter.connectionCompleted(DOMAIN, (short)0, systime, 1, systime + 1000);
+		org.junit.Assert.assertEquals(limit / 2, limiter.getLimit(DOMAIN));
+	}
+}
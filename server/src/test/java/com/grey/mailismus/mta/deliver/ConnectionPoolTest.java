@@ -0,0 +1,102 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.deliver;
+
+import com.grey.base.collections.HashedMapIntValue;
+import com.grey.base.utils.ByteChars;
+import com.grey.naf.EventListenerNAF;
+
+public class ConnectionPoolTest
+{
+	@org.junit.Test
+	public void testParkAndTake()
+	{
+		ConnectionPool pool = new ConnectionPool(10, 60_000, 120_000, 30_000);
+		MySender s1 = new MySender("domain1.com", 1000);
+		MySender s2 = new MySender("domain1.com", 1100);
+		MySender s3 = new MySender("domain2.com", 1200);
+		ConnectionPool.Entry ent = pool.park(s1, 2000);
+		org.junit.Assert.assertNotNull(ent);
+		org.junit.Assert.assertEquals(new ByteChars("domain1.com"), ent.key);
+		org.junit.Assert.assertNotSame(s1.getMessageParams().getDestination(), ent.key);
+		org.junit.Assert.assertNotNull(pool.park(s2, 2100));
+		org.junit.Assert.assertNotNull(pool.park(s3, 2200));
+		org.junit.Assert.assertEquals(3, pool.size());
+
+		HashedMapIntValue<Object> counts = new HashedMapIntValue<>();
+		pool.countConnections(counts);
+		org.junit.Assert.assertEquals(2, counts.get(new ByteChars("domain1.com")));
+		org.junit.Assert.assertEquals(1, counts.get(new ByteChars("domain2.com")));
+
+		// most recently parked connection is reused first
+		org.junit.Assert.assertSame(s2, pool.take(new ByteChars("domain1.com")));
+		s1.idle = false; //it has started to close
+		org.junit.Assert.assertNull(pool.take(new ByteChars("domain1.com")));
+		org.junit.Assert.assertNull(pool.take(new ByteChars("domain3.com")));
+		org.junit.Assert.assertEquals(2, pool.size());
+		org.junit.Assert.assertEquals(1, pool.reuseCount());
+
+		// a connection which is in use remains known to the pool, but isn't counted as idle
+		ent = pool.remove(s2);
+		org.junit.Assert.assertNotNull(ent);
+		org.junit.Assert.assertEquals(0, ent.parked);
+		ent = pool.remove(s1);
+		org.junit.Assert.assertEquals(2000, ent.parked);
+		org.junit.Assert.assertEquals(1, pool.size());
+		org.junit.Assert.assertNull(pool.remove(s1));
+	}
+
+	@org.junit.Test
+	public void testLimits()
+	{
+		ConnectionPool pool = new ConnectionPool(1, 60_000, 120_000, 30_000);
+		MySender s1 = new MySender("domain1.com", 1000);
+		MySender s2 = new MySender("domain1.com", 1000);
+		MySender s3 = new MySender("domain1.com", 1000);
+		org.junit.Assert.assertNull(pool.park(s1, 121_000)); //past its max lifetime
+		org.junit.Assert.assertNotNull(pool.park(s2, 2000));
+		org.junit.Assert.assertNull(pool.park(s3, 2000)); //pool is full
+		org.junit.Assert.assertEquals(1, pool.size());
+	}
+
+	@org.junit.Test
+	public void testSweep()
+	{
+		ConnectionPool pool = new ConnectionPool(10, 60_000, 120_000, 30_000);
+		MySender s1 = new MySender("domain1.com", 0);
+		MySender s2 = new MySender("domain1.com", 0);
+		MySender s3 = new MySender("domain2.com", 0);
+		pool.park(s1, 1000);
+		pool.park(s2, 70_000);
+		pool.park(s3, 100_000);
+		java.util.List<Delivery.MessageSender> expired = new java.util.ArrayList<>();
+		java.util.List<Delivery.MessageSender> ping = new java.util.ArrayList<>();
+		pool.sweep(110_000, expired, ping);
+		org.junit.Assert.assertEquals(java.util.Arrays.asList(s1), expired); //idle too long
+		org.junit.Assert.assertEquals(java.util.Arrays.asList(s2), ping);
+
+		expired.clear();
+		ping.clear();
+		pool.sweep(120_000, expired, ping); //everything has now reached its max lifetime
+		org.junit.Assert.assertEquals(3, expired.size());
+		org.junit.Assert.assertEquals(0, ping.size());
+	}
+
+	private static class MySender implements Delivery.MessageSender
+	{
+		private final Delivery.MessageParams msgparams = new Delivery.MessageParams();
+		boolean idle = true;
+
+		MySender(String dest, long launched) {msgparams.init(null, new ByteChars(dest), launched);}
+
+		@Override public void start(Delivery.Controller ctl) {}
+		@Override public boolean stop() {return true;}
+		@Override public Delivery.MessageParams getMessageParams() {return msgparams;}
+		@Override public short getDomainError() {return 0;}
+		@Override public String getLogID() {return "MySender";}
+		@Override public void setEventListener(EventListenerNAF l) {}
+		@Override public boolean isIdle() {return idle;}
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.deliver;
+
+import com.grey.base.utils.ByteChars;
+import com.grey.naf.dns.resolver.engine.ResolverAnswer;
+
+public class DestinationCacheTest
+{
+	@org.junit.Test
+	public void testDestinations()
+	{
+		DestinationCache cache = new DestinationCache(2, 1000, 500, 100);
+		ByteChars dom1 = new ByteChars("domain1.com");
+		int[] ips = new int[]{101, 102, 103, 0};
+		cache.putAddresses(dom1, ips, 3, 10_000);
+		ips[0] = 999; //cache must have taken its own copy
+		dom1.populate("domain9.com");
+		org.junit.Assert.assertNull(cache.get(dom1, 10_000));
+
+		DestinationCache.Destination dest = cache.get(new ByteChars("domain1.com"), 10_999);
+		org.junit.Assert.assertNotNull(dest);
+		org.junit.Assert.assertArrayEquals(new int[]{101, 102, 103}, dest.ips);
+		org.junit.Assert.assertNull(cache.get(new ByteChars("domain1.com"), 11_000)); //expired
+		org.junit.Assert.assertEquals(0, cache.size());
+
+		cache.putNegative(new ByteChars("domain2.com"), ResolverAnswer.STATUS.NODOMAIN, 10_000);
+		dest = cache.get(new ByteChars("domain2.com"), 10_499);
+		org.junit.Assert.assertNull(dest.ips);
+		org.junit.Assert.assertEquals(ResolverAnswer.STATUS.NODOMAIN, dest.status);
+		org.junit.Assert.assertNull(cache.get(new ByteChars("domain2.com"), 10_500));
+		org.junit.Assert.assertEquals(2, cache.hits());
+		org.junit.Assert.assertEquals(3, cache.misses());
+
+		// least recently used entry is discarded when the cache is full
+		cache.putAddresses(new ByteChars("domain1.com"), ips, 1, 20_000);
+		cache.putAddresses(new ByteChars("domain2.com"), ips, 1, 20_000);
+		cache.get(new ByteChars("domain1.com"), 20_000);
+		cache.putAddresses(new ByteChars("domain3.com"), ips, 1, 20_000);
+		org.junit.Assert.assertEquals(2, cache.size());
+		org.junit.Assert.assertNotNull(cache.get(new ByteChars("domain1.com"), 20_000));
+		org.junit.Assert.assertNull(cache.get(new ByteChars("domain2.com"), 20_000));
+	}
+
+	@org.junit.Test
+	public void testHostHealth()
+	{
+		DestinationCache cache = new DestinationCache(10, 1000, 500, 100);
+		cache.connectFailed(102, 10_000);
+		cache.connectFailed(103, 10_050);
+		org.junit.Assert.assertTrue(cache.isDown(102, 10_099));
+		org.junit.Assert.assertEquals(2, cache.downCount(10_099));
+
+		int[] ips = new int[]{101, 102, 103, 104};
+		int cnt = cache.filterLive(ips, ips.length, 10_099);
+		org.junit.Assert.assertEquals(2, cnt);
+		org.junit.Assert.assertEquals(101, ips[0]);
+		org.junit.Assert.assertEquals(104, ips[1]);
+		org.junit.Assert.assertEquals(2, cache.skips());
+
+		// the first host has now served its downtime, and the other has recovered
+		cache.connectSucceeded(103, 40);
+		ips = new int[]{101, 102, 103, 104};
+		org.junit.Assert.assertEquals(4, cache.filterLive(ips, ips.length, 10_100));
+		org.junit.Assert.assertEquals(0, cache.downCount(10_100));
+
+		DestinationCache.HostStats stats = cache.getStats(103);
+		org.junit.Assert.assertEquals(1, stats.okcnt);
+		org.junit.Assert.assertEquals(1, stats.failcnt);
+		org.junit.Assert.assertEquals(40, stats.latency);
+		cache.connectSucceeded(103, 120);
+		org.junit.Assert.assertEquals(50, stats.latency);
+	}
+}
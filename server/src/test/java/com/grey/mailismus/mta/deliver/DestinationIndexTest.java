@@ -0,0 +1,92 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.deliver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.grey.base.utils.ByteChars;
+import com.grey.mailismus.mta.queue.MessageRecip;
+
+public class DestinationIndexTest
+{
+	private final List<MessageRecip> cache = new ArrayList<>();
+
+	@org.junit.Test
+	public void testSlices()
+	{
+		// already in cache order, ie. local recipients first and then by SPID
+		add(1, 1, null);
+		add(2, 2, "domain1.com");
+		add(3, 2, "domain2.com");
+		add(4, 3, "domain2.com");
+		add(5, 4, "domain1.com");
+		add(6, 4, "domain1.com");
+		add(7, 5, "domain3.com");
+		DestinationIndex index = build();
+		org.junit.Assert.assertEquals(3, index.sliceCount());
+
+		// slices are in the order their destinations were first seen, and each one preserves the cache order
+		DestinationIndex.Slice slice = index.getSlice(0);
+		org.junit.Assert.assertEquals(new ByteChars("domain1.com"), slice.key);
+		org.junit.Assert.assertNull(slice.relay);
+		org.junit.Assert.assertEquals(3, slice.end - slice.start);
+		org.junit.Assert.assertEquals(2, index.get(slice.start).qid);
+		org.junit.Assert.assertEquals(5, index.get(slice.start+1).qid);
+		org.junit.Assert.assertEquals(6, index.get(slice.start+2).qid);
+		org.junit.Assert.assertSame(slice, index.getSlice(new ByteChars("domain1.com")));
+
+		slice = index.getSlice(new ByteChars("domain2.com"));
+		org.junit.Assert.assertEquals(1, slice.id);
+		org.junit.Assert.assertEquals(2, slice.end - slice.start);
+		org.junit.Assert.assertEquals(3, index.get(slice.start).qid);
+		org.junit.Assert.assertEquals(4, index.get(slice.start+1).qid);
+		org.junit.Assert.assertEquals(7, index.get(index.getSlice(2).start).qid);
+		org.junit.Assert.assertNull(index.getSlice(new ByteChars("domain4.com")));
+
+		index.invalidate();
+		org.junit.Assert.assertFalse(index.isValid());
+		org.junit.Assert.assertEquals(0, index.sliceCount());
+	}
+
+	@org.junit.Test
+	public void testCursor()
+	{
+		add(1, 1, "domain1.com");
+		add(2, 2, "domain1.com");
+		add(3, 3, "domain1.com");
+		DestinationIndex index = build();
+		DestinationIndex.Slice slice = index.getSlice(0);
+		org.junit.Assert.assertEquals(slice.start, index.nextPending(slice));
+
+		cache.get(0).qstatus = MessageRecip.STATUS_BUSY;
+		cache.get(1).qstatus = MessageRecip.STATUS_DONE;
+		org.junit.Assert.assertEquals(slice.start+2, index.nextPending(slice));
+		org.junit.Assert.assertEquals(slice.start+2, slice.next);
+		cache.get(2).qstatus = MessageRecip.STATUS_BUSY;
+		org.junit.Assert.assertEquals(-1, index.nextPending(slice));
+
+		// a failed sender reverts its recipients to pending
+		cache.get(0).qstatus = MessageRecip.STATUS_READY;
+		org.junit.Assert.assertEquals(-1, index.nextPending(slice));
+		index.rewind(new ByteChars("domain1.com"));
+		org.junit.Assert.assertEquals(slice.start, index.nextPending(slice));
+	}
+
+	private void add(int qid, int spid, String domain)
+	{
+		ByteChars dom = (domain == null ? null : new ByteChars(domain));
+		MessageRecip recip = new MessageRecip().set(qid, spid, 0, 0, null, dom, new ByteChars("mbx"+qid), 0, 0);
+		cache.add(recip);
+	}
+
+	private DestinationIndex build()
+	{
+		DestinationIndex index = new DestinationIndex();
+		index.build(cache::get, cache.size(), cache.size(), (recip) -> null);
+		org.junit.Assert.assertTrue(index.isValid());
+		return index;
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.deliver;
+
+import com.grey.base.config.XmlConfig;
+import com.grey.base.utils.ByteChars;
+import com.grey.base.utils.IP;
+import com.grey.base.utils.TimeOps;
+import com.grey.naf.ApplicationContextNAF;
+import com.grey.naf.NAFConfig;
+import com.grey.naf.dns.resolver.ResolverConfig;
+import com.grey.naf.dns.resolver.ResolverDNS;
+import com.grey.naf.reactor.Dispatcher;
+import com.grey.naf.reactor.TimerNAF;
+import com.grey.mailismus.TestSupport;
+import com.grey.mailismus.mta.smtp.MockServerDNS;
+
+/*
+ * The lookups go to a mock DNS server, which only knows about MockServerDNS.MXQUERY and returns NXDOM for everything else.
+ * Each test issues its prefetches from a timer, as the prefetcher runs in the Dispatcher thread, and then polls until
+ * they have all been answered before checking the outcome and stopping the Dispatcher.
+ */
+public class DnsPrefetcherTest
+	implements TimerNAF.Handler
+{
+	private static final com.grey.logging.Logger logger = com.grey.logging.Factory.getLoggerNoEx("no-such-logger");
+	private static final int TMRTYPE_START = 1;
+	private static final int TMRTYPE_POLL = 2;
+	private static final long POLL_INTERVAL = 200;
+	private static final ByteChars DOMAIN_MX = new ByteChars(MockServerDNS.MXQUERY);
+	private static final ByteChars DOMAIN1 = new ByteChars("nxdomain1.example");
+	private static final ByteChars DOMAIN2 = new ByteChars("nxdomain2.example");
+	private static final ByteChars DOMAIN3 = new ByteChars("nxdomain3.example");
+
+	private static MockServerDNS mockserver;
+
+	private Dispatcher dsptch;
+	private ResolverDNS dnsResolver;
+	private DestinationCache destcache;
+	private DnsPrefetcher prefetcher;
+	private Runnable onStart;
+	private Runnable onSettled;
+	private final java.util.List<String> errors = new java.util.ArrayList<>();
+
+	@org.junit.BeforeClass
+	public static void beforeClass() throws java.io.IOException {
+		ApplicationContextNAF appctx = TestSupport.createApplicationContext(null, true);
+		mockserver = new MockServerDNS(appctx);
+		mockserver.start();
+	}
+
+	@org.junit.AfterClass
+	public static void afterClass() {
+		if (mockserver != null) mockserver.stop();
+	}
+
+	@org.junit.Before
+	public void setup() throws java.io.IOException {
+		String nafxml = "<naf>"
+				+"<baseport>"+NAFConfig.RSVPORT_ANON+"</baseport>"
+				+"<dnsresolver>"
+				+"<interceptor host=\"127.0.0.1\" port=\""+mockserver.getPort()+"\"/>"
+				+"</dnsresolver></naf>";
+		com.grey.naf.reactor.config.DispatcherConfig def = new com.grey.naf.reactor.config.DispatcherConfig.Builder()
+				.withName("utest_dnsprefetch")
+				.withSurviveHandlers(false)
+				.build();
+		XmlConfig xmlcfg = XmlConfig.makeSection(nafxml, "/naf");
+		NAFConfig nafcfg = new NAFConfig.Builder().withXmlConfig(xmlcfg).build();
+		ResolverConfig rcfg = new ResolverConfig.Builder()
+				.withXmlConfig(nafcfg.getNode("dnsresolver"))
+				.build();
+		ApplicationContextNAF appctx = TestSupport.createApplicationContext(null, nafcfg, true);
+		dsptch = Dispatcher.create(appctx, def, logger);
+		dnsResolver = ResolverDNS.create(dsptch, rcfg);
+		destcache = new DestinationCache(100, TimeOps.MSECS_PER_MINUTE, TimeOps.MSECS_PER_MINUTE, TimeOps.MSECS_PER_MINUTE);
+	}
+
+	// Only maxpending lookups may be in progress at once, and a slot frees up once a lookup is answered
+	@org.junit.Test
+	public void testMaxPending() throws Exception {
+		prefetcher = new DnsPrefetcher(dsptch, dnsResolver, destcache, 2);
+		onStart = () -> {
+			check(prefetcher.prefetch(DOMAIN1), "prefetch 1 refused");
+			check(prefetcher.prefetch(DOMAIN2), "prefetch 2 refused");
+			check(!prefetcher.prefetch(DOMAIN3), "prefetch 3 not refused");
+			check(prefetcher.pendingCount() == 2, "pending="+prefetcher.pendingCount());
+			check(prefetcher.queryCount() == 2, "queries="+prefetcher.queryCount());
+		};
+		onSettled = () -> {
+			check(prefetcher.prefetch(DOMAIN3), "prefetch 3 refused after answers");
+			check(prefetcher.queryCount() == 3, "final queries="+prefetcher.queryCount());
+			prefetcher.close();
+		};
+		exec();
+		// only successful answers are cached
+		org.junit.Assert.assertEquals(0, destcache.size());
+	}
+
+	// Successful answers are stored in the destination cache, and domains which are already there or already being looked
+	// up are skipped.
+	@org.junit.Test
+	public void testSkipsKnownDomains() throws Exception {
+		prefetcher = new DnsPrefetcher(dsptch, dnsResolver, destcache, 10);
+		onStart = () -> {
+			destcache.putAddresses(DOMAIN1, new int[]{IP.convertDottedIP("192.168.101.1")}, 1, dsptch.getSystemTime());
+			check(prefetcher.prefetch(DOMAIN1), "prefetch of cached domain refused");
+			check(prefetcher.queryCount() == 0, "cached domain was looked up");
+			check(prefetcher.prefetch(DOMAIN_MX), "prefetch 1 refused");
+			check(prefetcher.prefetch(new ByteChars(MockServerDNS.MXQUERY)), "prefetch 2 refused");
+			check(prefetcher.pendingCount() == 1, "pending="+prefetcher.pendingCount());
+			check(prefetcher.queryCount() == 1, "in-flight domain was looked up again - queries="+prefetcher.queryCount());
+		};
+		onSettled = () -> {
+			DestinationCache.Destination dest = destcache.get(DOMAIN_MX, dsptch.getSystemTime());
+			check(dest != null, "MX answer not cached");
+			check(prefetcher.prefetch(DOMAIN_MX), "prefetch 3 refused");
+			check(prefetcher.queryCount() == 1, "resolved domain was looked up again - queries="+prefetcher.queryCount());
+			check(prefetcher.pendingCount() == 0, "final pending="+prefetcher.pendingCount());
+		};
+		exec();
+		org.junit.Assert.assertEquals(2, destcache.size());
+	}
+
+	// Closing the prefetcher cancels its lookups, so their answers never reach the destination cache
+	@org.junit.Test
+	public void testClose() throws Exception {
+		prefetcher = new DnsPrefetcher(dsptch, dnsResolver, destcache, 10);
+		onStart = () -> {
+			check(prefetcher.prefetch(DOMAIN_MX), "prefetch 1 refused");
+			check(prefetcher.prefetch(DOMAIN1), "prefetch 2 refused");
+			check(prefetcher.pendingCount() == 2, "pending="+prefetcher.pendingCount());
+			prefetcher.close();
+			check(prefetcher.pendingCount() == 0, "pending after close="+prefetcher.pendingCount());
+		};
+		onSettled = () -> {
+			check(!destcache.contains(DOMAIN_MX, dsptch.getSystemTime()), "Cancelled lookup was cached");
+			prefetcher.close(); //should be harmless to repeat
+		};
+		exec();
+		org.junit.Assert.assertEquals(0, destcache.size());
+	}
+
+	private void exec() {
+		dsptch.setTimer(0, TMRTYPE_START, this);
+		dsptch.start();
+		Dispatcher.STOPSTATUS stopsts = dsptch.waitStopped(TimeOps.MSECS_PER_SECOND*20L, true);
+		org.junit.Assert.assertEquals(Dispatcher.STOPSTATUS.STOPPED, stopsts);
+		org.junit.Assert.assertTrue(dsptch.completedOK());
+		org.junit.Assert.assertEquals(errors.toString(), 0, errors.size());
+	}
+
+	@Override
+	public void timerIndication(TimerNAF tmr, Dispatcher d) {
+		if (tmr.getType() == TMRTYPE_START) {
+			onStart.run();
+		} else if (prefetcher.pendingCount() == 0) {
+			onSettled.run();
+			d.stop();
+			return;
+		}
+		d.setTimer(POLL_INTERVAL, TMRTYPE_POLL, this);
+	}
+
+	private void check(boolean ok, String errmsg) {
+		if (!ok) errors.add(errmsg);
+	}
+}
@@ -331,6 +331,62 @@ public class ForwarderTest
 		exec(qmgr, sndrfact, false);
 	}
 
+	// Local recipients are delivered in worker threads. While they are in flight (ie. blocked in the Message-Store) they
+	// must be BUSY and counted as such, and the batch must not complete till they have all been handed back.
+	@org.junit.Test
+	public void testLocalDelivery() throws Exception {
+		String[][] msgs = new String[][]{{"sender1", "localuser1", "101", "1", "192.168.101.1"},
+			{"sender1", "localuser2", "101", "2", "192.168.101.1"},
+			{"sender1", "localuser3", "102", "1", "192.168.101.1"}
+		};
+		String cfgxml = delivxml.replace("<delay_start>", "<localthreads>3</localthreads><delay_start>");
+		XmlConfig cfg = XmlConfig.makeSection(cfgxml, "deliver");
+		MyQueueManager qmgr = new MyQueueManager(dsptch, msgs, true);
+		BlockingStore ms = new BlockingStore(msgs.length);
+		AppConfig appcfg = AppConfig.get("", dsptch);
+		fwd = new Forwarder(dsptch, cfg, appcfg, qmgr, ms, this, null, this, dnsResolver);
+		InFlightChecker checker = new InFlightChecker(fwd, qmgr, ms);
+		dsptch.setTimer(10, 0, checker);
+		exec(qmgr, null, false);
+		org.junit.Assert.assertNull(checker.errmsg);
+		org.junit.Assert.assertEquals(msgs.length, checker.inflight);
+		org.junit.Assert.assertEquals(msgs.length, ms.delivered.get());
+		org.junit.Assert.assertEquals(0, fwd.localDeliveriesCount());
+		for (Thread t : ms.threads) {
+			org.junit.Assert.assertNotSame(checker.dsptch_thread, t);
+		}
+	}
+
+	// In streaming mode the completed recipients are written back to the queue as they finish, rather than all at once at the
+	// end of a batch, and the cache is topped up with new arrivals while the earlier recipients are still in progress. So
+	// the queue sees a series of partial updates, which between them must cover every recipient exactly once.
+	@org.junit.Test
+	public void testStreaming() throws Exception {
+		String[][] arrivals = new String[][]{{"sender2", "recip5@domain3", "201", "1", "192.168.101.1"},
+			{"sender2", "recip6@domain3", "201", "2", "192.168.101.1"},
+			{"sender2", "recip7@domain1", "202", "1", "192.168.101.1"}
+		};
+		String cfgxml = delivxml.replace("<interval_low>60m</interval_low>", "<interval_low>10</interval_low><streaming>Y</streaming>");
+		XmlConfig cfg = XmlConfig.makeSection(cfgxml, "deliver");
+		StreamingQueueManager qmgr = new StreamingQueueManager(dsptch, msgs1, arrivals);
+		SenderFactory sndrfact = new SenderFactory(null, true);
+		fwd = new Forwarder(dsptch, cfg, null, qmgr, null, this, sndrfact, qmgr, dnsResolver);
+		sndrfact.ctl = fwd;
+		com.grey.mailismus.mta.queue.Cache qc = (com.grey.mailismus.mta.queue.Cache)DynLoader.getField(fwd, "qcache");
+		org.junit.Assert.assertTrue(qc.isStreaming());
+		exec(qmgr, null, false);
+		org.junit.Assert.assertEquals(0, qc.size());
+		org.junit.Assert.assertTrue(qmgr.loadcnt >= 2); //the initial load and the arrivals
+		org.junit.Assert.assertEquals(msgs1.length + arrivals.length, qmgr.flushed.size());
+		org.junit.Assert.assertEquals(qmgr.flushed.size(), qmgr.reported);
+		int msgcnt = 0;
+		for (int idx = 0; idx != sndrfact.senders.size(); idx++) {
+			msgcnt += sndrfact.senders.get(idx).msgcnt;
+		}
+		org.junit.Assert.assertEquals(5, msgcnt); //the recipients of SPIDs 101 and 201 are grouped by domain
+		org.junit.Assert.assertEquals(sndrfact.senders.size(), sndrfact.sender_cnt);
+	}
+
 	private void exec(MyQueueManager qmgr, SenderFactory sndrfact, boolean slaverelay) {
 		org.junit.Assert.assertEquals(slaverelay, fwd.getRouting().modeSlaveRelay());
 		fwd.start();
@@ -369,6 +425,7 @@ public class ForwarderTest
 		private final String[][] storedmsgs;
 		private final boolean expect_success;
 		private final int leftover_recips;
+		public com.grey.mailismus.mta.queue.Cache loaded;
 		public String errmsg;
 
 		@Override
@@ -392,8 +449,13 @@ public class ForwarderTest
 		@Override
 		public void loadMessages(com.grey.mailismus.mta.queue.Cache cache, boolean get_bounces, boolean get_deferred) {
 			if (get_bounces) addQError("Unexpected getBounces()");
-			for (int idx = 0; idx != storedmsgs.length; idx++) {
-				String[] msg = storedmsgs[idx];
+			loaded = cache;
+			addEntries(cache, storedmsgs);
+		}
+
+		void addEntries(com.grey.mailismus.mta.queue.Cache cache, String[][] msgs) {
+			for (int idx = 0; idx != msgs.length; idx++) {
+				String[] msg = msgs[idx];
 				int qid = Integer.parseInt(msg[3]);
 				int spid = Integer.parseInt(msg[2]);
 				long recvtime = dsptch.getSystemTime();
@@ -401,7 +463,11 @@ public class ForwarderTest
 				ByteChars sndr = new ByteChars(msg[0]);
 				EmailAddress recip = new EmailAddress(msg[1]);
 				recip.decompose();
-				cache.addEntry(qid, spid, recvtime, iprecv, sndr, recip.domain, recip.mailbox, 0, 0);
+				if (msg[1].indexOf('@') == -1) {
+					cache.addEntry(qid, spid, recvtime, iprecv, sndr, null, new ByteChars(msg[1]), 0, 0); //local recipient
+				} else {
+					cache.addEntry(qid, spid, recvtime, iprecv, sndr, recip.domain, recip.mailbox, 0, 0);
+				}
 			}
 		}
 
@@ -435,6 +501,58 @@ public class ForwarderTest
 	}
 
 
+	// Loads the initial messages on the first poll and the arrivals on the next one, and expects each update to be a partial
+	// one, containing only completed recipients. It stops the Dispatcher once every recipient has been written back.
+	private static class StreamingQueueManager
+		extends MyQueueManager
+		implements Forwarder.BatchCallback
+	{
+		private final String[][] initial;
+		private final String[][] arrivals;
+		public final java.util.Set<String> flushed = new java.util.HashSet<>();
+		public int loadcnt;
+		public int reported;
+
+		@Override
+		public boolean supportsStreaming() {return true;}
+
+		public StreamingQueueManager(Dispatcher d, String[][] m, String[][] a) throws java.io.IOException {
+			super(d, m, true);
+			initial = m;
+			arrivals = a;
+		}
+
+		@Override
+		public void loadMessages(com.grey.mailismus.mta.queue.Cache cache, boolean get_bounces, boolean get_deferred) {
+			if (get_bounces) addQError("Unexpected getBounces()");
+			loadcnt++;
+			if (isTopup() != (cache.size() != 0)) addQError("Load="+loadcnt+" has topup="+isTopup()+" with cache="+cache.size());
+			if (loadcnt == 1) {
+				addEntries(cache, initial);
+			} else if (loadcnt == 2) {
+				addEntries(cache, arrivals);
+			}
+		}
+
+		@Override
+		public void updateMessages(com.grey.mailismus.mta.queue.Cache cache, boolean expired) {
+			if (!isPartialUpdate()) addQError("Unexpected full update with cache="+cache.size()+" - "+cache);
+			for (int idx = 0; idx != cache.size(); idx++) {
+				MessageRecip recip = cache.get(idx);
+				if (recip.qstatus != MessageRecip.STATUS_DONE) addQError("recip-"+idx+": qstatus not DONE - "+recip);
+				if (recip.smtp_status != Protocol.REPLYCODE_OK) addQError("recip-"+idx+": smtp-status not OK - "+recip);
+				if (!flushed.add(recip.spid+"/"+recip.qid)) addQError("recip-"+idx+": flushed twice - "+recip);
+			}
+		}
+
+		@Override
+		public void batchCompleted(int qsize, Delivery.Stats stats) {
+			reported += qsize;
+			if (flushed.size() == initial.length + arrivals.length) dsptch.stop();
+		}
+	}
+
+
 	private static class MySender
 		implements Delivery.MessageSender,
 			TimerNAF.Handler
@@ -614,4 +732,73 @@ public class ForwarderTest
 			addError(0, "SenderFactory has eventError="+ex);
 		}
 	}
+
+
+	// Holds up the deliveries until the InFlightChecker has seen them all in progress
+	private static class BlockingStore
+		implements com.grey.mailismus.ms.MessageStore
+	{
+		final java.util.concurrent.CountDownLatch arrived;
+		final java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+		final java.util.concurrent.atomic.AtomicInteger delivered = new java.util.concurrent.atomic.AtomicInteger();
+		final java.util.Set<Thread> threads = java.util.concurrent.ConcurrentHashMap.newKeySet();
+
+		BlockingStore(int cnt) {arrived = new java.util.concurrent.CountDownLatch(cnt);}
+
+		@Override
+		public com.grey.mailismus.directory.Directory directory() {return null;}
+
+		@Override
+		public void deliver(CharSequence username, java.io.File msg) {
+			throw new UnsupportedOperationException("Synchronous delivery not expected for user="+username);
+		}
+
+		@Override
+		public String deliver(CharSequence username, java.io.File msg, long systime) throws java.io.IOException {
+			threads.add(Thread.currentThread());
+			arrived.countDown();
+			try {
+				if (!release.await(10, java.util.concurrent.TimeUnit.SECONDS)) throw new java.io.IOException("Timed out in deliver()");
+			} catch (InterruptedException ex) {
+				throw new java.io.IOException("Interrupted in deliver()", ex);
+			}
+			delivered.incrementAndGet();
+			return null;
+		}
+	}
+
+
+	// Runs in the Dispatcher thread, and polls until all the deliveries are blocked in the BlockingStore
+	private static class InFlightChecker
+		implements TimerNAF.Handler
+	{
+		private final Forwarder fwd;
+		private final MyQueueManager qmgr;
+		private final BlockingStore ms;
+		public Thread dsptch_thread;
+		public int inflight = -1;
+		public String errmsg;
+
+		InFlightChecker(Forwarder f, MyQueueManager q, BlockingStore s) {fwd=f; qmgr=q; ms=s;}
+
+		@Override
+		public void timerIndication(TimerNAF tmr, Dispatcher d) {
+			if (ms.arrived.getCount() != 0) {
+				d.setTimer(10, 0, this);
+				return;
+			}
+			dsptch_thread = Thread.currentThread();
+			inflight = fwd.localDeliveriesCount();
+			for (int idx = 0; idx != qmgr.loaded.size(); idx++) {
+				MessageRecip recip = qmgr.loaded.get(idx);
+				if (recip.qstatus != MessageRecip.STATUS_BUSY) errmsg = "recip-"+idx+" not BUSY while in flight - "+recip;
+			}
+			ms.release.countDown();
+		}
+
+		@Override
+		public void eventError(TimerNAF tmr, Dispatcher d, Throwable ex) {
+			errmsg = "InFlightChecker has eventError="+ex;
+		}
+	}
 }
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.deliver;
+
+import com.grey.base.config.SysProps;
+import com.grey.base.utils.ByteChars;
+import com.grey.base.utils.DynLoader;
+import com.grey.base.utils.TimeOps;
+import com.grey.naf.ApplicationContextNAF;
+import com.grey.naf.reactor.Dispatcher;
+import com.grey.naf.reactor.Producer;
+import com.grey.naf.reactor.TimerNAF;
+import com.grey.naf.reactor.config.DispatcherConfig;
+import com.grey.mailismus.TestSupport;
+import com.grey.mailismus.mta.queue.MessageRecip;
+import com.grey.mailismus.ms.MessageStore;
+
+/*
+ * The deliveries are kicked off from a timer, as LocalDelivery is only called in the Dispatcher thread, and the Dispatcher
+ * is stopped once the expected number of results have been handed back.
+ */
+public class LocalDeliveryTest
+	implements LocalDelivery.Handler, TimerNAF.Handler
+{
+	static {
+		TestSupport.initPaths(LocalDeliveryTest.class);
+		SysProps.set("greynaf.dispatchers.tolerant_threadchecks", true);
+	}
+	private static final com.grey.logging.Logger logger = com.grey.logging.Factory.getLoggerNoEx("no-such-logger");
+	private static final Throwable NOERROR = new Throwable("no error"); //the results map can't hold nulls
+
+	private final MockStore ms = new MockStore();
+	private final java.util.List<MessageRecip> recips = new java.util.ArrayList<>();
+	private final java.util.Map<MessageRecip, Throwable> results = new java.util.concurrent.ConcurrentHashMap<>();
+	private final java.util.List<String> errors = new java.util.concurrent.CopyOnWriteArrayList<>();
+	private Dispatcher dsptch;
+	private LocalDelivery localdelivery;
+	private Thread dsptch_thread;
+	private boolean orphan_results;
+	private Producer<?> orig_channel;
+
+	@org.junit.Test
+	public void testDelivery() throws Exception
+	{
+		addRecip("user1");
+		addRecip("user2");
+		addRecip("warnuser");
+		addRecip("failuser");
+		exec();
+		org.junit.Assert.assertSame(NOERROR, results.get(recips.get(0)));
+		org.junit.Assert.assertSame(NOERROR, results.get(recips.get(1)));
+		org.junit.Assert.assertSame(NOERROR, results.get(recips.get(2))); //a warning is not a failure
+		org.junit.Assert.assertTrue(results.get(recips.get(3)) instanceof java.io.IOException);
+		org.junit.Assert.assertEquals(4, ms.delivered.size());
+	}
+
+	// The workers fail to hand the results back via the Producer, so they only reach the Handler via the orphans queue
+	@org.junit.Test
+	public void testOrphans() throws Exception
+	{
+		orphan_results = true;
+		addRecip("user1");
+		addRecip("failuser");
+		exec();
+		org.junit.Assert.assertSame(NOERROR, results.get(recips.get(0)));
+		org.junit.Assert.assertTrue(results.get(recips.get(1)) instanceof java.io.IOException);
+	}
+
+	private void exec() throws java.io.IOException
+	{
+		ApplicationContextNAF appctx = TestSupport.createApplicationContext(null, true);
+		DispatcherConfig def = new DispatcherConfig.Builder().withName("utest_localdelivery").withSurviveHandlers(false).build();
+		dsptch = Dispatcher.create(appctx, def, logger);
+		localdelivery = new LocalDelivery(dsptch, ms, 2, this);
+		dsptch.setTimer(0, 0, this);
+		dsptch.start();
+		Dispatcher.STOPSTATUS stopsts = dsptch.waitStopped(TimeOps.MSECS_PER_SECOND*10L, true);
+		org.junit.Assert.assertEquals(Dispatcher.STOPSTATUS.STOPPED, stopsts);
+		org.junit.Assert.assertTrue(dsptch.completedOK());
+		org.junit.Assert.assertEquals(errors.toString(), 0, errors.size());
+		org.junit.Assert.assertEquals(recips.size(), results.size());
+		org.junit.Assert.assertEquals(0, localdelivery.inFlight());
+		for (MessageRecip recip : recips) {
+			org.junit.Assert.assertEquals(MessageRecip.STATUS_BUSY, recip.qstatus); //it's up to the Handler to change this
+		}
+		for (Thread t : ms.threads) {
+			org.junit.Assert.assertNotSame(dsptch_thread, t);
+		}
+		for (long systime : ms.timestamps) {
+			org.junit.Assert.assertTrue(systime != 0);
+		}
+	}
+
+	@Override
+	public void timerIndication(TimerNAF tmr, Dispatcher d)
+	{
+		dsptch_thread = Thread.currentThread();
+		if (orphan_results) {
+			// break the results channel, which the Jobs are about to capture
+			orig_channel = (Producer<?>)DynLoader.getField(localdelivery, "resultsChannel");
+			DynLoader.setField(localdelivery, "resultsChannel", null);
+		}
+		java.io.File msg = new java.io.File("/no/such/message");
+		for (MessageRecip recip : recips) {
+			localdelivery.deliver(recip, msg);
+			if (recip.qstatus != MessageRecip.STATUS_BUSY) errors.add("recip not BUSY after deliver - "+recip);
+		}
+		if (localdelivery.inFlight() != recips.size()) errors.add("inflight="+localdelivery.inFlight()+" after deliver");
+		if (orphan_results) DynLoader.setField(localdelivery, "resultsChannel", orig_channel);
+	}
+
+	@Override
+	public void localDeliveryCompleted(MessageRecip recip, Throwable ex)
+	{
+		if (Thread.currentThread() != dsptch_thread) errors.add("Handler called outside Dispatcher thread");
+		if (results.containsKey(recip)) errors.add("Duplicate result for "+recip);
+		results.put(recip, ex == null ? NOERROR : ex);
+		if (results.size() == recips.size()) {
+			localdelivery.shutdown();
+			dsptch.stop();
+		}
+	}
+
+	private void addRecip(String username)
+	{
+		MessageRecip recip = new MessageRecip();
+		recip.set(recips.size()+1, 101, 0, 0, new ByteChars("sender@domain1"), null, new ByteChars(username), 0, 0);
+		recips.add(recip);
+	}
+
+	private static class MockStore implements MessageStore
+	{
+		final java.util.Set<String> delivered = java.util.concurrent.ConcurrentHashMap.newKeySet();
+		final java.util.Set<Thread> threads = java.util.concurrent.ConcurrentHashMap.newKeySet();
+		final java.util.Set<Long> timestamps = java.util.concurrent.ConcurrentHashMap.newKeySet();
+
+		@Override
+		public com.grey.mailismus.directory.Directory directory() {return null;}
+
+		@Override
+		public void deliver(CharSequence username, java.io.File msg) {
+			throw new UnsupportedOperationException("Synchronous delivery not expected for user="+username);
+		}
+
+		@Override
+		public String deliver(CharSequence username, java.io.File msg, long systime) throws java.io.IOException {
+			threads.add(Thread.currentThread());
+			timestamps.add(systime);
+			delivered.add(username.toString());
+			if (username.toString().equals("failuser")) throw new java.io.IOException("Simulated delivery failure");
+			if (username.toString().equals("warnuser")) return "Simulated warning";
+			return null;
+		}
+	}
+}
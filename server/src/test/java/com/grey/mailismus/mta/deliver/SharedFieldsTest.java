@@ -0,0 +1,68 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.deliver;
+
+public class SharedFieldsTest
+{
+	private static final int SERVER1 = com.grey.base.utils.IP.convertDottedIP("192.168.101.1");
+	private static final int SERVER2 = com.grey.base.utils.IP.convertDottedIP("192.168.101.2");
+
+	private final ConnectionConfig conncfg = ConnectionConfig.builder().withMaxServerConnections(2).build();
+
+	@org.junit.Test
+	public void testServerConnections() throws Exception
+	{
+		SharedFields shared = SharedFields.builder().withDefaultConfig(conncfg).build();
+		org.junit.Assert.assertTrue(shared.incrementServerConnections(SERVER1, conncfg));
+		org.junit.Assert.assertTrue(shared.incrementServerConnections(SERVER1, conncfg));
+		org.junit.Assert.assertFalse(shared.incrementServerConnections(SERVER1, conncfg));
+		org.junit.Assert.assertTrue(shared.incrementServerConnections(SERVER2, conncfg));
+		org.junit.Assert.assertEquals(2, shared.getActiveServerConnections());
+
+		shared.decrementServerConnections(SERVER1, conncfg);
+		org.junit.Assert.assertTrue(shared.incrementServerConnections(SERVER1, conncfg));
+		shared.decrementServerConnections(SERVER2, conncfg);
+		org.junit.Assert.assertEquals(1, shared.getActiveServerConnections());
+
+		// no limit
+		ConnectionConfig cfg2 = ConnectionConfig.builder().build();
+		for (int idx = 0; idx != 5; idx++) {
+			org.junit.Assert.assertTrue(shared.incrementServerConnections(SERVER2, cfg2));
+		}
+		org.junit.Assert.assertEquals(1, shared.getActiveServerConnections());
+	}
+
+	// The delivery shards each have their own SharedFields, but the limit applies to their combined connections
+	@org.junit.Test
+	public void testSharedServerConnections() throws Exception
+	{
+		java.util.concurrent.ConcurrentHashMap<Integer, java.util.concurrent.atomic.AtomicInteger> serverconns = new java.util.concurrent.ConcurrentHashMap<>();
+		SharedFields shard1 = SharedFields.builder().withDefaultConfig(conncfg).withSharedServerConnections(serverconns).build();
+		SharedFields shard2 = SharedFields.builder().withDefaultConfig(conncfg).withSharedServerConnections(serverconns).build();
+
+		org.junit.Assert.assertTrue(shard1.incrementServerConnections(SERVER1, conncfg));
+		org.junit.Assert.assertTrue(shard2.incrementServerConnections(SERVER1, conncfg));
+		org.junit.Assert.assertFalse(shard1.incrementServerConnections(SERVER1, conncfg));
+		org.junit.Assert.assertFalse(shard2.incrementServerConnections(SERVER1, conncfg));
+		org.junit.Assert.assertTrue(shard2.incrementServerConnections(SERVER2, conncfg));
+		org.junit.Assert.assertEquals(2, serverconns.get(SERVER1).get());
+		org.junit.Assert.assertEquals(1, shard1.getActiveServerConnections());
+		org.junit.Assert.assertEquals(2, shard2.getActiveServerConnections());
+
+		// a connection released by one shard can be taken by the other
+		shard1.decrementServerConnections(SERVER1, conncfg);
+		org.junit.Assert.assertEquals(0, shard1.getActiveServerConnections());
+		org.junit.Assert.assertTrue(shard2.incrementServerConnections(SERVER1, conncfg));
+		org.junit.Assert.assertFalse(shard1.incrementServerConnections(SERVER1, conncfg));
+		org.junit.Assert.assertEquals(2, serverconns.get(SERVER1).get());
+
+		shard2.decrementServerConnections(SERVER1, conncfg);
+		shard2.decrementServerConnections(SERVER1, conncfg);
+		shard2.decrementServerConnections(SERVER2, conncfg);
+		org.junit.Assert.assertEquals(0, serverconns.get(SERVER1).get());
+		org.junit.Assert.assertEquals(0, serverconns.get(SERVER2).get());
+		org.junit.Assert.assertEquals(0, shard2.getActiveServerConnections());
+	}
+}
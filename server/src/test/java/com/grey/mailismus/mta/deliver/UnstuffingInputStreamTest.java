@@ -0,0 +1,92 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.deliver;
+
+public class UnstuffingInputStreamTest
+{
+	private static final String STUFFED = "..first line\r\nsecond line\r\n..\r\n...third.line\r\n.\r\nlast. line";
+	private static final String UNSTUFFED = ".first line\r\nsecond line\r\n.\r\n..third.line\r\n\r\nlast. line";
+
+	@org.junit.Test
+	public void testBulkRead() throws java.io.IOException
+	{
+		byte[] buf = new byte[1024];
+		try (java.io.InputStream strm = open(STUFFED)) {
+			int nbytes = strm.read(buf, 0, buf.length);
+			org.junit.Assert.assertEquals(UNSTUFFED, new String(buf, 0, nbytes, "US-ASCII"));
+			org.junit.Assert.assertEquals(-1, strm.read(buf, 0, buf.length));
+		}
+	}
+
+	// The stuffed dots can fall on the boundaries of the underlying reads, and some reads will consist of nothing else
+	@org.junit.Test
+	public void testSmallReads() throws java.io.IOException
+	{
+		for (int bufsiz = 1; bufsiz != 8; bufsiz++) {
+			java.io.ByteArrayOutputStream ostrm = new java.io.ByteArrayOutputStream();
+			byte[] buf = new byte[bufsiz];
+			try (java.io.InputStream strm = new UnstuffingInputStream(new TrickleStream(STUFFED, bufsiz))) {
+				int nbytes;
+				while ((nbytes = strm.read(buf, 0, buf.length)) != -1) {
+					org.junit.Assert.assertTrue(nbytes > 0);
+					ostrm.write(buf, 0, nbytes);
+				}
+			}
+			org.junit.Assert.assertEquals("bufsiz="+bufsiz, UNSTUFFED, ostrm.toString("US-ASCII"));
+		}
+	}
+
+	@org.junit.Test
+	public void testSingleBytes() throws java.io.IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		try (java.io.InputStream strm = open(STUFFED)) {
+			int b;
+			while ((b = strm.read()) != -1) sb.append((char)b);
+		}
+		org.junit.Assert.assertEquals(UNSTUFFED, sb.toString());
+	}
+
+	@org.junit.Test
+	public void testSkip() throws java.io.IOException
+	{
+		try (java.io.InputStream strm = open(STUFFED)) {
+			org.junit.Assert.assertEquals(13, strm.skip(13));
+			org.junit.Assert.assertEquals('s', strm.read());
+			org.junit.Assert.assertEquals(UNSTUFFED.length() - 14, strm.skip(1000));
+			org.junit.Assert.assertEquals(-1, strm.read());
+		}
+	}
+
+	@org.junit.Test
+	public void testEmpty() throws java.io.IOException
+	{
+		try (java.io.InputStream strm = open("")) {
+			org.junit.Assert.assertEquals(-1, strm.read(new byte[10], 0, 10));
+		}
+		try (java.io.InputStream strm = open(".")) {
+			org.junit.Assert.assertEquals(-1, strm.read(new byte[10], 0, 10));
+		}
+	}
+
+	private static java.io.InputStream open(String txt) throws java.io.IOException
+	{
+		return new UnstuffingInputStream(new java.io.ByteArrayInputStream(txt.getBytes("US-ASCII")));
+	}
+
+	// returns at most maxread bytes per read() call
+	private static class TrickleStream extends java.io.ByteArrayInputStream
+	{
+		private final int maxread;
+		TrickleStream(String txt, int maxread) throws java.io.IOException {
+			super(txt.getBytes("US-ASCII"));
+			this.maxread = maxread;
+		}
+		@Override
+		public synchronized int read(byte[] b, int off, int len) {
+			return super.read(b, off, Math.min(len, maxread));
+		}
+	}
+}
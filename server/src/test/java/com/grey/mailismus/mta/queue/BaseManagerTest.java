@@ -153,6 +153,107 @@ public class BaseManagerTest
 		execSpoolerCollision(xmlcfg, recips);
 	}
 
+	@org.junit.Test
+	public void testGroupCommit() throws Exception
+	{
+		String xmlcfg = "<queue class='"+TestManager_GroupCommit.class.getName()+"'/>";
+		execGroupCommit(xmlcfg, false);
+	}
+
+	@org.junit.Test
+	public void testGroupCommit_Sync() throws Exception
+	{
+		String xmlcfg = "<queue class='"+TestManager_GroupCommit.class.getName()+"'/>";
+		execGroupCommit(xmlcfg, true);
+	}
+
+	@org.junit.Test
+	public void testGetPartition()
+	{
+		// local recipients and unpartitioned queues always map to partition zero
+		org.junit.Assert.assertEquals(0, QueueManager.getPartition(null, 4));
+		org.junit.Assert.assertEquals(0, QueueManager.getPartition("", 4));
+		org.junit.Assert.assertEquals(0, QueueManager.getPartition("domain1.org", 1));
+		org.junit.Assert.assertEquals(0, QueueManager.getPartition("domain1.org", 0));
+
+		// the partition is independent of case and of the CharSequence type
+		int part = QueueManager.getPartition("domain1.org", 4);
+		org.junit.Assert.assertEquals(part, QueueManager.getPartition("Domain1.ORG", 4));
+		org.junit.Assert.assertEquals(part, QueueManager.getPartition(new ByteChars("domain1.org"), 4));
+		org.junit.Assert.assertEquals(part, QueueManager.getPartition(new StringBuilder("DOMAIN1.org"), 4));
+
+		// every partition gets a reasonable share of the domains
+		final int partcnt = 4;
+		final int domcnt = 4000;
+		int[] hits = new int[partcnt];
+		for (int idx = 0; idx != domcnt; idx++) {
+			part = QueueManager.getPartition("domain"+idx+".org", partcnt);
+			org.junit.Assert.assertTrue(part >= 0 && part < partcnt);
+			hits[part]++;
+		}
+		for (int idx = 0; idx != partcnt; idx++) {
+			org.junit.Assert.assertTrue("partition="+idx+" has "+hits[idx], hits[idx] > (domcnt / partcnt) / 2);
+		}
+	}
+
+	@org.junit.Test
+	public void testGroupCommit_ReadOnly() throws Exception
+	{
+		String xmlcfg = "<queue class='"+TestManager_GroupCommit.class.getName()+"'>"
+				+"<read_only>Y</read_only>"
+				+"</queue>";
+		XmlConfig qcfg = XmlConfig.makeSection(xmlcfg, "/queue");
+		qmgr = QueueFactory.init(new QueueFactory(), dsptch, qcfg, null, "testqmgr-groupcommit-ro");
+		java.util.ArrayList<SubmitHandle> batch = new java.util.ArrayList<SubmitHandle>();
+		batch.add(startGroupSubmit("sender1@domain1.com", 1));
+		batch.add(startGroupSubmit("sender2@domain1.com", 2));
+		boolean[] results = new boolean[]{true, true};
+		qmgr.endSubmit(batch, results);
+		org.junit.Assert.assertFalse(results[0]);
+		org.junit.Assert.assertFalse(results[1]);
+		org.junit.Assert.assertEquals(0, ((TestManager_GroupCommit)qmgr).groupcnt);
+		ManagerTest.verifyEmptyQueue(qmgr);
+	}
+
+	// The second message of the group fails its control-queue commit, and must be rolled back without affecting the others
+	private void execGroupCommit(String xmlcfg, boolean sync) throws Exception
+	{
+		XmlConfig qcfg = XmlConfig.makeSection(xmlcfg, "/queue");
+		qmgr = QueueFactory.init(new QueueFactory(), dsptch, qcfg, null, "testqmgr-groupcommit");
+		TestManager_GroupCommit tmgr = (TestManager_GroupCommit)qmgr;
+		String[] senders = new String[]{"sender1@domain1.com", TestManager_GroupCommit.FAIL_SENDER, "sender3@domain1.com"};
+		java.util.ArrayList<SubmitHandle> batch = new java.util.ArrayList<SubmitHandle>();
+		int[] spids = new int[senders.length];
+		for (int idx = 0; idx != senders.length; idx++) {
+			SubmitHandle sph = startGroupSubmit(senders[idx], idx);
+			spids[idx] = sph.spid; //gets reset when the handle is released
+			batch.add(sph);
+		}
+		boolean[] results = new boolean[batch.size()];
+		qmgr.endSubmit(batch, results, sync);
+
+		org.junit.Assert.assertEquals(1, tmgr.groupcnt);
+		org.junit.Assert.assertEquals(senders.length, tmgr.groupmsgs);
+		org.junit.Assert.assertTrue(results[0]);
+		org.junit.Assert.assertFalse(results[1]);
+		org.junit.Assert.assertTrue(results[2]);
+		org.junit.Assert.assertTrue(java.nio.file.Files.exists(qmgr.getMessage(spids[0], 0)));
+		org.junit.Assert.assertFalse(java.nio.file.Files.exists(qmgr.getMessage(spids[1], 0)));
+		org.junit.Assert.assertTrue(java.nio.file.Files.exists(qmgr.getMessage(spids[2], 0)));
+		org.junit.Assert.assertEquals(2, ManagerTest.spoolSize(qmgr));
+		String body = FileOps.readAsText(qmgr.getMessage(spids[2], 0).toFile(), null);
+		org.junit.Assert.assertEquals("Message body 2\n", body);
+	}
+
+	private SubmitHandle startGroupSubmit(String sender, int msgnum) throws java.io.IOException
+	{
+		java.util.ArrayList<EmailAddress> recips = new java.util.ArrayList<EmailAddress>();
+		recips.add(new EmailAddress("recip"+msgnum+"@domain2.org"));
+		SubmitHandle sph = qmgr.startSubmit(new ByteChars(sender), recips, null, IP.convertDottedIP("192.168.101.1"));
+		sph.write(new ByteChars("Message body "+msgnum+"\n"));
+		return sph;
+	}
+
 	private void execSpoolerCollision(String xmlcfg, java.util.ArrayList<EmailAddress> recips) throws Exception
 	{
 		XmlConfig qcfg = XmlConfig.makeSection(xmlcfg, "/queue");
@@ -218,6 +319,27 @@ public class BaseManagerTest
 		protected boolean storeMessage(SubmitHandle sph) {throw new QException("Simulating ctl-store failure");}
 	}
 
+	public static class TestManager_GroupCommit extends TestManager
+	{
+		static final String FAIL_SENDER = "fail@domain1.com";
+		int groupcnt;
+		int groupmsgs;
+		public TestManager_GroupCommit(Dispatcher d, XmlConfig qcfg, AppConfig appcfg, String name) throws java.io.IOException {
+			super(d, qcfg, appcfg, name);
+		}
+		@Override
+		protected void storeMessages(java.util.List<SubmitHandle> batch, boolean[] results) {
+			groupcnt++;
+			groupmsgs += batch.size();
+			super.storeMessages(batch, results);
+		}
+		@Override
+		protected boolean storeMessage(SubmitHandle sph) {
+			if (sph.sender.toString().equals(FAIL_SENDER)) throw new QException("Simulating ctl-store failure");
+			return true;
+		}
+	}
+
 	public static class TestManager extends QueueManager
 	{
 		public TestManager(Dispatcher d, XmlConfig qcfg, AppConfig appcfg, String name) throws java.io.IOException {
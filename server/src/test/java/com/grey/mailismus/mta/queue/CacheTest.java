@@ -59,4 +59,113 @@ public class CacheTest
 		org.junit.Assert.assertSame(mr1, cache.get(2));
 		org.junit.Assert.assertSame(mr2, cache.get(1));
 	}
-}
\ No newline at end of file
+
+	@org.junit.Test
+	public void testSortColumnar()
+	{
+		int cap = 500;
+		Cache cache = new Cache(cap);
+		Cache colcache = new Cache(cap, true);
+		org.junit.Assert.assertFalse(cache.isColumnar());
+		org.junit.Assert.assertTrue(colcache.isColumnar());
+		java.util.Random rnd = new java.util.Random(17);
+		com.grey.base.utils.ByteChars sender = new com.grey.base.utils.ByteChars("sender1");
+		com.grey.base.utils.ByteChars mbx = new com.grey.base.utils.ByteChars("mbox");
+		com.grey.base.utils.ByteChars dom = new com.grey.base.utils.ByteChars("dom");
+		while (cache.size() != cap) {
+			int spid = rnd.nextInt(100) - 10;
+			int qcnt = 1 + rnd.nextInt(4);
+			boolean local = rnd.nextBoolean();
+			for (int qid = qcnt; qid != 0 && cache.size() != cap; qid--) {
+				long recvtime = cache.size();
+				cache.addEntry(qid, spid, recvtime, 0, sender, local ? null : dom, mbx, 0, 0);
+				colcache.addEntry(qid, spid, recvtime, 0, sender, local ? null : dom, mbx, 0, 0);
+			}
+		}
+		cache.sort();
+		colcache.sort();
+		for (int idx = 0; idx != cap; idx++) {
+			MessageRecip mr1 = cache.get(idx);
+			MessageRecip mr2 = colcache.get(idx);
+			org.junit.Assert.assertEquals(mr1.spid, mr2.spid);
+			org.junit.Assert.assertEquals(mr1.qid, mr2.qid);
+			org.junit.Assert.assertEquals(mr1.domain_to == null, mr2.domain_to == null);
+			org.junit.Assert.assertEquals(mr1.recvtime, mr2.recvtime);
+		}
+
+		// fields modified after loading are taken into account
+		int nlocal = 0;
+		for (int idx = 0; idx != cap; idx++) {
+			if (colcache.get(idx).domain_to == null) nlocal++;
+		}
+		MessageRecip mr = colcache.get(cap - 1);
+		mr.spid = -100;
+		colcache.sort();
+		org.junit.Assert.assertSame(mr, colcache.get(mr.domain_to == null ? 0 : nlocal));
+	}
+
+	@org.junit.Test
+	public void testInternColumnar()
+	{
+		Cache cache = new Cache(2, true);
+		com.grey.base.utils.ByteChars bc1 = cache.intern(new com.grey.base.utils.ByteChars("sender1@domain1"));
+		com.grey.base.utils.ByteChars bc2 = cache.intern("sender1@domain1");
+		com.grey.base.utils.ByteChars bc3 = cache.intern("sender2@domain1");
+		org.junit.Assert.assertEquals("sender1@domain1", bc1.toString());
+		org.junit.Assert.assertEquals("sender2@domain1", bc3.toString());
+		org.junit.Assert.assertSame(bc1, bc2);
+		org.junit.Assert.assertNotSame(bc1, bc3);
+
+		// more values than the sizing estimate allows for
+		for (int idx = 0; idx != 1000; idx++) {
+			com.grey.base.utils.ByteChars bc = cache.intern("value"+idx);
+			org.junit.Assert.assertEquals("value"+idx, bc.toString());
+		}
+		org.junit.Assert.assertSame(bc1, cache.intern("sender1@domain1"));
+		org.junit.Assert.assertEquals("sender1@domain1", bc1.toString());
+
+		cache.clear();
+		bc1 = cache.intern("sender3");
+		org.junit.Assert.assertEquals("sender3", bc1.toString());
+		org.junit.Assert.assertSame(bc1, cache.intern("sender3"));
+	}
+
+	@org.junit.Test
+	public void testMoveCompleted()
+	{
+		Cache cache = new Cache(5, false, true);
+		Cache done = new Cache(5, false, true);
+		org.junit.Assert.assertTrue(cache.isStreaming());
+		MessageRecip[] recips = new MessageRecip[5];
+		for (int idx = 0; idx != recips.length; idx++) {
+			recips[idx] = cache.addEntry(idx+1, 10+idx, 0, 0, null, new com.grey.base.utils.ByteChars("dom"+idx),
+					new com.grey.base.utils.ByteChars("mbox"+idx), 0, 0);
+		}
+		recips[0].qstatus = MessageRecip.STATUS_DONE;
+		recips[2].qstatus = MessageRecip.STATUS_DONE;
+		recips[3].qstatus = MessageRecip.STATUS_BUSY;
+		recips[4].qstatus = MessageRecip.STATUS_DONE;
+		org.junit.Assert.assertEquals(3, cache.moveCompleted(done));
+		org.junit.Assert.assertEquals(2, cache.size());
+		org.junit.Assert.assertSame(recips[1], cache.get(0));
+		org.junit.Assert.assertSame(recips[3], cache.get(1));
+		org.junit.Assert.assertEquals(3, done.size());
+		org.junit.Assert.assertSame(recips[0], done.get(0));
+		org.junit.Assert.assertSame(recips[2], done.get(1));
+		org.junit.Assert.assertSame(recips[4], done.get(2));
+
+		// the freed slots have spare objects, which can be refilled
+		for (int idx = 2; idx != cache.capacity(); idx++) {
+			org.junit.Assert.assertEquals(MessageRecip.STATUS_NULL, cache.get(idx).qstatus);
+			for (int idx2 = 0; idx2 != recips.length; idx2++) {
+				org.junit.Assert.assertNotSame(recips[idx2], cache.get(idx));
+			}
+		}
+		MessageRecip mr = cache.addEntry(9, 99, 0, 0, null, null, new com.grey.base.utils.ByteChars("mbox9"), 0, 0);
+		org.junit.Assert.assertSame(mr, cache.get(2));
+		org.junit.Assert.assertEquals(0, cache.moveCompleted(done));
+		org.junit.Assert.assertEquals(3, cache.size());
+		done.clear();
+		org.junit.Assert.assertEquals(MessageRecip.STATUS_NULL, recips[0].qstatus);
+	}
+}
@@ -174,6 +174,72 @@ public abstract class ManagerTest
 		org.junit.Assert.assertEquals(2, refcnt.get(spid1));
 	}
 
+	// Several queue managers each load their own partition of one multi-recipient message, as the delivery shards would.
+	// Each should see exactly the recipients whose domain hashes to its partition, with the local recipient in partition zero,
+	// and the message should be deleted once they have all been delivered.
+	@org.junit.Test
+	public void testPartitions() throws Exception
+	{
+		org.junit.Assume.assumeTrue(isTestSuiteRunnable() && qmgr.supportsPartitions());
+		final int partcnt = 3;
+		int[] expected = new int[partcnt];
+		java.util.ArrayList<EmailAddress> recips = new java.util.ArrayList<EmailAddress>();
+		for (int idx = 0; idx != 30; idx++) {
+			String domain = "domain"+idx+".org";
+			recips.add(new EmailAddress("user"+idx+"@"+domain));
+			expected[QueueManager.getPartition(domain, partcnt)]++;
+		}
+		recips.add(new EmailAddress("local.user"));
+		expected[0]++;
+		ByteChars sndr = new ByteChars("the.sender@somedomain.com");
+		int spid = qmgr.submit(sndr, recips, null, IP.convertDottedIP("192.168.101.1"), new ByteChars("This is the message body\n"));
+		org.junit.Assert.assertTrue(spid != 0);
+		org.junit.Assert.assertEquals(1, spoolSize(qmgr));
+
+		QueueManager[] shards = new QueueManager[partcnt];
+		shards[0] = qmgr;
+		for (int idx = 1; idx != partcnt; idx++) {
+			shards[idx] = createManager(null, "utest-partition"+idx);
+		}
+		try {
+			for (int idx = 0; idx != partcnt; idx++) {
+				shards[idx].setPartition(idx, partcnt);
+				org.junit.Assert.assertEquals(idx, shards[idx].partitionID());
+				org.junit.Assert.assertEquals(partcnt, shards[idx].partitionCount());
+			}
+			int total = 0;
+			for (int idx = 0; idx != partcnt; idx++) {
+				Cache cache = shards[idx].initCache(100);
+				shards[idx].getMessages(cache);
+				org.junit.Assert.assertEquals("partition="+idx, expected[idx], cache.size());
+				for (int idx2 = 0; idx2 != cache.size(); idx2++) {
+					MessageRecip mr = cache.get(idx2);
+					org.junit.Assert.assertEquals(mr.toString(), idx, QueueManager.getPartition(mr.domain_to, partcnt));
+					mr.qstatus = MessageRecip.STATUS_DONE;
+					mr.smtp_status = Protocol.REPLYCODE_OK;
+				}
+				total += cache.size();
+				org.junit.Assert.assertEquals(cache.size(), shards[idx].messagesProcessed(cache));
+			}
+			org.junit.Assert.assertEquals(recips.size(), total);
+		} finally {
+			for (int idx = 1; idx != partcnt; idx++) {
+				shards[idx].stop();
+			}
+		}
+		verifyEmptyQueue(qmgr);
+	}
+
+	@org.junit.Test
+	public void testPartitionsUnsupported() throws Exception
+	{
+		org.junit.Assume.assumeTrue(isTestSuiteRunnable() && !qmgr.supportsPartitions());
+		try {
+			qmgr.setPartition(0, 2);
+			org.junit.Assert.fail("Failed to reject partitioning");
+		} catch (QException ex) {}
+	}
+
 	@org.junit.Test
 	public void testBulkDelivery() throws Exception
 	{
@@ -745,7 +811,7 @@ public abstract class ManagerTest
 		return QueueFactory.init(new QueueFactory(), dsptch, qcfg, appcfg, name);
 	}
 
-	private static AppConfig createAppConfig(Dispatcher dsptch, boolean withDB) throws java.io.IOException
+	public static AppConfig createAppConfig(Dispatcher dsptch, boolean withDB) throws java.io.IOException
 	{
 		String dbjar = (withDB ? SysProps.get(TestSupport.SYSPROP_DBJAR, null) : null);
 		try {
@@ -780,7 +846,7 @@ public abstract class ManagerTest
 		return DynLoader.getField(qmgr.getSpooler(), fldnam);
 	}
 
-	static int spoolSize(QueueManager qmgr) {
+	public static int spoolSize(QueueManager qmgr) {
 		java.nio.file.Path pth = (java.nio.file.Path)getSpoolField(qmgr, "dhroot");
 		return FileOps.countFiles(pth.toFile(), true);
 	}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.queue;
+
+import com.grey.base.config.SysProps;
+import com.grey.base.config.XmlConfig;
+import com.grey.base.utils.ByteChars;
+import com.grey.base.utils.EmailAddress;
+import com.grey.base.utils.FileOps;
+import com.grey.base.utils.IP;
+import com.grey.base.utils.TimeOps;
+import com.grey.naf.ApplicationContextNAF;
+import com.grey.naf.reactor.Dispatcher;
+import com.grey.naf.reactor.TimerNAF;
+import com.grey.naf.reactor.config.DispatcherConfig;
+import com.grey.mailismus.AppConfig;
+import com.grey.mailismus.TestSupport;
+import com.grey.mailismus.mta.queue.queue_providers.filesystem.FilesysQueue;
+import com.grey.logging.Logger;
+
+/*
+ * The consumer's Dispatcher is stopped once it has been woken (after a short grace period, to catch any spurious extra
+ * wakeups) so each test runs until the expected wakeups have been delivered.
+ */
+public class QueueWakeupTest
+	implements QueueWakeup.Handler, TimerNAF.Handler
+{
+	static {
+		SysProps.set("greynaf.dispatchers.tolerant_threadchecks", true);
+	}
+	private static final Logger logger = com.grey.logging.Factory.getLoggerNoEx("qwakeuptest");
+	private static final String QCFG = "<queue class='"+FilesysQueue.class.getName()+"'/>";
+	private static final long GRACETIME = 250;
+
+	private final String rootpath = TestSupport.initPaths(getClass());
+	private Dispatcher dsptch;
+	private AppConfig appcfg;
+	private QueueManager qmgr; //the consumer's queue manager, which lives in its Dispatcher
+	private QueueManager qmgr_submit; //the submitter's queue manager, which is called in this thread
+	private final java.util.List<QueueWakeup> woken = new java.util.concurrent.CopyOnWriteArrayList<>();
+	private TimerNAF tmr_stop;
+
+	@org.junit.Before
+	public void init() throws java.io.IOException
+	{
+		ApplicationContextNAF appctx = TestSupport.createApplicationContext(null, true);
+		DispatcherConfig def = new DispatcherConfig.Builder().withName("qwakeuptest").build();
+		dsptch = Dispatcher.create(appctx, def, logger);
+		FileOps.ensureDirExists(dsptch.getApplicationContext().getConfig().getPathTemp());
+		appcfg = ManagerTest.createAppConfig(dsptch, false);
+		qmgr = createManager("utest-wakeup");
+		qmgr_submit = createManager("utest-wakeup-submit");
+	}
+
+	@org.junit.After
+	public void shutdown() throws java.io.IOException
+	{
+		if (qmgr != null) qmgr.stop();
+		if (qmgr_submit != null) qmgr_submit.stop();
+		qmgr = null;
+		qmgr_submit = null;
+	}
+
+	@org.junit.Test
+	public void testIncoming() throws Exception
+	{
+		QueueWakeup incoming = new QueueWakeup(qmgr, QueueWakeup.EVENT_INCOMING, false, this);
+		QueueWakeup bounces = new QueueWakeup(qmgr, QueueWakeup.EVENT_BOUNCES, false, this);
+		org.junit.Assert.assertEquals(2, QueueWakeup.getRegistry(qmgr_submit).size());
+		dsptch.start();
+		submitMessage();
+		waitStopped();
+		org.junit.Assert.assertEquals(1, woken.size());
+		org.junit.Assert.assertSame(incoming, woken.get(0));
+		incoming.close();
+		bounces.close();
+		org.junit.Assert.assertEquals(0, QueueWakeup.getRegistry(qmgr_submit).size());
+	}
+
+	// Signals which arrive before the consumer has been called are coalesced into one wakeup
+	@org.junit.Test
+	public void testCoalesced() throws Exception
+	{
+		QueueWakeup incoming = new QueueWakeup(qmgr, QueueWakeup.EVENT_INCOMING, false, this);
+		submitMessage();
+		submitMessage();
+		submitMessage();
+		dsptch.start();
+		waitStopped();
+		org.junit.Assert.assertEquals(1, woken.size());
+		org.junit.Assert.assertSame(incoming, woken.get(0));
+		incoming.close();
+	}
+
+	// A queue manager which loads in the background only wakes its own consumer, not the others on the same queue
+	@org.junit.Test
+	public void testOwnerSignal() throws Exception
+	{
+		QueueWakeup own = new QueueWakeup(qmgr, QueueWakeup.EVENT_INCOMING, false, this);
+		QueueWakeup other = new QueueWakeup(qmgr_submit, QueueWakeup.EVENT_INCOMING, false, this);
+		java.util.List<QueueWakeup> registry = QueueWakeup.getRegistry(qmgr);
+		org.junit.Assert.assertEquals(2, registry.size());
+		dsptch.start();
+		QueueWakeup.signal(registry, qmgr, QueueWakeup.EVENT_BOUNCES);
+		QueueWakeup.signal(registry, qmgr, QueueWakeup.EVENT_INCOMING);
+		waitStopped();
+		org.junit.Assert.assertEquals(1, woken.size());
+		org.junit.Assert.assertSame(own, woken.get(0));
+		own.close();
+		other.close();
+	}
+
+	// A closed consumer no longer gets woken, and signalling it doesn't fail
+	@org.junit.Test
+	public void testClosed() throws Exception
+	{
+		QueueWakeup closed = new QueueWakeup(qmgr, QueueWakeup.EVENT_INCOMING, false, this);
+		QueueWakeup bounces = new QueueWakeup(qmgr, QueueWakeup.EVENT_BOUNCES, false, this);
+		closed.close();
+		org.junit.Assert.assertEquals(1, QueueWakeup.getRegistry(qmgr).size());
+		dsptch.start();
+		submitMessage();
+		QueueWakeup.signal(QueueWakeup.getRegistry(qmgr), QueueWakeup.EVENT_BOUNCES, logger);
+		waitStopped();
+		org.junit.Assert.assertEquals(1, woken.size());
+		org.junit.Assert.assertSame(bounces, woken.get(0));
+		bounces.close();
+	}
+
+	// Submissions made by other processes are only seen by watching the queue, so simulate one by writing directly into it
+	@org.junit.Test
+	public void testWatch() throws Exception
+	{
+		java.nio.file.Path watchpath = qmgr.getWatchPath(QueueWakeup.EVENT_INCOMING);
+		org.junit.Assert.assertNotNull(watchpath);
+		FileOps.ensureDirExists(watchpath);
+		QueueWakeup watcher = new QueueWakeup(qmgr, QueueWakeup.EVENT_INCOMING, true, this);
+		dsptch.start();
+		java.nio.file.Files.write(watchpath.resolve("utest-external-submit"), new byte[]{'x'});
+		waitStopped();
+		// the create and write may be reported separately, so we could legitimately be woken more than once
+		org.junit.Assert.assertTrue(woken.size() != 0);
+		for (QueueWakeup w : woken) {
+			org.junit.Assert.assertSame(watcher, w);
+		}
+		watcher.close();
+	}
+
+	@Override
+	public void queueWakeup(QueueWakeup w)
+	{
+		woken.add(w);
+		if (tmr_stop == null) tmr_stop = dsptch.setTimer(GRACETIME, 0, this);
+	}
+
+	@Override
+	public void timerIndication(TimerNAF t, Dispatcher d)
+	{
+		d.stop();
+	}
+
+	private void submitMessage() throws java.io.IOException
+	{
+		java.util.ArrayList<EmailAddress> recips = new java.util.ArrayList<EmailAddress>();
+		recips.add(new EmailAddress("recip1@domain1.org"));
+		ByteChars sndr = new ByteChars("the.sender@somedomain.com");
+		int spid = qmgr_submit.submit(sndr, recips, null, IP.convertDottedIP("192.168.101.1"), new ByteChars("This is the message body\n"));
+		org.junit.Assert.assertTrue(spid != 0);
+	}
+
+	private void waitStopped()
+	{
+		Dispatcher.STOPSTATUS stopsts = dsptch.waitStopped(TimeOps.MSECS_PER_SECOND*10L, true);
+		org.junit.Assert.assertEquals(Dispatcher.STOPSTATUS.STOPPED, stopsts);
+		org.junit.Assert.assertTrue(dsptch.completedOK());
+	}
+
+	private QueueManager createManager(String name) throws java.io.IOException
+	{
+		XmlConfig qcfg = XmlConfig.makeSection(QCFG, "/queue");
+		return QueueFactory.init(new QueueFactory(), dsptch, qcfg, appcfg, name);
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.queue;
+
+import com.grey.base.collections.HashedMapIntInt;
+
+public class SpoolCheckpointTest
+{
+	private final java.nio.file.Path dh;
+
+	public SpoolCheckpointTest() throws java.io.IOException
+	{
+		dh = java.nio.file.Files.createTempDirectory("utest-spoolckpt");
+		dh.toFile().deleteOnExit();
+	}
+
+	@org.junit.Test
+	public void testSnapshotAndJournal()
+	{
+		HashedMapIntInt refcnt = new HashedMapIntInt();
+		SpoolCheckpoint ckpt = new SpoolCheckpoint(dh, 1000, null, "utest: ");
+		org.junit.Assert.assertFalse(ckpt.load(refcnt));
+		refcnt.put(101, 3);
+		refcnt.put(103, 5);
+		ckpt.save(refcnt);
+
+		// these changes go into the journal, on top of the snapshot
+		refcnt.put(105, 2);
+		ckpt.set(105, 2);
+		refcnt.put(101, 1);
+		ckpt.set(101, 1);
+		refcnt.remove(103);
+		ckpt.remove(103);
+		ckpt.flush(refcnt);
+		ckpt.close();
+		verifyLoad(refcnt);
+
+		// a torn record at the end of the journal is ignored
+		java.nio.file.Path fh = dh.resolve("refcnt.jnl");
+		try (java.io.OutputStream strm = java.nio.file.Files.newOutputStream(fh, java.nio.file.StandardOpenOption.APPEND)) {
+			strm.write(new byte[]{1, 0, 0});
+		} catch (java.io.IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		verifyLoad(refcnt);
+
+		// a full journal is folded into a new snapshot
+		ckpt = new SpoolCheckpoint(dh, 2, null, "utest: ");
+		HashedMapIntInt refcnt2 = new HashedMapIntInt();
+		org.junit.Assert.assertTrue(ckpt.load(refcnt2));
+		refcnt2.put(107, 4);
+		ckpt.set(107, 4);
+		ckpt.flush(refcnt2);
+		ckpt.close();
+		org.junit.Assert.assertEquals(0, fh.toFile().length());
+		verifyLoad(refcnt2);
+
+		SpoolCheckpoint.discard(dh);
+		org.junit.Assert.assertFalse(new SpoolCheckpoint(dh, 1000, null, "utest: ").load(new HashedMapIntInt()));
+	}
+
+	@org.junit.Test
+	public void testCorruptSnapshot() throws java.io.IOException
+	{
+		java.nio.file.Files.write(dh.resolve("refcnt.ckpt"), new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+		HashedMapIntInt refcnt = new HashedMapIntInt();
+		org.junit.Assert.assertFalse(new SpoolCheckpoint(dh, 1000, null, "utest: ").load(refcnt));
+		org.junit.Assert.assertEquals(0, refcnt.size());
+		SpoolCheckpoint.discard(dh);
+	}
+
+	@org.junit.Test
+	public void testHighWater() throws java.io.IOException
+	{
+		org.junit.Assert.assertNull(SpoolCheckpoint.loadHighWater(dh));
+		SpoolCheckpoint.saveHighWater(dh, 0xfffffff0);
+		org.junit.Assert.assertEquals(Integer.valueOf(0xfffffff0), SpoolCheckpoint.loadHighWater(dh));
+		SpoolCheckpoint.saveHighWater(dh, 12345);
+		org.junit.Assert.assertEquals(Integer.valueOf(12345), SpoolCheckpoint.loadHighWater(dh));
+		SpoolCheckpoint.discard(dh);
+		org.junit.Assert.assertNull(SpoolCheckpoint.loadHighWater(dh));
+	}
+
+	private void verifyLoad(HashedMapIntInt expect)
+	{
+		HashedMapIntInt refcnt = new HashedMapIntInt();
+		SpoolCheckpoint ckpt = new SpoolCheckpoint(dh, 1000, null, "utest: ");
+		org.junit.Assert.assertTrue(ckpt.load(refcnt));
+		org.junit.Assert.assertEquals(expect.size(), refcnt.size());
+		com.grey.base.collections.IteratorInt it = expect.recycledKeysIterator();
+		while (it.hasNext()) {
+			int spid = it.next();
+			org.junit.Assert.assertEquals(expect.get(spid), refcnt.get(spid));
+		}
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.queue;
+
+public class SpoolCompressionTest
+{
+	private static final int BENCH_MSGSIZE = 64 * 1024;
+	private static final int BENCH_MSGCNT = 200;
+
+	private final java.nio.file.Path dh;
+
+	public SpoolCompressionTest() throws java.io.IOException
+	{
+		dh = java.nio.file.Files.createTempDirectory("utest-spoolcompress");
+		dh.toFile().deleteOnExit();
+	}
+
+	@org.junit.Test
+	public void testRoundTrip() throws java.io.IOException
+	{
+		byte[] msg = makeMessage(100 * 1024, 1);
+		java.util.zip.Deflater deflater = new java.util.zip.Deflater(1, true);
+		java.nio.file.Path fh = dh.resolve("compressed.msg");
+		writeSpool(fh, msg, deflater);
+		deflater.end();
+
+		org.junit.Assert.assertTrue(SpoolCompression.isCompressed(fh));
+		org.junit.Assert.assertTrue(java.nio.file.Files.size(fh) < msg.length);
+		org.junit.Assert.assertEquals(msg.length, SpoolCompression.getContentSize(fh));
+		org.junit.Assert.assertArrayEquals(msg, readSpool(fh));
+		java.nio.file.Files.delete(fh);
+
+		// uncompressed spool files are passed through as they are
+		fh = dh.resolve("plain.msg");
+		java.nio.file.Files.write(fh, msg);
+		org.junit.Assert.assertFalse(SpoolCompression.isCompressed(fh));
+		org.junit.Assert.assertNull(SpoolCompression.openCompressed(fh));
+		org.junit.Assert.assertEquals(msg.length, SpoolCompression.getContentSize(fh));
+		org.junit.Assert.assertArrayEquals(msg, readSpool(fh));
+		java.nio.file.Files.delete(fh);
+
+		// and so are tiny ones
+		byte[] tiny = new byte[]{'a', '\r', '\n'};
+		fh = dh.resolve("tiny.msg");
+		java.nio.file.Files.write(fh, tiny);
+		org.junit.Assert.assertFalse(SpoolCompression.isCompressed(fh));
+		org.junit.Assert.assertArrayEquals(tiny, readSpool(fh));
+		java.nio.file.Files.delete(fh);
+	}
+
+	@org.junit.Test
+	public void testEmptyMessage() throws java.io.IOException
+	{
+		java.util.zip.Deflater deflater = new java.util.zip.Deflater(1, true);
+		java.nio.file.Path fh = dh.resolve("empty.msg");
+		writeSpool(fh, new byte[0], deflater);
+		deflater.end();
+		org.junit.Assert.assertTrue(SpoolCompression.isCompressed(fh));
+		org.junit.Assert.assertEquals(0, SpoolCompression.getContentSize(fh));
+		org.junit.Assert.assertEquals(0, readSpool(fh).length);
+		java.nio.file.Files.delete(fh);
+	}
+
+	// Compares the bytes written to the spool, and the rate at which messages can be spooled and then read back for
+	// delivery, with and without compression. It only asserts that compression saves space on typical message content, as
+	// the timings obviously depend on the platform, but it reports them so that the trade-off can be judged.
+	// The messages are read back the way the SMTP Client sends them, ie. by transferring the file (or the channel which
+	// inflates it) to the connection, and then once more to verify their content.
+	@org.junit.Test
+	public void testBenchmark() throws java.io.IOException
+	{
+		byte[][] msgs = new byte[16][];
+		for (int idx = 0; idx != msgs.length; idx++) {
+			msgs[idx] = makeMessage(BENCH_MSGSIZE, idx);
+		}
+		long[] plain = runBenchmark(msgs, 0);
+		long[] deflated = runBenchmark(msgs, 1);
+		org.junit.Assert.assertEquals((long)BENCH_MSGSIZE * BENCH_MSGCNT, plain[0]);
+		org.junit.Assert.assertTrue("compressed="+deflated[0]+" vs "+plain[0], deflated[0] < plain[0] / 2);
+		System.out.println("SpoolCompression benchmark: msgs="+BENCH_MSGCNT+"x"+BENCH_MSGSIZE
+				+" - uncompressed bytes="+plain[0]+", write="+plain[1]+"ms, read="+plain[2]+"ms"
+				+" - compressed bytes="+deflated[0]+" ("+(deflated[0] * 100 / plain[0])+"%), write="+deflated[1]+"ms, read="+deflated[2]+"ms");
+	}
+
+	@org.junit.Test
+	public void testChannel() throws java.io.IOException
+	{
+		final int chunksiz = 16 * 1024;
+		byte[] msg = makeMessage(100 * 1024 + 7, 1);
+		java.util.zip.Deflater deflater = new java.util.zip.Deflater(1, true);
+		java.nio.file.Path fh = dh.resolve("channel.msg");
+		writeSpool(fh, msg, deflater);
+		deflater.end();
+
+		// read it in pieces which don't line up with the chunks, as the writer would
+		java.io.ByteArrayOutputStream ostrm = new java.io.ByteArrayOutputStream();
+		try (java.nio.channels.FileChannel chan = SpoolCompression.asChannel(SpoolCompression.openCompressed(fh), msg.length, chunksiz)) {
+			org.junit.Assert.assertEquals(msg.length, chan.size());
+			java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate(5000);
+			long pos = 0;
+			int nbytes;
+			while ((nbytes = chan.read(buf, pos)) != -1) {
+				org.junit.Assert.assertTrue(nbytes > 0);
+				ostrm.write(buf.array(), 0, nbytes);
+				pos += nbytes;
+				buf.clear();
+			}
+			org.junit.Assert.assertEquals(msg.length, pos);
+			try {
+				chan.read(buf, 0);
+				org.junit.Assert.fail("Failed to reject backward read");
+			} catch (java.io.IOException ex) {}
+		}
+		org.junit.Assert.assertArrayEquals(msg, ostrm.toByteArray());
+
+		// transfer it to a target which only accepts part of what it's offered, as a busy socket would
+		ostrm.reset();
+		try (java.nio.channels.FileChannel chan = SpoolCompression.asChannel(SpoolCompression.openCompressed(fh), msg.length, chunksiz)) {
+			java.nio.channels.WritableByteChannel target = new java.nio.channels.WritableByteChannel() {
+				@Override
+				public int write(java.nio.ByteBuffer src) {
+					int len = Math.min(src.remaining(), 3000);
+					byte[] b = new byte[len];
+					src.get(b);
+					ostrm.write(b, 0, len);
+					return len;
+				}
+				@Override public boolean isOpen() {return true;}
+				@Override public void close() {}
+			};
+			long pos = 0;
+			while (pos != msg.length) {
+				long nbytes = chan.transferTo(pos, chunksiz, target);
+				org.junit.Assert.assertTrue(nbytes > 0 && nbytes < chunksiz);
+				pos += nbytes;
+			}
+			org.junit.Assert.assertEquals(0, chan.transferTo(pos, chunksiz, target));
+		}
+		org.junit.Assert.assertArrayEquals(msg, ostrm.toByteArray());
+
+		// it can be mapped and share-locked, but not written to or locked exclusively
+		try (java.nio.channels.FileChannel chan = SpoolCompression.asChannel(SpoolCompression.openCompressed(fh), msg.length, chunksiz)) {
+			java.nio.MappedByteBuffer mbuf = chan.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 1000, 50000);
+			byte[] region = new byte[mbuf.remaining()];
+			mbuf.get(region);
+			org.junit.Assert.assertArrayEquals(java.util.Arrays.copyOfRange(msg, 1000, 51000), region);
+			try {
+				chan.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, 100);
+				org.junit.Assert.fail("Failed to reject backward map");
+			} catch (java.io.IOException ex) {}
+			try {
+				chan.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 60000, msg.length);
+				org.junit.Assert.fail("Failed to reject map beyond end");
+			} catch (java.io.IOException ex) {}
+			try {
+				chan.map(java.nio.channels.FileChannel.MapMode.READ_WRITE, 60000, 100);
+				org.junit.Assert.fail("Failed to reject writable map");
+			} catch (java.nio.channels.NonWritableChannelException ex) {}
+			try {
+				chan.lock(0, Long.MAX_VALUE, false);
+				org.junit.Assert.fail("Failed to reject exclusive lock");
+			} catch (java.nio.channels.NonWritableChannelException ex) {}
+			java.nio.channels.FileLock lck = chan.tryLock(0, Long.MAX_VALUE, true);
+			org.junit.Assert.assertTrue(lck.isShared());
+			org.junit.Assert.assertTrue(lck.isValid());
+			lck.release();
+			org.junit.Assert.assertFalse(lck.isValid());
+			lck = chan.lock(0, Long.MAX_VALUE, true);
+			chan.close();
+			org.junit.Assert.assertFalse(lck.isValid());
+			try {
+				chan.read(java.nio.ByteBuffer.allocate(10), 60000);
+				org.junit.Assert.fail("Failed to reject read after close");
+			} catch (java.nio.channels.ClosedChannelException ex) {}
+		}
+		java.nio.file.Files.delete(fh);
+	}
+
+	// returns the bytes written, and the write and read times in milliseconds
+	private long[] runBenchmark(byte[][] msgs, int level) throws java.io.IOException
+	{
+		java.util.zip.Deflater deflater = (level == 0 ? null : new java.util.zip.Deflater(level, true));
+		java.nio.file.Path[] files = new java.nio.file.Path[BENCH_MSGCNT];
+		long time1 = System.nanoTime();
+		long totalbytes = 0;
+		for (int idx = 0; idx != files.length; idx++) {
+			files[idx] = dh.resolve("bench"+level+"_"+idx+".msg");
+			writeSpool(files[idx], msgs[idx % msgs.length], deflater);
+			totalbytes += java.nio.file.Files.size(files[idx]);
+		}
+		long time2 = System.nanoTime();
+		CountingChannel sink = new CountingChannel();
+		for (int idx = 0; idx != files.length; idx++) {
+			sink.count = 0;
+			java.io.InputStream strm = SpoolCompression.openCompressed(files[idx]);
+			try (java.nio.channels.FileChannel chan = (strm == null ? java.nio.channels.FileChannel.open(files[idx])
+					: SpoolCompression.asChannel(strm, SpoolCompression.getContentSize(files[idx]), 16 * 1024))) {
+				long pos = 0;
+				while (pos != chan.size()) pos += chan.transferTo(pos, chan.size() - pos, sink);
+			}
+			org.junit.Assert.assertEquals(BENCH_MSGSIZE, sink.count);
+		}
+		long time3 = System.nanoTime();
+		for (int idx = 0; idx != files.length; idx++) {
+			org.junit.Assert.assertArrayEquals(msgs[idx % msgs.length], readSpool(files[idx]));
+			java.nio.file.Files.delete(files[idx]);
+		}
+		if (deflater != null) deflater.end();
+		return new long[]{totalbytes, (time2 - time1) / 1_000_000, (time3 - time2) / 1_000_000};
+	}
+
+	private static void writeSpool(java.nio.file.Path fh, byte[] msg, java.util.zip.Deflater deflater) throws java.io.IOException
+	{
+		java.io.OutputStream strm = java.nio.file.Files.newOutputStream(fh);
+		if (deflater != null) {
+			deflater.reset();
+			strm = SpoolCompression.wrap(strm, deflater, 8192);
+		}
+		try {
+			// write it in chunks, as the SMTP server would
+			for (int off = 0; off < msg.length; off += 1500) {
+				strm.write(msg, off, Math.min(1500, msg.length - off));
+			}
+		} finally {
+			strm.close();
+		}
+	}
+
+	private static byte[] readSpool(java.nio.file.Path fh) throws java.io.IOException
+	{
+		java.io.ByteArrayOutputStream ostrm = new java.io.ByteArrayOutputStream();
+		try (java.io.InputStream strm = SpoolCompression.open(fh)) {
+			byte[] buf = new byte[4096];
+			int nbytes;
+			while ((nbytes = strm.read(buf)) != -1) ostrm.write(buf, 0, nbytes);
+		}
+		return ostrm.toByteArray();
+	}
+
+	// generates a plausible text message, which compresses about as well as typical mail content
+	private static byte[] makeMessage(int size, int seed)
+	{
+		String[] words = {"the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "mail", "message", "delivery",
+				"queue", "spool", "server", "recipient", "newsletter", "subscribe", "offer", "account", "Mailismus"};
+		java.util.Random rnd = new java.util.Random(seed);
+		StringBuilder sb = new StringBuilder(size + 100);
+		sb.append("From: sender").append(seed).append("@example.com\r\nTo: recip@example.org\r\nSubject: Test message ");
+		sb.append(seed).append("\r\n\r\n");
+		int linelen = 0;
+		while (sb.length() < size) {
+			String word = words[rnd.nextInt(words.length)];
+			sb.append(word);
+			linelen += word.length();
+			if (linelen > 70) {
+				sb.append("\r\n");
+				linelen = 0;
+			} else {
+				sb.append(' ');
+				linelen++;
+			}
+		}
+		sb.setLength(size);
+		return sb.toString().getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+	}
+
+
+	// stands in for the connection, discarding what it's sent
+	private static class CountingChannel implements java.nio.channels.WritableByteChannel
+	{
+		long count;
+		@Override
+		public int write(java.nio.ByteBuffer src) {
+			int len = src.remaining();
+			src.position(src.limit());
+			count += len;
+			return len;
+		}
+		@Override public boolean isOpen() {return true;}
+		@Override public void close() {}
+	}
+}
@@ -17,6 +17,7 @@ public class SpoolerTest
 {
 	private static final String testrootpath = TestSupport.initPaths(SpoolerTest.class);
 	private static final com.grey.logging.Logger logger = com.grey.logging.Factory.getLoggerNoEx("no-such-logger");
+	private final ApplicationContextNAF appctx;
 	private final Spooler spool;
 	private final java.io.File dhroot;
 	private final java.lang.reflect.Method method_del;
@@ -24,7 +25,7 @@ public class SpoolerTest
 	public SpoolerTest() throws Exception
 	{
 		String cfgpath = TestSupport.getResourcePath("/mtanaf.xml", getClass());
-		ApplicationContextNAF appctx = TestSupport.createApplicationContext(null, cfgpath, true);
+		appctx = TestSupport.createApplicationContext(null, cfgpath, true);
 		FileOps.deleteDirectory(appctx.getConfig().getPathVar());
 		spool = new Spooler(appctx, XmlConfig.getSection(cfgpath, "naf"), logger, "utest");
 		java.nio.file.Path pth = (java.nio.file.Path) DynLoader.getField(spool, "dhroot");
@@ -168,6 +169,83 @@ public class SpoolerTest
 		org.junit.Assert.assertEquals(exportdir, fh.getParentFile());
 	}
 
+	@org.junit.Test
+	public void testDedup() throws Exception
+	{
+		String cfgxml = "<spool><rootpath>"+testrootpath+"/dedupspool</rootpath><dedup>Y</dedup></spool>";
+		Spooler dspool = new Spooler(appctx, XmlConfig.makeSection(cfgxml, "/spool"), logger, "utest-dedup");
+		SpoolBodies bodies = (SpoolBodies)DynLoader.getField(dspool, "bodies");
+		byte[] content = "Subject: newsletter\r\n\r\nSame body for everyone\r\n.\r\n".getBytes();
+		byte[] content2 = "Subject: newsletter\r\n\r\nA different body\r\n.\r\n".getBytes();
+
+		// submit the same body 3 times, with one other body in between
+		int[] spids = new int[4];
+		for (int idx = 0; idx != spids.length; idx++) {
+			byte[] body = (idx == 1 ? content2 : content);
+			java.util.ArrayList<EmailAddress> recips = new java.util.ArrayList<EmailAddress>();
+			recips.add(new EmailAddress("recip"+idx));
+			SubmitHandle sph = dspool.create(new ByteChars("sender"), recips, null, 0, false);
+			spids[idx] = sph.spid;
+			sph.write(body, 0, 10); //write in 2 pieces, to exercise the digest's holdback
+			sph.write(body, 10, body.length - 10);
+			org.junit.Assert.assertTrue(sph.close(3, false, logger)); //truncate the terminating dot, as the SMTP server does
+			dspool.storeBody(sph);
+			dspool.releaseHandle(sph);
+		}
+		java.nio.file.Path fh0 = dspool.getMessage(spids[0], 0);
+		org.junit.Assert.assertEquals(content.length - 3, java.nio.file.Files.size(fh0));
+		org.junit.Assert.assertTrue(java.nio.file.Files.isSameFile(fh0, dspool.getMessage(spids[2], 0)));
+		org.junit.Assert.assertTrue(java.nio.file.Files.isSameFile(fh0, dspool.getMessage(spids[3], 0)));
+		org.junit.Assert.assertFalse(java.nio.file.Files.isSameFile(fh0, dspool.getMessage(spids[1], 0)));
+		org.junit.Assert.assertEquals(2, bodies.size());
+
+		// the shared body is retained until its last SPID has been deleted
+		org.junit.Assert.assertTrue(dspool.delete(spids[0], 0));
+		org.junit.Assert.assertTrue(dspool.delete(spids[2], 0));
+		org.junit.Assert.assertEquals(2, bodies.size());
+		org.junit.Assert.assertEquals(content.length - 3, java.nio.file.Files.size(dspool.getMessage(spids[3], 0)));
+		org.junit.Assert.assertTrue(dspool.delete(spids[3], 0));
+		org.junit.Assert.assertEquals(1, bodies.size());
+		org.junit.Assert.assertTrue(dspool.delete(spids[1], 0));
+		org.junit.Assert.assertEquals(0, bodies.size());
+	}
+
+	@org.junit.Test
+	public void testDedupHousekeep() throws Exception
+	{
+		String cfgxml = "<spool><rootpath>"+testrootpath+"/dedupspool_hk</rootpath><dedup>Y</dedup></spool>";
+		Spooler dspool = new Spooler(appctx, XmlConfig.makeSection(cfgxml, "/spool"), logger, "utest-dedup-hk");
+		SpoolBodies bodies = (SpoolBodies)DynLoader.getField(dspool, "bodies");
+		byte[] content = "Subject: newsletter\r\n\r\nSame body for everyone\r\n.\r\n".getBytes();
+
+		// a duplicate body refreshes the timestamp it shares with the earlier SPIDs, so they don't look stale
+		int spid1 = storeDedupBody(dspool, content);
+		java.nio.file.Path fh1 = dspool.getMessage(spid1, 0);
+		long oldtime = System.currentTimeMillis() - TimeOps.MSECS_PER_DAY;
+		java.nio.file.Files.setLastModifiedTime(fh1, java.nio.file.attribute.FileTime.fromMillis(oldtime));
+		int spid2 = storeDedupBody(dspool, content);
+		java.nio.file.Path fh2 = dspool.getMessage(spid2, 0);
+		org.junit.Assert.assertTrue(java.nio.file.Files.isSameFile(fh1, fh2));
+		int delcnt = dspool.housekeep(System.currentTimeMillis() - TimeOps.MSECS_PER_MINUTE * 10);
+		org.junit.Assert.assertEquals(0, delcnt);
+		org.junit.Assert.assertEquals(1, bodies.size());
+
+		// housekeeping the spool files releases the body they shared
+		delcnt = dspool.housekeep(System.currentTimeMillis() + TimeOps.MSECS_PER_MINUTE * 10);
+		org.junit.Assert.assertEquals(2, delcnt);
+		org.junit.Assert.assertFalse(java.nio.file.Files.exists(fh1));
+		org.junit.Assert.assertFalse(java.nio.file.Files.exists(fh2));
+		org.junit.Assert.assertEquals(0, bodies.size());
+
+		// so a later submission of that body must not be linked to the deleted one
+		int spid3 = storeDedupBody(dspool, content);
+		java.nio.file.Path fh3 = dspool.getMessage(spid3, 0);
+		org.junit.Assert.assertEquals(content.length - 3, java.nio.file.Files.size(fh3));
+		org.junit.Assert.assertEquals(1, bodies.size());
+		org.junit.Assert.assertTrue(dspool.delete(spid3, 0));
+		org.junit.Assert.assertEquals(0, bodies.size());
+	}
+
 	@org.junit.Test
 	public void testSPID() {
 		org.junit.Assert.assertEquals("0000" + "0000", spool.externalSPID(0).toString());
@@ -186,6 +264,18 @@ public class SpoolerTest
 		org.junit.Assert.assertTrue(ok);
 	}
 
+	private static int storeDedupBody(Spooler s, byte[] body) throws java.io.IOException {
+		java.util.ArrayList<EmailAddress> recips = new java.util.ArrayList<EmailAddress>();
+		recips.add(new EmailAddress("recip1"));
+		SubmitHandle sph = s.create(new ByteChars("sender"), recips, null, 0, false);
+		int spid = sph.spid;
+		sph.write(body, 0, body.length);
+		org.junit.Assert.assertTrue(sph.close(3, false, logger));
+		s.storeBody(sph);
+		s.releaseHandle(sph);
+		return spid;
+	}
+
 	private static boolean commit(Spooler s, SubmitHandle sph) {
 		boolean ok = sph.close(logger);
 		s.releaseHandle(sph);
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.queue.queue_providers.filesystem;
+
+public class RetryWheelTest
+{
+	private static final long GRANULARITY = 1000;
+	private static final long BASETIME = 1_700_000_000_000L;
+
+	private final RetryWheel.DeferDir dir = new RetryWheel.DeferDir("T1", java.nio.file.Paths.get("T1"));
+
+	@org.junit.Test
+	public void testDueOrder()
+	{
+		RetryWheel wheel = new RetryWheel(GRANULARITY, BASETIME);
+		long[] offsets = new long[]{0, 1, 500, 63_000, 64_000, 65_500, 4_096_000, 5_000_000, 300_000_000, 1_000_000_000};
+		for (int idx = offsets.length - 1; idx != -1; idx--) {
+			long nextsend = BASETIME + offsets[idx];
+			wheel.add(new RetryWheel.Entry(wheel.getTick(nextsend), dir, String.valueOf(nextsend)));
+		}
+		org.junit.Assert.assertEquals(offsets.length, wheel.size());
+		org.junit.Assert.assertEquals(1, wheel.dueCount());
+
+		// step through time and verify that each entry becomes due at its scheduled time, and not before
+		int nextdue = 0;
+		for (long systime = BASETIME; systime <= BASETIME + offsets[offsets.length - 1]; systime += GRANULARITY) {
+			wheel.advance(systime);
+			RetryWheel.Entry ent;
+			while ((ent = wheel.poll()) != null) {
+				long nextsend = Long.parseLong(ent.filename);
+				org.junit.Assert.assertEquals(BASETIME + offsets[nextdue], nextsend);
+				org.junit.Assert.assertTrue(nextsend <= systime);
+				org.junit.Assert.assertTrue(nextsend > systime - GRANULARITY);
+				nextdue++;
+			}
+		}
+		org.junit.Assert.assertEquals(offsets.length, nextdue);
+		org.junit.Assert.assertEquals(0, wheel.size());
+	}
+
+	@org.junit.Test
+	public void testSkipAhead()
+	{
+		RetryWheel wheel = new RetryWheel(GRANULARITY, BASETIME);
+		long nextsend = BASETIME + 10_000_000;
+		wheel.add(new RetryWheel.Entry(wheel.getTick(nextsend), dir, "f1"));
+		wheel.advance(nextsend - 1);
+		org.junit.Assert.assertNull(wheel.poll());
+		wheel.advance(nextsend + 50_000_000); //jump well past it in one step
+		RetryWheel.Entry ent = wheel.poll();
+		org.junit.Assert.assertNotNull(ent);
+		org.junit.Assert.assertEquals("f1", ent.filename);
+		org.junit.Assert.assertNull(wheel.poll());
+
+		// entries added in the past are due immediately, and requeued entries are still due
+		wheel.add(new RetryWheel.Entry(wheel.getTick(BASETIME), dir, "f2"));
+		ent = wheel.poll();
+		org.junit.Assert.assertEquals("f2", ent.filename);
+		wheel.requeue(ent);
+		org.junit.Assert.assertSame(ent, wheel.poll());
+	}
+
+	@org.junit.Test
+	public void testExpireAll()
+	{
+		RetryWheel wheel = new RetryWheel(GRANULARITY, BASETIME);
+		for (int idx = 0; idx != 100; idx++) {
+			long nextsend = BASETIME + (idx * 7_919_000L);
+			wheel.add(new RetryWheel.Entry(wheel.getTick(nextsend), dir, "f"+idx));
+		}
+		org.junit.Assert.assertEquals(100, wheel.size());
+		wheel.advance(BASETIME);
+		org.junit.Assert.assertEquals(1, wheel.dueCount());
+		wheel.expireAll();
+		org.junit.Assert.assertEquals(100, wheel.dueCount());
+		int cnt = 0;
+		while (wheel.poll() != null) cnt++;
+		org.junit.Assert.assertEquals(100, cnt);
+		org.junit.Assert.assertEquals(0, wheel.size());
+	}
+}
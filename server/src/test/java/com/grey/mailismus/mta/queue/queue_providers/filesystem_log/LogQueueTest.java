@@ -0,0 +1,20 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.queue.queue_providers.filesystem_log;
+
+public class LogQueueTest
+	extends com.grey.mailismus.mta.queue.ManagerTest
+{
+	// small segments, so that the bulk tests roll over and reclaim several of them
+	private static final String cfgxml = "<segmentsize>64K</segmentsize>"
+			+"<deferred_maxignore>2s</deferred_maxignore>";
+
+	@Override
+	protected Class<?> getQueueClass() {return LogQueue.class;}
+	@Override
+	protected int getBulkMessageCount() {return 1000;}
+	@Override
+	protected String getQueueConfig() {return cfgxml;}
+}
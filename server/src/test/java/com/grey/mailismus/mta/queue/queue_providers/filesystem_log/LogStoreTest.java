@@ -0,0 +1,237 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.queue.queue_providers.filesystem_log;
+
+import com.grey.base.utils.ByteChars;
+import com.grey.naf.ApplicationContextNAF;
+import com.grey.mailismus.TestSupport;
+
+/*
+ * Exercises the log directly, below the level of the LogQueue, so that we can reattach to it and tamper with its segments.
+ */
+public class LogStoreTest
+{
+	private static final ByteChars SENDER = new ByteChars("sender@domain1.local");
+	private static final ByteChars MBX = new ByteChars("recip");
+	private static final ByteChars DOMAIN = new ByteChars("domain2.local");
+	private static final int RECLEN = LogStore.REC_ADDRS + 6 + SENDER.size() + MBX.size() + DOMAIN.size();
+
+	private final ApplicationContextNAF appctx = TestSupport.createApplicationContext(null, false);
+	private final LogStore.Batch batch = new LogStore.Batch();
+	private final java.nio.file.Path dh;
+	private LogStore store;
+
+	public LogStoreTest() throws java.io.IOException
+	{
+		dh = java.nio.file.Files.createTempDirectory("utest-logstore");
+		dh.toFile().deleteOnExit();
+	}
+
+	@org.junit.After
+	public void shutdown()
+	{
+		if (store != null) store.detach();
+		store = null;
+	}
+
+	// The index is rebuilt from the segments when the store is reattached, with each recip in its latest state and the
+	// ready lists in their original order.
+	@org.junit.Test
+	public void testReplay() throws java.io.IOException
+	{
+		attach(64*1024);
+		commitNew(2, 2);
+		batch.reset();
+		batch.addRecip(LogStore.REC_DEFERRED, 2, 2, 5000, 1, 0, 1, 400, SENDER, MBX, DOMAIN);
+		batch.addRecip(LogStore.REC_BOUNCE, 2, 1, 0, 1, 0, 1, 500, SENDER, MBX, DOMAIN);
+		commit();
+		commitNew(6, 1);
+		commitNew(4, 1);
+		batch.reset();
+		batch.addDone(4, 1);
+		commit();
+		commitNew(8, 1);
+		verifyReplay();
+
+		// and again, now that the records are spread over two segments
+		commitNew(10, 1);
+		store.detach();
+		attach(64*1024);
+		org.junit.Assert.assertEquals(5, store.liveRecords());
+		org.junit.Assert.assertEquals(3, store.countIncoming());
+		org.junit.Assert.assertEquals(3, store.segmentCount());
+	}
+
+	private void verifyReplay() throws java.io.IOException
+	{
+		store.detach();
+		attach(64*1024);
+		org.junit.Assert.assertEquals(2, store.countIncoming());
+		org.junit.Assert.assertEquals(1, store.countDeferred());
+		org.junit.Assert.assertEquals(1, store.countBounces());
+		org.junit.Assert.assertEquals(4, store.liveRecords());
+		org.junit.Assert.assertEquals(2, store.segmentCount()); //the old one, plus a new head
+		synchronized (store) {
+			org.junit.Assert.assertNull(store.getEntry(LogStore.makeKey(4, 1)));
+			LogStore.Entry ent = store.pollBounce();
+			verifyEntry(ent, 2, 1, LogStore.REC_BOUNCE);
+			org.junit.Assert.assertNull(store.pollDeferred(4999, false));
+			ent = store.pollDeferred(4999, true);
+			verifyEntry(ent, 2, 2, LogStore.REC_DEFERRED);
+			org.junit.Assert.assertEquals(5000, ent.nextsend);
+			byte[] rec = store.readRecord(ent, new byte[8]);
+			java.nio.ByteBuffer buf = java.nio.ByteBuffer.wrap(rec);
+			org.junit.Assert.assertEquals(5000, buf.getLong(LogStore.REC_NEXTSEND));
+			org.junit.Assert.assertEquals(1, buf.getShort(LogStore.REC_RETRIES));
+			org.junit.Assert.assertEquals(400, buf.getShort(LogStore.REC_STATUS));
+			verifyEntry(store.pollIncoming(), 6, 1, LogStore.REC_NEW);
+			verifyEntry(store.pollIncoming(), 8, 1, LogStore.REC_NEW);
+			org.junit.Assert.assertNull(store.pollIncoming());
+		}
+	}
+
+	// A crash in the middle of appending a frame leaves it torn, and replay must stop at the end of the previous frame,
+	// discarding the torn one in its entirety.
+	@org.junit.Test
+	public void testTornFrame() throws java.io.IOException
+	{
+		attach(64*1024);
+		commitNew(2, 1);
+		commitNew(4, 1);
+		commitNew(6, 2);
+		LogStore.Entry ent = store.getEntry(LogStore.makeKey(6, 1));
+		java.nio.file.Path pthnam = ent.seg.pthnam;
+		int torn_off = ent.offset + RECLEN + 10; //part way through the frame's second record
+		store.detach();
+		try (java.nio.channels.FileChannel chan = java.nio.channels.FileChannel.open(pthnam, java.nio.file.StandardOpenOption.WRITE)) {
+			chan.truncate(torn_off);
+		}
+
+		attach(64*1024);
+		org.junit.Assert.assertEquals(2, store.liveRecords());
+		org.junit.Assert.assertNull(store.getEntry(LogStore.makeKey(6, 1)));
+		org.junit.Assert.assertNull(store.getEntry(LogStore.makeKey(6, 2)));
+		synchronized (store) {
+			verifyEntry(store.pollIncoming(), 2, 1, LogStore.REC_NEW);
+			verifyEntry(store.pollIncoming(), 4, 1, LogStore.REC_NEW);
+		}
+
+		// the torn segment is never appended to again, so its successor picks up where it left off
+		commitNew(6, 2);
+		store.detach();
+		attach(64*1024);
+		org.junit.Assert.assertEquals(4, store.liveRecords());
+		org.junit.Assert.assertEquals(4, store.totalRecords());
+		org.junit.Assert.assertEquals(torn_off, pthnam.toFile().length());
+	}
+
+	// The queue root can only be attached to by one application context (and hence one process) at a time
+	@org.junit.Test
+	public void testLocked() throws java.io.IOException
+	{
+		attach(64*1024);
+		org.junit.Assert.assertTrue(java.nio.file.Files.exists(dh.resolve(LogStore.LOCKFILE)));
+		ApplicationContextNAF appctx2 = TestSupport.createApplicationContext(null, false);
+		try {
+			LogStore.attach(appctx2, dh, 64*1024, false, null);
+			org.junit.Assert.fail("Attached to a locked queue root");
+		} catch (java.io.IOException ex) {
+			org.junit.Assert.assertTrue(ex.getMessage(), ex.getMessage().contains("already in use"));
+		}
+		// whereas attaching within the same context just shares the store
+		LogStore store2 = LogStore.attach(appctx, dh, 64*1024, false, null);
+		org.junit.Assert.assertSame(store, store2);
+		store2.detach();
+
+		store.detach();
+		store = null;
+		LogStore store3 = LogStore.attach(appctx2, dh, 64*1024, false, null);
+		store3.detach();
+	}
+
+	// Segments are reclaimed oldest first, once they contain no live records or are sparse enough to be compacted
+	@org.junit.Test
+	public void testCleaner() throws java.io.IOException
+	{
+		int frames_per_seg = 5;
+		int segsize = LogSegment.HDRSIZE + (frames_per_seg * (LogSegment.FRAMEHDR + RECLEN));
+		attach(segsize);
+		LogCleaner cleaner = new LogCleaner(store, 50, null);
+		for (int idx = 1; idx <= 20; idx++) {
+			commitNew(idx * 2, 1);
+		}
+		org.junit.Assert.assertEquals(4, store.segmentCount());
+		org.junit.Assert.assertEquals(0, cleaner.clean(Integer.MAX_VALUE));
+
+		// empty the first segment, and leave one live record in the second
+		batch.reset();
+		for (int idx = 1; idx <= 9; idx++) {
+			batch.addDone(idx * 2, 1);
+		}
+		commit();
+		org.junit.Assert.assertEquals(5, store.segmentCount());
+		org.junit.Assert.assertEquals(2, cleaner.clean(Integer.MAX_VALUE));
+		org.junit.Assert.assertEquals(3, store.segmentCount());
+		org.junit.Assert.assertFalse(java.nio.file.Files.exists(dh.resolve(LogSegment.makeFilename(1))));
+		org.junit.Assert.assertFalse(java.nio.file.Files.exists(dh.resolve(LogSegment.makeFilename(2))));
+		org.junit.Assert.assertTrue(java.nio.file.Files.exists(dh.resolve(LogSegment.makeFilename(3))));
+		LogStore.Entry ent = store.getEntry(LogStore.makeKey(20, 1));
+		org.junit.Assert.assertEquals(5, ent.seg.seqno); //the survivor of the second segment was relocated to the head
+		org.junit.Assert.assertEquals(11, store.liveRecords());
+		org.junit.Assert.assertEquals(0, cleaner.clean(Integer.MAX_VALUE));
+
+		// the relocated record is found in its new home after a restart, and the Done records are no longer needed
+		store.detach();
+		attach(segsize);
+		org.junit.Assert.assertEquals(11, store.liveRecords());
+		org.junit.Assert.assertEquals(11, store.countIncoming());
+		ent = store.getEntry(LogStore.makeKey(20, 1));
+		org.junit.Assert.assertEquals(5, ent.seg.seqno);
+		byte[] rec = store.readRecord(ent, new byte[8]);
+		org.junit.Assert.assertEquals(20, java.nio.ByteBuffer.wrap(rec).getInt(LogStore.REC_SPID));
+
+		// once everything is done, all but the head segment get reclaimed
+		batch.reset();
+		for (int idx = 10; idx <= 20; idx++) {
+			batch.addDone(idx * 2, 1);
+		}
+		commit();
+		cleaner = new LogCleaner(store, 50, null);
+		cleaner.clean(Integer.MAX_VALUE);
+		org.junit.Assert.assertEquals(0, store.liveRecords());
+		org.junit.Assert.assertEquals(1, store.segmentCount());
+	}
+
+	private void attach(int segsize) throws java.io.IOException
+	{
+		store = LogStore.attach(appctx, dh, segsize, false, null);
+	}
+
+	// commits a single frame containing the given number of new recips for the SPID
+	private void commitNew(int spid, int recips) throws java.io.IOException
+	{
+		batch.reset();
+		for (int qid = 1; qid <= recips; qid++) {
+			batch.addRecip(LogStore.REC_NEW, spid, qid, 0, 1, 0, 0, 0, SENDER, MBX, DOMAIN);
+		}
+		commit();
+	}
+
+	private void commit() throws java.io.IOException
+	{
+		synchronized (store) {
+			store.commit(batch, null);
+		}
+	}
+
+	private static void verifyEntry(LogStore.Entry ent, int spid, int qid, byte state)
+	{
+		org.junit.Assert.assertNotNull(ent);
+		org.junit.Assert.assertEquals(spid, ent.spid);
+		org.junit.Assert.assertEquals(qid, ent.qid);
+		org.junit.Assert.assertEquals(state, ent.state);
+		org.junit.Assert.assertTrue(ent.inflight);
+	}
+}
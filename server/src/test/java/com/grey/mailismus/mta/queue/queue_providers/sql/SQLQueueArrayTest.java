@@ -0,0 +1,13 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.queue.queue_providers.sql;
+
+// Runs the queue tests with the keys passed as array parameters, regardless of the database's default
+public class SQLQueueArrayTest
+	extends SQLQueueTest
+{
+	@Override
+	protected String getQueueConfig() {return "<sql_arrayparams>Y</sql_arrayparams>";}
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.queue.queue_providers.sql;
+
+import com.grey.base.config.SysProps;
+import com.grey.base.config.XmlConfig;
+import com.grey.base.utils.ByteChars;
+import com.grey.base.utils.EmailAddress;
+import com.grey.base.utils.FileOps;
+import com.grey.base.utils.IP;
+import com.grey.naf.ApplicationContextNAF;
+import com.grey.naf.reactor.Dispatcher;
+import com.grey.naf.reactor.config.DispatcherConfig;
+import com.grey.mailismus.AppConfig;
+import com.grey.mailismus.TestSupport;
+import com.grey.mailismus.mta.Protocol;
+import com.grey.mailismus.mta.queue.Cache;
+import com.grey.mailismus.mta.queue.ManagerTest;
+import com.grey.mailismus.mta.queue.MessageRecip;
+import com.grey.mailismus.mta.queue.QueueFactory;
+import com.grey.mailismus.mta.queue.QueueManager;
+
+/*
+ * The async mode can't be run through the ManagerTest suite, as its loads don't return anything until the Dispatcher has
+ * collected their results. We never start the Dispatcher, so these tests call SQLQueue.awaitAsync() to do that instead.
+ */
+public class SQLQueueAsyncTest
+{
+	static {
+		SysProps.set("greynaf.dispatchers.tolerant_threadchecks", true);
+	}
+	private static final com.grey.logging.Logger logger = com.grey.logging.Factory.getLoggerNoEx("qmgrtest");
+	static {
+		TestSupport.loadDBDriver(logger);
+	}
+	private static final String QCFG = "<queue class='"+SQLQueue.class.getName()+"'>"
+			+"<spool><maxspidcache>-1</maxspidcache></spool>"
+			+"<sql_async>Y</sql_async>"
+			+"</queue>";
+
+	private final String rootpath = TestSupport.initPaths(getClass());
+	private Dispatcher dsptch;
+	private AppConfig appcfg;
+	private SQLQueue qmgr;
+
+	@org.junit.Before
+	public void init() throws java.io.IOException
+	{
+		if (!TestSupport.HAVE_DBDRIVERS) return;
+		ApplicationContextNAF appctx = TestSupport.createApplicationContext(null, true);
+		DispatcherConfig def = new DispatcherConfig.Builder().withName("qmgrtest-sqlasync").build();
+		dsptch = Dispatcher.create(appctx, def, logger);
+		FileOps.ensureDirExists(dsptch.getApplicationContext().getConfig().getPathTemp());
+		appcfg = ManagerTest.createAppConfig(dsptch, true);
+		qmgr = createManager("utest-async");
+	}
+
+	@org.junit.After
+	public void shutdown()
+	{
+		if (qmgr != null) qmgr.stop();
+		qmgr = null;
+	}
+
+	@org.junit.Test
+	public void testOrphansDeferred() throws Exception
+	{
+		org.junit.Assume.assumeTrue(TestSupport.HAVE_DBDRIVERS);
+		int spid = submitMessage("recip1@domain1.org", "recip2@domain1.org");
+		org.junit.Assert.assertEquals(1, ManagerTest.spoolSize(qmgr));
+
+		Cache cache = loadMessages(2);
+		for (int idx = 0; idx != cache.size(); idx++) {
+			MessageRecip recip = cache.get(idx);
+			org.junit.Assert.assertEquals(spid, recip.spid);
+			recip.qstatus = MessageRecip.STATUS_DONE;
+			recip.smtp_status = Protocol.REPLYCODE_OK;
+		}
+		int cnt = qmgr.messagesProcessed(cache);
+		org.junit.Assert.assertEquals(2, cnt);
+		// the deletes have only been queued, so the spool file must survive till they're committed
+		org.junit.Assert.assertEquals(1, ManagerTest.spoolSize(qmgr));
+		qmgr.awaitAsync();
+		org.junit.Assert.assertEquals(0, ManagerTest.spoolSize(qmgr));
+		org.junit.Assert.assertEquals(0, qmgr.qsize(0));
+	}
+
+	@org.junit.Test
+	public void testOrphansPartial() throws Exception
+	{
+		org.junit.Assume.assumeTrue(TestSupport.HAVE_DBDRIVERS);
+		submitMessage("recip1@domain1.org", "recip2@domain1.org");
+		Cache cache = loadMessages(2);
+		MessageRecip recip = cache.get(0);
+		recip.qstatus = MessageRecip.STATUS_DONE;
+		recip.smtp_status = Protocol.REPLYCODE_OK;
+		recip = cache.get(1);
+		recip.qstatus = MessageRecip.STATUS_DONE;
+		recip.smtp_status = Protocol.REPLYCODE_TMPERR_CONN;
+		qmgr.messagesProcessed(cache);
+		qmgr.awaitAsync();
+		// the deferred recip still refers to the spool file
+		org.junit.Assert.assertEquals(1, ManagerTest.spoolSize(qmgr));
+		org.junit.Assert.assertEquals(1, qmgr.qsize(0));
+	}
+
+	@org.junit.Test
+	public void testOrphansOnShutdown() throws Exception
+	{
+		org.junit.Assume.assumeTrue(TestSupport.HAVE_DBDRIVERS);
+		submitMessage("recip1@domain1.org");
+		Cache cache = loadMessages(1);
+		cache.get(0).qstatus = MessageRecip.STATUS_DONE;
+		cache.get(0).smtp_status = Protocol.REPLYCODE_OK;
+		qmgr.messagesProcessed(cache);
+		org.junit.Assert.assertEquals(1, ManagerTest.spoolSize(qmgr));
+
+		// the pending update has to be applied (and its orphan deleted) on shutdown
+		qmgr.stop();
+		org.junit.Assert.assertEquals(0, ManagerTest.spoolSize(qmgr));
+		qmgr = createManager("utest-async2");
+		org.junit.Assert.assertEquals(0, qmgr.qsize(0));
+	}
+
+	@org.junit.Test
+	public void testPrefetch() throws Exception
+	{
+		org.junit.Assume.assumeTrue(TestSupport.HAVE_DBDRIVERS);
+		submitMessage("recip1@domain1.org");
+		submitMessage("recip2@domain2.org");
+		Cache cache = qmgr.initCache(1);
+		qmgr.getMessages(cache);
+		org.junit.Assert.assertEquals(0, cache.size()); //the load has only been started
+		qmgr.awaitAsync();
+		qmgr.getMessages(cache);
+		org.junit.Assert.assertEquals(1, cache.size());
+		int qid1 = cache.get(0).qid;
+		cache.get(0).qstatus = MessageRecip.STATUS_DONE;
+		cache.get(0).smtp_status = Protocol.REPLYCODE_OK;
+		qmgr.messagesProcessed(cache);
+
+		// the update carried a load of the next batch, which must not return the recip it's deleting
+		qmgr.awaitAsync();
+		cache.clear();
+		qmgr.getMessages(cache);
+		org.junit.Assert.assertEquals(1, cache.size());
+		org.junit.Assert.assertNotEquals(qid1, cache.get(0).qid);
+		org.junit.Assert.assertEquals(1, ManagerTest.spoolSize(qmgr));
+	}
+
+	private int submitMessage(String... recips) throws java.io.IOException
+	{
+		java.util.ArrayList<EmailAddress> lst = new java.util.ArrayList<EmailAddress>();
+		for (String recip : recips) lst.add(new EmailAddress(recip));
+		ByteChars sndr = new ByteChars("the.sender@somedomain.com");
+		int spid = qmgr.submit(sndr, lst, null, IP.convertDottedIP("192.168.101.1"), new ByteChars("This is the message body\n"));
+		org.junit.Assert.assertTrue(spid != 0);
+		return spid;
+	}
+
+	private Cache loadMessages(int expectcnt) throws Exception
+	{
+		Cache cache = qmgr.initCache(10);
+		qmgr.getMessages(cache);
+		org.junit.Assert.assertEquals(0, cache.size()); //the load has only been started
+		qmgr.awaitAsync();
+		qmgr.getMessages(cache);
+		org.junit.Assert.assertEquals(expectcnt, cache.size());
+		return cache;
+	}
+
+	private SQLQueue createManager(String name) throws java.io.IOException
+	{
+		XmlConfig qcfg = XmlConfig.makeSection(QCFG, "/queue");
+		QueueManager q = QueueFactory.init(new QueueFactory(), dsptch, qcfg, appcfg, name);
+		org.junit.Assert.assertEquals(SQLQueue.class, q.getClass());
+		return (SQLQueue)q;
+	}
+}
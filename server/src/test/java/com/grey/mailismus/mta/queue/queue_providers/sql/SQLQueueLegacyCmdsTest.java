@@ -0,0 +1,49 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.queue.queue_providers.sql;
+
+// Runs the queue tests with config overrides in the format used before the commands were parameterised
+public class SQLQueueLegacyCmdsTest
+	extends SQLQueueTest
+{
+	private static final String CMDS = "<sql_arrayparams>N</sql_arrayparams>"
+			+"<sql_delrecips>DELETE FROM MMTA_SMTPQUEUE WHERE QID in (</sql_delrecips>"
+			+"<sql_updaterecips>UPDATE MMTA_SMTPQUEUE SET STATUS=#1#, NEXTSEND = #2# + #3#, RETRYCOUNT=RETRYCOUNT+1 WHERE QID in (</sql_updaterecips>"
+			+"<sql_setbounces_err>UPDATE MMTA_SMTPQUEUE SET NEXTSEND=NULL, STATUS=#1# WHERE QID in (</sql_setbounces_err>"
+			+"<sql_setbounces_tmt>UPDATE MMTA_SMTPQUEUE SET NEXTSEND=NULL WHERE QID in (</sql_setbounces_tmt>"
+			+"<sql_getspids>SELECT SPID FROM MMTA_SMTPQUEUE WHERE SPID in (</sql_getspids>";
+
+	@Override
+	protected String getQueueConfig() {return CMDS;}
+	@Override
+	protected int getBulkMessageCount() {return 0;}
+
+	@org.junit.Test
+	public void testConvertCommands()
+	{
+		com.grey.base.config.XmlConfig cfg = com.grey.base.config.XmlConfig.makeSection("<queue>"+CMDS+"</queue>", "/queue");
+		SQLQueue.Commands cmds = new SQLQueue.Commands(cfg, 100, true);
+		org.junit.Assert.assertEquals("DELETE FROM MMTA_SMTPQUEUE WHERE QID = ANY(?)", cmds.del_recips);
+		org.junit.Assert.assertEquals("UPDATE MMTA_SMTPQUEUE SET STATUS=?, NEXTSEND = ?, RETRYCOUNT=RETRYCOUNT+1 WHERE QID = ANY(?)", cmds.update_recips);
+		org.junit.Assert.assertEquals("UPDATE MMTA_SMTPQUEUE SET NEXTSEND=NULL, STATUS=? WHERE QID = ANY(?)", cmds.set_errorbounces);
+		org.junit.Assert.assertEquals("UPDATE MMTA_SMTPQUEUE SET NEXTSEND=NULL WHERE QID = ANY(?)", cmds.set_expirybounces);
+
+		// the values have to be in the order that they're bound in
+		String badcmd = "<sql_updaterecips>UPDATE MMTA_SMTPQUEUE SET NEXTSEND = #2# + #3#, STATUS=#1# WHERE QID in (</sql_updaterecips>";
+		cfg = com.grey.base.config.XmlConfig.makeSection("<queue>"+badcmd+"</queue>", "/queue");
+		try {
+			new SQLQueue.Commands(cfg, 100, false);
+			org.junit.Assert.fail("Failed to reject out-of-order update params");
+		} catch (com.grey.mailismus.errors.MailismusConfigException ex) {}
+
+		// neither format
+		badcmd = "<sql_delrecips>DELETE FROM MMTA_SMTPQUEUE WHERE QID = 1</sql_delrecips>";
+		cfg = com.grey.base.config.XmlConfig.makeSection("<queue>"+badcmd+"</queue>", "/queue");
+		try {
+			new SQLQueue.Commands(cfg, 100, false);
+			org.junit.Assert.fail("Failed to reject unkeyed command");
+		} catch (com.grey.mailismus.errors.MailismusConfigException ex) {}
+	}
+}
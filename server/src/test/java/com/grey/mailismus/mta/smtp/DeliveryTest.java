@@ -32,6 +32,7 @@ import com.grey.naf.reactor.ChannelMonitor;
 import com.grey.mailismus.AppConfig;
 import com.grey.mailismus.mta.queue.QueueFactory;
 import com.grey.mailismus.mta.queue.QueueManager;
+import com.grey.mailismus.mta.queue.SpoolCompression;
 import com.grey.mailismus.mta.queue.SubmitHandle;
 import com.grey.mailismus.mta.queue.queue_providers.filesystem.FilesysQueue;
 import com.grey.mailismus.mta.queue.queue_providers.filesystem_cluster.ClusteredQueue;
@@ -46,6 +47,7 @@ import com.grey.mailismus.mta.deliver.DeliverTask;
 import com.grey.mailismus.mta.deliver.Delivery;
 import com.grey.mailismus.mta.deliver.Forwarder;
 import com.grey.mailismus.TestSupport;
+import com.grey.mailismus.ms.maildir.InboxSession;
 import com.grey.mailismus.ms.maildir.MaildirStore;
 
 /*
@@ -78,6 +80,7 @@ public class DeliveryTest
 	private String fwd_errmsg;
 
 	private Dispatcher dsptch;
+	private MaildirStore msgstore;
 	private String altcfg_path;
 	private volatile boolean stopping;
 
@@ -326,6 +329,74 @@ public class DeliveryTest
 		runtest(msgs, 3, 2);
 	}
 
+	// Same as the smarthost test, but the message is sent via BDAT. The spool holds it in dot-stuffed form, so the
+	// Client has to unstuff it and the Server restuff it, and the server's spool should match what we submitted.
+	@org.junit.Test
+	public void testChunking() throws Exception
+	{
+		String body = "Testing chunked delivery\r\n..this line starts with a dot\r\n..\r\nlast line";
+		MessageSpec[] msgs = new MessageSpec[] {new MessageSpec("sender1@dom1.local",
+				new String[]{"user101@dom1.local", "user102@dom2.local"}, null, null, body)
+		};
+		altcfg_path = "cp:com/grey/mailismus/mta/smtp/conf-chunking.xml";
+		expect_fwdstats = new FwdStats[]{new FwdStats(2, 1, 1).relay(2, 0)};
+		runtest(msgs, 2, 1);
+
+		java.util.List<Path> spoolfiles;
+		Path spooldir = java.nio.file.Paths.get(dsptch.getApplicationContext().getConfig().getPathVar(), "spool_server");
+		try (java.util.stream.Stream<Path> s = java.nio.file.Files.walk(spooldir)) {
+			spoolfiles = s.filter(java.nio.file.Files::isRegularFile).collect(java.util.stream.Collectors.toList());
+		}
+		org.junit.Assert.assertEquals(1, spoolfiles.size());
+		String msg = new String(java.nio.file.Files.readAllBytes(spoolfiles.get(0)), "US-ASCII");
+		org.junit.Assert.assertTrue(msg, msg.endsWith("Header 0\r\n\r\n"+body+"\r\n"));
+	}
+
+	// Both the queue and the server spool messages in compressed form. The message is submitted to the queue, then the
+	// Client inflates it as it relays it to the server, which compresses it again, and the message store inflates it as it
+	// delivers it locally. We then download it from the local mailbox, as the POP3 server would.
+	@org.junit.Test
+	public void testCompression() throws Exception
+	{
+		StringBuilder sb = new StringBuilder("Testing delivery of a compressed spool file");
+		for (int idx = 0; idx != 2000; idx++) {
+			sb.append("\r\nLine ").append(idx).append(" of a body which spans several of the Client's inflation windows");
+		}
+		String body = sb.toString();
+		MessageSpec[] msgs = new MessageSpec[] {new MessageSpec("sender1@dom1.local",
+				new String[]{"user101@dom1.local", "localuser1"}, null, null, body)
+		};
+		altcfg_path = "cp:com/grey/mailismus/mta/smtp/conf-compress.xml";
+		expect_fwdstats = new FwdStats[]{new FwdStats(2, 1, 1).relay(1, 0).local(1, 0)};
+		runtest(msgs, 1, 1);
+		String expect = "Header 0\r\n\r\n"+body+"\r\n";
+
+		java.util.List<Path> spoolfiles;
+		Path spooldir = java.nio.file.Paths.get(dsptch.getApplicationContext().getConfig().getPathVar(), "spool_server");
+		try (java.util.stream.Stream<Path> s = java.nio.file.Files.walk(spooldir)) {
+			spoolfiles = s.filter(java.nio.file.Files::isRegularFile).collect(java.util.stream.Collectors.toList());
+		}
+		org.junit.Assert.assertEquals(1, spoolfiles.size());
+		org.junit.Assert.assertTrue(SpoolCompression.isCompressed(spoolfiles.get(0)));
+		org.junit.Assert.assertTrue(java.nio.file.Files.size(spoolfiles.get(0)) < expect.length() / 2);
+		java.io.ByteArrayOutputStream ostrm = new java.io.ByteArrayOutputStream();
+		try (java.io.InputStream strm = SpoolCompression.open(spoolfiles.get(0))) {
+			byte[] buf = new byte[4096];
+			int nbytes;
+			while ((nbytes = strm.read(buf)) != -1) ostrm.write(buf, 0, nbytes);
+		}
+		String msg = new String(ostrm.toByteArray(), "US-ASCII");
+		org.junit.Assert.assertTrue(msg.endsWith(expect));
+
+		InboxSession sess = msgstore.startInboxSession("localuser1");
+		org.junit.Assert.assertEquals(1, sess.newMessageCount());
+		org.junit.Assert.assertEquals(expect.length(), sess.getMessageSize(0));
+		ostrm.reset();
+		sess.sendMessage(0, 0, ostrm);
+		sess.endSession();
+		org.junit.Assert.assertEquals(expect, new String(ostrm.toByteArray(), "US-ASCII"));
+	}
+
 	@org.junit.Test
 	public void testEmptyQ() throws Exception
 	{
@@ -415,6 +486,7 @@ public class DeliveryTest
 		// set up the SMTP delivery component
 		cfg = XmlConfig.makeSection(nafxml_client, "x");
 		DeliverTask dtask = new DeliverTask("utest_smtpc", dsptch, cfg);
+		msgstore = (dtask.getMS() instanceof MaildirStore ? (MaildirStore)dtask.getMS() : null);
 		if (maxsrvconns != 0) dtask.taskConfig().setOverride("maxconnections", String.valueOf(maxsrvconns));
 		if (maxmsgrecips != 0) dtask.taskConfig().setOverride("maxrecips", String.valueOf(maxmsgrecips));
 		Forwarder smtp_sender = new Forwarder(dsptch, dtask, dtask.taskConfig(), dtask, this);
@@ -21,6 +21,15 @@ public class MockServerDNS
 {
 	public static final String MXQUERY = "maildomain.net";
 
+	// DNS blocklist zones, whose entries are keyed on the reversed octets of the listed IPs
+	public static final String DNSBL_ZONE1 = "bl1.test";
+	public static final String DNSBL_ZONE2 = "bl2.test";
+	public static final String DNSBL_FAILZONE = "blfail.test"; //all queries get a server-failure response
+	public static final String DNSBL_IP1 = "192.0.2.1"; //listed in zone 1
+	public static final String DNSBL_IP2 = "192.0.2.2"; //listed in zones 1 and 2
+	public static final String DNSBL_IP3 = "192.0.2.3"; //zone 1 reports a query error for this, rather than a listing
+	private static final byte RCODE_SRVFAIL = 2;
+
 	private final Dispatcher dsptch;
 	private final com.grey.naf.dns.server.ServerDNS srvr;
 	private final HashedMapIntKey<HashedMap<String,ResourceData[][]>> answers = new HashedMapIntKey<>();
@@ -62,7 +71,10 @@ public class MockServerDNS
 		HashedMap<String,ResourceData[][]> map = answers.get(qtype);
 		if (map != null) answer = map.get(qn.toString());
 
-		if (answer == null) {
+		if (qn.toString().endsWith("."+DNSBL_FAILZONE)) {
+			srvr.sendResponse(qid, qtype, qn, RCODE_SRVFAIL, true, recursion_desired, null, null, null,
+					remote_addr, cbparam);
+		} else if (answer == null) {
 			srvr.sendResponse(qid, qtype, qn, PacketDNS.RCODE_NXDOM, true, recursion_desired, null, null, null,
 					remote_addr, cbparam);
 		} else {
@@ -84,6 +96,12 @@ public class MockServerDNS
 
 	private void storeMX(String name, ResourceData[][] data) {store(ResolverDNS.QTYPE_MX, name, data);}
 
+	private void storeDNSBL(String ip, String zone, String code) {
+		String[] octets = ip.split("\\.");
+		String name = octets[3]+"."+octets[2]+"."+octets[1]+"."+octets[0]+"."+zone;
+		store(ResolverDNS.QTYPE_A, name, new ResourceData[][]{{rrCreateA(name, code, 300)}});
+	}
+
 	private static ResourceData rrCreateA(String hostname, String ip, int ttlsecs) {
 		return new ResourceData.RR_A(new ByteChars(hostname), ip==null?0:IP.convertDottedIP(ip), ttl2expiry(ttlsecs));
 	}
@@ -106,5 +124,10 @@ public class MockServerDNS
 			{rrCreateA("mailserver1."+MXQUERY, "10.100.200.1", 51000),
 				rrCreateA("mailserver2."+MXQUERY, "10.100.200.2", 51000),
 				rrCreateA("mailserver3."+MXQUERY, "10.100.200.3", 3300)}});
+
+		storeDNSBL(DNSBL_IP1, DNSBL_ZONE1, "127.0.0.2");
+		storeDNSBL(DNSBL_IP2, DNSBL_ZONE1, "127.0.0.2");
+		storeDNSBL(DNSBL_IP2, DNSBL_ZONE2, "127.0.0.4");
+		storeDNSBL(DNSBL_IP3, DNSBL_ZONE1, "127.255.255.254");
 	}
 }
\ No newline at end of file
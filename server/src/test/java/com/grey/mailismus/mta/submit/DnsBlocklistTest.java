@@ -0,0 +1,266 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.submit;
+
+import com.grey.base.config.XmlConfig;
+import com.grey.base.utils.DynLoader;
+import com.grey.base.utils.IP;
+import com.grey.base.utils.TimeOps;
+import com.grey.naf.ApplicationContextNAF;
+import com.grey.naf.NAFConfig;
+import com.grey.naf.dns.resolver.ResolverConfig;
+import com.grey.naf.dns.resolver.ResolverDNS;
+import com.grey.naf.reactor.Dispatcher;
+import com.grey.naf.reactor.TimerNAF;
+import com.grey.mailismus.TestSupport;
+import com.grey.mailismus.mta.smtp.MockServerDNS;
+
+/*
+ * The lookups go to a mock DNS server, which holds the DNSBL entries defined by MockServerDNS and returns NXDOM for any
+ * other IP. It answers all queries on its DNSBL_FAILZONE with a server failure.
+ * Each test issues its checks from a timer, as the DnsBlocklist runs in the Dispatcher thread, and then polls until the
+ * expected Clients have been notified before checking the outcome and stopping the Dispatcher.
+ */
+public class DnsBlocklistTest
+	implements TimerNAF.Handler
+{
+	private static final com.grey.logging.Logger logger = com.grey.logging.Factory.getLoggerNoEx("no-such-logger");
+	private static final int TMRTYPE_START = 1;
+	private static final int TMRTYPE_POLL = 2;
+	private static final long POLL_INTERVAL = 100;
+	private static final int IP1 = IP.convertDottedIP(MockServerDNS.DNSBL_IP1);
+	private static final int IP2 = IP.convertDottedIP(MockServerDNS.DNSBL_IP2);
+	private static final int IP3 = IP.convertDottedIP(MockServerDNS.DNSBL_IP3);
+	private static final int IP_UNLISTED = IP.convertDottedIP("192.0.2.100");
+
+	private static MockServerDNS mockserver;
+
+	private Dispatcher dsptch;
+	private ResolverDNS dnsResolver;
+	private DnsBlocklist dnsbl;
+	private Runnable onStart;
+	private Runnable onSettled;
+	private java.util.function.BooleanSupplier isSettled;
+	private final java.util.List<String> errors = new java.util.ArrayList<>();
+
+	@org.junit.BeforeClass
+	public static void beforeClass() throws java.io.IOException {
+		ApplicationContextNAF appctx = TestSupport.createApplicationContext(null, true);
+		mockserver = new MockServerDNS(appctx);
+		mockserver.start();
+	}
+
+	@org.junit.AfterClass
+	public static void afterClass() {
+		if (mockserver != null) mockserver.stop();
+	}
+
+	@org.junit.Before
+	public void setup() throws java.io.IOException {
+		String nafxml = "<naf>"
+				+"<baseport>"+NAFConfig.RSVPORT_ANON+"</baseport>"
+				+"<dnsresolver>"
+				+"<interceptor host=\"127.0.0.1\" port=\""+mockserver.getPort()+"\"/>"
+				+"</dnsresolver></naf>";
+		com.grey.naf.reactor.config.DispatcherConfig def = new com.grey.naf.reactor.config.DispatcherConfig.Builder()
+				.withName("utest_dnsbl")
+				.withSurviveHandlers(false)
+				.build();
+		XmlConfig xmlcfg = XmlConfig.makeSection(nafxml, "/naf");
+		NAFConfig nafcfg = new NAFConfig.Builder().withXmlConfig(xmlcfg).build();
+		ResolverConfig rcfg = new ResolverConfig.Builder()
+				.withXmlConfig(nafcfg.getNode("dnsresolver"))
+				.build();
+		ApplicationContextNAF appctx = TestSupport.createApplicationContext(null, nafcfg, true);
+		dsptch = Dispatcher.create(appctx, def, logger);
+		dnsResolver = ResolverDNS.create(dsptch, rcfg);
+	}
+
+	// The query name is the IP with its octets reversed, so the mock server only lists the IP if we get that right.
+	// The verdict is then cached.
+	@org.junit.Test
+	public void testQueryName() throws Exception
+	{
+		dnsbl = createBlocklist(MockServerDNS.DNSBL_ZONE1, 1, 100);
+		MockClient client1 = new MockClient();
+		MockClient client2 = new MockClient();
+		onStart = () -> {
+			check(dnsbl.check(IP1, client1) == -1, "listed IP not pending");
+			check(dnsbl.check(IP_UNLISTED, client2) == -1, "unlisted IP not pending");
+		};
+		isSettled = () -> (client1.score != null && client2.score != null);
+		onSettled = () -> {
+			check(dnsbl.check(IP1, client1) == 1, "listed IP not cached");
+			check(dnsbl.check(IP_UNLISTED, client2) == 0, "unlisted IP not cached");
+			check(dnsbl.queryCount() == 2, "queries="+dnsbl.queryCount());
+		};
+		exec();
+		org.junit.Assert.assertEquals(Integer.valueOf(1), client1.score);
+		org.junit.Assert.assertEquals(Integer.valueOf(0), client2.score);
+		org.junit.Assert.assertTrue(dnsbl.isBlocked(client1.score));
+		org.junit.Assert.assertFalse(dnsbl.isBlocked(client2.score));
+		org.junit.Assert.assertEquals(1, dnsbl.blockCount());
+	}
+
+	// IP1 is only listed in the first zone, which isn't enough to reach the threshold on its own
+	@org.junit.Test
+	public void testWeightedThreshold() throws Exception
+	{
+		dnsbl = createBlocklist(MockServerDNS.DNSBL_ZONE1+":2 | "+MockServerDNS.DNSBL_ZONE2, 3, 100);
+		MockClient client1 = new MockClient();
+		MockClient client2 = new MockClient();
+		onStart = () -> {
+			dnsbl.check(IP1, client1);
+			dnsbl.check(IP2, client2);
+		};
+		isSettled = () -> (client1.score != null && client2.score != null);
+		exec();
+		org.junit.Assert.assertEquals(Integer.valueOf(2), client1.score);
+		org.junit.Assert.assertEquals(Integer.valueOf(3), client2.score);
+		org.junit.Assert.assertFalse(dnsbl.isBlocked(client1.score));
+		org.junit.Assert.assertTrue(dnsbl.isBlocked(client2.score));
+		org.junit.Assert.assertEquals(1, dnsbl.blockCount());
+	}
+
+	// An answer of 127.255.255.x reports a query error, rather than a listing
+	@org.junit.Test
+	public void testErrorCodes() throws Exception
+	{
+		dnsbl = createBlocklist(MockServerDNS.DNSBL_ZONE1, 1, 100);
+		MockClient client1 = new MockClient();
+		onStart = () -> dnsbl.check(IP3, client1);
+		isSettled = () -> (client1.score != null);
+		exec();
+		org.junit.Assert.assertEquals(Integer.valueOf(0), client1.score);
+		org.junit.Assert.assertEquals(0, dnsbl.blockCount());
+	}
+
+	// An IP which was only cleared because a lookup failed is looked up again next time, whereas one which was listed
+	// despite the failure is cached.
+	@org.junit.Test
+	public void testFailedLookups() throws Exception
+	{
+		dnsbl = createBlocklist(MockServerDNS.DNSBL_ZONE1+" | "+MockServerDNS.DNSBL_FAILZONE, 1, 100);
+		MockClient client1 = new MockClient();
+		MockClient client2 = new MockClient();
+		onStart = () -> {
+			dnsbl.check(IP_UNLISTED, client1);
+			dnsbl.check(IP1, client2);
+		};
+		isSettled = () -> (client1.score != null && client2.score != null);
+		onSettled = () -> {
+			check(dnsbl.queryCount() == 4, "queries="+dnsbl.queryCount());
+			check(dnsbl.check(IP1, client2) == 1, "listed IP not cached");
+			check(dnsbl.check(IP_UNLISTED, new MockClient()) == -1, "failed IP was cached");
+			check(dnsbl.queryCount() == 6, "queries after repeat="+dnsbl.queryCount());
+		};
+		exec();
+		org.junit.Assert.assertEquals(Integer.valueOf(0), client1.score);
+		org.junit.Assert.assertEquals(Integer.valueOf(1), client2.score);
+	}
+
+	// The cache is limited to one entry, but entries whose lookups are still in progress must not be evicted, as their
+	// waiters would then never be notified.
+	@org.junit.Test
+	public void testEvictionSparesInFlight() throws Exception
+	{
+		dnsbl = createBlocklist(MockServerDNS.DNSBL_ZONE1, 1, 1);
+		MockClient client1 = new MockClient();
+		MockClient client2 = new MockClient();
+		MockClient client3 = new MockClient();
+		MockClient client4 = new MockClient();
+		java.util.Map<?,?> cache = (java.util.Map<?,?>)DynLoader.getField(dnsbl, "cache");
+		onStart = () -> {
+			dnsbl.check(IP1, client1);
+			dnsbl.check(IP_UNLISTED, client2);
+			dnsbl.check(IP1, client3); //waits on the existing entry
+			check(cache.size() == 2, "in-flight entry evicted - cache="+cache.size());
+		};
+		isSettled = () -> (client1.score != null && client2.score != null && client3.score != null);
+		onSettled = () -> {
+			// a completed entry can now be evicted, and IP1 was used more recently than IP_UNLISTED
+			dnsbl.check(IP2, client4);
+			check(cache.size() == 2, "cache="+cache.size());
+			check(!cache.containsKey(IP_UNLISTED), "least recently used entry not evicted");
+			check(cache.containsKey(IP1), "recently used entry was evicted");
+		};
+		exec();
+		org.junit.Assert.assertEquals(Integer.valueOf(1), client1.score);
+		org.junit.Assert.assertEquals(Integer.valueOf(0), client2.score);
+		org.junit.Assert.assertEquals(Integer.valueOf(1), client3.score);
+	}
+
+	// A waiter whose connection ended while the lookups were in progress must not be notified, even though the Client
+	// object has since moved on to a new connection which is waiting on the same IP.
+	@org.junit.Test
+	public void testEndedWaiter() throws Exception
+	{
+		dnsbl = createBlocklist(MockServerDNS.DNSBL_ZONE1, 1, 100);
+		MockClient client1 = new MockClient();
+		MockClient client2 = new MockClient();
+		onStart = () -> {
+			dnsbl.check(IP1, client1);
+			client1.conntime++;
+			dnsbl.check(IP1, client2);
+		};
+		isSettled = () -> (client2.score != null);
+		exec();
+		org.junit.Assert.assertEquals(0, client1.notifications);
+		org.junit.Assert.assertEquals(Integer.valueOf(1), client2.score);
+	}
+
+	private DnsBlocklist createBlocklist(String zones, int threshold, int cachemax)
+	{
+		String xml = "<dnsbl>"
+				+"<zones>"+zones+"</zones>"
+				+"<threshold>"+threshold+"</threshold>"
+				+"<cache_max>"+cachemax+"</cache_max>"
+				+"</dnsbl>";
+		XmlConfig cfg = XmlConfig.makeSection(xml, "/dnsbl");
+		return new DnsBlocklist(cfg, dsptch, dnsResolver);
+	}
+
+	private void exec() {
+		dsptch.setTimer(0, TMRTYPE_START, this);
+		dsptch.start();
+		Dispatcher.STOPSTATUS stopsts = dsptch.waitStopped(TimeOps.MSECS_PER_SECOND*20L, true);
+		org.junit.Assert.assertEquals(Dispatcher.STOPSTATUS.STOPPED, stopsts);
+		org.junit.Assert.assertTrue(dsptch.completedOK());
+		org.junit.Assert.assertEquals(errors.toString(), 0, errors.size());
+	}
+
+	@Override
+	public void timerIndication(TimerNAF tmr, Dispatcher d) throws java.io.IOException {
+		if (tmr.getType() == TMRTYPE_START) {
+			onStart.run();
+		} else if (isSettled.getAsBoolean()) {
+			if (onSettled != null) onSettled.run();
+			dnsResolver.cancel(dnsbl); //in case onSettled started any more lookups
+			d.stop();
+			return;
+		}
+		d.setTimer(POLL_INTERVAL, TMRTYPE_POLL, this);
+	}
+
+	private void check(boolean ok, String errmsg) {
+		if (!ok) errors.add(errmsg);
+	}
+
+	private class MockClient implements DnsBlocklist.Client
+	{
+		Integer score;
+		int notifications;
+		long conntime = 1;
+
+		@Override
+		public long getStartTime() {return conntime;}
+
+		@Override
+		public void dnsblCompleted(int s) {
+			if (notifications++ != 0) errors.add("Duplicate notification - score="+score+"/"+s);
+			score = s;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.submit;
+
+public class EomScannerTest
+{
+	@org.junit.Test
+	public void testSingleBuffer()
+	{
+		EomScanner scanner = new EomScanner(false);
+		byte[] buf = "xHello\r\n.. dot-stuffed\r\n.\r\nQUIT\r\n".getBytes();
+		org.junit.Assert.assertEquals(27, scanner.scan(buf, 1, buf.length - 1));
+		org.junit.Assert.assertFalse(scanner.isBareLF());
+
+		// bare LF terminators are only recognised if allowed
+		buf = "Hello\n.\nQUIT\r\n".getBytes();
+		scanner.reset();
+		org.junit.Assert.assertEquals(-1, scanner.scan(buf, 0, buf.length));
+		scanner = new EomScanner(true);
+		org.junit.Assert.assertEquals(8, scanner.scan(buf, 0, buf.length));
+		org.junit.Assert.assertTrue(scanner.isBareLF());
+	}
+
+	@org.junit.Test
+	public void testSplitBuffers()
+	{
+		byte[] msg = "Subject: test\r\n\r\nline 1\r\n..line 2\r\n.\r\n".getBytes();
+		// split the message at every possible pair of points, including within the terminator
+		for (int split1 = 0; split1 <= msg.length; split1++) {
+			for (int split2 = split1; split2 <= msg.length; split2++) {
+				EomScanner scanner = new EomScanner(false);
+				int end1 = scanner.scan(msg, 0, split1);
+				if (split1 == msg.length) {
+					org.junit.Assert.assertEquals(msg.length, end1);
+					continue;
+				}
+				org.junit.Assert.assertEquals(-1, end1);
+				int end2 = scanner.scan(msg, split1, split2 - split1);
+				org.junit.Assert.assertEquals(split2 == msg.length ? msg.length : -1, end2);
+				if (end2 == -1) org.junit.Assert.assertEquals(msg.length, scanner.scan(msg, split2, msg.length - split2));
+			}
+		}
+	}
+
+	@org.junit.Test
+	public void testRandom()
+	{
+		// dot-heavy random text, fed in random-sized reads, compared against a byte-by-byte search
+		java.util.Random rnd = new java.util.Random(1);
+		byte[] alphabet = {'.', '.', '\r', '\n', '\n', 'a'};
+		for (int loop = 0; loop != 2000; loop++) {
+			boolean allow_lf = (loop % 2 == 0);
+			byte[] msg = new byte[1 + rnd.nextInt(200)];
+			for (int idx = 0; idx != msg.length; idx++) msg[idx] = alphabet[rnd.nextInt(alphabet.length)];
+			int expect = naiveScan(msg, allow_lf);
+
+			EomScanner scanner = new EomScanner(allow_lf);
+			int off = 0;
+			int end = -1;
+			while (off != msg.length && end == -1) {
+				int len = Math.min(rnd.nextInt(20), msg.length - off);
+				end = scanner.scan(msg, off, len);
+				off += len;
+			}
+			org.junit.Assert.assertEquals(expect, end);
+			if (end != -1) org.junit.Assert.assertEquals(msg[end - 2] == '.', scanner.isBareLF());
+		}
+	}
+
+	private static int naiveScan(byte[] msg, boolean allow_lf)
+	{
+		for (int idx = 0; idx != msg.length; idx++) {
+			if (idx >= 4 && msg[idx] == '\n' && msg[idx-1] == '\r' && msg[idx-2] == '.' && msg[idx-3] == '\n' && msg[idx-4] == '\r') {
+				return idx + 1;
+			}
+			if (allow_lf && idx >= 2 && msg[idx] == '\n' && msg[idx-1] == '.' && msg[idx-2] == '\n') return idx + 1;
+		}
+		return -1;
+	}
+}
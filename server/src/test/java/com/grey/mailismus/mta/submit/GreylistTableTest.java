@@ -0,0 +1,182 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.submit;
+
+import com.grey.base.utils.DynLoader;
+
+public class GreylistTableTest
+{
+	private static final long QTINE = 5_000;
+	private static final long RETRY = 50_000;
+	private static final long EXPIRY = 100_000;
+	private static final long FREEZE = 10_000;
+
+	private static final int IP = 0xC0A8C800; //192.168.200.0
+	private static final byte[] FROM = "sender1@domain1.net".getBytes();
+	private static final byte[] TO = "recip1@domain1.com".getBytes();
+	private static final byte[] TO2 = "recip2@domain1.com".getBytes();
+
+	private final java.nio.file.Path dh;
+
+	public GreylistTableTest() throws java.io.IOException
+	{
+		dh = java.nio.file.Files.createTempDirectory("utest-greylist");
+		dh.toFile().deleteOnExit();
+	}
+
+	@org.junit.Test
+	public void testVetting() throws java.io.IOException
+	{
+		GreylistTable tbl = new GreylistTable(dh, QTINE, RETRY, EXPIRY, FREEZE);
+		long time0 = 1_000_000;
+		org.junit.Assert.assertEquals(Greylist.LOOKUP_ABSENT, tbl.lookup(IP, FROM, TO, time0));
+		org.junit.Assert.assertFalse(tbl.vet(IP, FROM, TO, time0));
+		org.junit.Assert.assertEquals(0, tbl.lookup(IP, FROM, TO, time0));
+		org.junit.Assert.assertFalse(tbl.vet(IP, FROM, TO, time0+1)); //still in quarantine
+		org.junit.Assert.assertFalse(tbl.vet(IP, null, TO2, time0+1));
+		org.junit.Assert.assertEquals(2, tbl.size());
+		org.junit.Assert.assertEquals(2, tbl.greyCount());
+
+		// retry after the quarantine period
+		long time1 = time0 + QTINE;
+		org.junit.Assert.assertTrue(tbl.vet(IP, FROM, TO.clone(), time1));
+		org.junit.Assert.assertEquals(time1 + EXPIRY, tbl.lookup(IP, FROM, TO, time1));
+		org.junit.Assert.assertEquals(1, tbl.greyCount());
+
+		// within the updates-freeze interval, so last-recv is not updated
+		org.junit.Assert.assertTrue(tbl.vet(IP, FROM, TO, time1 + FREEZE - 1));
+		org.junit.Assert.assertEquals(time1 + EXPIRY, tbl.lookup(IP, FROM, TO, time1));
+		org.junit.Assert.assertEquals(0, tbl.purge(time1 + FREEZE));
+		org.junit.Assert.assertEquals(2, tbl.purge(time1 + EXPIRY));
+		org.junit.Assert.assertEquals(0, tbl.size());
+		org.junit.Assert.assertEquals(0, tbl.greyCount());
+
+		// outside the updates-freeze interval, last-recv is updated
+		org.junit.Assert.assertFalse(tbl.vet(IP, FROM, TO, time0));
+		org.junit.Assert.assertTrue(tbl.vet(IP, FROM, TO, time1));
+		org.junit.Assert.assertTrue(tbl.vet(IP, FROM, TO, time1 + FREEZE));
+		org.junit.Assert.assertEquals(0, tbl.purge(time1 + EXPIRY));
+		org.junit.Assert.assertEquals(1, tbl.size());
+
+		// a stale entry is treated as absent, even before it's purged
+		org.junit.Assert.assertEquals(Greylist.LOOKUP_ABSENT, tbl.lookup(IP, FROM, TO, time1 + FREEZE + EXPIRY));
+		org.junit.Assert.assertEquals(0, tbl.size());
+		tbl.close();
+	}
+
+	@org.junit.Test
+	public void testPersistence() throws java.io.IOException
+	{
+		long time0 = 1_000_000;
+		GreylistTable tbl = new GreylistTable(dh, QTINE, RETRY, EXPIRY, FREEZE);
+		tbl.reset();
+		tbl.vet(IP, FROM, TO, time0);
+		tbl.purge(time0); //writes a snapshot containing the first entry
+		tbl.awaitSnapshot();
+		tbl.vet(IP, FROM, TO, time0 + QTINE); //promotion goes into journal
+		tbl.vet(IP, null, TO2, time0 + QTINE); //creation goes into journal
+
+		// the journal records are buffered, so a crash at this point loses them
+		GreylistTable tbl1 = new GreylistTable(copyFiles(true), QTINE, RETRY, EXPIRY, FREEZE);
+		org.junit.Assert.assertEquals(1, tbl1.size());
+		org.junit.Assert.assertEquals(1, tbl1.greyCount());
+		tbl1.close();
+
+		// reload from the snapshot and flushed journal, without closing the original (ie. as if we crashed)
+		tbl.flush();
+		GreylistTable tbl2 = new GreylistTable(dh, QTINE, RETRY, EXPIRY, FREEZE);
+		org.junit.Assert.assertEquals(2, tbl2.size());
+		org.junit.Assert.assertEquals(1, tbl2.greyCount());
+		org.junit.Assert.assertEquals(time0 + QTINE + EXPIRY, tbl2.lookup(IP, FROM, TO, time0 + QTINE));
+		org.junit.Assert.assertEquals(0, tbl2.lookup(IP, null, TO2, time0 + QTINE));
+		tbl2.close();
+
+		// a reset is journalled too
+		GreylistTable tbl3 = new GreylistTable(dh, QTINE, RETRY, EXPIRY, FREEZE);
+		org.junit.Assert.assertEquals(2, tbl3.reset());
+		tbl3.flush();
+		GreylistTable tbl4 = new GreylistTable(dh, QTINE, RETRY, EXPIRY, FREEZE);
+		org.junit.Assert.assertEquals(0, tbl4.size());
+		tbl4.close();
+		tbl3.close();
+		tbl.close();
+	}
+
+	// The snapshot is written in the background from a copy of the table, so later changes only go into the new journal,
+	// and if we crash before the snapshot is in place, the old one is loaded along with both journals.
+	@org.junit.Test
+	public void testBackgroundSnapshot() throws Exception
+	{
+		long time0 = 1_000_000;
+		GreylistTable tbl = new GreylistTable(dh, QTINE, RETRY, EXPIRY, FREEZE);
+		tbl.vet(IP, FROM, TO, time0); //goes into the initial journal
+
+		// hold up the snapshot thread
+		java.util.concurrent.CountDownLatch latch = new java.util.concurrent.CountDownLatch(1);
+		java.util.concurrent.ExecutorService writer = (java.util.concurrent.ExecutorService)DynLoader.getField(tbl, "writer");
+		writer.submit(() -> {latch.await(); return null;});
+		tbl.purge(time0);
+		tbl.vet(IP, null, TO2, time0); //goes into the new journal
+		tbl.flush();
+
+		// reload a copy of the files, as if we had crashed at this point
+		java.nio.file.Path crashdir = copyFiles(true);
+		GreylistTable tbl2 = new GreylistTable(crashdir, QTINE, RETRY, EXPIRY, FREEZE);
+		org.junit.Assert.assertEquals(2, tbl2.size());
+		org.junit.Assert.assertEquals(2, tbl2.greyCount());
+		tbl2.close();
+
+		// the new snapshot on its own only contains the entries which existed when the purge took its copy
+		latch.countDown();
+		tbl.awaitSnapshot();
+		GreylistTable tbl3 = new GreylistTable(copyFiles(false), QTINE, RETRY, EXPIRY, FREEZE);
+		org.junit.Assert.assertEquals(1, tbl3.size());
+		org.junit.Assert.assertEquals(0, tbl3.lookup(IP, FROM, TO, time0));
+		tbl3.close();
+
+		// whereas the snapshot and the journal which has been started alongside it contain everything
+		GreylistTable tbl4 = new GreylistTable(copyFiles(true), QTINE, RETRY, EXPIRY, FREEZE);
+		org.junit.Assert.assertEquals(2, tbl4.size());
+		tbl4.close();
+		tbl.close();
+	}
+
+	@org.junit.Test
+	public void testGrowth() throws java.io.IOException
+	{
+		GreylistTable tbl = new GreylistTable(dh, QTINE, RETRY, EXPIRY, FREEZE);
+		tbl.reset();
+		int total = 5000;
+		long time0 = 1_000_000;
+		for (int idx = 0; idx != total; idx++) {
+			org.junit.Assert.assertFalse(tbl.vet(IP+(idx << 8), FROM, ("recip"+idx+"@domain1.com").getBytes(), time0));
+		}
+		org.junit.Assert.assertEquals(total, tbl.size());
+		// expire the even ones, via their retry interval, and verify the odd ones survive the deletions
+		for (int idx = 1; idx < total; idx += 2) {
+			org.junit.Assert.assertTrue(tbl.vet(IP+(idx << 8), FROM, ("recip"+idx+"@domain1.com").getBytes(), time0 + QTINE));
+		}
+		org.junit.Assert.assertEquals(total/2, tbl.purge(time0 + RETRY + QTINE));
+		for (int idx = 0; idx != total; idx++) {
+			long validtill = tbl.lookup(IP+(idx << 8), FROM, ("recip"+idx+"@domain1.com").getBytes(), time0 + RETRY + QTINE);
+			org.junit.Assert.assertEquals(idx % 2 == 0 ? Greylist.LOOKUP_ABSENT : time0 + QTINE + EXPIRY, validtill);
+		}
+		tbl.close();
+	}
+
+	// Copies the table's current files to a new directory, optionally omitting the journals
+	private java.nio.file.Path copyFiles(boolean with_journals) throws java.io.IOException
+	{
+		java.nio.file.Path dh2 = java.nio.file.Files.createTempDirectory("utest-greylist");
+		dh2.toFile().deleteOnExit();
+		try (java.util.stream.Stream<java.nio.file.Path> strm = java.nio.file.Files.list(dh)) {
+			for (java.nio.file.Path pth : (Iterable<java.nio.file.Path>)strm::iterator) {
+				if (!with_journals && pth.getFileName().toString().startsWith("greylist.jnl")) continue;
+				java.nio.file.Files.copy(pth, dh2.resolve(pth.getFileName()));
+			}
+		}
+		return dh2;
+	}
+}
\ No newline at end of file
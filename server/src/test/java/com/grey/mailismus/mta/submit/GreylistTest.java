@@ -77,7 +77,7 @@ public class GreylistTest
 	{
 		XmlConfig cfg = XmlConfig.makeSection(xml, "/greylist");
 		final DBHandle.Type dbtype = new DBHandle.Type(cfg, dsptch.getApplicationContext().getConfig(), dsptch.getLogger());
-		grylst = new Greylist(dsptch, dbtype, cfg);
+		grylst = new Greylist(dsptch, dbtype, cfg, "utest");
 		int cnt = grylst.reset();
 		org.junit.Assert.assertEquals(prevtotal, cnt);
 
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.submit;
+
+import com.grey.base.config.SysProps;
+import com.grey.base.config.XmlConfig;
+import com.grey.base.utils.ByteChars;
+import com.grey.base.utils.DynLoader;
+import com.grey.base.utils.FileOps;
+import com.grey.base.utils.IP;
+import com.grey.base.utils.TimeOps;
+import com.grey.naf.ApplicationContextNAF;
+import com.grey.naf.reactor.Dispatcher;
+import com.grey.naf.reactor.Producer;
+import com.grey.naf.reactor.TimerNAF;
+import com.grey.naf.reactor.config.DispatcherConfig;
+import com.grey.mailismus.TestSupport;
+
+/*
+ * The Greylist uses its in-memory store with a zero quarantine period, so a tuple is greylisted the first time it's seen
+ * and approved the next time.
+ * The requests are issued from a timer, as the GreylistVetter is only called in the Dispatcher thread, and then we poll
+ * until none are in flight before checking the outcome and stopping the Dispatcher.
+ */
+public class GreylistVetterTest
+	implements TimerNAF.Handler
+{
+	static {
+		TestSupport.initPaths(GreylistVetterTest.class);
+		SysProps.set("greynaf.dispatchers.tolerant_threadchecks", true);
+	}
+	private static final com.grey.logging.Logger logger = com.grey.logging.Factory.getLoggerNoEx("no-such-logger");
+	private static final int TMRTYPE_START = 1;
+	private static final int TMRTYPE_POLL = 2;
+	private static final long POLL_INTERVAL = 100;
+	private static final int IP1 = IP.convertDottedIP("192.168.101.1");
+	private static final ByteChars SENDER = new ByteChars("sender@domain1.local");
+	private static final ByteChars RECIP1 = new ByteChars("recip1@domain2.local");
+	private static final ByteChars RECIP2 = new ByteChars("recip2@domain2.local");
+
+	private static final String cfgxml = "<greylist>"
+			+"<store>memory</store>"
+			+"<quarantine_interval>0</quarantine_interval>"
+			+"</greylist>";
+
+	private final java.util.List<String> errors = new java.util.concurrent.CopyOnWriteArrayList<>();
+	private Dispatcher dsptch;
+	private Greylist greylst;
+	private GreylistVetter vetter;
+	private Thread dsptch_thread;
+	private Runnable onStart;
+	private Runnable onSettled;
+
+	// The verdicts are delivered in the Dispatcher thread, and in the order the requests were made
+	@org.junit.Test
+	public void testVerdicts() throws Exception
+	{
+		MockClient client1 = new MockClient();
+		MockClient client2 = new MockClient();
+		onStart = () -> {
+			vetter.vet(client1, IP1, SENDER, RECIP1);
+			vetter.vet(client2, IP1, SENDER, RECIP2);
+			vetter.vet(client1, IP1, SENDER, RECIP1);
+			check(vetter.inFlight() == 3, "inflight="+vetter.inFlight());
+		};
+		exec();
+		org.junit.Assert.assertEquals(java.util.Arrays.asList(Boolean.FALSE, Boolean.TRUE), client1.verdicts);
+		org.junit.Assert.assertEquals(java.util.Arrays.asList(Boolean.FALSE), client2.verdicts);
+	}
+
+	// A verdict which arrives after its connection has ended must not be passed on, whether the connection was cancelled
+	// explicitly or the Client object has since moved on to a new one.
+	@org.junit.Test
+	public void testStaleVerdict() throws Exception
+	{
+		MockClient client1 = new MockClient();
+		MockClient client2 = new MockClient();
+		MockClient client3 = new MockClient();
+		java.util.concurrent.CountDownLatch latch = new java.util.concurrent.CountDownLatch(1);
+		onStart = () -> {
+			// hold up the DB thread, so that the connections end before their verdicts arrive
+			java.util.concurrent.Executor dbthread = (java.util.concurrent.Executor)DynLoader.getField(vetter, "dbthread");
+			dbthread.execute(() -> {
+				try {
+					latch.await();
+				} catch (InterruptedException ex) {
+					errors.add("DB thread interrupted");
+				}
+			});
+			GreylistVetter.Request req = vetter.vet(client1, IP1, SENDER, RECIP1);
+			vetter.vet(client2, IP1, SENDER, RECIP2);
+			vetter.vet(client3, IP1, SENDER, RECIP1);
+			req.cancel();
+			client2.conntime++;
+			latch.countDown();
+		};
+		onSettled = () -> {
+			check(client1.verdicts.isEmpty(), "cancelled connection got verdicts="+client1.verdicts);
+			check(client2.verdicts.isEmpty(), "ended connection got verdicts="+client2.verdicts);
+		};
+		exec();
+		// the stale requests were still vetted, so the third one found its tuple already registered
+		org.junit.Assert.assertEquals(java.util.Arrays.asList(Boolean.TRUE), client3.verdicts);
+	}
+
+	// The DB thread fails to hand the verdicts back via the Producer, so they only reach the Clients via the orphans queue
+	@org.junit.Test
+	public void testOrphans() throws Exception
+	{
+		MockClient client1 = new MockClient();
+		onStart = () -> {
+			// break the results channel, which the Requests are about to capture
+			Producer<?> channel = (Producer<?>)DynLoader.getField(vetter, "resultsChannel");
+			DynLoader.setField(vetter, "resultsChannel", null);
+			vetter.vet(client1, IP1, SENDER, RECIP1);
+			vetter.vet(client1, IP1, SENDER, RECIP1);
+			DynLoader.setField(vetter, "resultsChannel", channel);
+		};
+		exec();
+		org.junit.Assert.assertEquals(java.util.Arrays.asList(Boolean.FALSE, Boolean.TRUE), client1.verdicts);
+	}
+
+	private void exec() throws java.io.IOException
+	{
+		ApplicationContextNAF appctx = TestSupport.createApplicationContext(null, true);
+		FileOps.deleteDirectory(appctx.getConfig().getPathVar());
+		DispatcherConfig def = new DispatcherConfig.Builder().withName("utest_greyvetter").withSurviveHandlers(false).build();
+		dsptch = Dispatcher.create(appctx, def, logger);
+		XmlConfig cfg = XmlConfig.makeSection(cfgxml, "/greylist");
+		greylst = new Greylist(dsptch, null, cfg, "utest_greyvetter");
+		vetter = new GreylistVetter(greylst, dsptch);
+		dsptch.setTimer(0, TMRTYPE_START, this);
+		dsptch.start();
+		Dispatcher.STOPSTATUS stopsts = dsptch.waitStopped(TimeOps.MSECS_PER_SECOND*10L, true);
+		org.junit.Assert.assertEquals(Dispatcher.STOPSTATUS.STOPPED, stopsts);
+		org.junit.Assert.assertTrue(dsptch.completedOK());
+		org.junit.Assert.assertEquals(errors.toString(), 0, errors.size());
+		org.junit.Assert.assertEquals(0, vetter.inFlight());
+	}
+
+	@Override
+	public void timerIndication(TimerNAF tmr, Dispatcher d)
+	{
+		if (tmr.getType() == TMRTYPE_START) {
+			dsptch_thread = Thread.currentThread();
+			onStart.run();
+		} else if (vetter.inFlight() == 0) {
+			if (onSettled != null) onSettled.run();
+			vetter.shutdown();
+			greylst.close();
+			d.stop();
+			return;
+		}
+		d.setTimer(POLL_INTERVAL, TMRTYPE_POLL, this);
+	}
+
+	private void check(boolean ok, String errmsg)
+	{
+		if (!ok) errors.add(errmsg);
+	}
+
+	private class MockClient implements GreylistVetter.Client
+	{
+		final java.util.List<Boolean> verdicts = new java.util.ArrayList<>();
+		long conntime = 1;
+
+		@Override
+		public long getStartTime() {return conntime;}
+
+		@Override
+		public void greylistVetted(GreylistVetter.Request req) {
+			if (Thread.currentThread() != dsptch_thread) errors.add("Client called outside Dispatcher thread");
+			if (req.error != null) errors.add("Greylist failed - "+req.error);
+			verdicts.add(req.approved);
+		}
+	}
+}
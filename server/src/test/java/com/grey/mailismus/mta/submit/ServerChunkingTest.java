@@ -0,0 +1,198 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.submit;
+
+import com.grey.base.config.SysProps;
+import com.grey.base.config.XmlConfig;
+import com.grey.base.utils.FileOps;
+import com.grey.base.utils.TimeOps;
+import com.grey.naf.ApplicationContextNAF;
+import com.grey.naf.NAFConfig;
+import com.grey.naf.reactor.Dispatcher;
+import com.grey.naf.reactor.config.DispatcherConfig;
+import com.grey.mailismus.TestSupport;
+
+/*
+ * Exercises the server side of the BDAT command (RFC-3030) over a raw socket, so that we control exactly how the chunks
+ * are pipelined behind their commands.
+ */
+public class ServerChunkingTest
+{
+	static {
+		TestSupport.initPaths(ServerChunkingTest.class);
+		SysProps.set("greynaf.dispatchers.tolerant_threadchecks", true);
+	}
+	private static final String appcfg_path = "cp:com/grey/mailismus/mta/submit/conf-chunking.xml";
+	private static final String nafxml_server = "<x><configfile root=\"mailserver/mta/submit\">"+appcfg_path+"</configfile></x>";
+	private static final String RECIP_OK = "user101@dom1.local";
+	private static final String RECIP_BAD = "nosuchuser@dom1.local";
+
+	private static final ApplicationContextNAF appctx = TestSupport.createApplicationContext("ServerChunkingTest", true);
+	private Dispatcher dsptch;
+	private java.net.Socket sock;
+	private java.io.OutputStream ostrm;
+	private java.io.BufferedReader ibstrm;
+
+	@org.junit.Test
+	public void testSuite() throws Exception
+	{
+		startServer();
+		testChunks();
+		testChunkingDisabled();
+		testChunkNoRecips();
+		stopServer();
+	}
+
+	// Pipeline two chunks behind their commands, with the second one starting on a dot-leading line, and verify
+	// that the message is spooled in its dot-stuffed form.
+	private void testChunks() throws java.io.IOException
+	{
+		String chunk1 = "Subject: chunked\r\n\r\n.first line\r\nsecond ";
+		String chunk2 = "line\r\n..third line\r\n.\r\nlast line";
+		connect("UTEST_SMTP_CHUNKING");
+		sendRequest("EHLO client.local\r\n");
+		boolean advertised = false;
+		String rsp;
+		do {
+			rsp = ibstrm.readLine();
+			org.junit.Assert.assertTrue(rsp, rsp.startsWith("250"));
+			if (rsp.substring(4).equals("CHUNKING")) advertised = true;
+		} while (rsp.charAt(3) == '-');
+		org.junit.Assert.assertTrue(advertised);
+		startMessage(true);
+		sendRequest("BDAT "+chunk1.length()+"\r\n"+chunk1+"BDAT "+chunk2.length()+" LAST\r\n"+chunk2);
+		getResponse("250 OK");
+		rsp = ibstrm.readLine();
+		org.junit.Assert.assertTrue(rsp, rsp.startsWith("250 Message accepted as"));
+		disconnect();
+
+		String stuffed = "Subject: chunked\r\n\r\n..first line\r\nsecond line\r\n...third line\r\n..\r\nlast line\r\n";
+		NAFConfig nafcfg = dsptch.getApplicationContext().getConfig();
+		java.util.List<java.nio.file.Path> spoolfiles;
+		try (java.util.stream.Stream<java.nio.file.Path> s = java.nio.file.Files.walk(java.nio.file.Paths.get(nafcfg.getPathVar(), "spool"))) {
+			spoolfiles = s.filter(java.nio.file.Files::isRegularFile).collect(java.util.stream.Collectors.toList());
+		}
+		org.junit.Assert.assertEquals(1, spoolfiles.size());
+		String msg = new String(java.nio.file.Files.readAllBytes(spoolfiles.get(0)), "US-ASCII");
+		org.junit.Assert.assertTrue(msg, msg.endsWith(stuffed));
+	}
+
+	// The rejected BDAT's chunk must be read and discarded, rather than being parsed as commands (here, a QUIT which
+	// would end the session).
+	private void testChunkingDisabled() throws java.io.IOException
+	{
+		connect("UTEST_SMTP_NOCHUNKING");
+		sendRequest("EHLO client.local\r\n");
+		String rsp;
+		do {
+			rsp = ibstrm.readLine();
+			org.junit.Assert.assertTrue(rsp, rsp.startsWith("250"));
+			org.junit.Assert.assertFalse(rsp, rsp.substring(4).equals("CHUNKING"));
+		} while (rsp.charAt(3) == '-');
+		startMessage(true);
+		sendRequest("BDAT 6\r\nQUIT\r\nBDAT 6 LAST\r\nQUIT\r\nNOOP\r\n");
+		getResponse("503 Invalid command");
+		getResponse("503 Invalid command");
+		getResponse("250 OK");
+		disconnect();
+	}
+
+	// The chunk must likewise be discarded before the rejection, and the server then hangs up
+	private void testChunkNoRecips() throws java.io.IOException
+	{
+		connect("UTEST_SMTP_CHUNKING");
+		sendRequest("EHLO client.local\r\n");
+		String rsp;
+		do {
+			rsp = ibstrm.readLine();
+		} while (rsp.charAt(3) == '-');
+		startMessage(false);
+		sendRequest("BDAT 6 LAST\r\nQUIT\r\n");
+		getResponse("503 No valid recipients specified");
+		org.junit.Assert.assertNull(ibstrm.readLine());
+		close();
+	}
+
+	private void startMessage(boolean with_recip) throws java.io.IOException
+	{
+		sendRequest("MAIL FROM:<sender@client.local>\r\n");
+		getResponse("250 OK");
+		if (with_recip) {
+			sendRequest("RCPT TO:<"+RECIP_OK+">\r\n");
+			getResponse("250 OK");
+		} else {
+			sendRequest("RCPT TO:<"+RECIP_BAD+">\r\n");
+			String rsp = ibstrm.readLine();
+			org.junit.Assert.assertTrue(rsp, rsp.startsWith("5"));
+		}
+	}
+
+	private void startServer() throws java.io.IOException
+	{
+		// create a disposable Dispatcher first, just to identify and clean up the working directories that will be used
+		dsptch = Dispatcher.create(appctx, new DispatcherConfig.Builder().build(), com.grey.logging.Factory.getLogger("no-such-logger"));
+		NAFConfig nafcfg = dsptch.getApplicationContext().getConfig();
+		FileOps.deleteDirectory(nafcfg.getPathVar());
+		FileOps.deleteDirectory(nafcfg.getPathTemp());
+		FileOps.deleteDirectory(nafcfg.getPathLogs());
+		// now create the real Dispatcher
+		DispatcherConfig def = new DispatcherConfig.Builder()
+				.withName("ServerChunkingTest")
+				.withSurviveHandlers(false)
+				.build();
+		dsptch = Dispatcher.create(appctx, def, com.grey.logging.Factory.getLogger("no-such-logger"));
+		XmlConfig cfg = XmlConfig.makeSection(nafxml_server, "x");
+		SubmitTask stask = new SubmitTask("utest_chunking", dsptch, cfg);
+		dsptch.loadRunnable(stask);
+		dsptch.start();
+	}
+
+	private void stopServer()
+	{
+		dsptch.stop();
+		Dispatcher.STOPSTATUS stopsts = dsptch.waitStopped(TimeOps.MSECS_PER_SECOND * 10, true);
+		org.junit.Assert.assertEquals(Dispatcher.STOPSTATUS.STOPPED, stopsts);
+		org.junit.Assert.assertTrue(dsptch.completedOK());
+	}
+
+	private void connect(String lstnr_name) throws java.io.IOException
+	{
+		com.grey.naf.reactor.CM_Listener lstnr = appctx.getListener(lstnr_name);
+		sock = new java.net.Socket(java.net.InetAddress.getLoopbackAddress(), lstnr.getPort());
+		ostrm = sock.getOutputStream();
+		ibstrm = new java.io.BufferedReader(new java.io.InputStreamReader(sock.getInputStream(), "US-ASCII"), 1024);
+		String rsp = ibstrm.readLine(); //get greeting
+		org.junit.Assert.assertTrue(rsp, rsp.startsWith("220 "));
+	}
+
+	private void disconnect() throws java.io.IOException
+	{
+		sendRequest("QUIT\r\n");
+		getResponse("221 Closing connection");
+		close();
+	}
+
+	private void close() throws java.io.IOException
+	{
+		ostrm.close();
+		ibstrm.close();
+		sock.close();
+		ostrm = null;
+		ibstrm = null;
+		sock = null;
+	}
+
+	private void sendRequest(String req) throws java.io.IOException
+	{
+		ostrm.write(req.getBytes("US-ASCII"));
+		ostrm.flush();
+	}
+
+	private void getResponse(String expect) throws java.io.IOException
+	{
+		String rsp = ibstrm.readLine();
+		org.junit.Assert.assertEquals(expect, rsp);
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.submit;
+
+import com.grey.base.config.SysProps;
+import com.grey.base.config.XmlConfig;
+import com.grey.base.utils.FileOps;
+import com.grey.base.utils.TimeOps;
+import com.grey.naf.ApplicationContextNAF;
+import com.grey.naf.NAFConfig;
+import com.grey.naf.reactor.Dispatcher;
+import com.grey.naf.reactor.config.DispatcherConfig;
+import com.grey.mailismus.TestSupport;
+
+/*
+ * Submits messages over a raw socket to a server whose spooler is in dedup mode, with the default config of adding a
+ * Received header to each message.
+ */
+public class ServerDedupTest
+{
+	static {
+		TestSupport.initPaths(ServerDedupTest.class);
+		SysProps.set("greynaf.dispatchers.tolerant_threadchecks", true);
+	}
+	private static final String appcfg_path = "cp:com/grey/mailismus/mta/submit/conf-dedup.xml";
+	private static final String nafxml_server = "<x><configfile root=\"mailserver/mta/submit\">"+appcfg_path+"</configfile></x>";
+	private static final String BODY1 = "Subject: newsletter\r\n\r\nThe same content for everyone\r\n";
+	private static final String BODY2 = "Subject: something else\r\n\r\nDifferent content\r\n";
+
+	private static final ApplicationContextNAF appctx = TestSupport.createApplicationContext("ServerDedupTest", true);
+	private Dispatcher dsptch;
+	private java.net.Socket sock;
+	private java.io.OutputStream ostrm;
+	private java.io.BufferedReader ibstrm;
+
+	// The same body is submitted in two separate SMTP transactions, which differ in their Received headers, and it must
+	// only be stored once.
+	@org.junit.Test
+	public void testDuplicateBodies() throws Exception
+	{
+		startServer();
+		try {
+			connect();
+			sendMessage("user101@dom1.local", BODY1);
+			disconnect();
+			connect();
+			sendMessage("user102@dom1.local", BODY1);
+			sendMessage("user102@dom1.local", BODY2);
+			disconnect();
+		} finally {
+			stopServer();
+		}
+
+		java.nio.file.Path dh = java.nio.file.Paths.get(dsptch.getApplicationContext().getConfig().getPathVar(), "spool");
+		java.nio.file.Path dh_bodies = dh.resolve("bodies");
+		java.util.List<java.nio.file.Path> spoolfiles;
+		java.util.List<java.nio.file.Path> bodyfiles;
+		try (java.util.stream.Stream<java.nio.file.Path> s = java.nio.file.Files.walk(dh)) {
+			spoolfiles = s.filter(java.nio.file.Files::isRegularFile).filter(p -> !p.startsWith(dh_bodies)).collect(java.util.stream.Collectors.toList());
+		}
+		try (java.util.stream.Stream<java.nio.file.Path> s = java.nio.file.Files.list(dh_bodies)) {
+			bodyfiles = s.collect(java.util.stream.Collectors.toList());
+		}
+		org.junit.Assert.assertEquals(3, spoolfiles.size());
+		org.junit.Assert.assertEquals(2, bodyfiles.size());
+
+		java.util.List<java.nio.file.Path> dups = new java.util.ArrayList<>();
+		for (java.nio.file.Path fh : spoolfiles) {
+			String msg = new String(java.nio.file.Files.readAllBytes(fh), "US-ASCII");
+			org.junit.Assert.assertTrue(msg, msg.startsWith("Received: "));
+			if (msg.endsWith(BODY1)) dups.add(fh);
+		}
+		org.junit.Assert.assertEquals(2, dups.size());
+		org.junit.Assert.assertTrue(java.nio.file.Files.isSameFile(dups.get(0), dups.get(1)));
+	}
+
+	private void sendMessage(String recip, String body) throws java.io.IOException
+	{
+		sendRequest("MAIL FROM:<sender@client.local>\r\n");
+		getResponse("250 OK");
+		sendRequest("RCPT TO:<"+recip+">\r\n");
+		getResponse("250 OK");
+		sendRequest("DATA\r\n");
+		getResponse("354 Start mail input; end with <CRLF>.<CRLF>");
+		sendRequest(body+".\r\n");
+		String rsp = ibstrm.readLine();
+		org.junit.Assert.assertTrue(rsp, rsp.startsWith("250 Message accepted as"));
+	}
+
+	private void startServer() throws java.io.IOException
+	{
+		// create a disposable Dispatcher first, just to identify and clean up the working directories that will be used
+		dsptch = Dispatcher.create(appctx, new DispatcherConfig.Builder().build(), com.grey.logging.Factory.getLogger("no-such-logger"));
+		NAFConfig nafcfg = dsptch.getApplicationContext().getConfig();
+		FileOps.deleteDirectory(nafcfg.getPathVar());
+		FileOps.deleteDirectory(nafcfg.getPathTemp());
+		FileOps.deleteDirectory(nafcfg.getPathLogs());
+		// now create the real Dispatcher
+		DispatcherConfig def = new DispatcherConfig.Builder()
+				.withName("ServerDedupTest")
+				.withSurviveHandlers(false)
+				.build();
+		dsptch = Dispatcher.create(appctx, def, com.grey.logging.Factory.getLogger("no-such-logger"));
+		XmlConfig cfg = XmlConfig.makeSection(nafxml_server, "x");
+		SubmitTask stask = new SubmitTask("utest_dedup", dsptch, cfg);
+		dsptch.loadRunnable(stask);
+		dsptch.start();
+	}
+
+	private void stopServer()
+	{
+		dsptch.stop();
+		Dispatcher.STOPSTATUS stopsts = dsptch.waitStopped(TimeOps.MSECS_PER_SECOND * 10, true);
+		org.junit.Assert.assertEquals(Dispatcher.STOPSTATUS.STOPPED, stopsts);
+		org.junit.Assert.assertTrue(dsptch.completedOK());
+	}
+
+	private void connect() throws java.io.IOException
+	{
+		com.grey.naf.reactor.CM_Listener lstnr = appctx.getListener("UTEST_SMTP_DEDUP");
+		sock = new java.net.Socket(java.net.InetAddress.getLoopbackAddress(), lstnr.getPort());
+		ostrm = sock.getOutputStream();
+		ibstrm = new java.io.BufferedReader(new java.io.InputStreamReader(sock.getInputStream(), "US-ASCII"), 1024);
+		String rsp = ibstrm.readLine(); //get greeting
+		org.junit.Assert.assertTrue(rsp, rsp.startsWith("220 "));
+		sendRequest("EHLO client.local\r\n");
+		do {
+			rsp = ibstrm.readLine();
+			org.junit.Assert.assertTrue(rsp, rsp.startsWith("250"));
+		} while (rsp.charAt(3) == '-');
+	}
+
+	private void disconnect() throws java.io.IOException
+	{
+		sendRequest("QUIT\r\n");
+		getResponse("221 Closing connection");
+		ostrm.close();
+		ibstrm.close();
+		sock.close();
+		ostrm = null;
+		ibstrm = null;
+		sock = null;
+	}
+
+	private void sendRequest(String req) throws java.io.IOException
+	{
+		ostrm.write(req.getBytes("US-ASCII"));
+		ostrm.flush();
+	}
+
+	private void getResponse(String expect) throws java.io.IOException
+	{
+		String rsp = ibstrm.readLine();
+		org.junit.Assert.assertEquals(expect, rsp);
+	}
+}
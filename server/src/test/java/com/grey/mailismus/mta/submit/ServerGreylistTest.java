@@ -0,0 +1,189 @@
+/*
+ * Copyright 2024 Yusef Badri - All rights reserved.
+ * Mailismus is distributed under the terms of the GNU Affero General Public License, Version 3 (AGPLv3).
+ */
+package com.grey.mailismus.mta.submit;
+
+import com.grey.base.config.SysProps;
+import com.grey.base.config.XmlConfig;
+import com.grey.base.utils.FileOps;
+import com.grey.base.utils.TimeOps;
+import com.grey.naf.ApplicationContextNAF;
+import com.grey.naf.NAFConfig;
+import com.grey.naf.reactor.Dispatcher;
+import com.grey.naf.reactor.config.DispatcherConfig;
+import com.grey.mailismus.TestSupport;
+
+/*
+ * Exercises the server's handling of asynchronous greylisting over a raw socket, so that we control exactly how the
+ * commands are pipelined behind the recipients whose verdicts are pending.
+ * The Greylist has a zero quarantine period, so a recipient is greylisted the first time and accepted the next time.
+ * There are two identically configured listeners, which must not share the Greylist's in-memory store.
+ */
+public class ServerGreylistTest
+{
+	static {
+		TestSupport.initPaths(ServerGreylistTest.class);
+		SysProps.set("greynaf.dispatchers.tolerant_threadchecks", true);
+	}
+	private static final String appcfg_path = "cp:com/grey/mailismus/mta/submit/conf-greylist.xml";
+	private static final String nafxml_server = "<x><configfile root=\"mailserver/mta/submit\">"+appcfg_path+"</configfile></x>";
+	private static final String RSP_GREYLISTED = "450 Please try again later";
+
+	private static final ApplicationContextNAF appctx = TestSupport.createApplicationContext("ServerGreylistTest", true);
+	private Dispatcher dsptch;
+	private java.net.Socket sock;
+	private java.io.OutputStream ostrm;
+	private java.io.BufferedReader ibstrm;
+
+	@org.junit.Test
+	public void testSuite() throws Exception
+	{
+		startServer();
+		testPending();
+		testQuitWhilePending();
+		testDisconnectWhilePending();
+		testSeparateListeners();
+		stopServer();
+	}
+
+	// The responses to the pipelined commands must come back in order, with the ones behind a pending recipient
+	// waiting for its verdict.
+	private void testPending() throws java.io.IOException
+	{
+		startMessage();
+		sendRequest("RCPT TO:<user101@dom1.local>\r\nRCPT TO:<user102@dom1.local>\r\nNOOP\r\n");
+		getResponse(RSP_GREYLISTED);
+		getResponse(RSP_GREYLISTED);
+		getResponse("250 OK");
+		sendRequest("RCPT TO:<user101@dom1.local>\r\n");
+		getResponse("250 OK");
+		sendRequest("RCPT TO:<user103@dom1.local>\r\nRCPT TO:<nosuchuser@dom1.local>\r\nRCPT TO:<user102@dom1.local>\r\n");
+		getResponse(RSP_GREYLISTED);
+		String rsp = ibstrm.readLine();
+		org.junit.Assert.assertTrue(rsp, rsp.startsWith("5"));
+		getResponse("250 OK");
+		disconnect();
+	}
+
+	private void testQuitWhilePending() throws java.io.IOException
+	{
+		startMessage();
+		sendRequest("RCPT TO:<user104@dom1.local>\r\nQUIT\r\n");
+		getResponse(RSP_GREYLISTED);
+		getResponse("221 Closing connection");
+		org.junit.Assert.assertNull(ibstrm.readLine());
+		close();
+	}
+
+	// The verdict arrives after the client has gone, and the server must carry on regardless. The recipient was still
+	// registered, so the next connection finds it approved.
+	private void testDisconnectWhilePending() throws java.io.IOException
+	{
+		startMessage();
+		sendRequest("RCPT TO:<user105@dom1.local>\r\n");
+		close();
+		startMessage();
+		sendRequest("RCPT TO:<user105@dom1.local>\r\n");
+		getResponse("250 OK");
+		disconnect();
+	}
+
+	// Each listener has its own registry, so a recipient which was approved via the first one is new to the second
+	private void testSeparateListeners() throws java.io.IOException
+	{
+		startMessage("UTEST_SMTP_GREYLIST2");
+		sendRequest("RCPT TO:<user101@dom1.local>\r\n");
+		getResponse(RSP_GREYLISTED);
+		disconnect();
+
+		String rootpath = dsptch.getApplicationContext().getConfig().getPathVar()+"/greylist";
+		org.junit.Assert.assertTrue(new java.io.File(rootpath+"/UTEST_SMTP_GREYLIST/greylist.snap").exists());
+		org.junit.Assert.assertTrue(new java.io.File(rootpath+"/UTEST_SMTP_GREYLIST2/greylist.snap").exists());
+	}
+
+	private void startMessage() throws java.io.IOException
+	{
+		startMessage("UTEST_SMTP_GREYLIST");
+	}
+
+	private void startMessage(String lstnr_name) throws java.io.IOException
+	{
+		connect(lstnr_name);
+		sendRequest("EHLO client.local\r\n");
+		String rsp;
+		do {
+			rsp = ibstrm.readLine();
+			org.junit.Assert.assertTrue(rsp, rsp.startsWith("250"));
+		} while (rsp.charAt(3) == '-');
+		sendRequest("MAIL FROM:<sender@client.local>\r\n");
+		getResponse("250 OK");
+	}
+
+	private void startServer() throws java.io.IOException
+	{
+		// create a disposable Dispatcher first, just to identify and clean up the working directories that will be used
+		dsptch = Dispatcher.create(appctx, new DispatcherConfig.Builder().build(), com.grey.logging.Factory.getLogger("no-such-logger"));
+		NAFConfig nafcfg = dsptch.getApplicationContext().getConfig();
+		FileOps.deleteDirectory(nafcfg.getPathVar());
+		FileOps.deleteDirectory(nafcfg.getPathTemp());
+		FileOps.deleteDirectory(nafcfg.getPathLogs());
+		// now create the real Dispatcher
+		DispatcherConfig def = new DispatcherConfig.Builder()
+				.withName("ServerGreylistTest")
+				.withSurviveHandlers(false)
+				.build();
+		dsptch = Dispatcher.create(appctx, def, com.grey.logging.Factory.getLogger("no-such-logger"));
+		XmlConfig cfg = XmlConfig.makeSection(nafxml_server, "x");
+		SubmitTask stask = new SubmitTask("utest_greylist", dsptch, cfg);
+		dsptch.loadRunnable(stask);
+		dsptch.start();
+	}
+
+	private void stopServer()
+	{
+		dsptch.stop();
+		Dispatcher.STOPSTATUS stopsts = dsptch.waitStopped(TimeOps.MSECS_PER_SECOND * 10, true);
+		org.junit.Assert.assertEquals(Dispatcher.STOPSTATUS.STOPPED, stopsts);
+		org.junit.Assert.assertTrue(dsptch.completedOK());
+	}
+
+	private void connect(String lstnr_name) throws java.io.IOException
+	{
+		com.grey.naf.reactor.CM_Listener lstnr = appctx.getListener(lstnr_name);
+		sock = new java.net.Socket(java.net.InetAddress.getLoopbackAddress(), lstnr.getPort());
+		ostrm = sock.getOutputStream();
+		ibstrm = new java.io.BufferedReader(new java.io.InputStreamReader(sock.getInputStream(), "US-ASCII"), 1024);
+		String rsp = ibstrm.readLine(); //get greeting
+		org.junit.Assert.assertTrue(rsp, rsp.startsWith("220 "));
+	}
+
+	private void disconnect() throws java.io.IOException
+	{
+		sendRequest("QUIT\r\n");
+		getResponse("221 Closing connection");
+		close();
+	}
+
+	private void close() throws java.io.IOException
+	{
+		ostrm.close();
+		ibstrm.close();
+		sock.close();
+		ostrm = null;
+		ibstrm = null;
+		sock = null;
+	}
+
+	private void sendRequest(String req) throws java.io.IOException
+	{
+		ostrm.write(req.getBytes("US-ASCII"));
+		ostrm.flush();
+	}
+
+	private void getResponse(String expect) throws java.io.IOException
+	{
+		String rsp = ibstrm.readLine();
+		org.junit.Assert.assertEquals(expect, rsp);
+	}
+}